@@ -219,7 +219,11 @@ public class EncryptionCpuTest implements IDeviceTest, IRemoteTest {
                 mLogFile = null;
             }
             InputStreamSource bugreport = mTestDevice.getBugreport();
-            listener.testLog(String.format("bugreport_%s", mKey), LogDataType.TEXT, bugreport);
+            try {
+                listener.testLog(String.format("bugreport_%s", mKey), LogDataType.TEXT, bugreport);
+            } finally {
+                bugreport.cancel();
+            }
             if (mUseCpuStats) {
                 addCpuStats(mCpuStatsCollector);
             } else {
@@ -122,8 +122,11 @@ public class DataIdleTest implements IDeviceTest, IRemoteTest {
      */
     void logBugReport(ITestInvocationListener listener) {
         InputStreamSource bugreport = mTestDevice.getBugreport();
-        listener.testLog(BUG_REPORT_LABEL, LogDataType.TEXT, bugreport);
-        bugreport.cancel();
+        try {
+            listener.testLog(BUG_REPORT_LABEL, LogDataType.TEXT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
     }
 
     /**
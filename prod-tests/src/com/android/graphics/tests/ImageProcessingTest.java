@@ -98,8 +98,11 @@ public class ImageProcessingTest implements IDeviceTest, IRemoteTest {
             throws DeviceNotAvailableException {
         // take a bug report, it is possible the system crashed
         InputStreamSource bugreport = mTestDevice.getBugreport();
-        listener.testLog("bugreport.txt", LogDataType.TEXT, bugreport);
-        bugreport.cancel();
+        try {
+            listener.testLog("bugreport.txt", LogDataType.TEXT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
         File resFile = null;
         InputStreamSource outputSource = null;
         Map<String, String> runMetrics = new HashMap<String, String>();
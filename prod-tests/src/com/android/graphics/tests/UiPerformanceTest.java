@@ -150,8 +150,11 @@ public class UiPerformanceTest implements IDeviceTest, IRemoteTest {
             throws DeviceNotAvailableException {
         // catch a bugreport after the test
         InputStreamSource bugreport = mTestDevice.getBugreport();
-        listener.testLog("bugreport", LogDataType.TEXT, bugreport);
-        bugreport.cancel();
+        try {
+            listener.testLog("bugreport", LogDataType.TEXT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
 
         File resFile = null;
         InputStreamSource outputSource = null;
@@ -148,9 +148,12 @@ public class CameraLatencyTest implements IDeviceTest, IRemoteTest {
                     test.mTestName, auxListener.getNumFailedTests(),
                     auxListener.getNumErrorTests());
             InputStreamSource bugreport = mTestDevice.getBugreport();
-            listener.testLog(String.format("bugreport-%s.txt", test.mTestName), LogDataType.TEXT,
-                    bugreport);
-            bugreport.cancel();
+            try {
+                listener.testLog(String.format("bugreport-%s.txt", test.mTestName),
+                        LogDataType.TEXT, bugreport);
+            } finally {
+                bugreport.cancel();
+            }
         }
     }
 
@@ -174,8 +174,11 @@ public class CameraShotToShotLatencyTest implements IDeviceTest, IRemoteTest {
     private void reportMetrics(ITestInvocationListener listener, String runName,
             Map<String, String> metrics) {
         InputStreamSource bugreport = mTestDevice.getBugreport();
-        listener.testLog("bugreport", LogDataType.TEXT, bugreport);
-        bugreport.cancel();
+        try {
+            listener.testLog("bugreport", LogDataType.TEXT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
 
         CLog.d(String.format("About to report metrics: %s", metrics));
         listener.testRunStarted(runName, 0);
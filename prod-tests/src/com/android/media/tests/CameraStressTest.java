@@ -175,9 +175,12 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
                     "%d failures and %d errors.", test.mTestName, auxListener.getNumFailedTests(),
                     auxListener.getNumErrorTests()));
             InputStreamSource bugreport = mTestDevice.getBugreport();
-            listener.testLog(String.format("bugreport-%s.txt", test.mTestName), LogDataType.TEXT,
-                    bugreport);
-            bugreport.cancel();
+            try {
+                listener.testLog(String.format("bugreport-%s.txt", test.mTestName),
+                        LogDataType.TEXT, bugreport);
+            } finally {
+                bugreport.cancel();
+            }
         }
     }
 
@@ -174,7 +174,10 @@ public class RadioHelper {
             throws DeviceNotAvailableException {
         CLog.d("Capture a bugreport");
         InputStreamSource bugreport = mDevice.getBugreport();
-        listener.testLog("bugreport", LogDataType.TEXT, bugreport);
-        bugreport.cancel();
+        try {
+            listener.testLog("bugreport", LogDataType.TEXT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
     }
 }
@@ -154,8 +154,12 @@ public class RadioStressTest implements IRemoteTest, IDeviceTest {
             throws DeviceNotAvailableException {
         // take a bug report, it is possible the system crashed
         InputStreamSource bugreport = mTestDevice.getBugreport();
-        listener.testLog(String.format("bugreport_%d.txt", iteration), LogDataType.TEXT, bugreport);
-        bugreport.cancel();
+        try {
+            listener.testLog(String.format("bugreport_%d.txt", iteration), LogDataType.TEXT,
+                    bugreport);
+        } finally {
+            bugreport.cancel();
+        }
     }
 
     private boolean verifyVoiceConnection(ITestInvocationListener listener)
@@ -157,8 +157,11 @@ public class SmsStressTest implements IRemoteTest, IDeviceTest {
         throws DeviceNotAvailableException {
         // Capture a bugreport right after the test
         InputStreamSource bugreport = mTestDevice.getBugreport();
-        listener.testLog("bugreport", LogDataType.TEXT, bugreport);
-        bugreport.cancel();
+        try {
+            listener.testLog("bugreport", LogDataType.TEXT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
 
         InputStreamSource outputSource = null;
         Map<String, String> runMetrics = new HashMap<String, String>();
@@ -19,21 +19,57 @@ import com.android.ddmlib.Log;
 import com.android.tradefed.command.FatalHostError;
 import com.android.tradefed.util.FileUtil;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A helper class that maintains a local filesystem LRU cache of downloaded files.
+ * <p/>
+ * Concurrent requests for the same remote path share a single download, and requests for
+ * different remote paths download in parallel. The global cache map lock is only held for map
+ * updates. Access to each cached file is guarded by one of a fixed set of striped read-write
+ * locks: fetches hold the read lock, and eviction, which runs on a background thread, only
+ * deletes files whose write lock it can acquire without waiting.
+ * <p/>
+ * The LRU order, size and md5 checksum of each cached file are persisted in an index file in the
+ * cache root, so the cache can be loaded at startup without walking the cache directory tree. The
+ * loaded index is reconciled against the filesystem in background. Cache hits only update the LRU
+ * order in memory. It is persisted with the next change to the cache contents, eg an eviction, or
+ * at JVM shutdown.
+ * <p/>
+ * Cached file contents are also stored by checksum in a content-addressed store, and each remote
+ * path's cached file is a hardlink to its content. Identical files cached under different remote
+ * paths are stored once, and count once towards the cache size. If the downloader is a
+ * {@link IChecksumFileDownloader}, files whose content is already stored are not downloaded.
  */
 public class FileDownloadCache {
 
@@ -41,24 +77,96 @@ public class FileDownloadCache {
 
     private static final char REL_PATH_SEPARATOR = '/';
 
+    /** the number of file lock stripes. Must be a power of two */
+    private static final int NUM_FILE_LOCKS = 64;
+
+    /** the name of the index file, stored in the cache root */
+    static final String INDEX_FILE_NAME = ".tf_cache_index";
+    private static final String INDEX_TMP_FILE_NAME = INDEX_FILE_NAME + ".tmp";
+    /** the first line of the index file, used to identify its format */
+    private static final String INDEX_HEADER = "tradefed file download cache index v1";
+    private static final String INDEX_SEPARATOR = "\t";
+    /** the value stored in the index file for an unknown checksum */
+    private static final String NO_CHECKSUM = "-";
+    /** the name of the content-addressed store directory, stored in the cache root */
+    static final String CONTENT_DIR_NAME = ".tf_content";
+
     /** fixed location of download cache. */
     private final File mCacheRoot;
 
     /**
-     * The map of remote file paths to local files, stored in least-recently-used order.
+     * The map of remote file paths to cache entries, stored in least-recently-used order.
      * <p/>
      * Used for performance reasons. Functionally speaking, this data structure is not needed,
      * since all info could be obtained from inspecting the filesystem.
      */
-    private final Map<String, File> mCacheMap = new LinkedHashMap<String, File>();
+    private final Map<String, CacheEntry> mCacheMap = new LinkedHashMap<String, CacheEntry>();
+
+    /**
+     * The number of cache entries referencing each stored content checksum.
+     */
+    private final Map<String, Integer> mContentRefCounts = new HashMap<String, Integer>();
 
-    /** the lock for <var>mCacheMap</var> */
+    /**
+     * the lock for <var>mCacheMap</var>, <var>mContentRefCounts</var> and
+     * <var>mCurrentCacheSize</var>
+     */
     private final ReentrantLock mCacheMapLock = new ReentrantLock();
 
+    /** the striped locks guarding access to cached files */
+    private final ReadWriteLock[] mFileLocks = new ReadWriteLock[NUM_FILE_LOCKS];
+
+    /**
+     * the striped locks guarding creation and deletion of content files. Must be acquired before
+     * <var>mCacheMapLock</var>
+     */
+    private final ReentrantLock[] mContentLocks = new ReentrantLock[NUM_FILE_LOCKS];
+
+    /** the root of the content-addressed store */
+    private final File mContentRoot;
+
+    /** the downloads currently in progress, keyed by remote path */
+    private final ConcurrentMap<String, FutureTask<File>> mDownloadsInProgress =
+            new ConcurrentHashMap<String, FutureTask<File>>();
+
     private long mCurrentCacheSize = 0;
 
     /** The approximate maximum allowed size of the local file cache. Default to 2 gig */
-    private long mMaxFileCacheSize = 2L * 1024L * 1024L * 1024L;
+    private volatile long mMaxFileCacheSize = 2L * 1024L * 1024L * 1024L;
+
+    /** the executor used to run eviction and index maintenance off the request path */
+    private final ExecutorService mBackgroundExecutor;
+    private final AtomicBoolean mEvictionScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean mIndexWriteScheduled = new AtomicBoolean(false);
+    /** set when the LRU order changed since the index was last written */
+    private final AtomicBoolean mIndexStale = new AtomicBoolean(false);
+    /** the lock serializing index writes */
+    private final Object mIndexWriteLock = new Object();
+
+    private final AtomicLong mHitCount = new AtomicLong(0);
+    private final AtomicLong mMissCount = new AtomicLong(0);
+    private final AtomicLong mSharedDownloadCount = new AtomicLong(0);
+    private final AtomicLong mDownloadedBytes = new AtomicLong(0);
+    private final AtomicLong mEvictionCount = new AtomicLong(0);
+    private final AtomicLong mEvictedBytes = new AtomicLong(0);
+    private final AtomicLong mDeduplicatedCount = new AtomicLong(0);
+    private final AtomicLong mDeduplicatedBytes = new AtomicLong(0);
+
+    /**
+     * Struct for a cached {@link File}, its size and its md5 checksum
+     */
+    private static class CacheEntry {
+        final File mFile;
+        final long mSize;
+        /** the md5 checksum of the file contents, or <code>null</code> if unknown */
+        final String mChecksum;
+
+        CacheEntry(File file, long size, String checksum) {
+            mFile = file;
+            mSize = size;
+            mChecksum = checksum;
+        }
+    }
 
     /**
      * Struct for a {@link File} and its remote relative path
@@ -79,9 +187,7 @@ public class FileDownloadCache {
     private static class FileTimeComparator implements Comparator<FilePair> {
         @Override
         public int compare(FilePair o1, FilePair o2) {
-            Long timestamp1 = new Long(o1.mFile.lastModified());
-            Long timestamp2 = o2.mFile.lastModified();
-            return timestamp1.compareTo(timestamp2);
+            return Long.compare(o1.mFile.lastModified(), o2.mFile.lastModified());
         }
     }
 
@@ -94,6 +200,25 @@ public class FileDownloadCache {
      */
     FileDownloadCache(File cacheRoot) {
         mCacheRoot = cacheRoot;
+        mContentRoot = new File(mCacheRoot, CONTENT_DIR_NAME);
+        for (int i = 0; i < NUM_FILE_LOCKS; i++) {
+            mFileLocks[i] = new ReentrantReadWriteLock();
+            mContentLocks[i] = new ReentrantLock();
+        }
+        mBackgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileDownloadCache-background");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread("FileDownloadCache-shutdown") {
+            @Override
+            public void run() {
+                writeIndexIfStale();
+            }
+        });
         if (!mCacheRoot.exists()) {
             Log.d(LOG_TAG, String.format("Creating file cache at %s",
                     mCacheRoot.getAbsolutePath()));
@@ -101,6 +226,19 @@ public class FileDownloadCache {
                 throw new FatalHostError(String.format("Could not create cache directory at %s",
                         mCacheRoot.getAbsolutePath()));
             }
+        } else if (loadIndex()) {
+            Log.d(LOG_TAG, String.format("Loaded file cache index with %d entries at %s",
+                    mCacheMap.size(), mCacheRoot.getAbsolutePath()));
+            if (mCurrentCacheSize > getMaxFileCacheSize()) {
+                adjustCache(true);
+            }
+            // the index may be out of date if the process was killed before it was written
+            mBackgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reconcileIndex();
+                }
+            });
         } else {
             Log.d(LOG_TAG, String.format("Building file cache from contents at %s",
                     mCacheRoot.getAbsolutePath()));
@@ -112,13 +250,283 @@ public class FileDownloadCache {
             Collections.sort(cacheEntryList, new FileTimeComparator());
             // now insert them into the map
             for (FilePair cacheEntry : cacheEntryList) {
-                mCacheMap.put(cacheEntry.mRelPath, cacheEntry.mFile);
-                mCurrentCacheSize += cacheEntry.mFile.length();
+                long size = cacheEntry.mFile.length();
+                mCacheMap.put(cacheEntry.mRelPath, new CacheEntry(cacheEntry.mFile, size, null));
+                mCurrentCacheSize += size;
             }
             // this would be an unusual situation, but check if current cache is already too big
             if (mCurrentCacheSize > getMaxFileCacheSize()) {
-                incrementAndAdjustCache(0);
+                adjustCache(true);
             }
+            scheduleIndexWrite();
+            // checksums are unknown, so any stored content is no longer referenced
+            mBackgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    cleanContentStore();
+                }
+            });
+        }
+    }
+
+    /**
+     * Load the cache map from the index file.
+     *
+     * @return <code>true</code> if index was loaded, <code>false</code> if index does not exist
+     *         or could not be parsed
+     */
+    private boolean loadIndex() {
+        File indexFile = new File(mCacheRoot, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(indexFile));
+            if (!INDEX_HEADER.equals(reader.readLine())) {
+                Log.w(LOG_TAG, String.format("Unrecognized cache index %s",
+                        indexFile.getAbsolutePath()));
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the path is last, as it is the only field that could contain a separator
+                String[] fields = line.split(INDEX_SEPARATOR, 3);
+                if (fields.length != 3) {
+                    throw new IOException(String.format("Malformed index line '%s'", line));
+                }
+                long size = Long.parseLong(fields[0]);
+                String checksum = NO_CHECKSUM.equals(fields[1]) ? null : fields[1];
+                String relPath = fields[2];
+                File file = new File(mCacheRoot, convertPath(relPath));
+                CacheEntry entry = new CacheEntry(file, size, checksum);
+                CacheEntry previous = mCacheMap.put(relPath, entry);
+                if (previous != null) {
+                    releaseContentLocked(previous);
+                }
+                retainContentLocked(entry);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to load cache index %s: %s",
+                    indexFile.getAbsolutePath(), e.getMessage()));
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, String.format("Failed to load cache index %s: %s",
+                    indexFile.getAbsolutePath(), e.getMessage()));
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        // discard any partially loaded contents
+        mCacheMap.clear();
+        mContentRefCounts.clear();
+        mCurrentCacheSize = 0;
+        return false;
+    }
+
+    /**
+     * Schedule a write of the index file on the background thread, if one is not already pending.
+     */
+    private void scheduleIndexWrite() {
+        if (mIndexWriteScheduled.compareAndSet(false, true)) {
+            mBackgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mIndexWriteScheduled.set(false);
+                    writeIndex();
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the index file if the LRU order changed since it was last written.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void writeIndexIfStale() {
+        if (mIndexStale.get() && mCacheRoot.exists()) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Write a snapshot of the cache map to the index file.
+     * <p/>
+     * The index is written to a temporary file which then replaces the index, so a partially
+     * written index is never loaded.
+     */
+    private void writeIndex() {
+        synchronized (mIndexWriteLock) {
+            writeIndexLocked();
+        }
+    }
+
+    private void writeIndexLocked() {
+        mIndexStale.set(false);
+        List<String> lines;
+        mCacheMapLock.lock();
+        try {
+            lines = new ArrayList<String>(mCacheMap.size());
+            for (Map.Entry<String, CacheEntry> entry : mCacheMap.entrySet()) {
+                CacheEntry cacheEntry = entry.getValue();
+                lines.add(String.format("%d%s%s%s%s", cacheEntry.mSize, INDEX_SEPARATOR,
+                        cacheEntry.mChecksum != null ? cacheEntry.mChecksum : NO_CHECKSUM,
+                        INDEX_SEPARATOR, entry.getKey()));
+            }
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        File tmpFile = new File(mCacheRoot, INDEX_TMP_FILE_NAME);
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmpFile));
+            writer.write(INDEX_HEADER);
+            writer.newLine();
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(new File(mCacheRoot, INDEX_FILE_NAME))) {
+                throw new IOException("could not replace index file");
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to write cache index in %s: %s",
+                    mCacheRoot.getAbsolutePath(), e.getMessage()));
+            tmpFile.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Reconcile the cache map loaded from the index with the filesystem contents.
+     * <p/>
+     * Entries whose file is missing or has an unexpected size are removed. Files that are not in
+     * the cache map are added as the least recently used entries. Files currently being accessed
+     * are skipped.
+     */
+    private void reconcileIndex() {
+        List<FilePair> diskFileList = new LinkedList<FilePair>();
+        addFiles(mCacheRoot, new Stack<String>(), diskFileList);
+        Map<String, File> diskFiles = new HashMap<String, File>(diskFileList.size());
+        for (FilePair diskFile : diskFileList) {
+            diskFiles.put(diskFile.mRelPath, diskFile.mFile);
+        }
+        List<Map.Entry<String, CacheEntry>> entries;
+        mCacheMapLock.lock();
+        try {
+            entries = new ArrayList<Map.Entry<String, CacheEntry>>(mCacheMap.entrySet());
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        int numRemoved = 0;
+        for (Map.Entry<String, CacheEntry> entry : entries) {
+            String relPath = entry.getKey();
+            File diskFile = diskFiles.remove(relPath);
+            if (diskFile != null && diskFile.length() == entry.getValue().mSize) {
+                continue;
+            }
+            ReadWriteLock fileLock = getFileLock(relPath);
+            if (fileLock.writeLock().tryLock()) {
+                try {
+                    if (removeCacheEntry(relPath, entry.getValue().mFile) >= 0) {
+                        numRemoved++;
+                    }
+                } finally {
+                    fileLock.writeLock().unlock();
+                }
+            }
+        }
+        // remaining disk files are not in the index
+        List<FilePair> untrackedFiles = new ArrayList<FilePair>(diskFiles.size());
+        for (Map.Entry<String, File> diskFile : diskFiles.entrySet()) {
+            untrackedFiles.add(new FilePair(diskFile.getKey(), diskFile.getValue()));
+        }
+        Collections.sort(untrackedFiles, new FileTimeComparator());
+        Map<String, CacheEntry> untrackedEntries = new LinkedHashMap<String, CacheEntry>();
+        for (FilePair untrackedFile : untrackedFiles) {
+            ReadWriteLock fileLock = getFileLock(untrackedFile.mRelPath);
+            // a file that is in use is being downloaded, and will be added when complete
+            if (fileLock.writeLock().tryLock()) {
+                try {
+                    untrackedEntries.put(untrackedFile.mRelPath, new CacheEntry(
+                            untrackedFile.mFile, untrackedFile.mFile.length(), null));
+                } finally {
+                    fileLock.writeLock().unlock();
+                }
+            }
+        }
+        boolean evict = false;
+        int numAdded = 0;
+        if (!untrackedEntries.isEmpty()) {
+            mCacheMapLock.lock();
+            try {
+                // add untracked files as least recently used, in front of current entries
+                Map<String, CacheEntry> newCacheMap = new LinkedHashMap<String, CacheEntry>();
+                for (Map.Entry<String, CacheEntry> entry : untrackedEntries.entrySet()) {
+                    // skip files that were added to cache concurrently
+                    if (!mCacheMap.containsKey(entry.getKey())) {
+                        newCacheMap.put(entry.getKey(), entry.getValue());
+                        retainContentLocked(entry.getValue());
+                        numAdded++;
+                    }
+                }
+                newCacheMap.putAll(mCacheMap);
+                mCacheMap.clear();
+                mCacheMap.putAll(newCacheMap);
+                evict = mCurrentCacheSize > getMaxFileCacheSize();
+            } finally {
+                mCacheMapLock.unlock();
+            }
+        }
+        Log.d(LOG_TAG, String.format("Reconciled cache index: removed %d entries, added %d files",
+                numRemoved, numAdded));
+        if (evict) {
+            adjustCache(false);
+        }
+        if (numRemoved > 0 || numAdded > 0) {
+            scheduleIndexWrite();
+        }
+        cleanContentStore();
+    }
+
+    /**
+     * Delete any files in the content store that are not referenced by a cache entry.
+     */
+    private void cleanContentStore() {
+        File[] contentDirs = mContentRoot.listFiles();
+        if (contentDirs == null) {
+            return;
+        }
+        int numDeleted = 0;
+        for (File contentDir : contentDirs) {
+            File[] contentFiles = contentDir.listFiles();
+            if (contentFiles == null) {
+                continue;
+            }
+            for (File contentFile : contentFiles) {
+                if (deleteContentIfUnreferenced(contentFile.getName())) {
+                    numDeleted++;
+                }
+            }
+        }
+        if (numDeleted > 0) {
+            Log.d(LOG_TAG, String.format("Deleted %d unreferenced files from content store",
+                    numDeleted));
         }
     }
 
@@ -135,6 +543,9 @@ public class FileDownloadCache {
     private void addFiles(File dir, Stack<String> relPathSegments,
             List<FilePair> cacheEntryList) {
         for (File childFile : dir.listFiles()) {
+            if (relPathSegments.isEmpty() && isMetadataFile(childFile)) {
+                continue;
+            }
             if (childFile.isDirectory()) {
                 relPathSegments.push(childFile.getName());
                 addFiles(childFile, relPathSegments, cacheEntryList);
@@ -154,6 +565,16 @@ public class FileDownloadCache {
         }
     }
 
+    /**
+     * @return <code>true</code> if given file in the cache root holds cache metadata rather than
+     *         cached files
+     */
+    private boolean isMetadataFile(File file) {
+        return INDEX_FILE_NAME.equals(file.getName()) ||
+                INDEX_TMP_FILE_NAME.equals(file.getName()) ||
+                CONTENT_DIR_NAME.equals(file.getName());
+    }
+
     /**
      * Set the maximum size of the local file cache.
      * <p/>
@@ -162,17 +583,27 @@ public class FileDownloadCache {
      * @param numBytes
      */
     public void setMaxCacheSize(long numBytes) {
-        // for simplicity, get global lock
-        mCacheMapLock.lock();
         mMaxFileCacheSize = numBytes;
-        mCacheMapLock.unlock();
+    }
+
+    /**
+     * Gets the lock guarding access to the cached file for given remote path.
+     */
+    private ReadWriteLock getFileLock(String remotePath) {
+        // spread the hash bits, as done by HashMap
+        int hash = remotePath.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return mFileLocks[hash & (NUM_FILE_LOCKS - 1)];
     }
 
     /**
      * Returns a local file corresponding to the given <var>remotePath</var>
      * <p/>
      * The local {@link File} will be copied from the cache if it exists, otherwise will be
-     * downloaded via the given {@link IFileDownloader}.
+     * downloaded via the given {@link IFileDownloader}. If a download of the same
+     * <var>remotePath</var> is already in progress, waits for it to complete rather than
+     * downloading again.
      *
      * @param downloader the {@link IFileDownloader}
      * @param remoteFilePath the remote file.
@@ -181,45 +612,134 @@ public class FileDownloadCache {
      */
     public File fetchRemoteFile(IFileDownloader downloader, String remotePath)
             throws BuildRetrievalError {
-        boolean download = false;
-        // remove and then add previous cache entry to maintain LRU order
-        mCacheMapLock.lock();
-        File cachedFile = mCacheMap.remove(remotePath);
-        if (cachedFile == null) {
-            // create a local File that maps to remotePath
-            // convert remotePath to a local path if necessary
-            String localRelativePath = convertPath(remotePath);
-            cachedFile = new File(mCacheRoot, localRelativePath);
-            cachedFile.getParentFile().mkdirs();
-            download = true;
-        }
-        // lock on the file, so no other thread attempts to delete it or access it before its
-        // downloaded
-        File copyFile = null;
+        // hold read lock to prevent eviction from deleting the file while it is being accessed
+        ReadWriteLock fileLock = getFileLock(remotePath);
+        fileLock.readLock().lock();
         try {
-            synchronized (cachedFile) {
-                mCacheMap.put(remotePath, cachedFile);
-                mCacheMapLock.unlock();
-                if (download) {
-                    downloadFile(downloader, remotePath, cachedFile);
-                } else {
-                    Log.d(LOG_TAG, String.format("Retrieved remote file %s from cached file %s",
-                            remotePath, cachedFile.getAbsolutePath()));
-                }
-                copyFile = copyFile(remotePath, cachedFile);
+            File cachedFile = getAndTouchCachedFile(remotePath);
+            if (cachedFile != null) {
+                mHitCount.incrementAndGet();
+                Log.d(LOG_TAG, String.format("Retrieved remote file %s from cached file %s",
+                        remotePath, cachedFile.getAbsolutePath()));
+            } else {
+                cachedFile = getDownloadedFile(downloader, remotePath);
+            }
+            return copyFile(remotePath, cachedFile);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
 
+    /**
+     * Gets the cached file for given remote path, and marks it as most recently used.
+     *
+     * @return the cached {@link File} or <code>null</code> if not in cache
+     */
+    private File getAndTouchCachedFile(String remotePath) {
+        CacheEntry entry;
+        mCacheMapLock.lock();
+        try {
+            // remove and then add previous cache entry to maintain LRU order
+            entry = mCacheMap.remove(remotePath);
+            if (entry == null) {
+                return null;
             }
-        } catch (BuildRetrievalError e) {
-            // remove entry from cache outside of cachedFile lock, to prevent deadlock
-            mCacheMapLock.lock();
-            mCacheMap.remove(remotePath);
+            mCacheMap.put(remotePath, entry);
+        } finally {
             mCacheMapLock.unlock();
-            throw e;
         }
-        if (download) {
-           incrementAndAdjustCache(cachedFile.length());
+        // rewriting the whole index on every hit would be costly. The new LRU order is persisted
+        // with the next index write, or at shutdown
+        mIndexStale.set(true);
+        return entry.mFile;
+    }
+
+    /**
+     * Downloads given remote path into the cache, or waits for a download already in progress.
+     *
+     * @return the cached {@link File}
+     * @throws BuildRetrievalError if download failed
+     */
+    private File getDownloadedFile(final IFileDownloader downloader, final String remotePath)
+            throws BuildRetrievalError {
+        FutureTask<File> download = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws BuildRetrievalError {
+                // another download may have completed after the cache map was checked
+                File cachedFile = getAndTouchCachedFile(remotePath);
+                if (cachedFile != null) {
+                    mHitCount.incrementAndGet();
+                    return cachedFile;
+                }
+                cachedFile = new File(mCacheRoot, convertPath(remotePath));
+                cachedFile.getParentFile().mkdirs();
+                String remoteChecksum = null;
+                if (downloader instanceof IChecksumFileDownloader) {
+                    remoteChecksum = ((IChecksumFileDownloader)downloader).getRemoteFileChecksum(
+                            remotePath);
+                    if (remoteChecksum != null &&
+                            linkStoredContent(remotePath, cachedFile, remoteChecksum)) {
+                        return cachedFile;
+                    }
+                }
+                mMissCount.incrementAndGet();
+                downloadFile(downloader, remotePath, cachedFile);
+                long size = cachedFile.length();
+                mDownloadedBytes.addAndGet(size);
+                String checksum = calculateChecksum(cachedFile);
+                if (remoteChecksum != null && !remoteChecksum.equals(checksum)) {
+                    cachedFile.delete();
+                    throw new BuildRetrievalError(String.format(
+                            "Downloaded file %s has checksum %s, expected %s", remotePath,
+                            checksum, remoteChecksum));
+                }
+                storeContent(remotePath, new CacheEntry(cachedFile, size, checksum));
+                return cachedFile;
+            }
+        });
+        FutureTask<File> existingDownload = mDownloadsInProgress.putIfAbsent(remotePath, download);
+        if (existingDownload != null) {
+            mSharedDownloadCount.incrementAndGet();
+            Log.d(LOG_TAG, String.format("Waiting for in progress download of %s", remotePath));
+            return getDownloadResult(existingDownload);
+        }
+        try {
+            download.run();
+            return getDownloadResult(download);
+        } finally {
+            mDownloadsInProgress.remove(remotePath, download);
+        }
+    }
+
+    /**
+     * Calculate the checksum of a newly downloaded file.
+     *
+     * @return the md5 checksum or <code>null</code> if it could not be calculated
+     */
+    private String calculateChecksum(File file) {
+        try {
+            return FileUtil.calculateMd5(file);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to calculate checksum of %s: %s",
+                    file.getAbsolutePath(), e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Waits for given download to complete, and returns its result.
+     */
+    private File getDownloadResult(FutureTask<File> download) throws BuildRetrievalError {
+        try {
+            return download.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BuildRetrievalError) {
+                throw (BuildRetrievalError)e.getCause();
+            }
+            throw new BuildRetrievalError("Unexpected error when downloading file", e.getCause());
+        } catch (InterruptedException e) {
+            throw new BuildRetrievalError("Interrupted while waiting for download", e);
         }
-        return copyFile;
     }
 
     private void downloadFile(IFileDownloader downloader, String remotePath, File cachedFile)
@@ -234,6 +754,216 @@ public class FileDownloadCache {
         }
     }
 
+    /**
+     * Adds a new entry to the cache, scheduling eviction if the cache grew too large.
+     */
+    private void addCacheEntry(String remotePath, CacheEntry entry) {
+        boolean evict;
+        mCacheMapLock.lock();
+        try {
+            CacheEntry previous = mCacheMap.put(remotePath, entry);
+            if (previous != null) {
+                releaseContentLocked(previous);
+            }
+            retainContentLocked(entry);
+            evict = mCurrentCacheSize > getMaxFileCacheSize();
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        if (evict) {
+            scheduleEviction();
+        }
+        scheduleIndexWrite();
+    }
+
+    /**
+     * Removes the cache entry for given remote path and deletes its file, if the entry still
+     * refers to <var>file</var>.
+     * <p/>
+     * Caller must hold a lock on the remote path's file lock.
+     *
+     * @return the number of bytes freed, or -1 if entry was not removed
+     */
+    private long removeCacheEntry(String remotePath, File file) {
+        CacheEntry entry;
+        long freedBytes;
+        mCacheMapLock.lock();
+        try {
+            entry = mCacheMap.get(remotePath);
+            if (entry == null || entry.mFile != file) {
+                return -1;
+            }
+            mCacheMap.remove(remotePath);
+            freedBytes = releaseContentLocked(entry);
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        entry.mFile.delete();
+        if (entry.mChecksum != null) {
+            deleteContentIfUnreferenced(entry.mChecksum);
+        }
+        scheduleIndexWrite();
+        return freedBytes;
+    }
+
+    /**
+     * Account for a new cache entry's content. Caller must hold <var>mCacheMapLock</var>.
+     */
+    private void retainContentLocked(CacheEntry entry) {
+        if (entry.mChecksum == null) {
+            mCurrentCacheSize += entry.mSize;
+            return;
+        }
+        Integer refCount = mContentRefCounts.get(entry.mChecksum);
+        if (refCount == null) {
+            // first reference to this content
+            mContentRefCounts.put(entry.mChecksum, 1);
+            mCurrentCacheSize += entry.mSize;
+        } else {
+            mContentRefCounts.put(entry.mChecksum, refCount + 1);
+        }
+    }
+
+    /**
+     * Account for a removed cache entry's content. Caller must hold <var>mCacheMapLock</var>.
+     *
+     * @return the number of bytes freed
+     */
+    private long releaseContentLocked(CacheEntry entry) {
+        if (entry.mChecksum == null) {
+            mCurrentCacheSize -= entry.mSize;
+            return entry.mSize;
+        }
+        Integer refCount = mContentRefCounts.get(entry.mChecksum);
+        if (refCount == null || refCount <= 1) {
+            // last reference to this content
+            mContentRefCounts.remove(entry.mChecksum);
+            mCurrentCacheSize -= entry.mSize;
+            return entry.mSize;
+        }
+        mContentRefCounts.put(entry.mChecksum, refCount - 1);
+        return 0;
+    }
+
+    private ReentrantLock getContentLock(String checksum) {
+        return mContentLocks[checksum.hashCode() & (NUM_FILE_LOCKS - 1)];
+    }
+
+    private File getContentFile(String checksum) {
+        return FileUtil.getFileForPath(mContentRoot, checksum.substring(0, 2), checksum);
+    }
+
+    /**
+     * Adds a newly downloaded file to the cache, storing its content in the content store.
+     * <p/>
+     * If identical content is already stored, the downloaded file is replaced by a link to the
+     * stored content.
+     *
+     * @param remotePath the remote path of the file
+     * @param entry the {@link CacheEntry} for the downloaded file
+     */
+    private void storeContent(String remotePath, CacheEntry entry) {
+        if (entry.mChecksum == null) {
+            addCacheEntry(remotePath, entry);
+            return;
+        }
+        ReentrantLock contentLock = getContentLock(entry.mChecksum);
+        contentLock.lock();
+        try {
+            File contentFile = getContentFile(entry.mChecksum);
+            if (contentFile.exists()) {
+                replaceWithLink(contentFile, entry.mFile);
+                mDeduplicatedBytes.addAndGet(entry.mSize);
+                Log.d(LOG_TAG, String.format("Contents of %s are already cached", remotePath));
+            } else {
+                contentFile.getParentFile().mkdirs();
+                FileUtil.hardlinkFile(entry.mFile, contentFile);
+            }
+            addCacheEntry(remotePath, entry);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to store contents of %s: %s", remotePath,
+                    e.getMessage()));
+            // cache the file standalone
+            addCacheEntry(remotePath, new CacheEntry(entry.mFile, entry.mSize, null));
+        } finally {
+            contentLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a cache entry for given remote path by linking to already stored content.
+     *
+     * @param remotePath the remote path of the file
+     * @param cachedFile the local {@link File} to create
+     * @param checksum the checksum of the remote file
+     * @return <code>true</code> if content was stored and linked, <code>false</code> if the file
+     *         needs to be downloaded
+     */
+    private boolean linkStoredContent(String remotePath, File cachedFile, String checksum) {
+        ReentrantLock contentLock = getContentLock(checksum);
+        contentLock.lock();
+        try {
+            File contentFile = getContentFile(checksum);
+            if (!contentFile.exists()) {
+                return false;
+            }
+            replaceWithLink(contentFile, cachedFile);
+            long size = contentFile.length();
+            addCacheEntry(remotePath, new CacheEntry(cachedFile, size, checksum));
+            mDeduplicatedCount.incrementAndGet();
+            mDeduplicatedBytes.addAndGet(size);
+            Log.d(LOG_TAG, String.format("Retrieved remote file %s from cached contents %s",
+                    remotePath, checksum));
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to link stored contents for %s: %s", remotePath,
+                    e.getMessage()));
+            return false;
+        } finally {
+            contentLock.unlock();
+        }
+    }
+
+    /**
+     * Replace <var>destFile</var> with a hardlink to <var>contentFile</var>.
+     * <p/>
+     * The link is created under a temporary name first, so <var>destFile</var> is left unchanged
+     * if linking fails.
+     */
+    private void replaceWithLink(File contentFile, File destFile) throws IOException {
+        File tmpLink = new File(destFile.getParentFile(), destFile.getName() + ".tflink");
+        tmpLink.delete();
+        FileUtil.hardlinkFile(contentFile, tmpLink);
+        if (!tmpLink.renameTo(destFile)) {
+            tmpLink.delete();
+            throw new IOException(String.format("Could not replace %s",
+                    destFile.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Delete the stored content with given checksum, if no cache entries reference it.
+     *
+     * @return <code>true</code> if content was deleted
+     */
+    private boolean deleteContentIfUnreferenced(String checksum) {
+        ReentrantLock contentLock = getContentLock(checksum);
+        contentLock.lock();
+        try {
+            mCacheMapLock.lock();
+            try {
+                if (mContentRefCounts.containsKey(checksum)) {
+                    return false;
+                }
+            } finally {
+                mCacheMapLock.unlock();
+            }
+            return getContentFile(checksum).delete();
+        } finally {
+            contentLock.unlock();
+        }
+    }
+
     private File copyFile(String remotePath, File cachedFile) throws BuildRetrievalError {
         // attempt to create a local copy of cached file with sane name
         File hardlinkFile = null;
@@ -247,6 +977,7 @@ public class FileDownloadCache {
                 hardlinkFile.delete();
             }
             // cached file might be corrupt or incomplete, delete it
+            removeCacheEntry(remotePath, cachedFile);
             cachedFile.delete();
             throw new BuildRetrievalError(String.format("Failed to copy cached file %s",
                     cachedFile), e);
@@ -268,27 +999,77 @@ public class FileDownloadCache {
     }
 
     /**
-     * Adjust file cache size to mMaxFileCacheSize if necessary by deleting old files
+     * Schedule a cache size adjustment on the eviction thread, if one is not already pending.
      */
-    private void incrementAndAdjustCache(long length) {
-        mCacheMapLock.lock();
-        try {
-            mCurrentCacheSize += length;
-            Iterator<Map.Entry<String, File>> mapIterator = mCacheMap.entrySet().iterator();
-            // map cannot be modified while iterating, so store entries to be deleted in another list
-            Collection<String> keysToDelete = new LinkedList<String>();
-            while (mCurrentCacheSize > getMaxFileCacheSize() && mapIterator.hasNext()) {
-                Map.Entry<String, File> currentEntry = mapIterator.next();
-                keysToDelete.add(currentEntry.getKey());
-                mCurrentCacheSize -= currentEntry.getValue().length();
-            }
-            for (String deleteKey : keysToDelete) {
-                File deleteFile = mCacheMap.remove(deleteKey);
-                synchronized (deleteFile) {
-                    deleteFile.delete();
+    private void scheduleEviction() {
+        if (mEvictionScheduled.compareAndSet(false, true)) {
+            mBackgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mEvictionScheduled.set(false);
+                    adjustCache(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adjust file cache size to mMaxFileCacheSize if necessary by deleting least recently used
+     * files.
+     *
+     * @param waitForLocks if <code>false</code>, files currently being accessed are skipped
+     *            rather than waited for
+     */
+    private void adjustCache(boolean waitForLocks) {
+        Set<String> skippedPaths = new HashSet<String>();
+        boolean removedEntries = true;
+        // entries sharing stored content free no space when removed, so repeat until enough
+        // space is freed or no more entries can be removed
+        while (removedEntries) {
+            removedEntries = false;
+            // pick candidates under the map lock, but delete files outside of it
+            List<FilePair> candidates = new LinkedList<FilePair>();
+            mCacheMapLock.lock();
+            try {
+                long excess = mCurrentCacheSize - getMaxFileCacheSize();
+                Iterator<Map.Entry<String, CacheEntry>> mapIterator =
+                        mCacheMap.entrySet().iterator();
+                while (excess > 0 && mapIterator.hasNext()) {
+                    Map.Entry<String, CacheEntry> currentEntry = mapIterator.next();
+                    if (!skippedPaths.contains(currentEntry.getKey())) {
+                        candidates.add(new FilePair(currentEntry.getKey(),
+                                currentEntry.getValue().mFile));
+                        excess -= currentEntry.getValue().mSize;
+                    }
+                }
+            } finally {
+                mCacheMapLock.unlock();
+            }
+            for (FilePair candidate : candidates) {
+                ReadWriteLock fileLock = getFileLock(candidate.mRelPath);
+                if (waitForLocks) {
+                    fileLock.writeLock().lock();
+                } else if (!fileLock.writeLock().tryLock()) {
+                    Log.d(LOG_TAG, String.format("Skipping eviction of %s: file is in use",
+                            candidate.mRelPath));
+                    skippedPaths.add(candidate.mRelPath);
+                    continue;
+                }
+                try {
+                    long size = removeCacheEntry(candidate.mRelPath, candidate.mFile);
+                    if (size >= 0) {
+                        mEvictionCount.incrementAndGet();
+                        mEvictedBytes.addAndGet(size);
+                        removedEntries = true;
+                    }
+                } finally {
+                    fileLock.writeLock().unlock();
                 }
             }
-            // audit cache size
+        }
+        // audit cache size
+        mCacheMapLock.lock();
+        try {
             if (mCurrentCacheSize < 0) {
                 // should never happen
                 Log.e(LOG_TAG, "Cache size is less than 0!");
@@ -299,6 +1080,20 @@ public class FileDownloadCache {
         }
     }
 
+    /**
+     * Wait for any scheduled eviction and index maintenance to complete.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void waitForBackgroundTasks() throws InterruptedException, ExecutionException {
+        mBackgroundExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // do nothing
+            }
+        }).get();
+    }
+
     /**
      * Returns the cached file for given remote path, or <code>null</code> if no cached file exists.
      * <p/>
@@ -310,12 +1105,31 @@ public class FileDownloadCache {
      File getCachedFile(String remoteFilePath) {
         mCacheMapLock.lock();
         try {
-            return mCacheMap.get(remoteFilePath);
+            CacheEntry entry = mCacheMap.get(remoteFilePath);
+            return entry != null ? entry.mFile : null;
         } finally {
             mCacheMapLock.unlock();
         }
      }
 
+    /**
+     * Returns the checksum of the cached file for given remote path.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param remoteFilePath the remote file path
+     * @return the md5 checksum or <code>null</code> if not in cache or checksum is unknown
+     */
+    String getCachedFileChecksum(String remoteFilePath) {
+        mCacheMapLock.lock();
+        try {
+            CacheEntry entry = mCacheMap.get(remoteFilePath);
+            return entry != null ? entry.mChecksum : null;
+        } finally {
+            mCacheMapLock.unlock();
+        }
+    }
+
     /**
      * Empty the cache, deleting all files.
      * <p/>
@@ -323,10 +1137,17 @@ public class FileDownloadCache {
      */
      void empty() {
         long currentMax = getMaxFileCacheSize();
-        // reuse incrementAndAdjustCache to clear cache, by setting cache cap to 0
+        // reuse adjustCache to clear cache, by setting cache cap to 0
         setMaxCacheSize(0L);
-        incrementAndAdjustCache(0);
+        adjustCache(true);
         setMaxCacheSize(currentMax);
+        try {
+            waitForBackgroundTasks();
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            // ignore
+        }
     }
 
     /**
@@ -359,4 +1180,74 @@ public class FileDownloadCache {
     long getMaxFileCacheSize() {
         return mMaxFileCacheSize;
     }
+
+    /**
+     * @return the total size in bytes of files currently in cache
+     */
+    public long getCurrentCacheSize() {
+        mCacheMapLock.lock();
+        try {
+            return mCurrentCacheSize;
+        } finally {
+            mCacheMapLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of fetches served from a file already in cache
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of fetches that required a download
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the number of fetches that waited for a download already in progress
+     */
+    public long getSharedDownloadCount() {
+        return mSharedDownloadCount.get();
+    }
+
+    /**
+     * @return the total number of bytes downloaded into cache
+     */
+    public long getDownloadedBytes() {
+        return mDownloadedBytes.get();
+    }
+
+    /**
+     * @return the number of fetches whose contents were already cached under another remote path,
+     *         and so were not downloaded
+     */
+    public long getDeduplicatedCount() {
+        return mDeduplicatedCount.get();
+    }
+
+    /**
+     * @return the total number of bytes not stored or downloaded again, because the contents were
+     *         already cached under another remote path
+     */
+    public long getDeduplicatedBytes() {
+        return mDeduplicatedBytes.get();
+    }
+
+    /**
+     * @return the number of files evicted from cache
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * @return the total number of bytes evicted from cache
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes.get();
+    }
 }
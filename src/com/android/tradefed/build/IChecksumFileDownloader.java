@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+/**
+ * A {@link IFileDownloader} that can report the checksum of a remote file without downloading it.
+ * <p/>
+ * Allows {@link FileDownloadCache} to skip downloading files whose contents are already cached
+ * under another remote path.
+ */
+public interface IChecksumFileDownloader extends IFileDownloader {
+
+    /**
+     * Gets the md5 checksum of a remote file.
+     *
+     * @param remoteFilePath the remote path to the file, relative to a implementation specific
+     * root.
+     * @return the md5 checksum as a lower case hex string, or <code>null</code> if unknown
+     * @throws BuildRetrievalError if checksum could not be retrieved
+     */
+    public String getRemoteFileChecksum(String remoteFilePath) throws BuildRetrievalError;
+}
@@ -48,6 +48,10 @@ public class CommandOptions implements ICommandOptions {
             importance = Importance.ALWAYS)
     private boolean mLoopMode = false;
 
+    @Option(name = "async-result-dispatch", description = "deliver test results to each result "
+            + "listener on its own thread, so slow listeners do not stall test execution.")
+    private boolean mAsyncResultDispatch = false;
+
     /**
      * Set the help mode for the config.
      * <p/>
@@ -123,6 +127,23 @@ public class CommandOptions implements ICommandOptions {
         return mMinLoopTime;
     }
 
+    /**
+     * Set the async result dispatch mode for the config.
+     * <p/>
+     * Exposed for testing.
+     */
+    void setAsyncResultDispatch(boolean asyncResultDispatch) {
+        mAsyncResultDispatch = asyncResultDispatch;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAsyncResultDispatch() {
+        return mAsyncResultDispatch;
+    }
+
     @Override
     public ICommandOptions clone() {
         CommandOptions clone = new CommandOptions();
@@ -17,7 +17,7 @@
 package com.android.tradefed.command;
 
 import com.android.ddmlib.DdmPreferences;
-import com.android.ddmlib.Log;
+import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.ConfigurationFactory;
@@ -28,11 +28,14 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.IDeviceManager.FreeDeviceState;
+import com.android.tradefed.device.IDeviceManager.IDeviceAvailabilityListener;
+import com.android.tradefed.device.IDeviceSelection;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IRescheduler;
 import com.android.tradefed.invoker.ITestInvocation;
 import com.android.tradefed.invoker.TestInvocation;
 import com.android.tradefed.log.LogRegistry;
+import com.android.tradefed.log.LogUtil;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue;
@@ -41,6 +44,7 @@ import com.android.tradefed.util.TableFormatter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
@@ -60,6 +64,11 @@ import java.util.concurrent.TimeUnit;
  * Will attempt to prioritize commands to run based on a total running count of their execution
  * time. e.g. infrequent or fast running commands will get prioritized over long running commands.
  * <p/>
+ * Commands that cannot be allocated a device are parked in the queue until the
+ * {@link IDeviceManager} reports that a device has become available, or a new command is added.
+ * Each such event triggers one pass that hands available devices to the highest priority
+ * matching commands.
+ * <p/>
  * Runs forever in background until shutdown.
  */
 public class CommandScheduler extends Thread implements ICommandScheduler {
@@ -84,10 +93,31 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     /** latch used to notify other threads that this thread is running */
     private final CountDownLatch mRunLatch;
 
+    /** lock used to wake up the scheduler thread when there may be new work to schedule */
+    private final Object mSchedulingLock = new Object();
+
     /**
-     * Delay time in ms for adding a command back to the queue if it failed to allocate a device.
+     * flag set when all waiting commands should be re-evaluated, because a command was queued
+     * since the last scheduling pass. Guarded by mSchedulingLock
      */
-    private static final int NO_DEVICE_DELAY_TIME = 20;
+    private boolean mSchedulingPending = false;
+
+    /**
+     * the devices that became available since the last scheduling pass. Only the waiting
+     * commands that match one of them need to be re-evaluated. Guarded by mSchedulingLock
+     */
+    private final Set<IDevice> mAvailableDevices = new HashSet<IDevice>();
+
+    /** the time of the last pass over all waiting commands. Guarded by mSchedulingLock */
+    private long mLastFullSchedulingTime = 0;
+
+    /** listener that wakes up the scheduler when a device is added to the available pool */
+    private final IDeviceAvailabilityListener mDeviceListener = new IDeviceAvailabilityListener() {
+        @Override
+        public void deviceAvailable(IDevice device) {
+            signalDeviceAvailable(device);
+        }
+    };
 
     /** used to assign unique ids to each CommandTracker created */
     private int mCurrentCommandId = 0;
@@ -473,27 +503,16 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             mRunLatch.countDown();
 
             IDeviceManager manager = getDeviceManager();
+            manager.addDeviceAvailabilityListener(mDeviceListener);
+            // always perform an initial pass, to handle commands added before start
+            signalScheduling();
             while (!isShutdown()) {
-                ExecutableCommand cmd = dequeueConfigCommand();
-                if (cmd != null) {
-                    ITestDevice device = manager.allocateDevice(0, cmd.getConfiguration()
-                            .getDeviceRequirements());
-                    if (device != null) {
-                        // Spawn off a thread to perform the invocation
-                        InvocationThread invThread = startInvocation(manager, device, cmd);
-                        addInvocationThread(invThread);
-                        if (cmd.isLoopMode()) {
-                            addNewExecCommandToQueue(cmd.getCommandTracker());
-                        }
-                    } else {
-                        // no device available for command, put back in queue
-                        // increment exec time to ensure fair scheduling among commands when devices
-                        // are scarce
-                        cmd.getCommandTracker().incrementExecTime(1);
-                        addExecCommandToQueue(cmd, NO_DEVICE_DELAY_TIME);
-                    }
+                Collection<IDevice> availableDevices = waitForSchedulingEvent();
+                if (availableDevices == null || !availableDevices.isEmpty()) {
+                    scheduleWaitingCommands(manager, availableDevices);
                 }
             }
+            manager.removeDeviceAvailabilityListener(mDeviceListener);
             CLog.i("Waiting for invocation threads to complete");
             List<InvocationThread> threadListCopy;
             synchronized (this) {
@@ -621,22 +640,125 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     }
 
     /**
-     * Dequeue the highest priority command from the queue.
+     * Inform the scheduler thread that there may be new work to schedule, because a command was
+     * queued or a device became available.
+     */
+    private void signalScheduling() {
+        synchronized (mSchedulingLock) {
+            mSchedulingPending = true;
+            mSchedulingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Inform the scheduler thread that given device was added to the available pool, so waiting
+     * commands that match it should be re-evaluated.
+     */
+    private void signalDeviceAvailable(IDevice device) {
+        synchronized (mSchedulingLock) {
+            mAvailableDevices.add(device);
+            mSchedulingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Block until a scheduling event occurs.
+     * <p/>
+     * Only waits up to {@link #getCommandPollTimeMs()}, so shutdown can be detected. All waiting
+     * commands are re-evaluated on command events, and as a fallback every
+     * {@link #getFullSchedulingIntervalMs()}, in case an allocation failed for a reason that
+     * produces no event.
      *
-     * @return the {@link ExecutableCommand} or <code>null</code>
+     * @return the devices that became available, whose matching commands should be scheduled,
+     *         or <code>null</code> if all waiting commands should be scheduled
      */
-    private ExecutableCommand dequeueConfigCommand() {
-        try {
-            // poll for a command, rather than block indefinitely, to handle shutdown case
-            return mCommandQueue.poll(getCommandPollTimeMs(), TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            CLog.i("Waiting for command interrupted");
+    private Collection<IDevice> waitForSchedulingEvent() {
+        synchronized (mSchedulingLock) {
+            if (!mSchedulingPending && mAvailableDevices.isEmpty()) {
+                try {
+                    mSchedulingLock.wait(getCommandPollTimeMs());
+                } catch (InterruptedException e) {
+                    CLog.i("Waiting for command interrupted");
+                }
+            }
+            Collection<IDevice> availableDevices = null;
+            long now = System.currentTimeMillis();
+            if (mSchedulingPending ||
+                    now - mLastFullSchedulingTime >= getFullSchedulingIntervalMs()) {
+                mLastFullSchedulingTime = now;
+            } else {
+                availableDevices = new ArrayList<IDevice>(mAvailableDevices);
+            }
+            mSchedulingPending = false;
+            mAvailableDevices.clear();
+            return availableDevices;
+        }
+    }
+
+    /**
+     * Attempt to allocate a device for each waiting command, in priority order, and start an
+     * invocation for each successful allocation.
+     * <p/>
+     * Commands that cannot be allocated a device stay in the queue until the next scheduling pass
+     * that concerns them.
+     *
+     * @param manager the {@link IDeviceManager} to allocate devices from
+     * @param availableDevices the devices that became available, if only the commands that match
+     *            one of them should be scheduled, or <code>null</code> to schedule all commands
+     */
+    private void scheduleWaitingCommands(IDeviceManager manager,
+            Collection<IDevice> availableDevices) {
+        List<ExecutableCommand> waitingCmds;
+        synchronized (this) {
+            waitingCmds = new ArrayList<ExecutableCommand>(mCommandQueue.size());
+            for (ExecutableCommand cmd : mCommandQueue) {
+                waitingCmds.add(cmd);
+            }
+        }
+        Collections.sort(waitingCmds, new ExecutableCommandComparator());
+        for (ExecutableCommand cmd : waitingCmds) {
+            if (isShutdown()) {
+                return;
+            }
+            IDeviceSelection deviceRequirements = cmd.getConfiguration().getDeviceRequirements();
+            if (availableDevices != null && !matchesAny(deviceRequirements, availableDevices)) {
+                // nothing changed for this command since it was last evaluated
+                continue;
+            }
+            ITestDevice device = manager.allocateDevice(0, deviceRequirements);
+            if (device == null) {
+                continue;
+            }
+            if (!mCommandQueue.remove(cmd)) {
+                // command was removed from queue while allocating, return device
+                manager.freeDevice(device, FreeDeviceState.AVAILABLE);
+                continue;
+            }
+            // Spawn off a thread to perform the invocation
+            InvocationThread invThread = startInvocation(manager, device, cmd);
+            addInvocationThread(invThread);
+            if (cmd.isLoopMode()) {
+                addNewExecCommandToQueue(cmd.getCommandTracker());
+            }
         }
-        return null;
     }
 
     /**
-     * Get the poll time to wait to retrieve a command to execute.
+     * @return <code>true</code> if any of given <var>devices</var> matches given
+     *         <var>deviceRequirements</var>
+     */
+    private static boolean matchesAny(IDeviceSelection deviceRequirements,
+            Collection<IDevice> devices) {
+        for (IDevice device : devices) {
+            if (deviceRequirements.matches(device)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the maximum time to wait for a scheduling event before checking for shutdown.
      * <p/>
      * Exposed so unit tests can mock.
      *
@@ -646,6 +768,16 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         return 1000;
     }
 
+    /**
+     * Get the interval at which all waiting commands are re-evaluated, even without a command
+     * event.
+     * <p/>
+     * Exposed so unit tests can mock.
+     */
+    long getFullSchedulingIntervalMs() {
+        return 5 * 60 * 1000;
+    }
+
     /**
      * Creates a new {@link ExecutableCommand}, and adds it to queue
      *
@@ -684,11 +816,13 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
                         cmd.setWaitState();
                         mCommandQueue.add(cmd);
                     }
+                    signalScheduling();
                 }
             };
             mCommandTimer.schedule(delayCommand, delayTime, TimeUnit.MILLISECONDS);
         } else {
             mCommandQueue.add(cmd);
+            signalScheduling();
         }
         return true;
     }
@@ -748,6 +882,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             if (mCommandTimer != null) {
                 mCommandTimer.shutdownNow();
             }
+            signalScheduling();
         }
     }
 
@@ -863,7 +998,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
      */
     void initLogging() {
         DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
-        Log.setLogOutput(LogRegistry.getLogRegistry());
+        LogUtil.setLogOutput(LogRegistry.getLogRegistry());
     }
 
     /**
@@ -46,6 +46,12 @@ public interface ICommandOptions {
      */
     public long getMinLoopTime();
 
+    /**
+     * Return <code>true</code> if test results should be delivered to listeners asynchronously,
+     * so slow listeners do not stall test execution.
+     */
+    public boolean isAsyncResultDispatch();
+
     /**
      * Sets the loop mode for the command
      *
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.config;
+
+/**
+ * Interface for an object with {@link Option} fields that needs to know when their values are set
+ * by an {@link OptionSetter}.
+ * <p/>
+ * Useful for objects that cache state derived from their option values.
+ */
+public interface IOptionChangeListener {
+
+    /**
+     * Called after the value of an {@link Option} field of this object was set.
+     *
+     * @param optionName the {@link Option#name()} of the option that was set
+     */
+    public void optionChanged(String optionName);
+}
@@ -314,6 +314,7 @@ public class OptionSetter {
                 OptionUpdateRule rule = option.updateRule();
                 field.set(optionSource, rule.update(optionName, optionSource, field, value));
             }
+            notifyOptionChanged(optionName, optionSource);
         } catch (IllegalAccessException e) {
             throw new ConfigurationException(String.format(
                     "internal error when setting option '%s'", optionName), e);
@@ -323,6 +324,16 @@ public class OptionSetter {
         }
     }
 
+    /**
+     * Notifies the given option source that an option value was set, if it is a
+     * {@link IOptionChangeListener}.
+     */
+    private static void notifyOptionChanged(String optionName, Object optionSource) {
+        if (optionSource instanceof IOptionChangeListener) {
+            ((IOptionChangeListener)optionSource).optionChanged(optionName);
+        }
+    }
+
     /**
      * Sets the key and value for a Map option.
      * @param optionName the name of Option to set
@@ -388,6 +399,7 @@ public class OptionSetter {
                             field.getName(), optionName, optionSource.getClass().getName()));
                 }
                 map.put(pair.mKey, pair.mValue);
+                notifyOptionChanged(optionName, optionSource);
             } catch (IllegalAccessException e) {
                 throw new ConfigurationException(String.format(
                         "internal error when setting option '%s'", optionName), e);
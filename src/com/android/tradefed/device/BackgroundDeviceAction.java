@@ -77,7 +77,12 @@ public class BackgroundDeviceAction extends Thread {
      */
     @Override
     public void run() {
+        boolean started = false;
         while (!isCancelled()) {
+            if (started) {
+                onCommandRestart();
+            }
+            started = true;
             if (mLogStartDelay > 0) {
                 CLog.d("Sleep for %d before starting %s for %s.", mLogStartDelay, mDescriptor,
                         mSerialNumber);
@@ -124,6 +129,15 @@ public class BackgroundDeviceAction extends Thread {
         }
     }
 
+    /**
+     * Called before the command is run again, after it stopped for any reason.
+     * <p/>
+     * Subclasses can override to reset state derived from the output of the previous run.
+     */
+    protected void onCommandRestart() {
+        // do nothing by default
+    }
+
     /**
      * Cancels the command.
      */
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores streamed log output as a sequence of fixed-size gzip compressed chunks, indexed by the
+ * time range of the log lines they contain.
+ * <p/>
+ * Output is accumulated uncompressed in memory until a full chunk is collected, then the chunk is
+ * compressed and appended to the current segment file. Disk usage is bounded by discarding the
+ * oldest segment once the max stored size is reached. Lines are timestamped by parsing a leading
+ * {@code MM-dd HH:mm:ss.SSS} logcat timestamp, so a time range can be retrieved by only
+ * decompressing the chunks that overlap it.
+ * <p/>
+ * Not thread safe. The {@link InputStream}s returned by {@link #createInputStream(long, long)}
+ * can be read concurrently with further writes.
+ */
+class CompressedChunkStore {
+
+    /**
+     * The default uncompressed size of a chunk. Chunks much larger than the 32K deflate window
+     * barely improve compression, so keep them small to make time range lookups precise.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    /** The number of segment files that the max stored size is split into */
+    static final int NUM_SEGMENTS = 4;
+    /** Time value for chunks that do not contain any timestamped line */
+    static final long NO_TIME = LogcatTimestampScanner.NO_TIME;
+
+    /**
+     * A file holding a sequence of compressed chunks.
+     */
+    private static class Segment {
+        final File mFile;
+        final OutputStream mStream;
+        long mSize = 0;
+        /** set if a write failed, leaving a partial chunk at the end of the file */
+        boolean mIsFailed = false;
+
+        Segment(File file) throws IOException {
+            mFile = file;
+            mStream = new FileOutputStream(file);
+        }
+    }
+
+    /**
+     * A compressed chunk, and the time range of the lines in it.
+     */
+    private static class Chunk {
+        final Segment mSegment;
+        final long mOffset;
+        final int mLength;
+        final long mFirstTime;
+        final long mLastTime;
+
+        Chunk(Segment segment, long offset, int length, long firstTime, long lastTime) {
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+            mFirstTime = firstTime;
+            mLastTime = lastTime;
+        }
+    }
+
+    private final String mFilePrefix;
+    private final long mMaxSegmentSize;
+    private final LinkedList<Segment> mSegments = new LinkedList<Segment>();
+    private final LinkedList<Chunk> mChunks = new LinkedList<Chunk>();
+    private boolean mIsTruncated = false;
+
+    /** the current, uncompressed chunk */
+    private final byte[] mBuffer;
+    private int mBufferLength = 0;
+    private long mBufferFirstTime = NO_TIME;
+    private long mBufferLastTime = NO_TIME;
+
+    private final LogcatTimestampScanner mScanner = new LogcatTimestampScanner() {
+        @Override
+        protected void onTimestamp(long time, long lineStart) {
+            if (mBufferFirstTime == NO_TIME) {
+                mBufferFirstTime = time;
+            }
+            mBufferLastTime = time;
+        }
+    };
+
+    /**
+     * Creates a {@link CompressedChunkStore}.
+     *
+     * @param filePrefix the prefix of the segment files to create
+     * @param maxStoredSize the approximate max number of compressed bytes to keep on disk
+     * @param chunkSize the uncompressed size of each chunk
+     */
+    CompressedChunkStore(String filePrefix, long maxStoredSize, int chunkSize) {
+        mFilePrefix = filePrefix;
+        mMaxSegmentSize = Math.max(maxStoredSize / NUM_SEGMENTS, 1);
+        mBuffer = new byte[chunkSize];
+    }
+
+    /**
+     * Appends output to the store.
+     *
+     * @throws IOException if a full chunk could not be written to disk. The chunk is discarded.
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, mBuffer.length - mBufferLength);
+            mScanner.scan(data, offset, count);
+            System.arraycopy(data, offset, mBuffer, mBufferLength, count);
+            mBufferLength += count;
+            offset += count;
+            length -= count;
+            if (mBufferLength == mBuffer.length) {
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * Compresses the current chunk and appends it to the current segment file.
+     */
+    private void writeChunk() throws IOException {
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(mBufferLength / 4);
+            GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+            gzipStream.write(mBuffer, 0, mBufferLength);
+            gzipStream.close();
+
+            Segment segment = getWritableSegment();
+            try {
+                compressed.writeTo(segment.mStream);
+            } catch (IOException e) {
+                // the segment may now end with a partial chunk, so the offset of any chunk
+                // appended after it would be wrong. Keep its earlier chunks, but don't append
+                // to it again
+                segment.mIsFailed = true;
+                segment.mSize = segment.mFile.length();
+                throw e;
+            }
+            mChunks.add(new Chunk(segment, segment.mSize, compressed.size(), mBufferFirstTime,
+                    mBufferLastTime));
+            segment.mSize += compressed.size();
+        } finally {
+            mBufferLength = 0;
+            // a chunk that starts in the middle of a line also holds data from the last timestamp
+            mBufferFirstTime = mScanner.isAtLineStart() ? NO_TIME : mScanner.getLastTime();
+            mBufferLastTime = mBufferFirstTime;
+        }
+    }
+
+    /**
+     * Gets the segment to append the next chunk to, starting a new one and discarding the oldest
+     * as necessary.
+     */
+    private Segment getWritableSegment() throws IOException {
+        if (!mSegments.isEmpty() && !mSegments.getLast().mIsFailed &&
+                mSegments.getLast().mSize < mMaxSegmentSize) {
+            return mSegments.getLast();
+        }
+        if (mSegments.size() >= NUM_SEGMENTS) {
+            Segment oldest = mSegments.removeFirst();
+            while (!mChunks.isEmpty() && mChunks.getFirst().mSegment == oldest) {
+                mChunks.removeFirst();
+            }
+            closeSegment(oldest);
+            mIsTruncated = true;
+        }
+        if (!mSegments.isEmpty()) {
+            StreamUtil.closeStream(mSegments.getLast().mStream);
+        }
+        Segment segment = new Segment(FileUtil.createTempFile(mFilePrefix, ".gz"));
+        mSegments.add(segment);
+        return segment;
+    }
+
+    private void closeSegment(Segment segment) {
+        StreamUtil.closeStream(segment.mStream);
+        FileUtil.deleteFile(segment.mFile);
+    }
+
+    /**
+     * @return <code>true</code> if old output has been discarded to stay within the max size
+     */
+    boolean isTruncated() {
+        return mIsTruncated;
+    }
+
+    /**
+     * @return the time of the last timestamped line written, or {@link #NO_TIME} if there was none
+     */
+    long getLastTime() {
+        return mScanner.getLastTime();
+    }
+
+    /**
+     * @return the number of compressed bytes stored on disk
+     */
+    long getStoredSize() {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.mSize;
+        }
+        return size;
+    }
+
+    /**
+     * Creates an {@link InputStream} of the stored output that contains the given time range.
+     * <p/>
+     * Output is selected at chunk granularity, so the stream may contain lines outside the
+     * range. Chunks without any timestamp are always included. Only the selected chunks are
+     * decompressed, one at a time as the stream is read.
+     *
+     * @param startTime the start of the time range in ms since epoch, inclusive
+     * @param endTime the end of the time range in ms since epoch, inclusive
+     */
+    InputStream createInputStream(long startTime, long endTime) {
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        for (Chunk chunk : mChunks) {
+            if (overlaps(chunk.mFirstTime, chunk.mLastTime, startTime, endTime)) {
+                chunks.add(chunk);
+            }
+        }
+        final byte[] current;
+        if (mBufferLength > 0 &&
+                overlaps(mBufferFirstTime, mBufferLastTime, startTime, endTime)) {
+            current = new byte[mBufferLength];
+            System.arraycopy(mBuffer, 0, current, 0, mBufferLength);
+        } else {
+            current = null;
+        }
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int mIndex = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return mIndex < chunks.size() || (mIndex == chunks.size() && current != null);
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                int index = mIndex++;
+                if (index == chunks.size()) {
+                    return new ByteArrayInputStream(current);
+                }
+                return readChunk(chunks.get(index));
+            }
+        });
+    }
+
+    private static boolean overlaps(long firstTime, long lastTime, long startTime,
+            long endTime) {
+        return firstTime == NO_TIME || (firstTime <= endTime && lastTime >= startTime);
+    }
+
+    /**
+     * Creates an {@link InputStream} of the decompressed contents of given chunk. Returns an
+     * empty stream if the chunk cannot be read, such as if it was discarded since the chunk was
+     * selected.
+     */
+    private InputStream readChunk(Chunk chunk) {
+        RandomAccessFile file = null;
+        try {
+            byte[] compressed = new byte[chunk.mLength];
+            file = new RandomAccessFile(chunk.mSegment.mFile, "r");
+            file.seek(chunk.mOffset);
+            file.readFully(compressed);
+            return new GZIPInputStream(new ByteArrayInputStream(compressed));
+        } catch (IOException e) {
+            CLog.w("Failed to read chunk from %s: %s", chunk.mSegment.mFile.getName(),
+                    e.getMessage());
+            return new ByteArrayInputStream(new byte[0]);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all stored output.
+     */
+    void delete() {
+        for (Segment segment : mSegments) {
+            closeSegment(segment);
+        }
+        mSegments.clear();
+        mChunks.clear();
+        mBufferLength = 0;
+    }
+}
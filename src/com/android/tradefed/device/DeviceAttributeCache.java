@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of the selection attributes of the devices available for allocation, indexed by serial.
+ * <p/>
+ * Product type, variant and properties cannot change while a device sits unallocated, so they
+ * are queried once per device, on first use. Battery levels do change, so are refreshed by
+ * {@link #refreshBatteryLevels()} outside of device allocation, rather than being queried while
+ * matching. Devices should be removed when they are allocated or disconnected, so attributes are
+ * queried afresh once they become available again.
+ * <p/>
+ * Devices added with {@link #add(IDevice)} are also indexed by product type, variant and the
+ * values of the properties that have been requested, so {@link #getCandidateSerials(Map, Map)}
+ * can find the devices that may match selection criteria without evaluating every device.
+ */
+class DeviceAttributeCache implements IDeviceAttributes {
+
+    /** the cached attributes of a single device */
+    private static class CachedAttributes {
+        final IDevice mDevice;
+        volatile String mProductType = null;
+        volatile String mProductVariant = null;
+        final Map<String, String> mProperties = new ConcurrentHashMap<String, String>();
+        /** <code>true</code> once battery level has been requested, and should be refreshed */
+        volatile boolean mBatteryRequested = false;
+        volatile Integer mBatteryLevel = null;
+
+        CachedAttributes(IDevice device) {
+            mDevice = device;
+        }
+    }
+
+    /**
+     * An index of the available devices by the value of one attribute.
+     * <p/>
+     * Values are queried lazily, on lookup. Devices whose value could not be determined yet are
+     * returned by every lookup, and queried again on the next one.
+     * <p/>
+     * Must be accessed with the cache's lock held.
+     */
+    private abstract class AttributeIndex {
+        private final Map<String, Set<String>> mSerialsByValue = new HashMap<String, Set<String>>();
+        private final Map<String, String> mValues = new HashMap<String, String>();
+        private final Set<String> mUnresolvedSerials = new HashSet<String>();
+
+        AttributeIndex(Collection<String> serials) {
+            mUnresolvedSerials.addAll(serials);
+        }
+
+        /**
+         * Query the value of this index's attribute for given device.
+         */
+        abstract String queryValue(IDevice device);
+
+        void add(String serial) {
+            mUnresolvedSerials.add(serial);
+        }
+
+        void remove(String serial) {
+            mUnresolvedSerials.remove(serial);
+            String value = mValues.remove(serial);
+            if (value != null) {
+                Set<String> serials = mSerialsByValue.get(value);
+                serials.remove(serial);
+                if (serials.isEmpty()) {
+                    mSerialsByValue.remove(value);
+                }
+            }
+        }
+
+        /**
+         * Get the serials of the devices with one of given <var>values</var>, or with an unknown
+         * value.
+         */
+        Set<String> getSerials(Collection<String> values) {
+            resolve();
+            Set<String> serials = new HashSet<String>(mUnresolvedSerials);
+            for (String value : values) {
+                Set<String> valueSerials = mSerialsByValue.get(value);
+                if (valueSerials != null) {
+                    serials.addAll(valueSerials);
+                }
+            }
+            return serials;
+        }
+
+        private void resolve() {
+            Iterator<String> serialIter = mUnresolvedSerials.iterator();
+            while (serialIter.hasNext()) {
+                String serial = serialIter.next();
+                String value = queryValue(mAvailableDevices.get(serial));
+                if (value != null) {
+                    serialIter.remove();
+                    mValues.put(serial, value);
+                    Set<String> serials = mSerialsByValue.get(value);
+                    if (serials == null) {
+                        serials = new HashSet<String>();
+                        mSerialsByValue.put(value, serials);
+                    }
+                    serials.add(serial);
+                }
+            }
+        }
+    }
+
+    private final IDeviceAttributes mSource;
+    private final Map<String, CachedAttributes> mAttributeMap =
+            new ConcurrentHashMap<String, CachedAttributes>();
+    /** the indexed devices, by serial. Guarded by this */
+    private final Map<String, IDevice> mAvailableDevices = new HashMap<String, IDevice>();
+    private final AttributeIndex mProductTypeIndex;
+    private final AttributeIndex mProductVariantIndex;
+    /** property indexes, by property name. Guarded by this */
+    private final Map<String, AttributeIndex> mPropertyIndexes =
+            new HashMap<String, AttributeIndex>();
+
+    /**
+     * @param source the {@link IDeviceAttributes} to query attributes that are not cached from
+     */
+    DeviceAttributeCache(IDeviceAttributes source) {
+        mSource = source;
+        mProductTypeIndex = new AttributeIndex(Collections.<String>emptySet()) {
+            @Override
+            String queryValue(IDevice device) {
+                return getProductType(device);
+            }
+        };
+        mProductVariantIndex = new AttributeIndex(Collections.<String>emptySet()) {
+            @Override
+            String queryValue(IDevice device) {
+                return getProductVariant(device);
+            }
+        };
+    }
+
+    /**
+     * Get the cached attributes for given device, creating them if necessary.
+     */
+    private CachedAttributes getAttributes(IDevice device) {
+        CachedAttributes attributes = mAttributeMap.get(device.getSerialNumber());
+        if (attributes == null || attributes.mDevice != device) {
+            // new or reconnected device
+            attributes = new CachedAttributes(device);
+            mAttributeMap.put(device.getSerialNumber(), attributes);
+        }
+        return attributes;
+    }
+
+    /**
+     * Index given device, that has become available for allocation.
+     * <p/>
+     * Replaces any device with the same serial.
+     */
+    public synchronized void add(IDevice device) {
+        String serial = device.getSerialNumber();
+        if (mAvailableDevices.get(serial) == device) {
+            return;
+        }
+        remove(serial);
+        mAvailableDevices.put(serial, device);
+        mProductTypeIndex.add(serial);
+        mProductVariantIndex.add(serial);
+        for (AttributeIndex propertyIndex : mPropertyIndexes.values()) {
+            propertyIndex.add(serial);
+        }
+    }
+
+    /**
+     * Discard the cached attributes of device with given serial, and remove it from the index.
+     */
+    public synchronized void remove(String serial) {
+        mAttributeMap.remove(serial);
+        if (mAvailableDevices.remove(serial) != null) {
+            mProductTypeIndex.remove(serial);
+            mProductVariantIndex.remove(serial);
+            for (AttributeIndex propertyIndex : mPropertyIndexes.values()) {
+                propertyIndex.remove(serial);
+            }
+        }
+    }
+
+    /**
+     * Get the serials of the indexed devices that may match given criteria.
+     * <p/>
+     * Returns every device with a matching product type, variant and properties, as well as the
+     * devices whose attributes could not be determined. Devices must still be evaluated against
+     * the criteria.
+     *
+     * @param productVariants map of product type to allowed variants. A <code>null</code> value
+     *            allows any variant
+     * @param properties map of property name to required value
+     * @return the candidate serials, or <code>null</code> if neither product types nor
+     *         properties are specified, and so any device may match
+     */
+    public synchronized Set<String> getCandidateSerials(Map<String, Set<String>> productVariants,
+            Map<String, String> properties) {
+        Set<String> candidates = null;
+        if (!productVariants.isEmpty()) {
+            candidates = mProductTypeIndex.getSerials(productVariants.keySet());
+            if (!productVariants.containsValue(null)) {
+                // every product type is restricted to some variants
+                Collection<String> variants = new HashSet<String>();
+                for (Set<String> productVariant : productVariants.values()) {
+                    variants.addAll(productVariant);
+                }
+                candidates.retainAll(mProductVariantIndex.getSerials(variants));
+            }
+        }
+        for (Map.Entry<String, String> propEntry : properties.entrySet()) {
+            Set<String> propSerials = getPropertyIndex(propEntry.getKey()).getSerials(
+                    Collections.singleton(propEntry.getValue()));
+            if (candidates == null) {
+                candidates = propSerials;
+            } else {
+                candidates.retainAll(propSerials);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Get the index of given property, creating it if necessary. Must be called with lock held.
+     */
+    private AttributeIndex getPropertyIndex(final String name) {
+        AttributeIndex propertyIndex = mPropertyIndexes.get(name);
+        if (propertyIndex == null) {
+            propertyIndex = new AttributeIndex(mAvailableDevices.keySet()) {
+                @Override
+                String queryValue(IDevice device) {
+                    return getProperty(device, name);
+                }
+            };
+            mPropertyIndexes.put(name, propertyIndex);
+        }
+        return propertyIndex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getProductType(IDevice device) {
+        CachedAttributes attributes = getAttributes(device);
+        if (attributes.mProductType == null) {
+            // don't cache failed queries
+            attributes.mProductType = mSource.getProductType(device);
+        }
+        return attributes.mProductType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getProductVariant(IDevice device) {
+        CachedAttributes attributes = getAttributes(device);
+        if (attributes.mProductVariant == null) {
+            attributes.mProductVariant = mSource.getProductVariant(device);
+        }
+        return attributes.mProductVariant;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getProperty(IDevice device, String name) {
+        CachedAttributes attributes = getAttributes(device);
+        String value = attributes.mProperties.get(name);
+        if (value == null) {
+            value = mSource.getProperty(device, name);
+            if (value != null) {
+                attributes.mProperties.put(name, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The level is queried on first request, and thereafter only by
+     * {@link #refreshBatteryLevels()}.
+     */
+    @Override
+    public Integer getBatteryLevel(IDevice device) {
+        CachedAttributes attributes = getAttributes(device);
+        if (!attributes.mBatteryRequested) {
+            attributes.mBatteryLevel = mSource.getBatteryLevel(device);
+            attributes.mBatteryRequested = true;
+        }
+        return attributes.mBatteryLevel;
+    }
+
+    /**
+     * Re-query the battery level of all cached devices whose battery level has been requested.
+     *
+     * @return the {@link IDevice}s whose battery level changed
+     */
+    public Collection<IDevice> refreshBatteryLevels() {
+        Collection<IDevice> changedDevices = new ArrayList<IDevice>();
+        for (CachedAttributes attributes : mAttributeMap.values()) {
+            if (attributes.mBatteryRequested) {
+                Integer level = mSource.getBatteryLevel(attributes.mDevice);
+                if (!equalsOrNull(level, attributes.mBatteryLevel)) {
+                    changedDevices.add(attributes.mDevice);
+                }
+                attributes.mBatteryLevel = level;
+            }
+        }
+        return changedDevices;
+    }
+
+    private static boolean equalsOrNull(Integer x, Integer y) {
+        return x == null ? y == null : x.equals(y);
+    }
+}
@@ -26,6 +26,8 @@ import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IKeyExtractor;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IKeyedMatcher;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
@@ -60,6 +62,8 @@ public class DeviceManager implements IDeviceManager {
     /** time to wait for device adb shell responsive connection before declaring it unavailable
      * for testing */
     private static final int CHECK_WAIT_DEVICE_AVAIL_MS = 30 * 1000;
+    /** time to wait in ms between battery level refreshes of available devices */
+    private static final long BATTERY_POLL_WAIT_TIME = 60 * 1000;
 
     /** a {@link DeviceSelectionOptions} that matches any device */
     private static final IDeviceSelection ANY_DEVICE_OPTIONS = new DeviceSelectionOptions();
@@ -71,11 +75,16 @@ public class DeviceManager implements IDeviceManager {
     private Map<String, IManagedTestDevice> mAllocatedDeviceMap;
     /** A FIFO, thread-safe queue for holding devices visible on adb available for testing */
     private ConditionPriorityBlockingQueue<IDevice> mAvailableDeviceQueue;
+    /** The selection attributes of available devices, so allocation doesn't query devices */
+    private DeviceAttributeCache mDeviceAttributeCache;
+    private BatteryMonitor mBatteryMonitor;
     private IAndroidDebugBridge mAdbBridge;
     private ManagedDeviceListener mManagedDeviceListener;
     private boolean mFastbootEnabled;
     private Set<IFastbootListener> mFastbootListeners;
     private FastbootMonitor mFastbootMonitor;
+    private Set<IDeviceAvailabilityListener> mAvailabilityListeners =
+            Collections.synchronizedSet(new HashSet<IDeviceAvailabilityListener>());
     private Map<String, IDeviceStateMonitor> mCheckDeviceMap;
     private boolean mEnableLogcat = true;
     private boolean mIsTerminated = false;
@@ -112,8 +121,20 @@ public class DeviceManager implements IDeviceManager {
         mGlobalDeviceFilter = globalDeviceFilter;
         // use Hashtable since it is synchronized
         mAllocatedDeviceMap = new Hashtable<String, IManagedTestDevice>();
-        mAvailableDeviceQueue = new ConditionPriorityBlockingQueue<IDevice>();
+        // index available devices by serial, so allocation requests for a specific device don't
+        // need to examine every available device
+        mAvailableDeviceQueue = new ConditionPriorityBlockingQueue<IDevice>(null,
+                new IKeyExtractor<IDevice>() {
+                    @Override
+                    public Object getKey(IDevice element) {
+                        return element.getSerialNumber();
+                    }
+                });
         mCheckDeviceMap = new Hashtable<String, IDeviceStateMonitor>();
+        mDeviceAttributeCache = new DeviceAttributeCache(
+                new DeviceSelectionOptions().getDeviceAttributes());
+        mBatteryMonitor = new BatteryMonitor();
+        startBatteryMonitor();
 
         if (isFastbootAvailable()) {
             mFastbootListeners = Collections.synchronizedSet(new HashSet<IFastbootListener>());
@@ -189,6 +210,15 @@ public class DeviceManager implements IDeviceManager {
         mFastbootMonitor.start();
     }
 
+    /**
+     * Start refreshing the battery levels of available devices in background.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void startBatteryMonitor() {
+        mBatteryMonitor.start();
+    }
+
     /**
      * Get the {@link RunUtil} instance to use.
      * <p/>
@@ -294,13 +324,19 @@ public class DeviceManager implements IDeviceManager {
     }
 
     private void addAvailableDevice(final IDevice device) {
-        IMatcher<IDevice> deviceSerialMatcher = new IMatcher<IDevice>() {
+        IKeyedMatcher<IDevice> deviceSerialMatcher = new IKeyedMatcher<IDevice>() {
             @Override
             public boolean matches(IDevice element) {
                 return element.getSerialNumber().equals(device.getSerialNumber());
             }
 
+            @Override
+            public Object getMatchKey() {
+                return device.getSerialNumber();
+            }
         };
+        // index device attributes before queuing, so it is a candidate as soon as it is queued
+        mDeviceAttributeCache.add(device);
         // add IDevice to available queue, replacing any existing IDevice with same serial
         IDevice existingObject = mAvailableDeviceQueue.addUnique(deviceSerialMatcher, device);
         if (existingObject != null) {
@@ -308,6 +344,21 @@ public class DeviceManager implements IDeviceManager {
             // circumstances where this can happen
             CLog.w("Found existing device for available device %s", device.getSerialNumber());
         }
+        notifyDeviceAvailable(device);
+    }
+
+    /**
+     * Inform all registered {@link IDeviceAvailabilityListener}s that given device has been added
+     * to the available device queue, or that its selection attributes have changed.
+     */
+    private void notifyDeviceAvailable(IDevice device) {
+        Collection<IDeviceAvailabilityListener> listenersCopy;
+        synchronized (mAvailabilityListeners) {
+            listenersCopy = new ArrayList<IDeviceAvailabilityListener>(mAvailabilityListeners);
+        }
+        for (IDeviceAvailabilityListener listener : listenersCopy) {
+            listener.deviceAvailable(device);
+        }
     }
 
     /**
@@ -372,7 +423,7 @@ public class DeviceManager implements IDeviceManager {
      */
     private IDevice takeAvailableDevice() {
         try {
-            return mAvailableDeviceQueue.take(ANY_DEVICE_OPTIONS);
+            return mAvailableDeviceQueue.take(getAvailableDeviceMatcher(ANY_DEVICE_OPTIONS));
         } catch (InterruptedException e) {
             CLog.w("interrupted while taking device");
             return null;
@@ -416,14 +467,34 @@ public class DeviceManager implements IDeviceManager {
      */
     private IDevice pollAvailableDevice(long timeout, IDeviceSelection options) {
         try {
-            return mAvailableDeviceQueue.poll(timeout, TimeUnit.MILLISECONDS, options);
+            return mAvailableDeviceQueue.poll(timeout, TimeUnit.MILLISECONDS,
+                    getAvailableDeviceMatcher(options));
         } catch (InterruptedException e) {
             CLog.w("interrupted while polling for device");
             return null;
         }
     }
 
+    /**
+     * Gets the {@link IMatcher} to evaluate available devices against given <var>options</var>.
+     * <p/>
+     * {@link DeviceSelectionOptions} are evaluated in their compiled form against the cached
+     * device attributes, and only for the available devices whose indexed product type, variant
+     * and properties may match. Other {@link IDeviceSelection}s, including subclasses of
+     * {@link DeviceSelectionOptions} that may override how devices are evaluated, are used as
+     * is.
+     */
+    private IMatcher<IDevice> getAvailableDeviceMatcher(IDeviceSelection options) {
+        if (options.getClass() == DeviceSelectionOptions.class) {
+            return ((DeviceSelectionOptions)options).getMatcher().withAttributes(
+                    mDeviceAttributeCache);
+        }
+        return options;
+    }
+
     private ITestDevice createAllocatedDevice(IDevice allocatedDevice) {
+        // device may change while allocated
+        mDeviceAttributeCache.remove(allocatedDevice.getSerialNumber());
         IManagedTestDevice testDevice = createTestDevice(allocatedDevice,
                 createStateMonitor(allocatedDevice));
         if (mEnableLogcat && !(allocatedDevice instanceof StubDevice)) {
@@ -701,6 +772,7 @@ public class DeviceManager implements IDeviceManager {
             if (mFastbootMonitor != null) {
                 mFastbootMonitor.terminate();
             }
+            mBatteryMonitor.terminate();
         }
     }
 
@@ -931,6 +1003,7 @@ public class DeviceManager implements IDeviceManager {
                 CLog.i("Removed disconnected device %s from available queue",
                         disconnectedDevice.getSerialNumber());
             }
+            mDeviceAttributeCache.remove(disconnectedDevice.getSerialNumber());
             IManagedTestDevice testDevice = mAllocatedDeviceMap.get(
                     disconnectedDevice.getSerialNumber());
             if (testDevice != null) {
@@ -967,6 +1040,22 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addDeviceAvailabilityListener(IDeviceAvailabilityListener listener) {
+        mAvailabilityListeners.add(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeDeviceAvailabilityListener(IDeviceAvailabilityListener listener) {
+        mAvailabilityListeners.remove(listener);
+    }
+
     private class FastbootMonitor extends Thread {
 
         private boolean mQuit = false;
@@ -1019,6 +1108,39 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
+    /**
+     * Refreshes the cached battery levels of available devices, so allocation requests with
+     * battery criteria don't query devices while holding the available device queue lock.
+     */
+    private class BatteryMonitor extends Thread {
+
+        private boolean mQuit = false;
+
+        BatteryMonitor() {
+            super("BatteryMonitor");
+            // shouldn't hold the JVM open
+            setDaemon(true);
+        }
+
+        public void terminate() {
+            mQuit = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (!mQuit) {
+                getRunUtil().sleep(BATTERY_POLL_WAIT_TIME);
+                if (!mQuit) {
+                    // a changed battery level may let a waiting allocation request match
+                    for (IDevice device : mDeviceAttributeCache.refreshBatteryLevels()) {
+                        notifyDeviceAvailable(device);
+                    }
+                }
+            }
+        }
+    }
+
     private Set<String> getDevicesOnFastboot() {
         CommandResult fastbootResult = getRunUtil().runTimedCmd(FASTBOOT_CMD_TIMEOUT,
                 "fastboot", "devices");
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A snapshot of all properties of a device, loaded from a single 'getprop' dump.
+ * <p/>
+ * Read-only properties (prefixed with 'ro.') cannot change until the device reboots, so remain
+ * valid until the snapshot is invalidated. Other properties are only considered valid for a
+ * given time after the snapshot was loaded.
+ */
+class DevicePropertySnapshot {
+
+    /** the shell command that dumps all properties */
+    static final String GETPROP_CMD = "getprop";
+
+    /** the prefix of properties that cannot change while device is running */
+    private static final String READ_ONLY_PREFIX = "ro.";
+
+    /** a line of 'getprop' output. eg [ro.hardware]: [mako] */
+    private static final Pattern PROP_PATTERN = Pattern.compile("^\\[([^\\]]+)\\]: \\[(.*)\\]$");
+
+    private Map<String, String> mProperties = null;
+    private long mLoadTime = 0;
+
+    /**
+     * Replace the contents of this snapshot with the properties parsed from given 'getprop'
+     * output.
+     *
+     * @param getpropOutput the output of the 'getprop' shell command
+     * @param loadTime the time in ms the output was collected
+     */
+    public synchronized void load(String getpropOutput, long loadTime) {
+        mProperties = parse(getpropOutput);
+        mLoadTime = loadTime;
+    }
+
+    /**
+     * Parses the output of the 'getprop' shell command.
+     *
+     * @return a {@link Map} of property name to value
+     */
+    static Map<String, String> parse(String getpropOutput) {
+        Map<String, String> properties = new HashMap<String, String>();
+        for (String line : getpropOutput.split("\r?\n")) {
+            Matcher matcher = PROP_PATTERN.matcher(line.trim());
+            if (matcher.matches()) {
+                properties.put(matcher.group(1), matcher.group(2));
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Discard the contents of this snapshot, so it will be reloaded on next use.
+     */
+    public synchronized void invalidate() {
+        mProperties = null;
+    }
+
+    /**
+     * @return <code>true</code> if the snapshot has been loaded and not since invalidated
+     */
+    public synchronized boolean isLoaded() {
+        return mProperties != null;
+    }
+
+    /**
+     * Determine if the snapshot value of given property can be used.
+     *
+     * @param name the property name
+     * @param ttl the time in ms a snapshot value of a property that is not read-only is valid for
+     * @param currentTime the current time in ms
+     * @return <code>true</code> if the snapshot is loaded, and the property is read-only or
+     *         snapshot is younger than <var>ttl</var>
+     */
+    public synchronized boolean isValid(String name, long ttl, long currentTime) {
+        if (mProperties == null) {
+            return false;
+        }
+        return name.startsWith(READ_ONLY_PREFIX) || currentTime - mLoadTime < ttl;
+    }
+
+    /**
+     * Gets the snapshot value of given property.
+     *
+     * @param name the property name
+     * @return the property value, or <code>null</code> if property was not set on device or
+     *         snapshot is not loaded
+     */
+    public synchronized String get(String name) {
+        if (mProperties == null) {
+            return null;
+        }
+        return mProperties.get(name);
+    }
+}
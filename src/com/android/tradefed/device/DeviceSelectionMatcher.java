@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IKeyedMatcher;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMultiKeyedMatcher;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, precompiled form of {@link DeviceSelectionOptions}.
+ * <p/>
+ * Option values are parsed and validated once on creation, so evaluating a device only performs
+ * set lookups. Device attributes are only queried once all the cheaper criteria have passed.
+ * When evaluating devices with a {@link DeviceAttributeCache}, product type and property criteria
+ * are also looked up in its index, so only candidate devices need to be evaluated.
+ */
+class DeviceSelectionMatcher implements IKeyedMatcher<IDevice>, IMultiKeyedMatcher<IDevice> {
+
+    private static final String VARIANT_SEPARATOR = ":";
+
+    private final Set<String> mSerials;
+    private final Set<String> mExcludeSerials;
+    /** map of product type to allowed variants. A <code>null</code> value allows any variant */
+    private final Map<String, Set<String>> mProductVariants;
+    private final Map<String, String> mProperties;
+    private final boolean mEmulatorRequested;
+    private final boolean mDeviceRequested;
+    private final boolean mStubEmulatorRequested;
+    private final boolean mNullDeviceRequested;
+    private final Integer mMinBattery;
+    private final Integer mMaxBattery;
+    private final boolean mRequireBatteryCheck;
+    private final Object mMatchKey;
+    private final IDeviceAttributes mAttributes;
+
+    /**
+     * Compiles the given <var>options</var>.
+     *
+     * @param options the {@link DeviceSelectionOptions} to compile
+     * @param attributes the {@link IDeviceAttributes} to evaluate devices with
+     * @throws IllegalArgumentException if a product type option is invalid
+     */
+    DeviceSelectionMatcher(DeviceSelectionOptions options, IDeviceAttributes attributes) {
+        mSerials = Collections.unmodifiableSet(new HashSet<String>(options.getSerials()));
+        mExcludeSerials = Collections.unmodifiableSet(
+                new HashSet<String>(options.getExcludeSerials()));
+        mProductVariants = Collections.unmodifiableMap(splitOnVariant(options.getProductTypes()));
+        mProperties = Collections.unmodifiableMap(options.getProperties());
+        mEmulatorRequested = options.emulatorRequested();
+        mDeviceRequested = options.deviceRequested();
+        mStubEmulatorRequested = options.stubEmulatorRequested();
+        mNullDeviceRequested = options.nullDeviceRequested();
+        mMinBattery = options.getMinBatteryLevel();
+        mMaxBattery = options.getMaxBatteryLevel();
+        mRequireBatteryCheck = options.getRequireBatteryCheck();
+        mMatchKey = mSerials.size() == 1 ? mSerials.iterator().next() : null;
+        mAttributes = attributes;
+    }
+
+    /**
+     * Copy constructor that evaluates devices with different attributes.
+     */
+    private DeviceSelectionMatcher(DeviceSelectionMatcher other, IDeviceAttributes attributes) {
+        mSerials = other.mSerials;
+        mExcludeSerials = other.mExcludeSerials;
+        mProductVariants = other.mProductVariants;
+        mProperties = other.mProperties;
+        mEmulatorRequested = other.mEmulatorRequested;
+        mDeviceRequested = other.mDeviceRequested;
+        mStubEmulatorRequested = other.mStubEmulatorRequested;
+        mNullDeviceRequested = other.mNullDeviceRequested;
+        mMinBattery = other.mMinBattery;
+        mMaxBattery = other.mMaxBattery;
+        mRequireBatteryCheck = other.mRequireBatteryCheck;
+        mMatchKey = other.mMatchKey;
+        mAttributes = attributes;
+    }
+
+    /**
+     * Gets a {@link DeviceSelectionMatcher} with the same criteria as this one, that evaluates
+     * devices using given <var>attributes</var>.
+     */
+    DeviceSelectionMatcher withAttributes(IDeviceAttributes attributes) {
+        return new DeviceSelectionMatcher(this, attributes);
+    }
+
+    private static Map<String, Set<String>> splitOnVariant(Collection<String> products) {
+        Map<String, Set<String>> splitProducts = new HashMap<String, Set<String>>(products.size());
+        for (String prod : products) {
+            String[] parts = prod.split(VARIANT_SEPARATOR);
+            if (parts.length == 1) {
+                splitProducts.put(parts[0], null);
+            } else if (parts.length == 2) {
+                // A variant was specified as product:variant
+                Set<String> variants = splitProducts.get(parts[0]);
+                if (variants == null) {
+                    variants = new HashSet<String>();
+                    splitProducts.put(parts[0], variants);
+                }
+                variants.add(parts[1]);
+            } else {
+                throw new IllegalArgumentException(String.format("The product type filter \"%s\" " +
+                        "is invalid.  It must contain 0 or 1 '%s' characters, not %d.",
+                        prod, VARIANT_SEPARATOR, parts.length));
+            }
+        }
+        return splitProducts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean matches(IDevice device) {
+        String serial = device.getSerialNumber();
+        if (!mSerials.isEmpty() && !mSerials.contains(serial)) {
+            return false;
+        }
+        if (mExcludeSerials.contains(serial)) {
+            return false;
+        }
+        if ((mEmulatorRequested || mStubEmulatorRequested) && !device.isEmulator()) {
+            return false;
+        }
+        if (mDeviceRequested && device.isEmulator()) {
+            return false;
+        }
+        if (device.isEmulator() && (device instanceof StubDevice) && !mStubEmulatorRequested) {
+            // only allocate the stub emulator if requested
+            return false;
+        }
+        if (mNullDeviceRequested != (device instanceof NullDevice)) {
+            return false;
+        }
+        if (!mProductVariants.isEmpty()) {
+            String productType = mAttributes.getProductType(device);
+            if (productType == null || !mProductVariants.containsKey(productType)) {
+                // no product type matches; bye-bye
+                return false;
+            }
+            Set<String> variants = mProductVariants.get(productType);
+            if (variants != null && !variants.contains(mAttributes.getProductVariant(device))) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, String> propEntry : mProperties.entrySet()) {
+            if (!propEntry.getValue().equals(mAttributes.getProperty(device,
+                    propEntry.getKey()))) {
+                return false;
+            }
+        }
+        if ((mMinBattery != null) || (mMaxBattery != null)) {
+            Integer deviceBattery = mAttributes.getBatteryLevel(device);
+            if (mRequireBatteryCheck && (deviceBattery == null)) {
+                // Couldn't determine battery level when that check is required; reject device
+                return false;
+            }
+            if (isLessAndNotNull(deviceBattery, mMinBattery)) {
+                // deviceBattery < mMinBattery
+                return false;
+            }
+            if (isLessEqAndNotNull(mMaxBattery, deviceBattery)) {
+                // mMaxBattery <= deviceBattery
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the requested serial if exactly one serial has been specified, so a device queue
+     * indexed by serial can look the device up directly.
+     */
+    @Override
+    public Object getMatchKey() {
+        return mMatchKey;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the serials of the devices that may match the product type and property criteria,
+     * if devices are evaluated with a {@link DeviceAttributeCache}.
+     */
+    @Override
+    public Collection<?> getMatchKeys() {
+        if (mAttributes instanceof DeviceAttributeCache) {
+            return ((DeviceAttributeCache)mAttributes).getCandidateSerials(mProductVariants,
+                    mProperties);
+        }
+        return null;
+    }
+
+    /** Determine if x is less-than y, given that both are non-Null */
+    private static boolean isLessAndNotNull(Integer x, Integer y) {
+        if ((x == null) || (y == null)) {
+            return false;
+        }
+        return x < y;
+    }
+
+    /** Determine if x is less-than-or-equal y, given that both are non-Null */
+    private static boolean isLessEqAndNotNull(Integer x, Integer y) {
+        if ((x == null) || (y == null)) {
+            return false;
+        }
+        return x <= y;
+    }
+}
@@ -20,20 +20,22 @@ import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.config.IOptionChangeListener;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IKeyedMatcher;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 
 /**
  * Container for for device selection criteria.
  */
-public class DeviceSelectionOptions implements IDeviceSelection {
+public class DeviceSelectionOptions implements IDeviceSelection, IKeyedMatcher<IDevice>,
+        IOptionChangeListener {
 
     private static final String LOG_TAG = "DeviceSelectionOptions";
 
@@ -90,7 +92,34 @@ public class DeviceSelectionOptions implements IDeviceSelection {
     // If we have tried to fetch the environment variable ANDROID_SERIAL before.
     private boolean mFetchedEnvVariable = false;
 
-    private static final String VARIANT_SEPARATOR = ":";
+    /**
+     * the compiled form of these options. Created on first match, and discarded whenever an
+     * option is set
+     */
+    private volatile DeviceSelectionMatcher mMatcher = null;
+
+    /** {@link IDeviceAttributes} that query the device directly */
+    private final IDeviceAttributes mDeviceAttributes = new IDeviceAttributes() {
+        @Override
+        public String getProductType(IDevice device) {
+            return getDeviceProductType(device);
+        }
+
+        @Override
+        public String getProductVariant(IDevice device) {
+            return getDeviceProductVariant(device);
+        }
+
+        @Override
+        public String getProperty(IDevice device, String name) {
+            return device.getProperty(name);
+        }
+
+        @Override
+        public Integer getBatteryLevel(IDevice device) {
+            return DeviceSelectionOptions.this.getBatteryLevel(device);
+        }
+    };
 
     /**
      * Add a serial number to the device selection options.
@@ -99,6 +128,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void addSerial(String serialNumber) {
         mSerials.add(serialNumber);
+        mMatcher = null;
     }
 
     /**
@@ -108,6 +138,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void addExcludeSerial(String serialNumber) {
         mExcludeSerials.add(serialNumber);
+        mMatcher = null;
     }
 
     /**
@@ -117,6 +148,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void addProductType(String productType) {
         mProductTypes.add(productType);
+        mMatcher = null;
     }
 
     /**
@@ -126,6 +158,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void addProperty(String propertyKeyValue) {
         mPropertyStrings.add(propertyKeyValue);
+        mMatcher = null;
     }
 
     /**
@@ -197,6 +230,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void setEmulatorRequested(boolean emulatorRequested) {
         mEmulatorRequested = emulatorRequested;
+        mMatcher = null;
     }
 
     /**
@@ -204,6 +238,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void setStubEmulatorRequested(boolean stubEmulatorRequested) {
         mStubEmulatorRequested = stubEmulatorRequested;
+        mMatcher = null;
     }
 
     /**
@@ -211,6 +246,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void setDeviceRequested(boolean deviceRequested) {
         mDeviceRequested = deviceRequested;
+        mMatcher = null;
     }
 
     /**
@@ -218,6 +254,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void setNullDeviceRequested(boolean nullDeviceRequested) {
         mNullDeviceRequested = nullDeviceRequested;
+        mMatcher = null;
     }
 
     /**
@@ -225,6 +262,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void setMinBatteryLevel(Integer minBattery) {
         mMinBattery = minBattery;
+        mMatcher = null;
     }
 
     /**
@@ -239,6 +277,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void setMaxBatteryLevel(Integer maxBattery) {
         mMaxBattery = maxBattery;
+        mMatcher = null;
     }
 
     /**
@@ -253,6 +292,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     public void setRequireBatteryCheck(boolean requireCheck) {
         mRequireBatteryCheck = requireCheck;
+        mMatcher = null;
     }
 
     /**
@@ -298,117 +338,57 @@ public class DeviceSelectionOptions implements IDeviceSelection {
     }
 
     /**
-     * @return <code>true</code> if the given {@link IDevice} is a match for the provided options.
-     * <code>false</code> otherwise
+     * Gets the {@link IDeviceAttributes} that query devices directly, as used by this class to
+     * evaluate devices.
      */
-    @Override
-    public boolean matches(IDevice device) {
-        Collection<String> serials = getSerials();
-        Collection<String> excludeSerials = getExcludeSerials();
-        Map<String, Collection<String>> productVariants = splitOnVariant(getProductTypes());
-        Collection<String> productTypes = productVariants.keySet();
-        Map<String, String> properties = getProperties();
-
-        if (!serials.isEmpty() &&
-                !serials.contains(device.getSerialNumber())) {
-            return false;
-        }
-        if (excludeSerials.contains(device.getSerialNumber())) {
-            return false;
-        }
-        if (!productTypes.isEmpty()) {
-            String productType = getDeviceProductType(device);
-            if (productTypes.contains(productType)) {
-                // check variant
-                String productVariant = getDeviceProductVariant(device);
-                Collection<String> variants = productVariants.get(productType);
-                if (variants != null && !variants.contains(productVariant)) {
-                    return false;
-                }
-            } else {
-                // no product type matches; bye-bye
-                return false;
-            }
-        }
-        for (Map.Entry<String, String> propEntry : properties.entrySet()) {
-            if (!propEntry.getValue().equals(device.getProperty(propEntry.getKey()))) {
-                return false;
-            }
-        }
-        if ((emulatorRequested() || stubEmulatorRequested()) && !device.isEmulator()) {
-            return false;
-        }
-        if (deviceRequested() && device.isEmulator()) {
-            return false;
-        }
-        if (device.isEmulator() && (device instanceof StubDevice) && !stubEmulatorRequested()) {
-            // only allocate the stub emulator if requested
-            return false;
-        }
-        if (nullDeviceRequested() != (device instanceof NullDevice)) {
-            return false;
-        }
-        if ((mMinBattery != null) || (mMaxBattery != null)) {
-            Integer deviceBattery = getBatteryLevel(device);
-            if (mRequireBatteryCheck && (deviceBattery == null)) {
-                // Couldn't determine battery level when that check is required; reject device
-                return false;
-            }
-            if (isLessAndNotNull(deviceBattery, mMinBattery)) {
-                // deviceBattery < mMinBattery
-                return false;
-            }
-            if (isLessEqAndNotNull(mMaxBattery, deviceBattery)) {
-                // mMaxBattery <= deviceBattery
-                return false;
-            }
-        }
+    IDeviceAttributes getDeviceAttributes() {
+        return mDeviceAttributes;
+    }
 
-        return true;
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Discards the compiled matcher, as options may be set by reflection rather than through this
+     * class' setters.
+     */
+    @Override
+    public void optionChanged(String optionName) {
+        mMatcher = null;
     }
 
-    /** Determine if x is less-than y, given that both are non-Null */
-    private static boolean isLessAndNotNull(Integer x, Integer y) {
-        if ((x == null) || (y == null)) {
-            return false;
+    /**
+     * Gets the compiled form of these options, which queries devices directly.
+     *
+     * @return the {@link DeviceSelectionMatcher}
+     * @throws IllegalArgumentException if a product type option is invalid
+     */
+    DeviceSelectionMatcher getMatcher() {
+        DeviceSelectionMatcher matcher = mMatcher;
+        if (matcher == null) {
+            matcher = new DeviceSelectionMatcher(this, mDeviceAttributes);
+            mMatcher = matcher;
         }
-        return x < y;
+        return matcher;
     }
 
-    /** Determine if x is less-than y, given that both are non-Null */
-    private static boolean isLessEqAndNotNull(Integer x, Integer y) {
-        if ((x == null) || (y == null)) {
-            return false;
-        }
-        return x <= y;
-    }
-
-    private Map<String, Collection<String>> splitOnVariant(Collection<String> products) {
-        // FIXME: we should validate all provided device selection options once, on the first
-        // FIXME: call to #matches
-        Map<String, Collection<String>> splitProducts =
-                new HashMap<String, Collection<String>>(products.size());
-        // FIXME: cache this
-        for (String prod : products) {
-            String[] parts = prod.split(VARIANT_SEPARATOR);
-            if (parts.length == 1) {
-                splitProducts.put(parts[0], null);
-            } else if (parts.length == 2) {
-                // A variant was specified as product:variant
-                Collection<String> variants = splitProducts.get(parts[0]);
-                if (variants == null) {
-                    variants = new HashSet<String>();
-                    splitProducts.put(parts[0], variants);
-                }
-                variants.add(parts[1]);
-            } else {
-                throw new IllegalArgumentException(String.format("The product type filter \"%s\" " +
-                        "is invalid.  It must contain 0 or 1 '%s' characters, not %d.",
-                        prod, VARIANT_SEPARATOR, parts.length));
-            }
-        }
+    /**
+     * @return <code>true</code> if the given {@link IDevice} is a match for the provided options.
+     * <code>false</code> otherwise
+     */
+    @Override
+    public boolean matches(IDevice device) {
+        return getMatcher().matches(device);
+    }
 
-        return splitProducts;
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the requested serial if exactly one serial has been specified, so a device queue
+     * indexed by serial can look the device up directly.
+     */
+    @Override
+    public Object getMatchKey() {
+        return getMatcher().getMatchKey();
     }
 
     @Override
@@ -19,6 +19,7 @@ import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
+import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 import com.android.tradefed.device.IDeviceManager.IFastbootListener;
@@ -29,7 +30,10 @@ import com.android.tradefed.util.RunUtil;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper class for monitoring the state of a {@link IDevice}.
@@ -40,8 +44,10 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     private IDevice mDevice;
     private TestDeviceState mDeviceState;
 
-    /** the time in ms to wait between 'poll for responsiveness' attempts */
+    /** the max time in ms to wait between 'poll for responsiveness' attempts */
     private static final long CHECK_POLL_TIME = 3 * 1000;
+    /** the initial time in ms to wait between 'poll for responsiveness' attempts */
+    private static final long MIN_POLL_TIME = 250;
     /** the maximum operation time in ms for a 'poll for responsiveness' command */
     private static final int MAX_OP_TIME = 10 * 1000;
 
@@ -51,9 +57,23 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     /** The  time in ms to wait for a device to available. */
     private long mDefaultAvailableTimeout = 6 * 60 * 1000;
 
+    /** the max time in ms between output of the on device boot wait command */
+    private static final int BOOT_WAIT_OUTPUT_TIME = 60 * 1000;
+
+    /** names of the phases of {@link #waitForDeviceAvailable(long)} */
+    static final String PHASE_ONLINE = "online";
+    static final String PHASE_BOOT_COMPLETE = "boot_complete";
+    static final String PHASE_PM_RESPONSIVE = "pm_responsive";
+    static final String PHASE_STORE_MOUNTED = "store_mounted";
+    /** prefix of the lines output by the on device boot wait command when a phase completes */
+    private static final String PHASE_OUTPUT_PREFIX = "TF_BOOT_PHASE ";
+
     private List<DeviceStateListener> mStateListeners;
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
+    private boolean mOnDeviceBootWait = false;
+    /** the time in ms from the start of the last available wait to the end of each phase */
+    private Map<String, Long> mAvailablePhaseTimes = Collections.emptyMap();
 
     DeviceStateMonitor(IDeviceManager mgr, IDevice device, boolean fastbootEnabled) {
         mMgr = mgr;
@@ -88,6 +108,27 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         mDefaultAvailableTimeout = timeoutMs;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setOnDeviceBootWait(boolean onDeviceBootWait) {
+        mOnDeviceBootWait = onDeviceBootWait;
+    }
+
+    /**
+     * Gets the time in ms it took to complete each phase of the last
+     * {@link #waitForDeviceAvailable(long)}, measured from the start of the wait.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return a {@link Map} of phase name to time, in completion order. Phases that did not
+     *         complete are omitted.
+     */
+    Map<String, Long> getAvailablePhaseTimes() {
+        return mAvailablePhaseTimes;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -156,6 +197,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         CLog.i("Waiting %d ms for device %s shell to be responsive", waitTime,
                 getSerialNumber());
         long startTime = System.currentTimeMillis();
+        long pollTime = MIN_POLL_TIME;
         while (System.currentTimeMillis() - startTime < waitTime) {
             final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
             final String cmd = "ls";
@@ -174,7 +216,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
             } catch (ShellCommandUnresponsiveException e) {
                 CLog.i("%s failed: %s", cmd, e.getMessage());
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            pollTime = waitForNextPoll(pollTime);
         }
         CLog.w("Device %s shell is unresponsive", getSerialNumber());
         return false;
@@ -191,31 +233,168 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         // 3. Device's package manager is responsive
         // 4. Device's external storage is mounted
         //
-        // The current implementation waits for each event to occur in sequence.
+        // The current implementation waits for each event to occur in sequence, either by polling
+        // each from the host, or in a single shell command on the device.
         //
         // it will track the currently elapsed time and fail if it is
         // greater than waitTime
 
         long startTime = System.currentTimeMillis();
+        Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>();
+        mAvailablePhaseTimes = phaseTimes;
         IDevice device = waitForDeviceOnline(waitTime);
         if (device == null) {
             return null;
         }
+        recordPhase(phaseTimes, PHASE_ONLINE, startTime);
+        if (mOnDeviceBootWait && waitForAvailableOnDevice(phaseTimes, startTime, waitTime)) {
+            logPhaseTimes(phaseTimes);
+            return device;
+        }
         long elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForBootComplete(waitTime - elapsedTime)) {
-            return null;
+        if (!phaseTimes.containsKey(PHASE_BOOT_COMPLETE)) {
+            if (!waitForBootComplete(waitTime - elapsedTime)) {
+                return null;
+            }
+            recordPhase(phaseTimes, PHASE_BOOT_COMPLETE, startTime);
         }
         elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForPmResponsive(waitTime - elapsedTime)) {
-            return null;
+        if (!phaseTimes.containsKey(PHASE_PM_RESPONSIVE)) {
+            if (!waitForPmResponsive(waitTime - elapsedTime)) {
+                return null;
+            }
+            recordPhase(phaseTimes, PHASE_PM_RESPONSIVE, startTime);
         }
         elapsedTime = System.currentTimeMillis() - startTime;
         if (!waitForStoreMount(waitTime - elapsedTime)) {
             return null;
         }
+        recordPhase(phaseTimes, PHASE_STORE_MOUNTED, startTime);
+        logPhaseTimes(phaseTimes);
         return device;
     }
 
+    private void recordPhase(Map<String, Long> phaseTimes, String phase, long startTime) {
+        phaseTimes.put(phase, System.currentTimeMillis() - startTime);
+    }
+
+    private void logPhaseTimes(Map<String, Long> phaseTimes) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phaseTimes.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms");
+        }
+        CLog.i("Device %s is available. Time to each phase: %s", getSerialNumber(), builder);
+    }
+
+    /**
+     * Waits for boot complete, package manager and external storage in a single shell command on
+     * the device, that returns as soon as they are all ready.
+     * <p/>
+     * The command outputs a line as each phase completes, and the time it is received is recorded
+     * in <var>phaseTimes</var>. Callers should wait for any phases that did not complete by other
+     * means.
+     *
+     * @param phaseTimes the {@link Map} to record phase times in
+     * @param startTime the start time of the wait for availability
+     * @param waitTime the total time in ms to wait for availability
+     * @return <code>true</code> if all phases completed
+     */
+    private boolean waitForAvailableOnDevice(Map<String, Long> phaseTimes, long startTime,
+            long waitTime) {
+        final String externalStore = getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
+        if (externalStore == null || externalStore.length() == 0) {
+            CLog.w("Failed to get external store mount point for %s", getSerialNumber());
+            return false;
+        }
+        CLog.i("Waiting %d ms for device %s to boot, with on device wait",
+                waitTime - (System.currentTimeMillis() - startTime), getSerialNumber());
+        BootPhaseReceiver receiver = new BootPhaseReceiver(phaseTimes, startTime,
+                startTime + waitTime);
+        String cmd = getBootWaitCommand(externalStore, System.currentTimeMillis());
+        try {
+            getIDevice().executeShellCommand(cmd, receiver, BOOT_WAIT_OUTPUT_TIME);
+        } catch (IOException e) {
+            CLog.i("on device boot wait failed: %s", e.getMessage());
+        } catch (TimeoutException e) {
+            CLog.i("on device boot wait failed: timeout");
+        } catch (AdbCommandRejectedException e) {
+            CLog.i("on device boot wait failed: %s", e.getMessage());
+        } catch (ShellCommandUnresponsiveException e) {
+            CLog.i("on device boot wait failed: %s", e.getMessage());
+        }
+        return phaseTimes.containsKey(PHASE_STORE_MOUNTED);
+    }
+
+    /**
+     * Builds the shell command that waits on the device for each availability condition in turn.
+     * <p/>
+     * Each wait loop outputs a '.' per iteration, so the shell connection does not time out, and
+     * a phase line once its condition is met. Only uses shell built-ins and commands available
+     * on all devices (no grep).
+     *
+     * @param externalStore the external storage mount point
+     * @param number a unique number for the storage test file
+     */
+    static String getBootWaitCommand(String externalStore, long number) {
+        final String testFile = String.format("'%s/%d'", externalStore, number);
+        final String testString = String.format("number %d one", number);
+        StringBuilder cmd = new StringBuilder();
+        cmd.append("while [ \"$(getprop dev.bootcomplete)\" != \"1\" ]; do echo .; sleep 1; "
+                + "done; ");
+        cmd.append("echo ").append(PHASE_OUTPUT_PREFIX).append(PHASE_BOOT_COMPLETE).append("; ");
+        cmd.append("while true; do case \"$(pm path android 2>/dev/null)\" in *package:*) "
+                + "break;; esac; echo .; sleep 1; done; ");
+        cmd.append("echo ").append(PHASE_OUTPUT_PREFIX).append(PHASE_PM_RESPONSIVE).append("; ");
+        cmd.append(String.format("while true; do echo '%s' > %s 2>/dev/null; "
+                + "case \"$(cat %s 2>/dev/null)\" in *'%s'*) break;; esac; echo .; sleep 1; "
+                + "done; rm %s; ", testString, testFile, testFile, testString, testFile));
+        cmd.append("echo ").append(PHASE_OUTPUT_PREFIX).append(PHASE_STORE_MOUNTED);
+        return cmd.toString();
+    }
+
+    /**
+     * Records the time each phase line is output by the on device boot wait command, and cancels
+     * the command once the wait time has expired.
+     */
+    static class BootPhaseReceiver extends MultiLineReceiver {
+        private final Map<String, Long> mPhaseTimes;
+        private final long mStartTime;
+        private final long mDeadline;
+
+        BootPhaseReceiver(Map<String, Long> phaseTimes, long startTime, long deadline) {
+            mPhaseTimes = phaseTimes;
+            mStartTime = startTime;
+            mDeadline = deadline;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                line = line.trim();
+                if (line.startsWith(PHASE_OUTPUT_PREFIX)) {
+                    String phase = line.substring(PHASE_OUTPUT_PREFIX.length());
+                    long phaseTime = System.currentTimeMillis() - mStartTime;
+                    CLog.d("Boot phase %s completed after %d ms", phase, phaseTime);
+                    mPhaseTimes.put(phase, phaseTime);
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isCancelled() {
+            return System.currentTimeMillis() > mDeadline;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -232,6 +411,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     private boolean waitForBootComplete(final long waitTime) {
         CLog.i("Waiting %d ms for device %s boot complete", waitTime, getSerialNumber());
         long startTime = System.currentTimeMillis();
+        long pollTime = MIN_POLL_TIME;
         final String cmd = "getprop dev.bootcomplete";
         while ((System.currentTimeMillis() - startTime) < waitTime) {
             try {
@@ -248,7 +428,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
             } catch (ShellCommandUnresponsiveException e) {
                 CLog.i("%s failed: %s", cmd, e.getMessage());
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            pollTime = waitForNextPoll(pollTime);
         }
         CLog.w("Device %s did not boot after %d ms", getSerialNumber(), waitTime);
         return false;
@@ -265,6 +445,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         CLog.i("Waiting %d ms for device %s package manager",
                 waitTime, getSerialNumber());
         long startTime = System.currentTimeMillis();
+        long pollTime = MIN_POLL_TIME;
         while (System.currentTimeMillis() - startTime < waitTime) {
             final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
             final String cmd = "pm path android";
@@ -284,7 +465,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
             } catch (ShellCommandUnresponsiveException e) {
                 Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            pollTime = waitForNextPoll(pollTime);
         }
         Log.w(LOG_TAG, String.format("Device %s package manager is unresponsive",
                 getSerialNumber()));
@@ -302,6 +483,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         Log.i(LOG_TAG, String.format("Waiting %d ms for device %s external store", waitTime,
                 getSerialNumber()));
         long startTime = System.currentTimeMillis();
+        long pollTime = MIN_POLL_TIME;
         while (System.currentTimeMillis() - startTime < waitTime) {
             final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
             final CollectingOutputReceiver bitBucket = new CollectingOutputReceiver();
@@ -341,13 +523,25 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
                 Log.w(LOG_TAG, String.format("Failed to get external store mount point for %s",
                         getSerialNumber()));
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            pollTime = waitForNextPoll(pollTime);
         }
         Log.w(LOG_TAG, String.format("Device %s external storage is not mounted after %d ms",
                 getSerialNumber(), waitTime));
         return false;
     }
 
+    /**
+     * Sleeps before the next poll for responsiveness. The poll interval starts short, so a device
+     * that becomes ready soon is detected quickly, and backs off to {@link #CHECK_POLL_TIME}.
+     *
+     * @param pollTime the time in ms to sleep
+     * @return the time in ms to sleep before the following poll
+     */
+    private long waitForNextPoll(long pollTime) {
+        getRunUtil().sleep(pollTime);
+        return Math.min(pollTime * 2, CHECK_POLL_TIME);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.GZipFileInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link IShellOutputReceiver} which streams the whole shell output to a temporary file,
+ * optionally gzip-compressing it on the fly.
+ * <p/>
+ * Heap usage is bounded by the write buffer size, regardless of the amount of output. Useful for
+ * shell commands that produce very large output, such as bugreport.
+ */
+public class FileOutputReceiver implements IShellOutputReceiver {
+    /** The size of the write buffer, in bytes */
+    private static final int BUFF_SIZE = 32 * 1024;
+
+    private final String mDescriptor;
+    private final boolean mCompress;
+    private File mFile = null;
+    private OutputStream mOutStream = null;
+    private long mSize = 0;
+    private boolean mIsCancelled = false;
+
+    /**
+     * Creates a {@link FileOutputReceiver}.
+     *
+     * @param descriptor the descriptor of the command output. Used as the temp file name prefix.
+     * @param compress if <code>true</code>, output is gzip-compressed as it is written to disk
+     */
+    public FileOutputReceiver(String descriptor, boolean compress) {
+        mDescriptor = descriptor;
+        mCompress = compress;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void addOutput(byte[] data, int offset, int length) {
+        if (mIsCancelled) {
+            return;
+        }
+        try {
+            if (mOutStream == null) {
+                openFile();
+            }
+            mOutStream.write(data, offset, length);
+            mSize += length;
+        } catch (IOException e) {
+            CLog.e("Failed to write %s output to %s", mDescriptor, mFile);
+            CLog.e(e);
+            // stop the command, but keep the output collected so far
+            mIsCancelled = true;
+        }
+    }
+
+    private void openFile() throws IOException {
+        mFile = FileUtil.createTempFile(String.format("%s_", mDescriptor),
+                mCompress ? ".txt.gz" : ".txt");
+        OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(mFile), BUFF_SIZE);
+        mOutStream = mCompress ? new GZIPOutputStream(fileStream, BUFF_SIZE) : fileStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void flush() {
+        // ignore, output is flushed when retrieved
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * @return the number of uncompressed bytes received so far
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Stops collecting output, and gets the output collected so far.
+     * <p/>
+     * Ownership of the backing file is transferred to the returned {@link InputStreamSource},
+     * which will delete it when {@link InputStreamSource#cancel()} is called. Should only be called
+     * once.
+     *
+     * @return a file-backed {@link InputStreamSource} of the uncompressed output
+     */
+    public synchronized InputStreamSource getData() {
+        mIsCancelled = true;
+        if (mOutStream == null) {
+            return new ByteArrayInputStreamSource(new byte[0]);
+        }
+        try {
+            mOutStream.close();
+        } catch (IOException e) {
+            CLog.e("Failed to close %s output file %s", mDescriptor, mFile);
+            CLog.e(e);
+        }
+        mOutStream = null;
+        File file = mFile;
+        mFile = null;
+        if (mCompress) {
+            return new GZipFileInputStreamSource(file, mSize, true);
+        }
+        return new FileInputStreamSource(file, true);
+    }
+
+    /**
+     * Stops collecting output, and deletes all collected output.
+     */
+    public synchronized void cancel() {
+        mIsCancelled = true;
+        StreamUtil.closeStream(mOutStream);
+        mOutStream = null;
+        FileUtil.deleteFile(mFile);
+        mFile = null;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+
+/**
+ * Provides the attributes of a {@link IDevice} that device selection criteria are evaluated
+ * against.
+ */
+interface IDeviceAttributes {
+
+    /**
+     * @return the device product type or <code>null</code> if unknown
+     */
+    public String getProductType(IDevice device);
+
+    /**
+     * @return the device product variant or <code>null</code> if unknown
+     */
+    public String getProductVariant(IDevice device);
+
+    /**
+     * @return the device property value or <code>null</code> if unknown
+     */
+    public String getProperty(IDevice device, String name);
+
+    /**
+     * @return the device battery level or <code>null</code> if unknown
+     */
+    public Integer getBatteryLevel(IDevice device);
+}
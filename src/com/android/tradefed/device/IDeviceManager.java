@@ -17,6 +17,7 @@
 package com.android.tradefed.device;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
 import com.android.tradefed.util.IRunUtil;
 
 import java.io.PrintWriter;
@@ -60,6 +61,20 @@ public interface IDeviceManager {
         public void stateUpdated();
     }
 
+    /**
+     * A listener for changes to the pool of available devices.
+     */
+    public static interface IDeviceAvailabilityListener {
+        /**
+         * Callback when a device has been added to the available device pool, either because it
+         * was newly connected or because it was freed. Also called when the battery level of an
+         * available device changes, as it may now match different allocation requests.
+         *
+         * @param device the {@link IDevice} that is now available for allocation
+         */
+        public void deviceAvailable(IDevice device);
+    }
+
     /**
      * Initialize the device manager. This must be called once and only once before any other
      * methods are called.
@@ -244,4 +259,23 @@ public interface IDeviceManager {
      */
     public void removeFastbootListener(IFastbootListener listener);
 
+    /**
+     * Informs the manager that a listener is interested in devices being added to the available
+     * device pool.
+     * <p/>
+     * Allows clients to wait for a suitable device to become available rather than repeatedly
+     * polling {@link #allocateDevice(long, IDeviceSelection)}.
+     *
+     * @param listener the {@link IDeviceAvailabilityListener} to add
+     */
+    public void addDeviceAvailabilityListener(IDeviceAvailabilityListener listener);
+
+    /**
+     * Informs the manager that a listener is no longer interested in device availability
+     * changes.
+     *
+     * @param listener the {@link IDeviceAvailabilityListener} to remove
+     */
+    public void removeDeviceAvailabilityListener(IDeviceAvailabilityListener listener);
+
 }
@@ -164,4 +164,11 @@ public interface IDeviceStateMonitor {
      */
     public void setDefaultAvailableTimeout(long timeoutMs);
 
+    /**
+     * Set whether {@link #waitForDeviceAvailable()} should check all availability conditions in a
+     * single shell command on the device, which returns as soon as they are met, rather than
+     * polling each one from the host.
+     */
+    public void setOnDeviceBootWait(boolean onDeviceBootWait);
+
 }
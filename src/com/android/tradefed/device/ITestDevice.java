@@ -21,10 +21,12 @@ import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.result.ILogcatEventListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.util.CommandResult;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collection;
@@ -391,6 +393,28 @@ public interface ITestDevice {
     public String installPackage(File packageFile, boolean reinstall, String... extraArgs)
             throws DeviceNotAvailableException;
 
+    /**
+     * Install a batch of Android packages on device.
+     * <p/>
+     * More efficient than calling {@link #installPackage(File, boolean, String...)} for each
+     * package, as all packages are pushed to device over a single sync session, and each package
+     * is installed while the following packages are still being pushed.
+     *
+     * @param packageFiles the apk files to install, in install order
+     * @param reinstall <code>true</code> if a reinstall should be performed
+     * @param stopOnFailure <code>true</code> if the remaining packages should not be installed
+     *            after an install fails
+     * @param extraArgs optional extra arguments to pass. See 'adb shell pm install --help' for
+     *            available options.
+     * @return a {@link List} with a {@link String} error code, or <code>null</code> if success,
+     *         for each installed package in install order. If stopOnFailure is set, the list
+     *         ends with the first failure.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public List<String> installPackages(Collection<File> packageFiles, boolean reinstall,
+            boolean stopOnFailure, String... extraArgs) throws DeviceNotAvailableException;
+
     /**
      * Uninstall an Android package from device.
      *
@@ -517,6 +541,40 @@ public interface ITestDevice {
     public boolean pushDir(File localDir, String deviceFilePath)
             throws DeviceNotAvailableException;
 
+    /**
+     * Recursively push directories contents to device, in bulk.
+     * <p/>
+     * All remote directories are created with a single shell command, and all files are pushed
+     * over a single sync session.
+     *
+     * @param localDir the local directory to push
+     * @param deviceFilePath the remote destination absolute file path
+     * @param skipUnchanged if <code>true</code>, files already present on device with the same
+     *            size and modification time are not pushed
+     * @return <code>true</code> if file was pushed successfully. <code>false</code> otherwise.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     * recovered.
+     */
+    public boolean pushDir(File localDir, String deviceFilePath, boolean skipUnchanged)
+            throws DeviceNotAvailableException;
+
+    /**
+     * Recursively push the directory contents accepted by a filter to device, in bulk.
+     *
+     * @param localDir the local directory to push
+     * @param deviceFilePath the remote destination absolute file path
+     * @param skipUnchanged if <code>true</code>, files already present on device with the same
+     *            size and modification time are not pushed
+     * @param filter the {@link FilenameFilter} that local files and directories must be accepted
+     *            by to be pushed, or <code>null</code> to push everything
+     * @return <code>true</code> if file was pushed successfully. <code>false</code> otherwise.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     * recovered.
+     * @see #pushDir(File, String, boolean)
+     */
+    public boolean pushDir(File localDir, String deviceFilePath, boolean skipUnchanged,
+            FilenameFilter filter) throws DeviceNotAvailableException;
+
     /**
      * Incrementally syncs the contents of a local file directory to device.
      * <p/>
@@ -578,11 +636,35 @@ public interface ITestDevice {
      */
     public void clearLogcat();
 
+    /**
+     * Sets a listener to notify of crashes and ANRs detected in the background logcat capture, as
+     * they happen.
+     * <p/>
+     * Has no effect on detection until background logcat capture is started.
+     *
+     * @param listener the {@link ILogcatEventListener} or <code>null</code> to stop detection
+     */
+    public void setLogcatEventListener(ILogcatEventListener listener);
+
     /**
      * Grabs a snapshot stream of the logcat data.
      */
     public InputStreamSource getLogcat();
 
+    /**
+     * Grabs the part of the background logcat capture logged within the given time range, such as
+     * while a test was running.
+     * <p/>
+     * Device log timestamps are matched to host time based on when log lines are received. The
+     * slice is selected using a sparse index, so it may also contain some lines logged just
+     * before or after the time range. If logcat is not being captured in background, a dump of
+     * the entire logcat is returned.
+     *
+     * @param startTime the start of the time range, in ms since epoch as measured on the host
+     * @param endTime the end of the time range, in ms since epoch as measured on the host
+     */
+    public InputStreamSource getLogcatSlice(long startTime, long endTime);
+
     /**
      * Grabs a screenshot from the device.
      *
@@ -20,11 +20,13 @@ package com.android.tradefed.device;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.FileRegionInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.SnapshotInputStreamSource;
 import com.android.tradefed.util.FileUtil;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -33,6 +35,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A class designed to help run long running commands collect output.
@@ -41,10 +45,66 @@ import java.io.SequenceInputStream;
  * To prevent data loss when the limit has been reached, this file keeps two tmp host
  * files.
  * </p>
+ * <p>
+ * Alternatively, output can be stored as a sequence of gzip compressed chunks indexed by logcat
+ * timestamp, which holds several times more history in the same disk space and allows retrieving
+ * just a time range with {@link #getData(long, long)}. See {@link CompressedChunkStore}.
+ * </p>
+ * <p>
+ * Uncompressed output keeps a sparse index of logcat timestamps by file offset, so a time range
+ * can be returned in place, without copying the tmp files.
+ * </p>
  */
 public class LargeOutputReceiver implements IShellOutputReceiver {
     /** The max number of bytes to store in the buffer */
     public static final int BUFF_SIZE = 32 * 1024;
+    /** The approximate number of bytes between entries of the time index of a tmp file */
+    static final int INDEX_INTERVAL = 16 * 1024;
+
+    /**
+     * Builds a sparse index of the logcat timestamps of a tmp file, by file offset.
+     */
+    private static class TimeIndex extends LogcatTimestampScanner {
+        private final List<long[]> mEntries = new ArrayList<long[]>();
+        private long mLastIndexedOffset = -INDEX_INTERVAL;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void onTimestamp(long time, long lineStart) {
+            if (lineStart - mLastIndexedOffset >= INDEX_INTERVAL) {
+                mEntries.add(new long[] {time, lineStart});
+                mLastIndexedOffset = lineStart;
+            }
+        }
+
+        /**
+         * Gets the offset to start reading from to include all lines at or after given time.
+         */
+        long getStartOffset(long startTime) {
+            long offset = 0;
+            for (long[] entry : mEntries) {
+                if (entry[0] > startTime) {
+                    break;
+                }
+                offset = entry[1];
+            }
+            return offset;
+        }
+
+        /**
+         * Gets the offset to stop reading at to include all lines at or before given time.
+         */
+        long getEndOffset(long endTime) {
+            for (long[] entry : mEntries) {
+                if (entry[0] > endTime) {
+                    return entry[1];
+                }
+            }
+            return getPosition();
+        }
+    }
 
     private String mSerialNumber;
     private String mDescriptor;
@@ -57,6 +117,18 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
     /** the current temp file which data will be streamed into */
     private File mTmpFile = null;
     private long mTmpBytesStored = 0;
+    /** the time index of mPreviousTmpFile */
+    private TimeIndex mPreviousTmpIndex = null;
+    /** the time index of mTmpFile */
+    private TimeIndex mTmpIndex = null;
+    /** the difference between host time and log time, as of the last timestamped line */
+    private long mClockOffset = 0;
+    private long mClockOffsetLogTime = LogcatTimestampScanner.NO_TIME;
+    /** the compressed store which data will be streamed into, if compression is enabled */
+    private CompressedChunkStore mChunkStore = null;
+    private final boolean mCompress;
+    /** optional receiver that is also fed all output as it arrives */
+    private volatile IShellOutputReceiver mTeeReceiver = null;
 
     /**
      * Creates a {@link LargeOutputReceiver}.
@@ -67,9 +139,24 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
      * keeps two tmp host files, the size of the output can be up to twice {@code maxFileSize}.
      */
     public LargeOutputReceiver(String descriptor, String serialNumber, long maxFileSize) {
+        this(descriptor, serialNumber, maxFileSize, false);
+    }
+
+    /**
+     * Creates a {@link LargeOutputReceiver}.
+     *
+     * @param descriptor the descriptor of the command to run. For logging only.
+     * @param serialNumber the serial number of the device. For logging only.
+     * @param maxFileSize the max file size of the tmp backing file in bytes. The output stored on
+     * disk can be up to twice {@code maxFileSize}.
+     * @param compress if <code>true</code>, store output in time-indexed gzip chunks
+     */
+    public LargeOutputReceiver(String descriptor, String serialNumber, long maxFileSize,
+            boolean compress) {
         mDescriptor = descriptor;
         mSerialNumber = serialNumber;
         mMaxFileSize = maxFileSize;
+        mCompress = compress;
 
         try {
             createTmpFile();
@@ -78,16 +165,56 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
         }
     }
 
+    /**
+     * Sets a receiver that is also fed all output as it arrives, such as an incremental parser.
+     * <p/>
+     * The tee receiver is called outside of this receiver's lock, so slow processing does not
+     * block retrieval of the collected output.
+     *
+     * @param receiver the {@link IShellOutputReceiver} or <code>null</code> to remove it
+     */
+    public void setTeeReceiver(IShellOutputReceiver receiver) {
+        mTeeReceiver = receiver;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized void addOutput(byte[] data, int offset, int length) {
-        if (mIsCancelled || mOutStream == null) {
+    public void addOutput(byte[] data, int offset, int length) {
+        if (!writeOutput(data, offset, length)) {
             return;
         }
+        IShellOutputReceiver teeReceiver = mTeeReceiver;
+        if (teeReceiver != null) {
+            teeReceiver.addOutput(data, offset, length);
+        }
+    }
+
+    /**
+     * Writes output to the tmp file.
+     *
+     * @return <code>false</code> if output was discarded because receiver is cancelled
+     */
+    private synchronized boolean writeOutput(byte[] data, int offset, int length) {
+        if (mIsCancelled) {
+            return false;
+        }
+        if (mChunkStore != null) {
+            try {
+                mChunkStore.write(data, offset, length);
+            } catch (IOException e) {
+                CLog.w("failed to write %s data for %s.", mDescriptor, mSerialNumber);
+            }
+            updateClockOffset(mChunkStore.getLastTime());
+            return true;
+        }
+        if (mOutStream == null) {
+            return false;
+        }
         try {
-            mOutStream.write(data, offset, length);
+            writeToTmpFile(data, offset, length);
+            updateClockOffset(mTmpIndex.getLastTime());
             mTmpBytesStored += length;
             if (mTmpBytesStored > mMaxFileSize) {
                 CLog.i("Max tmp %s file size reached for %s, swapping", mDescriptor, mSerialNumber);
@@ -97,6 +224,35 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
         } catch (IOException e) {
             CLog.w("failed to write %s data for %s.", mDescriptor, mSerialNumber);
         }
+        return true;
+    }
+
+    private void writeToTmpFile(byte[] data, int offset, int length) throws IOException {
+        mOutStream.write(data, offset, length);
+        mTmpIndex.scan(data, offset, length);
+    }
+
+    /**
+     * Tracks the offset between host time and the log's timestamps, assuming the last
+     * timestamped line was received as soon as it was logged.
+     */
+    private void updateClockOffset(long lastLogTime) {
+        if (lastLogTime != LogcatTimestampScanner.NO_TIME && lastLogTime != mClockOffsetLogTime) {
+            mClockOffset = System.currentTimeMillis() - lastLogTime;
+            mClockOffsetLogTime = lastLogTime;
+        }
+    }
+
+    /**
+     * Converts a host time to the corresponding time in the log's timestamps, which may differ due
+     * to the device clock or time zone.
+     *
+     * @param hostTime the host time in ms since epoch, such as from
+     *            {@link System#currentTimeMillis()}
+     * @return the log time in ms since epoch
+     */
+    public synchronized long getLogTime(long hostTime) {
+        return hostTime - mClockOffset;
     }
 
     /**
@@ -105,6 +261,9 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
      * @return The collected output from the command.
      */
     public synchronized InputStreamSource getData() {
+        if (mChunkStore != null) {
+            return getData(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
         if (mTmpFile != null) {
             flush();
             try {
@@ -129,6 +288,59 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
         return new ByteArrayInputStreamSource(new byte[0]);
     }
 
+    /**
+     * Gets the collected output that covers the given time range, as a {@link InputStreamSource}.
+     * <p/>
+     * Output is selected using the log's timestamps, at the granularity of the index, so the
+     * output may also contain some lines outside of the range. Uncompressed output is returned in
+     * place as a {@link FileRegionInputStreamSource}, without copying it.
+     *
+     * @param startTime the start of the time range in ms since epoch, inclusive
+     * @param endTime the end of the time range in ms since epoch, inclusive
+     * @return The collected output from the command.
+     * @see #getLogTime(long)
+     */
+    public synchronized InputStreamSource getData(long startTime, long endTime) {
+        if (mChunkStore == null) {
+            return getTmpFileData(startTime, endTime);
+        }
+        InputStream stream = mChunkStore.createInputStream(startTime, endTime);
+        if (mChunkStore.isTruncated()) {
+            stream = new SequenceInputStream(new ByteArrayInputStream(formatLogMsg(
+                    String.format("Continuing %s capture for device %s. Previous content may "
+                    + "have been truncated.", mDescriptor, mSerialNumber))), stream);
+        }
+        return new SnapshotInputStreamSource(stream);
+    }
+
+    /**
+     * Gets the regions of the tmp files that cover the given time range.
+     */
+    private InputStreamSource getTmpFileData(long startTime, long endTime) {
+        flush();
+        FileRegionInputStreamSource source = new FileRegionInputStreamSource();
+        try {
+            addTmpFileRegion(source, mPreviousTmpFile, mPreviousTmpIndex, startTime, endTime);
+            addTmpFileRegion(source, mTmpFile, mTmpIndex, startTime, endTime);
+        } catch (IOException e) {
+            CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
+            CLog.e(e);
+            source.cancel();
+            return new ByteArrayInputStreamSource(new byte[0]);
+        }
+        return source;
+    }
+
+    private void addTmpFileRegion(FileRegionInputStreamSource source, File file, TimeIndex index,
+            long startTime, long endTime) throws IOException {
+        if (file == null || index == null) {
+            return;
+        }
+        long startOffset = index.getStartOffset(startTime);
+        long endOffset = index.getEndOffset(endTime);
+        source.addRegion(file, startOffset, endOffset - startOffset);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -167,7 +379,7 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
     /**
      * Delete all accumulated data.
      */
-    public void delete() {
+    public synchronized void delete() {
         flush();
         closeLogStream();
 
@@ -175,7 +387,13 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
         mTmpFile = null;
         FileUtil.deleteFile(mPreviousTmpFile);
         mPreviousTmpFile = null;
+        mTmpIndex = null;
+        mPreviousTmpIndex = null;
         mTmpBytesStored = 0;
+        if (mChunkStore != null) {
+            mChunkStore.delete();
+            mChunkStore = null;
+        }
     }
 
     /**
@@ -217,11 +435,21 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
             return;
         }
 
+        if (mCompress) {
+            if (mChunkStore == null) {
+                mChunkStore = new CompressedChunkStore(String.format("%s_%s_", mDescriptor,
+                        mSerialNumber), 2 * mMaxFileSize, CompressedChunkStore.DEFAULT_CHUNK_SIZE);
+                appendLogMsg(String.format("%s for device %s", mDescriptor, mSerialNumber));
+            }
+            return;
+        }
         closeLogStream();
         if (mPreviousTmpFile != null) {
             mPreviousTmpFile.delete();
         }
         mPreviousTmpFile = mTmpFile;
+        mPreviousTmpIndex = mTmpIndex;
+        mTmpIndex = new TimeIndex();
         mTmpFile = FileUtil.createTempFile(String.format("%s_%s_", mDescriptor, mSerialNumber),
                 ".txt");
         CLog.i("Created tmp %s file %s", mDescriptor, mTmpFile.getAbsolutePath());
@@ -243,19 +471,26 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
      * @param msg
      */
     protected synchronized void appendLogMsg(String msg) {
-        if (mOutStream == null || msg == null) {
+        if ((mOutStream == null && mChunkStore == null) || msg == null) {
             return;
         }
         // add the msg to log, so readers will know the command was interrupted
+        byte[] data = formatLogMsg(msg);
         try {
-            mOutStream.write("\n*******************\n".getBytes());
-            mOutStream.write(msg.getBytes());
-            mOutStream.write("\n*******************\n".getBytes());
+            if (mChunkStore != null) {
+                mChunkStore.write(data, 0, data.length);
+            } else {
+                writeToTmpFile(data, 0, data.length);
+            }
         } catch (IOException e) {
             CLog.w("failed to write %s data for %s.", mDescriptor, mSerialNumber);
         }
     }
 
+    private static byte[] formatLogMsg(String msg) {
+        return String.format("\n*******************\n%s\n*******************\n", msg).getBytes();
+    }
+
     /**
      * Get the descriptor.
      * <p>
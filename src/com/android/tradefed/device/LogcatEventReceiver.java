@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ILogcatEventListener;
+import com.android.tradefed.util.brillopad.LogcatParser;
+import com.android.tradefed.util.brillopad.item.GenericLogcatItem;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link MultiLineReceiver} that incrementally parses a `logcat -v threadtime` stream as it
+ * arrives, and reports crashes and ANRs to a {@link ILogcatEventListener}.
+ * <p/>
+ * An event is reported once the logcat has moved on {@link #QUIET_TIME} ms past the last line of
+ * the event, or when {@link #flushEvents()} is called. Each event is only reported once, even if
+ * the logcat stream restarts and replays it.
+ */
+public class LogcatEventReceiver extends MultiLineReceiver {
+
+    /** The time in ms, in logcat time, after which an event with no new lines is complete */
+    static final long QUIET_TIME = 1000;
+
+    private final String mSerialNumber;
+    private final ILogcatEventListener mListener;
+    private LogcatParser mParser = new LogcatParser();
+    private boolean mIsCancelled = false;
+    /** the keys of events already reported, see {@link #getEventKey(GenericLogcatItem)} */
+    private Set<String> mReportedEvents = new HashSet<String>();
+
+    /**
+     * Creates a {@link LogcatEventReceiver}.
+     *
+     * @param serialNumber the serial number of the device the logcat is from
+     * @param listener the {@link ILogcatEventListener} to report events to
+     */
+    public LogcatEventReceiver(String serialNumber, ILogcatEventListener listener) {
+        mSerialNumber = serialNumber;
+        mListener = listener;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void processNewLines(String[] lines) {
+        if (mIsCancelled) {
+            return;
+        }
+        for (String line : lines) {
+            if (line.length() > 0) {
+                mParser.parseLine(line);
+            }
+        }
+        reportEvents(QUIET_TIME);
+    }
+
+    /**
+     * Reports all pending events, regardless of whether they are complete.
+     */
+    public synchronized void flushEvents() {
+        reportEvents(-1);
+    }
+
+    /**
+     * Reports all pending events, then starts parsing afresh. Must be called when the logcat
+     * stream restarts, since logcat replays its buffer and pending events would otherwise be
+     * parsed twice.
+     * <p/>
+     * Pending events are reported rather than discarded, as logcat typically restarts because
+     * of the very crash that was last parsed, eg one that rebooted the device, in which case the
+     * buffer is not replayed. Events that are replayed are not reported again.
+     */
+    public synchronized void reset() {
+        reportEvents(-1);
+        mParser = new LogcatParser();
+    }
+
+    private void reportEvents(long quietTime) {
+        for (GenericLogcatItem event : mParser.removeCompletedEvents(quietTime)) {
+            if (!mReportedEvents.add(getEventKey(event))) {
+                // replayed from the logcat buffer after a restart
+                continue;
+            }
+            CLog.i("Detected %s in logcat of %s", event.getType(), mSerialNumber);
+            try {
+                mListener.logcatEvent(mSerialNumber, event);
+            } catch (RuntimeException e) {
+                // don't let a listener stop logcat capture
+                CLog.e("Caught exception from logcat event listener");
+                CLog.e(e);
+            }
+        }
+    }
+
+    /**
+     * Get a key that identifies an event in the logcat, regardless of which logcat run it was
+     * parsed from.
+     */
+    private static String getEventKey(GenericLogcatItem event) {
+        return String.format("%s %s %s %s", event.getType(), event.getEventTime(),
+                event.getPid(), event.getTid());
+    }
+
+    /**
+     * Stops reporting events.
+     */
+    public synchronized void cancel() {
+        mIsCancelled = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mIsCancelled;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.device;
 
+import com.android.tradefed.result.ILogcatEventListener;
 import com.android.tradefed.result.InputStreamSource;
 
 /**
@@ -24,24 +25,75 @@ import com.android.tradefed.result.InputStreamSource;
 public class LogcatReceiver {
     private BackgroundDeviceAction mDeviceAction;
     private LargeOutputReceiver mReceiver;
+    private LogcatEventReceiver mEventReceiver = null;
+    private final String mSerialNumber;
 
     static final String LOGCAT_CMD = "logcat -v threadtime";
     private static final String LOGCAT_DESC = "logcat";
 
     public LogcatReceiver(ITestDevice device, long maxFileSize, int logStartDelay) {
+        this(device, maxFileSize, logStartDelay, false);
+    }
+
+    /**
+     * Creates a {@link LogcatReceiver}.
+     *
+     * @param device the {@link ITestDevice} to capture logcat from
+     * @param maxFileSize the max size of a tmp logcat file, in bytes
+     * @param logStartDelay the time in ms to wait before starting logcat capture
+     * @param compress if <code>true</code>, store logcat in time-indexed gzip chunks
+     */
+    public LogcatReceiver(ITestDevice device, long maxFileSize, int logStartDelay,
+            boolean compress) {
+        mSerialNumber = device.getSerialNumber();
         mReceiver = new LargeOutputReceiver(LOGCAT_DESC, device.getSerialNumber(),
-                maxFileSize);
+                maxFileSize, compress);
         // FIXME: remove mLogStartDelay. Currently delay starting logcat, as starting
         // immediately after a device comes online has caused adb instability
         mDeviceAction = new BackgroundDeviceAction(LOGCAT_CMD, LOGCAT_DESC, device,
-                mReceiver, logStartDelay);
+                mReceiver, logStartDelay) {
+            @Override
+            protected void onCommandRestart() {
+                resetEventReceiver();
+            }
+        };
     }
 
     public void start() {
         mDeviceAction.start();
     }
 
+    /**
+     * Sets a listener to report crashes and ANRs to, as they are detected in the logcat stream.
+     *
+     * @param listener the {@link ILogcatEventListener} or <code>null</code> to stop detecting
+     *            events
+     */
+    public synchronized void setEventListener(ILogcatEventListener listener) {
+        if (mEventReceiver != null) {
+            mReceiver.setTeeReceiver(null);
+            mEventReceiver.flushEvents();
+            mEventReceiver.cancel();
+            mEventReceiver = null;
+        }
+        if (listener != null) {
+            mEventReceiver = new LogcatEventReceiver(mSerialNumber, listener);
+            mReceiver.setTeeReceiver(mEventReceiver);
+        }
+    }
+
+    /**
+     * Reports pending events and resets event parsing when the logcat stream restarts, as logcat
+     * replays its buffer.
+     */
+    private synchronized void resetEventReceiver() {
+        if (mEventReceiver != null) {
+            mEventReceiver.reset();
+        }
+    }
+
     public void stop() {
+        setEventListener(null);
         mDeviceAction.cancel();
         mReceiver.cancel();
         mReceiver.delete();
@@ -51,6 +103,17 @@ public class LogcatReceiver {
         return mReceiver.getData();
     }
 
+    /**
+     * Gets the captured logcat that covers the given time range.
+     *
+     * @param startTime the start of the time range in host ms since epoch, inclusive
+     * @param endTime the end of the time range in host ms since epoch, inclusive
+     * @see LargeOutputReceiver#getData(long, long)
+     */
+    public InputStreamSource getLogcatData(long startTime, long endTime) {
+        return mReceiver.getData(mReceiver.getLogTime(startTime), mReceiver.getLogTime(endTime));
+    }
+
     public void clear() {
         mReceiver.clear();
     }
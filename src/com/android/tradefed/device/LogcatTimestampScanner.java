@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.Calendar;
+
+/**
+ * Scans streamed logcat output for the timestamps of lines, in the format
+ * {@code MM-dd HH:mm:ss.SSS} used by the {@code time} and {@code threadtime} logcat formats.
+ * <p/>
+ * Lines can be split across any number of {@link #scan(byte[], int, int)} calls. Timestamps are
+ * interpreted in the current year and the host's time zone.
+ */
+class LogcatTimestampScanner {
+
+    /** Time value for when no timestamped line has been seen */
+    static final long NO_TIME = Long.MIN_VALUE;
+    private static final int TIMESTAMP_LENGTH = 18;
+
+    /** the bytes of the timestamp at the start of the current line */
+    private final byte[] mLinePrefix = new byte[TIMESTAMP_LENGTH];
+    /** the number of bytes collected in mLinePrefix, or -1 if past the line prefix */
+    private int mLinePrefixLength = 0;
+    /** the position of the start of the current line */
+    private long mLineStart = 0;
+    private long mPosition = 0;
+    private long mLastTime = NO_TIME;
+
+    private Calendar mCalendar = null;
+    private int mCachedHourKey = -1;
+    private long mCachedHourStart = 0;
+
+    /**
+     * Scans the next block of output.
+     */
+    void scan(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                mLinePrefixLength = 0;
+                mLineStart = mPosition + (i - offset) + 1;
+            } else if (mLinePrefixLength >= 0) {
+                mLinePrefix[mLinePrefixLength++] = b;
+                if (mLinePrefixLength == TIMESTAMP_LENGTH) {
+                    mLinePrefixLength = -1;
+                    if (isTimestamp(mLinePrefix)) {
+                        mLastTime = parseTime(mLinePrefix);
+                        onTimestamp(mLastTime, mLineStart);
+                    }
+                }
+            }
+        }
+        mPosition += length;
+    }
+
+    /**
+     * Called when a timestamped line is found. Does nothing by default.
+     *
+     * @param time the timestamp of the line in ms since epoch
+     * @param lineStart the position of the start of the line, as the number of bytes scanned
+     *            before it
+     */
+    protected void onTimestamp(long time, long lineStart) {
+        // ignore
+    }
+
+    /**
+     * @return the time of the last timestamped line, or {@link #NO_TIME} if there was none
+     */
+    long getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * @return the total number of bytes scanned
+     */
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return <code>true</code> if the next byte scanned is the start of a new line
+     */
+    boolean isAtLineStart() {
+        return mLinePrefixLength == 0;
+    }
+
+    /**
+     * Check that the data starts with a timestamp in the format {@code MM-dd HH:mm:ss.SSS}.
+     */
+    private static boolean isTimestamp(byte[] data) {
+        return isDigits(data, 0, 2) && data[2] == '-' && isDigits(data, 3, 5) &&
+                data[5] == ' ' && isDigits(data, 6, 8) && data[8] == ':' &&
+                isDigits(data, 9, 11) && data[11] == ':' && isDigits(data, 12, 14) &&
+                data[14] == '.' && isDigits(data, 15, 18);
+    }
+
+    private static boolean isDigits(byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseDigits(byte[] data, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (data[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parse a timestamp in the format {@code MM-dd HH:mm:ss.SSS} in the current year, and return
+     * it in ms since epoch.
+     */
+    private long parseTime(byte[] data) {
+        int month = parseDigits(data, 0, 2);
+        int day = parseDigits(data, 3, 5);
+        int hour = parseDigits(data, 6, 8);
+        int minute = parseDigits(data, 9, 11);
+        int second = parseDigits(data, 12, 14);
+        int millis = parseDigits(data, 15, 18);
+        int hourKey = (month * 100 + day) * 100 + hour;
+        if (hourKey != mCachedHourKey) {
+            if (mCalendar == null) {
+                mCalendar = Calendar.getInstance();
+            }
+            int year = Calendar.getInstance().get(Calendar.YEAR);
+            mCalendar.clear();
+            mCalendar.set(year, month - 1, day, hour, 0, 0);
+            mCachedHourStart = mCalendar.getTimeInMillis();
+            mCachedHourKey = hourKey;
+        }
+        return mCachedHourStart + (minute * 60 + second) * 1000L + millis;
+    }
+}
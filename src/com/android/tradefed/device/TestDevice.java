@@ -36,6 +36,7 @@ import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.WifiHelper.WifiState;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ILogcatEventListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.StubTestRunListener;
 import com.android.tradefed.targetprep.TargetSetupError;
@@ -60,8 +61,13 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -75,9 +81,20 @@ class TestDevice implements IManagedTestDevice {
 
     /** the default number of command retry attempts to perform */
     static final int MAX_RETRY_ATTEMPTS = 2;
+    /** the device directory packages are pushed to, before being installed */
+    static final String PACKAGE_PUSH_DIR = "/data/local/tmp/";
     private static final String BUGREPORT_CMD = "bugreport";
     private static final String LIST_PACKAGES_CMD = "pm list packages";
     private static final Pattern PACKAGE_REGEX = Pattern.compile("package:(.*)");
+    /** the max length of a generated shell command line */
+    private static final int MAX_SHELL_CMD_LENGTH = 1000;
+    /**
+     * Pattern for a regular file in 'ls -l' output. Captures size, date, time and name. Example:
+     * -rw-rw-rw- root     root         1234 2012-05-01 12:34 foo.txt
+     */
+    private static final Pattern LS_FILE_PATTERN = Pattern.compile(
+            "^-\\S{9}\\s+\\S+\\s+\\S+\\s+(\\d+)\\s+(\\d{4}-\\d\\d-\\d\\d)\\s+" +
+            "(\\d\\d:\\d\\d)\\s+(.+)$");
     /**
      * Allow pauses of up to 2 minutes while receiving bugreport.  Note that dumpsys may pause up to
      * a minute while waiting for unresponsive components, but should bail after that minute, if it
@@ -121,6 +138,7 @@ class TestDevice implements IManagedTestDevice {
     private TestDeviceState mState = TestDeviceState.ONLINE;
     private final ReentrantLock mFastbootLock = new ReentrantLock();
     private LogcatReceiver mLogcatReceiver;
+    private ILogcatEventListener mLogcatEventListener = null;
     private IFileEntry mRootFile = null;
     private boolean mFastbootEnabled = true;
 
@@ -131,6 +149,8 @@ class TestDevice implements IManagedTestDevice {
 
     private Boolean mIsEncryptionSupported = null;
 
+    private final DevicePropertySnapshot mPropertySnapshot = new DevicePropertySnapshot();
+
     /**
      * Interface for a generic device communication attempt.
      */
@@ -207,6 +227,7 @@ class TestDevice implements IManagedTestDevice {
         mOptions = options;
         mMonitor.setDefaultOnlineTimeout(options.getOnlineTimeout());
         mMonitor.setDefaultAvailableTimeout(options.getAvailableTimeout());
+        mMonitor.setOnDeviceBootWait(options.isOnDeviceBootWait());
     }
 
     /**
@@ -248,6 +269,7 @@ class TestDevice implements IManagedTestDevice {
             synchronized (currentDevice) {
                 mIDevice = newDevice;
             }
+            mPropertySnapshot.invalidate();
             mMonitor.setIDevice(mIDevice);
         }
     }
@@ -293,22 +315,41 @@ class TestDevice implements IManagedTestDevice {
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * Values are served from a snapshot of all device properties, which is reloaded with a single
+     * 'getprop' if it has been invalidated, or if the property is not read-only and the snapshot
+     * is older than {@link TestDeviceOptions#getPropertyCacheTtl()}.
      */
     @Override
     public String getProperty(final String name) throws DeviceNotAvailableException {
-        final String[] result = new String[1];
+        if (!mPropertySnapshot.isValid(name, mOptions.getPropertyCacheTtl(),
+                System.currentTimeMillis())) {
+            loadPropertySnapshot();
+        }
+        return mPropertySnapshot.get(name);
+    }
+
+    /**
+     * Loads the {@link DevicePropertySnapshot} with all device properties.
+     */
+    private void loadPropertySnapshot() throws DeviceNotAvailableException {
+        final String[] output = new String[1];
         DeviceAction propAction = new DeviceAction() {
 
             @Override
             public boolean run() throws IOException, TimeoutException, AdbCommandRejectedException,
                     ShellCommandUnresponsiveException, InstallException, SyncException {
-                result[0] = getIDevice().getPropertyCacheOrSync(name);
+                CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+                getIDevice().executeShellCommand(DevicePropertySnapshot.GETPROP_CMD, receiver,
+                        mCmdTimeout);
+                output[0] = receiver.getOutput();
                 return true;
             }
 
         };
+        long loadTime = System.currentTimeMillis();
         performDeviceAction("getprop", propAction, MAX_RETRY_ATTEMPTS);
-        return result[0];
+        mPropertySnapshot.load(output[0], loadTime);
     }
 
     /**
@@ -424,6 +465,10 @@ class TestDevice implements IManagedTestDevice {
     @Override
     public String getBuildId() {
         String bid = getIDevice().getProperty(BUILD_ID_PROP);
+        if (bid == null) {
+            // avoid a device round trip, but use the property snapshot if it is already loaded
+            bid = mPropertySnapshot.get(BUILD_ID_PROP);
+        }
         if (bid == null) {
             CLog.w("Could not get device %s build id.", getSerialNumber());
             return IBuildInfo.UNKNOWN_BUILD_ID;
@@ -590,6 +635,179 @@ class TestDevice implements IManagedTestDevice {
         return response[0];
     }
 
+    /**
+     * The result of pushing a package to device for a batch install.
+     */
+    private static class PushedPackage {
+        /** the remote path of the package, or <code>null</code> if push failed */
+        final String mRemotePath;
+
+        PushedPackage(String remotePath) {
+            mRemotePath = remotePath;
+        }
+    }
+
+    /**
+     * A background thread that pushes a batch of packages to device over a single
+     * {@link SyncService} session.
+     * <p/>
+     * Push results are reported in order to a queue, so packages can be installed as soon as they
+     * are pushed. If a push fails, the remaining packages are reported as failed without being
+     * pushed, and are left for the caller to install individually.
+     */
+    private class PackagePusher extends Thread {
+        private final Collection<File> mPackageFiles;
+        private final BlockingQueue<PushedPackage> mPushedPackages =
+                new LinkedBlockingQueue<PushedPackage>();
+        private volatile boolean mIsCancelled = false;
+
+        PackagePusher(Collection<File> packageFiles) {
+            super(String.format("PackagePusher-%s", getSerialNumber()));
+            setDaemon(true);
+            mPackageFiles = packageFiles;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            Iterator<File> packageIter = mPackageFiles.iterator();
+            SyncService syncService = null;
+            try {
+                syncService = getIDevice().getSyncService();
+                int index = 0;
+                while (packageIter.hasNext() && !mIsCancelled) {
+                    File packageFile = packageIter.next();
+                    // prefix with index to keep remote names unique
+                    String remotePath = String.format("%stf_%d_%s", PACKAGE_PUSH_DIR, index++,
+                            packageFile.getName());
+                    try {
+                        pushFile(syncService, packageFile, remotePath);
+                    } catch (Exception e) {
+                        CLog.w("Failed to push %s to %s: %s", packageFile.getAbsolutePath(),
+                                getSerialNumber(), e.toString());
+                        mPushedPackages.add(new PushedPackage(null));
+                        break;
+                    }
+                    mPushedPackages.add(new PushedPackage(remotePath));
+                }
+            } catch (Exception e) {
+                CLog.w("Failed to open sync session to %s: %s", getSerialNumber(), e.toString());
+            } finally {
+                if (syncService != null) {
+                    syncService.close();
+                }
+                // report all remaining packages as not pushed
+                while (packageIter.hasNext()) {
+                    packageIter.next();
+                    mPushedPackages.add(new PushedPackage(null));
+                }
+            }
+        }
+
+        /**
+         * Waits for the next package to be pushed.
+         *
+         * @return the remote path of the pushed package, or <code>null</code> if push failed
+         */
+        String takePushedPackage() {
+            try {
+                return mPushedPackages.take().mRemotePath;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        /**
+         * Stops pushing packages, and waits for the current push to finish.
+         */
+        void cancel() {
+            mIsCancelled = true;
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> installPackages(Collection<File> packageFiles,
+            final boolean reinstall, boolean stopOnFailure, final String... extraArgs)
+            throws DeviceNotAvailableException {
+        List<String> results = new ArrayList<String>(packageFiles.size());
+        PackagePusher pusher = new PackagePusher(packageFiles);
+        pusher.start();
+        Iterator<File> packageIter = packageFiles.iterator();
+        try {
+            while (packageIter.hasNext()) {
+                File packageFile = packageIter.next();
+                String remotePath = pusher.takePushedPackage();
+                String result;
+                if (remotePath != null) {
+                    result = installPushedPackage(packageFile, remotePath, reinstall, extraArgs);
+                } else {
+                    // fall back to an individual install, which can recover the device
+                    result = installPackage(packageFile, reinstall, extraArgs);
+                }
+                results.add(result);
+                if (result != null && stopOnFailure) {
+                    break;
+                }
+            }
+        } finally {
+            pusher.cancel();
+            // clean up any packages that were pushed but not installed
+            while (packageIter.hasNext()) {
+                packageIter.next();
+                String remotePath = pusher.takePushedPackage();
+                if (remotePath != null) {
+                    removePushedPackage(remotePath);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Install a package that was already pushed to device, then delete it from device.
+     */
+    private String installPushedPackage(File packageFile, final String remotePath,
+            final boolean reinstall, final String... extraArgs)
+            throws DeviceNotAvailableException {
+        // use array to store response, so it can be returned to caller
+        final String[] response = new String[1];
+        DeviceAction installAction = new DeviceAction() {
+            @Override
+            public boolean run() throws InstallException {
+                response[0] = getIDevice().installRemotePackage(remotePath, reinstall,
+                        extraArgs);
+                return true;
+            }
+        };
+        try {
+            performDeviceAction(String.format("install %s", packageFile.getAbsolutePath()),
+                    installAction, MAX_RETRY_ATTEMPTS);
+        } finally {
+            removePushedPackage(remotePath);
+        }
+        return response[0];
+    }
+
+    private void removePushedPackage(String remotePath) {
+        try {
+            getIDevice().removeRemotePackage(remotePath);
+        } catch (InstallException e) {
+            CLog.w("Failed to remove %s from %s: %s", remotePath, getSerialNumber(),
+                    e.getMessage());
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -904,31 +1122,225 @@ class TestDevice implements IManagedTestDevice {
     @Override
     public boolean pushDir(File localFileDir, String deviceFilePath)
             throws DeviceNotAvailableException {
+        return pushDir(localFileDir, deviceFilePath, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean pushDir(File localFileDir, String deviceFilePath, boolean skipUnchanged)
+            throws DeviceNotAvailableException {
+        return pushDir(localFileDir, deviceFilePath, skipUnchanged, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean pushDir(File localFileDir, String deviceFilePath, boolean skipUnchanged,
+            FilenameFilter filter) throws DeviceNotAvailableException {
         if (!localFileDir.isDirectory()) {
             CLog.e("file %s is not a directory", localFileDir.getAbsolutePath());
             return false;
         }
-        File[] childFiles = localFileDir.listFiles();
+        List<String> remoteDirs = new ArrayList<String>();
+        Map<File, String> filesToPush = new LinkedHashMap<File, String>();
+        if (!collectDirContents(localFileDir, deviceFilePath, filter, remoteDirs, filesToPush)) {
+            return false;
+        }
+        if (skipUnchanged) {
+            Map<String, RemoteFileInfo> remoteFiles = parseRemoteFileListing(
+                    executeShellCommand(String.format("ls -lR \"%s\"", deviceFilePath)),
+                    deviceFilePath);
+            Iterator<Map.Entry<File, String>> fileIter = filesToPush.entrySet().iterator();
+            while (fileIter.hasNext()) {
+                Map.Entry<File, String> fileEntry = fileIter.next();
+                RemoteFileInfo remoteFile = remoteFiles.get(fileEntry.getValue());
+                if (remoteFile != null && remoteFile.matches(fileEntry.getKey())) {
+                    fileIter.remove();
+                }
+            }
+        }
+        CLog.d("Pushing %d files in %d directories from %s to %s on %s", filesToPush.size(),
+                remoteDirs.size(), localFileDir.getAbsolutePath(), deviceFilePath,
+                getSerialNumber());
+        createRemoteDirs(remoteDirs);
+        if (filesToPush.isEmpty()) {
+            return true;
+        }
+        return performDeviceAction(String.format("push %s to %s", localFileDir.getAbsolutePath(),
+                deviceFilePath), new PushFilesAction(filesToPush), MAX_RETRY_ATTEMPTS);
+    }
+
+    /**
+     * Recursively collect the directories and files to push from given local directory.
+     *
+     * @param localDir the local directory to collect contents from
+     * @param remoteDir the remote path of <var>localDir</var>
+     * @param filter the {@link FilenameFilter} to collect files with, or <code>null</code>
+     * @param remoteDirs the list to add remote directory paths to, parents first
+     * @param filesToPush the map to add local files and their remote paths to
+     * @return <code>false</code> if a local directory could not be read
+     */
+    private boolean collectDirContents(File localDir, String remoteDir, FilenameFilter filter,
+            List<String> remoteDirs, Map<File, String> filesToPush) {
+        File[] childFiles = localDir.listFiles(filter);
         if (childFiles == null) {
-            CLog.e("Could not read files in %s", localFileDir.getAbsolutePath());
+            CLog.e("Could not read files in %s", localDir.getAbsolutePath());
             return false;
         }
         for (File childFile : childFiles) {
-            String remotePath = String.format("%s/%s", deviceFilePath, childFile.getName());
+            String remotePath = String.format("%s/%s", remoteDir, childFile.getName());
             if (childFile.isDirectory()) {
-                executeShellCommand(String.format("mkdir %s", remotePath));
-                if (!pushDir(childFile, remotePath)) {
+                remoteDirs.add(remotePath);
+                if (!collectDirContents(childFile, remotePath, filter, remoteDirs,
+                        filesToPush)) {
                     return false;
                 }
             } else if (childFile.isFile()) {
-                if (!pushFile(childFile, remotePath)) {
-                    return false;
-                }
+                filesToPush.put(childFile, remotePath);
             }
         }
         return true;
     }
 
+    /**
+     * Create given remote directories, using as few shell commands as possible.
+     * <p/>
+     * Directories must be ordered parents first. Each directory is created by its own chained
+     * 'mkdir', as the device's mkdir may not support '-p', and stops at the first directory that
+     * already exists.
+     */
+    private void createRemoteDirs(List<String> remoteDirs) throws DeviceNotAvailableException {
+        StringBuilder mkdirCmd = new StringBuilder();
+        for (String remoteDir : remoteDirs) {
+            String dirCmd = String.format("mkdir \"%s\"", remoteDir);
+            if (mkdirCmd.length() > 0 &&
+                    mkdirCmd.length() + dirCmd.length() + 2 > MAX_SHELL_CMD_LENGTH) {
+                executeShellCommand(mkdirCmd.toString());
+                mkdirCmd.setLength(0);
+            }
+            if (mkdirCmd.length() > 0) {
+                mkdirCmd.append("; ");
+            }
+            mkdirCmd.append(dirCmd);
+        }
+        if (mkdirCmd.length() > 0) {
+            executeShellCommand(mkdirCmd.toString());
+        }
+    }
+
+    /**
+     * A {@link DeviceAction} that pushes a set of files over a single {@link SyncService} session.
+     * <p/>
+     * Keeps track of progress, so a retry resumes from the file that failed.
+     */
+    private class PushFilesAction implements DeviceAction {
+        private final Iterator<Map.Entry<File, String>> mFileIter;
+        private Map.Entry<File, String> mCurrentFile = null;
+
+        PushFilesAction(Map<File, String> filesToPush) {
+            mFileIter = filesToPush.entrySet().iterator();
+        }
+
+        @Override
+        public boolean run() throws TimeoutException, IOException, AdbCommandRejectedException,
+                SyncException {
+            SyncService syncService = null;
+            try {
+                syncService = getIDevice().getSyncService();
+                if (mCurrentFile == null && mFileIter.hasNext()) {
+                    mCurrentFile = mFileIter.next();
+                }
+                while (mCurrentFile != null) {
+                    pushFile(syncService, mCurrentFile.getKey(), mCurrentFile.getValue());
+                    mCurrentFile = mFileIter.hasNext() ? mFileIter.next() : null;
+                }
+                return true;
+            } catch (SyncException e) {
+                CLog.w("Failed to push %s to %s on device %s. Message %s",
+                        mCurrentFile.getKey().getAbsolutePath(), mCurrentFile.getValue(),
+                        getSerialNumber(), e.getMessage());
+                throw e;
+            } finally {
+                if (syncService != null) {
+                    syncService.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Push a file to device, over given sync session.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void pushFile(SyncService syncService, File localFile, String remotePath)
+            throws SyncException, IOException, TimeoutException {
+        syncService.pushFile(localFile.getAbsolutePath(), remotePath,
+                SyncService.getNullProgressMonitor());
+    }
+
+    /**
+     * The size and modification time of a remote file, as reported by 'ls -l'.
+     */
+    static class RemoteFileInfo {
+        final long mSize;
+        /** the modification time in ms, with a granularity of minutes */
+        final long mModifiedTime;
+
+        RemoteFileInfo(long size, long modifiedTime) {
+            mSize = size;
+            mModifiedTime = modifiedTime;
+        }
+
+        /**
+         * @return <code>true</code> if given local file has the same size and modification time
+         *         as this remote file
+         */
+        boolean matches(File localFile) {
+            // sync pushes preserve modification time, truncated to seconds. 'ls -l' truncates
+            // further to minutes
+            long localMinute = localFile.lastModified() / (60 * 1000);
+            return localFile.length() == mSize && localMinute == mModifiedTime / (60 * 1000);
+        }
+    }
+
+    /**
+     * Parse the regular files from the output of a 'ls -lR' command.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param output the 'ls -lR' output
+     * @param rootPath the remote path that was listed
+     * @return a {@link Map} of remote file paths to their {@link RemoteFileInfo}
+     */
+    static Map<String, RemoteFileInfo> parseRemoteFileListing(String output, String rootPath) {
+        Map<String, RemoteFileInfo> remoteFiles = new LinkedHashMap<String, RemoteFileInfo>();
+        // remote times are in GMT timezone
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm zzz");
+        String currentDir = rootPath;
+        for (String line : output.split("\r?\n")) {
+            Matcher fileMatcher = LS_FILE_PATTERN.matcher(line);
+            if (fileMatcher.matches()) {
+                try {
+                    Date modifiedDate = format.parse(String.format("%s %s GMT",
+                            fileMatcher.group(2), fileMatcher.group(3)));
+                    remoteFiles.put(String.format("%s/%s", currentDir, fileMatcher.group(4)),
+                            new RemoteFileInfo(Long.parseLong(fileMatcher.group(1)),
+                                    modifiedDate.getTime()));
+                } catch (ParseException e) {
+                    CLog.w("Error parsing remote file listing line '%s'", line);
+                }
+            } else if (line.endsWith(":")) {
+                // start of a sub directory listing
+                currentDir = line.substring(0, line.length() - 1);
+            }
+        }
+        return remoteFiles;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1346,6 +1758,8 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public void recoverDevice() throws DeviceNotAvailableException {
+        // device may have rebooted
+        mPropertySnapshot.invalidate();
         if (mRecoveryMode.equals(RecoveryMode.NONE)) {
             CLog.i("Skipping recovery on %s", getSerialNumber());
             getRunUtil().sleep(NONE_RECOVERY_MODE_DELAY);
@@ -1402,9 +1816,23 @@ class TestDevice implements IManagedTestDevice {
             return;
         }
         mLogcatReceiver = createLogcatReceiver();
+        if (mLogcatEventListener != null) {
+            mLogcatReceiver.setEventListener(mLogcatEventListener);
+        }
         mLogcatReceiver.start();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLogcatEventListener(ILogcatEventListener listener) {
+        mLogcatEventListener = listener;
+        if (mLogcatReceiver != null) {
+            mLogcatReceiver.setEventListener(listener);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1435,6 +1863,20 @@ class TestDevice implements IManagedTestDevice {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStreamSource getLogcatSlice(long startTime, long endTime) {
+        if (mLogcatReceiver == null) {
+            CLog.w("Not capturing logcat for %s in background, returning a logcat dump",
+                    getSerialNumber());
+            return getLogcatDump();
+        } else {
+            return mLogcatReceiver.getLogcatData(startTime, endTime);
+        }
+    }
+
     /**
      * Get a dump of the current logcat for device.
      *
@@ -1442,14 +1884,13 @@ class TestDevice implements IManagedTestDevice {
      *         capture logcat data.
      */
     private InputStreamSource getLogcatDump() {
-        byte[] output = new byte[0];
+        FileOutputReceiver receiver = new FileOutputReceiver(
+                String.format("logcat_dump_%s", getSerialNumber()), false);
         try {
             // use IDevice directly because we don't want callers to handle
             // DeviceNotAvailableException for this method
-            CollectingByteOutputReceiver receiver = new CollectingByteOutputReceiver();
             // add -d parameter to make this a non blocking call
             getIDevice().executeShellCommand(LogcatReceiver.LOGCAT_CMD + " -d", receiver);
-            output = receiver.getOutput();
         } catch (IOException e) {
             CLog.w("Failed to get logcat dump from %s: ", getSerialNumber(), e.getMessage());
         } catch (TimeoutException e) {
@@ -1459,7 +1900,7 @@ class TestDevice implements IManagedTestDevice {
         } catch (ShellCommandUnresponsiveException e) {
             CLog.w("Failed to get logcat dump from %s: ", getSerialNumber(), e.getMessage());
         }
-        return new ByteArrayInputStreamSource(output);
+        return receiver.getData();
     }
 
     /**
@@ -1481,7 +1922,8 @@ class TestDevice implements IManagedTestDevice {
      * Exposed for unit testing.
      */
     LogcatReceiver createLogcatReceiver() {
-        return new LogcatReceiver(this, mOptions.getMaxLogcatFileSize(), mLogStartDelay);
+        return new LogcatReceiver(this, mOptions.getMaxLogcatFileSize(), mLogStartDelay,
+                mOptions.isCompressLogcat());
     }
 
     /**
@@ -1489,7 +1931,10 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getBugreport() {
-        CollectingByteOutputReceiver receiver = new CollectingByteOutputReceiver();
+        // stream to disk, since bugreports can be tens of MB
+        FileOutputReceiver receiver = new FileOutputReceiver(
+                String.format("bugreport_%s", getSerialNumber()),
+                mOptions.isCompressBugreports());
         try {
             executeShellCommand(BUGREPORT_CMD, receiver, BUGREPORT_TIMEOUT, 0 /* don't retry */);
         } catch (DeviceNotAvailableException e) {
@@ -1498,7 +1943,7 @@ class TestDevice implements IManagedTestDevice {
             CLog.e("Device %s became unresponsive while retrieving bugreport", getSerialNumber());
         }
 
-        return new ByteArrayInputStreamSource(receiver.getOutput());
+        return receiver.getData();
     }
 
     /**
@@ -1754,6 +2199,7 @@ class TestDevice implements IManagedTestDevice {
         }
         CLog.i("Rebooting device %s in state %s into bootloader", getSerialNumber(),
                 getDeviceState());
+        mPropertySnapshot.invalidate();
         if (TestDeviceState.FASTBOOT.equals(getDeviceState())) {
             CLog.i("device %s already in fastboot. Rebooting anyway", getSerialNumber());
             executeFastbootCommand("reboot-bootloader");
@@ -1865,6 +2311,7 @@ class TestDevice implements IManagedTestDevice {
      * @throws DeviceNotAvailableException
      */
     void doReboot() throws DeviceNotAvailableException, UnsupportedOperationException {
+        mPropertySnapshot.invalidate();
         if (TestDeviceState.FASTBOOT == getDeviceState()) {
             CLog.i("device %s in fastboot. Rebooting to userspace.", getSerialNumber());
             executeFastbootCommand("reboot");
@@ -1883,6 +2330,7 @@ class TestDevice implements IManagedTestDevice {
      * @throws DeviceNotAvailableException
      */
     private void doAdbReboot(final String into) throws DeviceNotAvailableException {
+        mPropertySnapshot.invalidate();
         DeviceAction rebootAction = new DeviceAction() {
             @Override
             public boolean run() throws TimeoutException, IOException, AdbCommandRejectedException {
@@ -2284,6 +2732,8 @@ class TestDevice implements IManagedTestDevice {
                 return;
             }
             mState = deviceState;
+            // device properties may change across a reboot or flash
+            mPropertySnapshot.invalidate();
             CLog.d("Device %s state is now %s", getSerialNumber(), deviceState);
             mMonitor.setState(deviceState);
         }
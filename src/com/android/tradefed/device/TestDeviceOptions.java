@@ -63,6 +63,23 @@ public class TestDeviceOptions {
             + "to be available aka fully boot.")
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    @Option(name = "compress-bugreports", description = "gzip-compress bugreports on the fly, "
+            + "while they are stored on disk.")
+    private boolean mCompressBugreports = false;
+
+    @Option(name = "compress-logcat", description = "store background logcat in gzip-compressed "
+            + "chunks indexed by time, to hold more history within max-tmp-logcat-file.")
+    private boolean mCompressLogcat = false;
+
+    @Option(name = "on-device-boot-wait", description = "when waiting for the device to be "
+            + "available, check all boot conditions in a single shell loop on the device, "
+            + "rather than polling each from the host.")
+    private boolean mOnDeviceBootWait = false;
+
+    @Option(name = "property-cache-ttl", description = "time in ms that cached values of device "
+            + "properties that are not read-only remain valid.")
+    private long mPropertyCacheTtl = 10 * 1000;
+
     /**
      * @return the mEnableAdbRoot
      */
@@ -214,4 +231,64 @@ public class TestDeviceOptions {
     public long getAvailableTimeout() {
         return mAvailableTimeout;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return whether to gzip-compress bugreports while they are stored on disk.
+     */
+    public boolean isCompressBugreports() {
+        return mCompressBugreports;
+    }
+
+    /**
+     * @param compressBugreports whether to gzip-compress bugreports while they are stored on
+     * disk.
+     */
+    public void setCompressBugreports(boolean compressBugreports) {
+        mCompressBugreports = compressBugreports;
+    }
+
+    /**
+     * @return whether to store background logcat in time-indexed gzip-compressed chunks.
+     */
+    public boolean isCompressLogcat() {
+        return mCompressLogcat;
+    }
+
+    /**
+     * @param compressLogcat whether to store background logcat in time-indexed gzip-compressed
+     * chunks.
+     */
+    public void setCompressLogcat(boolean compressLogcat) {
+        mCompressLogcat = compressLogcat;
+    }
+
+    /**
+     * @return whether to wait for the device to be available with a shell loop on the device.
+     */
+    public boolean isOnDeviceBootWait() {
+        return mOnDeviceBootWait;
+    }
+
+    /**
+     * @param onDeviceBootWait whether to wait for the device to be available with a shell loop
+     * on the device.
+     */
+    public void setOnDeviceBootWait(boolean onDeviceBootWait) {
+        mOnDeviceBootWait = onDeviceBootWait;
+    }
+
+    /**
+     * @return the time in ms that cached values of properties that are not read-only are valid
+     */
+    public long getPropertyCacheTtl() {
+        return mPropertyCacheTtl;
+    }
+
+    /**
+     * @param propertyCacheTtl the time in ms that cached values of properties that are not
+     *            read-only are valid
+     */
+    public void setPropertyCacheTtl(long propertyCacheTtl) {
+        mPropertyCacheTtl = propertyCacheTtl;
+    }
+}
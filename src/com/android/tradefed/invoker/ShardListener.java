@@ -17,34 +17,38 @@ package com.android.tradefed.invoker;
 
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
-import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ITypedMetricsListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
-import com.android.tradefed.result.TestResult;
-import com.android.tradefed.result.TestResult.TestStatus;
-import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.result.TestMetrics;
+import com.android.tradefed.result.TestSummary;
 
 import java.util.Map;
 
 /**
- * A {@link ITestInvocationListener} that collects results from a invocation shard (aka an
- * invocation split to run on multiple resources in parallel), and forwards them to another
- * listener.
+ * A {@link ITestInvocationListener} that streams results from a invocation shard (aka an
+ * invocation split to run on multiple resources in parallel) to a
+ * {@link ShardMasterResultForwarder}.
+ * <p/>
+ * Each test is forwarded as soon as it completes. Only the events of the test currently in
+ * progress are held, so results are not buffered for the whole shard.
  */
-class ShardListener extends CollectingTestListener {
+class ShardListener implements ITestInvocationListener, ITypedMetricsListener {
 
-    private ITestInvocationListener mMasterListener;
+    private final ShardMasterResultForwarder mMasterListener;
+    private String mRunName = null;
+    private TestIdentifier mCurrentTest = null;
+    private TestFailure mCurrentFailure = null;
+    private String mCurrentTrace = null;
 
     /**
      * Create a {@link ShardListener}.
      *
-     * @param master the {@link ITestInvocationListener} the results should be forwarded. To
-     *            prevent collisions with other {@link ShardListener}s, this object will synchronize
-     *            on <var>master</var> when forwarding results. And results will only be sent once
-     *            the invocation shard completes.
+     * @param master the {@link ShardMasterResultForwarder} the results should be forwarded to.
+     *            It merges the results of all shards.
      */
-    ShardListener(ITestInvocationListener master) {
+    ShardListener(ShardMasterResultForwarder master) {
         mMasterListener = master;
     }
 
@@ -53,10 +57,7 @@ class ShardListener extends CollectingTestListener {
      */
     @Override
     public void invocationStarted(IBuildInfo buildInfo) {
-        super.invocationStarted(buildInfo);
-        synchronized (mMasterListener) {
-            mMasterListener.invocationStarted(buildInfo);
-        }
+        mMasterListener.invocationStarted(buildInfo);
     }
 
     /**
@@ -64,10 +65,7 @@ class ShardListener extends CollectingTestListener {
      */
     @Override
     public void invocationFailed(Throwable cause) {
-        super.invocationFailed(cause);
-        synchronized (mMasterListener) {
-            mMasterListener.invocationFailed(cause);
-        }
+        mMasterListener.invocationFailed(cause);
     }
 
     /**
@@ -75,11 +73,85 @@ class ShardListener extends CollectingTestListener {
      */
     @Override
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
-        // forward testLog results immediately, since they are not order dependent and there are
-        // not stored by CollectingTestListener
-        synchronized (mMasterListener) {
-            mMasterListener.testLog(dataName, dataType, dataStream);
+        mMasterListener.testLog(dataName, dataType, dataStream);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        if (mRunName != null) {
+            // previous run did not end
+            endRun(0, new TestMetrics());
         }
+        mRunName = runName;
+        mMasterListener.shardRunStarted(runName, testCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        forwardIncompleteTest();
+        mCurrentTest = test;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+        mCurrentFailure = status;
+        mCurrentTrace = trace;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        if (mRunName != null) {
+            mMasterListener.shardTestCompleted(mRunName, test, mCurrentFailure, mCurrentTrace,
+                    testMetrics);
+        }
+        clearCurrentTest();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        forwardIncompleteTest();
+        if (mRunName != null) {
+            mMasterListener.shardRunFailed(mRunName, errorMessage);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        // ignore, the run is ended by testRunEnded, or when the invocation ends
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        endRun(elapsedTime, new TestMetrics(runMetrics));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, TestMetrics runMetrics) {
+        endRun(elapsedTime, runMetrics);
     }
 
     /**
@@ -87,33 +159,43 @@ class ShardListener extends CollectingTestListener {
      */
     @Override
     public void invocationEnded(long elapsedTime) {
-        super.invocationEnded(elapsedTime);
-        synchronized (mMasterListener) {
-            for (TestRunResult runResult : getRunResults()) {
-                mMasterListener.testRunStarted(runResult.getName(), runResult.getNumTests());
-                forwardTestResults(runResult.getTestResults());
-                if (runResult.isRunFailure()) {
-                    mMasterListener.testRunFailed(runResult.getRunFailureMessage());
-                }
-                mMasterListener.testRunEnded(runResult.getElapsedTime(), runResult.getRunMetrics());
-            }
-            mMasterListener.invocationEnded(elapsedTime);
+        if (mRunName != null) {
+            // shard ended without completing its run, eg due to device going unavailable
+            endRun(0, new TestMetrics());
+        }
+        mMasterListener.invocationEnded(elapsedTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestSummary getSummary() {
+        return null;
+    }
+
+    private void endRun(long elapsedTime, TestMetrics runMetrics) {
+        forwardIncompleteTest();
+        if (mRunName != null) {
+            mMasterListener.shardRunEnded(mRunName, elapsedTime, runMetrics);
+            mRunName = null;
         }
     }
 
-    private void forwardTestResults(Map<TestIdentifier, TestResult> testResults) {
-        for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
-            mMasterListener.testStarted(testEntry.getKey());
-            if (testEntry.getValue().getStatus().equals(TestStatus.ERROR)) {
-                mMasterListener.testFailed(TestFailure.ERROR, testEntry.getKey(),
-                        testEntry.getValue().getStackTrace());
-            } else if (testEntry.getValue().getStatus().equals(TestStatus.FAILURE)) {
-                mMasterListener.testFailed(TestFailure.FAILURE, testEntry.getKey(),
-                        testEntry.getValue().getStackTrace());
-            }
-            if (!testEntry.getValue().getStatus().equals(TestStatus.INCOMPLETE)) {
-                mMasterListener.testEnded(testEntry.getKey(), testEntry.getValue().getMetrics());
-            }
+    /**
+     * Forwards the test in progress, if any, without reporting its end.
+     */
+    private void forwardIncompleteTest() {
+        if (mCurrentTest != null && mRunName != null) {
+            mMasterListener.shardTestIncomplete(mRunName, mCurrentTest, mCurrentFailure,
+                    mCurrentTrace);
         }
+        clearCurrentTest();
+    }
+
+    private void clearCurrentTest() {
+        mCurrentTest = null;
+        mCurrentFailure = null;
+        mCurrentTrace = null;
     }
 }
@@ -15,30 +15,79 @@
  */
 package com.android.tradefed.invoker;
 
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.result.TestMetrics;
+import com.android.tradefed.util.ArrayUtil;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A {@link ResultForwarder} that combines the results of a sharded test invocations. It only
  * reports completion of the invocation to the listeners once all sharded invocations are complete.
  * <p/>
- * This class is not thread safe. It is expected that clients will lock on this class when sending
- * test results, to prevent invocation callbacks from being called out of order.
+ * Results are streamed from each shard's {@link ShardListener} as tests complete, and merged into
+ * a single sequence of events. Runs with the same name from different shards are reported as one
+ * run, which ends when the last shard running it ends it. Its test count, elapsed time and run
+ * metrics are the sum of each shard's, with non numeric metrics taken from the last shard to end
+ * the run. Run failures of all shards are reported together just before the run ends.
+ * <p/>
+ * Tests are forwarded as soon as they complete, even if shards run different runs concurrently.
+ * When a test belongs to a different run than the last one reported, that run is started again on
+ * the listeners, which merge the results of a run by name, eg {@link
+ * com.android.tradefed.result.CollectingTestListener}.
+ * <p/>
+ * Thread safe. The merged state of each run is guarded by a lock of its own, and delivery to the
+ * listeners, which are not thread safe, is serialized.
  */
 class ShardMasterResultForwarder extends ResultForwarder {
 
+    /** serializes delivery to the listeners, and guards the invocation state below */
+    private final Object mDeliveryLock = new Object();
     private int mShardsRemaining;
     private int mTotalElapsed = 0;
     private boolean mStartReported = false;
+    /** the name of the run last started on the listeners, or <code>null</code> */
+    private String mOpenRunName = null;
+
+    /** the merged state of each run, in the order runs were first started */
+    private final Map<String, RunState> mRunStates = new LinkedHashMap<String, RunState>();
+
+    /**
+     * The merged state of a run across all shards. Guarded by its own monitor.
+     */
+    private static class RunState {
+        final String mRunName;
+        int mActiveShards = 0;
+        int mNumTests = 0;
+        /** the test count the run was last started with on the listeners */
+        int mReportedNumTests = -1;
+        /** <code>true</code> if the run has results that have not been ended yet */
+        boolean mIsPending = false;
+        /** elapsed time not yet reported to the listeners */
+        long mElapsedTime = 0;
+        /** run metrics not yet reported to the listeners */
+        TestMetrics mMetrics = new TestMetrics();
+        /** run failures not yet reported to the listeners */
+        List<String> mFailures = new ArrayList<String>();
+
+        RunState(String runName) {
+            mRunName = runName;
+        }
+    }
 
     /**
      * Create a {@link ShardMasterResultForwarder}.
      *
-     * @param listeners the list of {@link ITestInvocationListener} to forward results to when all
-     *            shards are completed
+     * @param listeners the list of {@link ITestInvocationListener} to forward results to
      * @param expectedShards the number of shards
      */
     public ShardMasterResultForwarder(List<ITestInvocationListener> listeners, int expectedShards) {
@@ -48,9 +97,11 @@ class ShardMasterResultForwarder extends ResultForwarder {
 
     @Override
     public void invocationStarted(IBuildInfo buildInfo) {
-        if (!mStartReported) {
-            super.invocationStarted(buildInfo);
-            mStartReported = true;
+        synchronized (mDeliveryLock) {
+            if (!mStartReported) {
+                super.invocationStarted(buildInfo);
+                mStartReported = true;
+            }
         }
     }
 
@@ -61,15 +112,190 @@ class ShardMasterResultForwarder extends ResultForwarder {
     public void invocationFailed(Throwable cause) {
         // one of the shards failed. Fail the whole invocation
         // TODO: does any extra logging need to be done ?
-        super.invocationFailed(cause);
+        synchronized (mDeliveryLock) {
+            super.invocationFailed(cause);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+        synchronized (mDeliveryLock) {
+            super.testLog(dataName, dataType, dataStream);
+        }
     }
 
     @Override
     public void invocationEnded(long elapsedTime) {
-        mTotalElapsed += elapsedTime;
-        mShardsRemaining--;
-        if (mShardsRemaining <= 0) {
-            super.invocationEnded(mTotalElapsed);
+        synchronized (mDeliveryLock) {
+            mTotalElapsed += elapsedTime;
+            mShardsRemaining--;
+            if (mShardsRemaining <= 0) {
+                // end any run that a shard never ended
+                for (RunState state : getRunStates()) {
+                    endRun(state, true);
+                }
+                super.invocationEnded(mTotalElapsed);
+            }
+        }
+    }
+
+    /**
+     * Reports that a shard started a test run.
+     */
+    void shardRunStarted(String runName, int numTests) {
+        RunState state = getRunState(runName);
+        synchronized (state) {
+            state.mActiveShards++;
+            state.mNumTests += numTests;
+            state.mIsPending = true;
+        }
+    }
+
+    /**
+     * Reports that a shard completed a test.
+     *
+     * @param runName the name of the shard's current run
+     * @param test the completed test
+     * @param failure the test failure, or <code>null</code> if test passed
+     * @param trace the failure stack trace
+     * @param testMetrics the test metrics
+     */
+    void shardTestCompleted(String runName, TestIdentifier test, TestFailure failure,
+            String trace, Map<String, String> testMetrics) {
+        RunState state = getRunState(runName);
+        synchronized (mDeliveryLock) {
+            openRun(state);
+            super.testStarted(test);
+            if (failure != null) {
+                super.testFailed(failure, test, trace);
+            }
+            super.testEnded(test, testMetrics);
+        }
+    }
+
+    /**
+     * Reports that a shard started a test that did not complete.
+     *
+     * @see #shardTestCompleted(String, TestIdentifier, TestFailure, String, Map)
+     */
+    void shardTestIncomplete(String runName, TestIdentifier test, TestFailure failure,
+            String trace) {
+        RunState state = getRunState(runName);
+        synchronized (mDeliveryLock) {
+            openRun(state);
+            super.testStarted(test);
+            if (failure != null) {
+                super.testFailed(failure, test, trace);
+            }
+        }
+    }
+
+    /**
+     * Reports that a shard's test run failed. The failure is reported when the run ends.
+     */
+    void shardRunFailed(String runName, String errorMessage) {
+        RunState state = getRunState(runName);
+        synchronized (state) {
+            state.mFailures.add(errorMessage);
+        }
+    }
+
+    /**
+     * Reports that a shard's test run ended. The run is ended on the listeners once all shards
+     * running it have ended it.
+     */
+    void shardRunEnded(String runName, long elapsedTime, TestMetrics runMetrics) {
+        RunState state = getRunState(runName);
+        synchronized (state) {
+            state.mActiveShards--;
+            state.mElapsedTime += elapsedTime;
+            state.mMetrics.addAll(runMetrics);
+            if (state.mActiveShards > 0) {
+                return;
+            }
+        }
+        synchronized (mDeliveryLock) {
+            endRun(state, false);
+        }
+    }
+
+    private RunState getRunState(String runName) {
+        synchronized (mRunStates) {
+            RunState state = mRunStates.get(runName);
+            if (state == null) {
+                state = new RunState(runName);
+                mRunStates.put(runName, state);
+            }
+            return state;
+        }
+    }
+
+    private List<RunState> getRunStates() {
+        synchronized (mRunStates) {
+            return new ArrayList<RunState>(mRunStates.values());
+        }
+    }
+
+    /**
+     * Starts the given run on the listeners, unless it is the run last started.
+     * <p/>
+     * Must be called with {@link #mDeliveryLock} held.
+     */
+    private void openRun(RunState state) {
+        if (state.mRunName.equals(mOpenRunName)) {
+            return;
+        }
+        int numTests;
+        synchronized (state) {
+            numTests = state.mNumTests;
+            state.mReportedNumTests = numTests;
+        }
+        super.testRunStarted(state.mRunName, numTests);
+        mOpenRunName = state.mRunName;
+    }
+
+    /**
+     * Ends the given run on the listeners if it has pending results, reporting its final test
+     * count, failures, and the elapsed time and metrics collected since it was last ended.
+     * <p/>
+     * Must be called with {@link #mDeliveryLock} held.
+     *
+     * @param state the run to end
+     * @param force <code>true</code> to end the run even if shards are still running it
+     */
+    private void endRun(RunState state, boolean force) {
+        int numTests;
+        long elapsedTime;
+        TestMetrics metrics;
+        List<String> failures;
+        boolean restart;
+        synchronized (state) {
+            if (!state.mIsPending || (!force && state.mActiveShards > 0)) {
+                // already ended, or another shard started the run again meanwhile
+                return;
+            }
+            numTests = state.mNumTests;
+            restart = !state.mRunName.equals(mOpenRunName) ||
+                    state.mReportedNumTests != numTests;
+            state.mReportedNumTests = numTests;
+            elapsedTime = state.mElapsedTime;
+            metrics = state.mMetrics;
+            failures = state.mFailures;
+            state.mIsPending = false;
+            state.mElapsedTime = 0;
+            state.mMetrics = new TestMetrics();
+            state.mFailures = new ArrayList<String>();
+        }
+        if (restart) {
+            super.testRunStarted(state.mRunName, numTests);
+        }
+        if (!failures.isEmpty()) {
+            super.testRunFailed(ArrayUtil.join("; ", failures.toArray()));
         }
+        super.testRunEnded(elapsedTime, metrics);
+        mOpenRunName = null;
     }
 }
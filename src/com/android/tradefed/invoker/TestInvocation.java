@@ -29,6 +29,8 @@ import com.android.tradefed.log.ILeveledLogOutput;
 import com.android.tradefed.log.ILogRegistry;
 import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.AsyncResultForwarder;
+import com.android.tradefed.result.ILogcatEventListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.InvocationSummaryHelper;
@@ -42,6 +44,7 @@ import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IShardableTest;
+import com.android.tradefed.util.brillopad.item.GenericLogcatItem;
 
 import junit.framework.Test;
 
@@ -272,6 +275,11 @@ public class TestInvocation implements ITestInvocation {
 
         info.setDeviceSerial(device.getSerialNumber());
         startInvocation(config, device, info);
+        ILogcatEventListener logcatEventForwarder = createLogcatEventForwarder(
+                config.getTestInvocationListeners());
+        if (logcatEventForwarder != null) {
+            device.setLogcatEventListener(logcatEventForwarder);
+        }
         try {
             device.setOptions(config.getDeviceOptions());
             for (ITargetPreparer preparer : config.getTargetPreparers()) {
@@ -306,6 +314,9 @@ public class TestInvocation implements ITestInvocation {
             throw e;
         } finally {
             mStatus = "done running tests";
+            if (logcatEventForwarder != null) {
+                device.setLogcatEventListener(null);
+            }
             try {
                 reportLogs(device, config.getTestInvocationListeners(), config.getLogOutput());
                 elapsedTime = System.currentTimeMillis() - startTime;
@@ -319,6 +330,39 @@ public class TestInvocation implements ITestInvocation {
         }
     }
 
+    /**
+     * Creates a {@link ILogcatEventListener} that forwards events detected in the device logcat to
+     * all given listeners that implement {@link ILogcatEventListener}.
+     *
+     * @return the {@link ILogcatEventListener} or <code>null</code> if no listeners are interested
+     *         in logcat events
+     */
+    private ILogcatEventListener createLogcatEventForwarder(
+            List<ITestInvocationListener> listeners) {
+        final List<ILogcatEventListener> logcatListeners = new ArrayList<ILogcatEventListener>();
+        for (ITestInvocationListener listener : listeners) {
+            if (listener instanceof ILogcatEventListener) {
+                logcatListeners.add((ILogcatEventListener)listener);
+            }
+        }
+        if (logcatListeners.isEmpty()) {
+            return null;
+        }
+        return new ILogcatEventListener() {
+            @Override
+            public void logcatEvent(String serial, GenericLogcatItem event) {
+                for (ILogcatEventListener listener : logcatListeners) {
+                    try {
+                        listener.logcatEvent(serial, event);
+                    } catch (RuntimeException e) {
+                        CLog.e("Caught runtime exception from ILogcatEventListener");
+                        CLog.e(e);
+                    }
+                }
+            }
+        };
+    }
+
     /**
      * Starts the invocation.
      * <p/>
@@ -458,11 +502,26 @@ public class TestInvocation implements ITestInvocation {
             IRescheduler rescheduler)
             throws DeviceNotAvailableException {
         List<ITestInvocationListener> listeners = config.getTestInvocationListeners();
-        for (IRemoteTest test : config.getTests()) {
-            if (test instanceof IDeviceTest) {
-                ((IDeviceTest)test).setDevice(device);
+        AsyncResultForwarder asyncForwarder = null;
+        ITestInvocationListener forwarder;
+        if (config.getCommandOptions().isAsyncResultDispatch()) {
+            asyncForwarder = new AsyncResultForwarder(listeners);
+            forwarder = asyncForwarder;
+        } else {
+            forwarder = new ResultForwarder(listeners);
+        }
+        try {
+            for (IRemoteTest test : config.getTests()) {
+                if (test instanceof IDeviceTest) {
+                    ((IDeviceTest)test).setDevice(device);
+                }
+                test.run(forwarder);
+            }
+        } finally {
+            if (asyncForwarder != null) {
+                // deliver all results before failures, logs and invocationEnded are reported
+                asyncForwarder.close();
             }
-            test.run(new ResultForwarder(listeners));
         }
     }
 
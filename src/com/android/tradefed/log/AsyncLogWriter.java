@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes log records to an output on a dedicated thread.
+ * <p/>
+ * Logging threads add records to a bounded blocking queue. The writer thread drains the queue and
+ * passes records to a {@link IRecordWriter} in batches, so formatting and I/O are done off the
+ * logging threads.
+ * <p/>
+ * When the queue is full, logging threads either wait for the writer to make space, or drop
+ * records below {@link LogLevel#WARN}, depending on the {@link OverflowPolicy}.
+ * <p/>
+ * Every record accepted by {@link #enqueue(LogRecord)} is written before the writer stops, either
+ * by {@link #stop()} or at JVM shutdown.
+ */
+class AsyncLogWriter {
+
+    /** the max number of records to pass to the {@link IRecordWriter} at once */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    /**
+     * What to do when a record is logged while the queue is full.
+     */
+    public static enum OverflowPolicy {
+        /** wait for the writer to make space */
+        BLOCK,
+        /** drop records below {@link LogLevel#WARN}, and wait for the writer for others */
+        DROP
+    }
+
+    /**
+     * A log message.
+     */
+    static class LogRecord {
+        final LogLevel mLogLevel;
+        final String mTag;
+        final String mMessage;
+        final long mTime;
+        final boolean mForceDisplay;
+
+        LogRecord(LogLevel logLevel, String tag, String message, long time,
+                boolean forceDisplay) {
+            mLogLevel = logLevel;
+            mTag = tag;
+            mMessage = message;
+            mTime = time;
+            mForceDisplay = forceDisplay;
+        }
+    }
+
+    /**
+     * A record queued to signal the writer thread, rather than to be written. Signals a flush
+     * waiter once all records queued before it are written, or stops the writer if it has no
+     * latch.
+     */
+    private static class ControlRecord extends LogRecord {
+        final CountDownLatch mLatch;
+
+        ControlRecord(CountDownLatch latch) {
+            super(null, null, null, 0, false);
+            mLatch = latch;
+        }
+    }
+
+    /**
+     * Writes batches of records to the output. Only called on the writer thread.
+     */
+    static interface IRecordWriter {
+        void writeRecords(List<LogRecord> records);
+    }
+
+    private final BlockingQueue<LogRecord> mQueue;
+    private final OverflowPolicy mOverflowPolicy;
+    private final IRecordWriter mRecordWriter;
+    private final Thread mThread;
+    private final Thread mShutdownHook;
+    /**
+     * Held for read while queuing, and for write to stop, so no record is queued after the stop
+     * record.
+     */
+    private final ReadWriteLock mStopLock = new ReentrantReadWriteLock();
+    private volatile boolean mIsStopped = false;
+
+    private final AtomicLong mNumDropped = new AtomicLong(0);
+    private final AtomicLong mNumBlocked = new AtomicLong(0);
+    /** number of records written. Only modified by the writer thread */
+    private volatile long mNumWritten = 0;
+    /** number of batches written. Only modified by the writer thread */
+    private volatile long mNumBatches = 0;
+
+    /**
+     * Creates and starts a {@link AsyncLogWriter}.
+     *
+     * @param name the name of the writer thread
+     * @param capacity the max number of queued records
+     * @param overflowPolicy the {@link OverflowPolicy} to use when the queue is full
+     * @param recordWriter the {@link IRecordWriter} to pass records to
+     */
+    AsyncLogWriter(String name, int capacity, OverflowPolicy overflowPolicy,
+            IRecordWriter recordWriter) {
+        mQueue = new LinkedBlockingQueue<LogRecord>(capacity);
+        mOverflowPolicy = overflowPolicy;
+        mRecordWriter = recordWriter;
+        mThread = new Thread(name) {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+        // write the queued records if the JVM exits without stopping the writer
+        mShutdownHook = new Thread(name + "-shutdown") {
+            @Override
+            public void run() {
+                stopWriter();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(mShutdownHook);
+    }
+
+    /**
+     * Queues a record to be written.
+     *
+     * @return <code>false</code> if the record was dropped, or the writer is stopped
+     */
+    boolean enqueue(LogRecord record) {
+        mStopLock.readLock().lock();
+        try {
+            if (mIsStopped) {
+                return false;
+            }
+            if (mQueue.offer(record)) {
+                return true;
+            }
+            if (Thread.currentThread() == mThread || (mOverflowPolicy == OverflowPolicy.DROP
+                    && record.mLogLevel.getPriority() < LogLevel.WARN.getPriority())) {
+                // the writer thread cannot wait for itself
+                mNumDropped.incrementAndGet();
+                return false;
+            }
+            mNumBlocked.incrementAndGet();
+            return put(record);
+        } finally {
+            mStopLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until all records queued before this call have been written.
+     */
+    void flush() {
+        if (Thread.currentThread() == mThread) {
+            return;
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        mStopLock.readLock().lock();
+        try {
+            if (mIsStopped || !put(new ControlRecord(latch))) {
+                return;
+            }
+        } finally {
+            mStopLock.readLock().unlock();
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes all queued records, and stops the writer thread. Records queued after this is
+     * called are ignored.
+     */
+    void stop() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(mShutdownHook);
+        } catch (IllegalStateException e) {
+            // JVM is shutting down, and the hook stops the writer
+        }
+        stopWriter();
+    }
+
+    private void stopWriter() {
+        mStopLock.writeLock().lock();
+        try {
+            if (mIsStopped) {
+                return;
+            }
+            mIsStopped = true;
+            // no record can be queued after this one. If it cannot be queued, the writer stops
+            // once the queue is empty
+            LogRecord stopRecord = new ControlRecord(null);
+            boolean isQueued = Thread.currentThread() == mThread ? mQueue.offer(stopRecord) :
+                    put(stopRecord);
+            if (!isQueued) {
+                mThread.interrupt();
+            }
+        } finally {
+            mStopLock.writeLock().unlock();
+        }
+        if (Thread.currentThread() == mThread) {
+            return;
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a record, waiting for space if needed.
+     *
+     * @return <code>false</code> if interrupted while waiting
+     */
+    private boolean put(LogRecord record) {
+        try {
+            mQueue.put(record);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void writeLoop() {
+        List<LogRecord> batch = new ArrayList<LogRecord>(MAX_BATCH_SIZE);
+        List<LogRecord> records = new ArrayList<LogRecord>(MAX_BATCH_SIZE);
+        boolean isStopped = false;
+        while (!isStopped) {
+            if (mIsStopped && mQueue.isEmpty()) {
+                // stop record could not be queued, and no records can be queued after stop
+                break;
+            }
+            try {
+                batch.add(mQueue.take());
+            } catch (InterruptedException e) {
+                // only a stop record stops the writer
+                continue;
+            }
+            mQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            for (LogRecord record : batch) {
+                if (record instanceof ControlRecord) {
+                    writeRecords(records);
+                    CountDownLatch latch = ((ControlRecord)record).mLatch;
+                    if (latch != null) {
+                        latch.countDown();
+                    } else {
+                        isStopped = true;
+                    }
+                } else {
+                    records.add(record);
+                }
+            }
+            writeRecords(records);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Passes given records to the {@link IRecordWriter}, and clears the list.
+     */
+    private void writeRecords(List<LogRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            mRecordWriter.writeRecords(records);
+        } catch (RuntimeException e) {
+            // keep writing other records
+            e.printStackTrace();
+        }
+        mNumWritten += records.size();
+        mNumBatches++;
+        records.clear();
+    }
+
+    /**
+     * @return <code>true</code> if {@link #stop()} has been called
+     */
+    boolean isStopped() {
+        return mIsStopped;
+    }
+
+    /**
+     * @return the number of records dropped because the queue was full
+     */
+    long getNumDropped() {
+        return mNumDropped.get();
+    }
+
+    /**
+     * @return the number of times a logging thread had to wait because the queue was full
+     */
+    long getNumBlocked() {
+        return mNumBlocked.get();
+    }
+
+    /**
+     * @return the number of records written
+     */
+    long getNumWritten() {
+        return mNumWritten;
+    }
+
+    /**
+     * @return the number of batches written
+     */
+    long getNumBatches() {
+        return mNumBatches;
+    }
+}
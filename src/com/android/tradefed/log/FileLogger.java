@@ -19,6 +19,8 @@ import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.AsyncLogWriter.LogRecord;
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.SnapshotInputStreamSource;
@@ -33,17 +35,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 
 /**
  * A {@link ILeveledLogOutput} that directs log messages to a file and to stdout.
+ * <p/>
+ * Messages are formatted and written by a dedicated writer thread, see {@link AsyncLogWriter}.
  */
 @OptionClass(alias = "file")
 public class FileLogger implements ILeveledLogOutput {
     private static final String TEMP_FILE_PREFIX = "tradefed_log_";
     private static final String TEMP_FILE_SUFFIX = ".txt";
+    private static final String LOG_TAG = "FileLogger";
 
     private File mTempLogFile = null;
+    /** the log file writer. Guarded by mWriteLock */
     private BufferedWriter mLogWriter = null;
+    private final Object mWriteLock = new Object();
+    private volatile AsyncLogWriter mAsyncWriter = null;
 
     @Option(name = "log-level", description = "the minimum log level to log.")
     private LogLevel mLogLevel = LogLevel.DEBUG;
@@ -56,6 +65,14 @@ public class FileLogger implements ILeveledLogOutput {
     @Option(name = "log-tag-display", description = "Always display given tags logs on stdout")
     private Collection<String> mLogTagsDisplay = new HashSet<String>();
 
+    @Option(name = "log-queue-size", description = "the max number of log messages waiting to "
+            + "be written by the log writer thread. 0 to write messages on the logging thread.")
+    private int mLogQueueSize = 10000;
+
+    @Option(name = "log-overflow-policy", description = "what to do when the log queue is full. "
+            + "BLOCK waits for space. DROP discards messages below WARN level.")
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+
     // temp: track where this log was closed
     private StackTraceElement[] mCloseStackFrames = null;
 
@@ -79,6 +96,15 @@ public class FileLogger implements ILeveledLogOutput {
         try {
             mTempLogFile = FileUtil.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
             mLogWriter = new BufferedWriter(new FileWriter(mTempLogFile));
+            if (mLogQueueSize > 0) {
+                mAsyncWriter = new AsyncLogWriter("FileLogger-writer", mLogQueueSize,
+                        mOverflowPolicy, new AsyncLogWriter.IRecordWriter() {
+                            @Override
+                            public void writeRecords(List<LogRecord> records) {
+                                FileLogger.this.writeRecords(records);
+                            }
+                        });
+            }
         }
         catch (IOException e) {
             if (mTempLogFile != null) {
@@ -100,6 +126,8 @@ public class FileLogger implements ILeveledLogOutput {
         logger.setLogLevelDisplay(mLogLevelDisplay);
         logger.setLogLevel(mLogLevel);
         logger.addLogTagsDisplay(mLogTagsDisplay);
+        logger.mLogQueueSize = mLogQueueSize;
+        logger.mOverflowPolicy = mOverflowPolicy;
         return logger;
     }
 
@@ -125,21 +153,72 @@ public class FileLogger implements ILeveledLogOutput {
      */
     private void internalPrintLog(LogLevel logLevel, String tag, String message,
             boolean forceStdout) {
-        String outMessage = LogUtil.getLogFormatString(logLevel, tag, message);
-        if (forceStdout
-                || logLevel.getPriority() >= mLogLevelDisplay.getPriority()
-                || mLogTagsDisplay.contains(tag)) {
+        LogRecord record = new LogRecord(logLevel, tag, message, System.currentTimeMillis(),
+                forceStdout);
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        if (asyncWriter != null && asyncWriter.enqueue(record)) {
+            if (forceStdout) {
+                // make sure the message is displayed before prompting
+                asyncWriter.flush();
+            }
+            return;
+        }
+        if (asyncWriter == null || asyncWriter.isStopped()) {
+            // writer not started or already stopped
+            writeRecord(record);
+        }
+    }
+
+    /**
+     * Formats and writes a batch of records to stdout and the log file.
+     */
+    private void writeRecords(List<LogRecord> records) {
+        StringBuilder logText = new StringBuilder();
+        StringBuilder displayText = null;
+        for (LogRecord record : records) {
+            String outMessage = LogUtil.getLogFormatString(record.mLogLevel, record.mTag,
+                    record.mMessage, record.mTime);
+            logText.append(outMessage);
+            if (shouldDisplay(record)) {
+                if (displayText == null) {
+                    displayText = new StringBuilder();
+                }
+                displayText.append(outMessage);
+            }
+        }
+        if (displayText != null) {
+            System.out.print(displayText);
+        }
+        writeToLogLocked(logText.toString());
+    }
+
+    private void writeRecord(LogRecord record) {
+        String outMessage = LogUtil.getLogFormatString(record.mLogLevel, record.mTag,
+                record.mMessage, record.mTime);
+        if (shouldDisplay(record)) {
             System.out.print(outMessage);
         }
-        try {
-            writeToLog(outMessage);
-        } catch (IOException e) {
-            e.printStackTrace();
+        writeToLogLocked(outMessage);
+    }
+
+    private boolean shouldDisplay(LogRecord record) {
+        return record.mForceDisplay
+                || record.mLogLevel.getPriority() >= mLogLevelDisplay.getPriority()
+                || mLogTagsDisplay.contains(record.mTag);
+    }
+
+    private void writeToLogLocked(String outMessage) {
+        synchronized (mWriteLock) {
+            try {
+                writeToLog(outMessage);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * Writes given message to log.
+     * Writes given message to log. Must be called with mWriteLock held.
      * <p/>
      * Exposed for unit testing.
      *
@@ -213,8 +292,13 @@ public class FileLogger implements ILeveledLogOutput {
             printStackTrace(mCloseStackFrames);
         } else {
             try {
+                flushAsyncWriter();
+                synchronized (mWriteLock) {
+                    if (mLogWriter != null) {
+                        mLogWriter.flush();
+                    }
+                }
                 // create a InputStream from log file
-                mLogWriter.flush();
                 return new SnapshotInputStreamSource(new FileInputStream(mTempLogFile));
 
             } catch (IOException e) {
@@ -256,16 +340,28 @@ public class FileLogger implements ILeveledLogOutput {
      */
     void doCloseLog() throws IOException {
         try {
-            if (mLogWriter != null) {
-                // TODO: temp: track where this log was closed
-                mCloseStackFrames = Thread.currentThread().getStackTrace();
-                // set mLogWriter to null first before closing, to prevent "write" calls after
-                // "close"
-                BufferedWriter writer = mLogWriter;
-                mLogWriter = null;
-
-                writer.flush();
-                writer.close();
+            AsyncLogWriter asyncWriter = mAsyncWriter;
+            if (asyncWriter != null) {
+                asyncWriter.stop();
+                mAsyncWriter = null;
+                if (asyncWriter.getNumDropped() > 0) {
+                    writeToLogLocked(LogUtil.getLogFormatString(LogLevel.WARN, LOG_TAG,
+                            String.format("%d log messages were dropped, log queue was full",
+                                    asyncWriter.getNumDropped())));
+                }
+            }
+            synchronized (mWriteLock) {
+                if (mLogWriter != null) {
+                    // TODO: temp: track where this log was closed
+                    mCloseStackFrames = Thread.currentThread().getStackTrace();
+                    // set mLogWriter to null first before closing, to prevent "write" calls
+                    // after "close"
+                    BufferedWriter writer = mLogWriter;
+                    mLogWriter = null;
+
+                    writer.flush();
+                    writer.close();
+                }
             }
         } finally {
             if (mTempLogFile != null) {
@@ -282,8 +378,31 @@ public class FileLogger implements ILeveledLogOutput {
      * @throws IOException
      */
     void dumpToLog(InputStream inputStream) throws IOException {
-        if (mLogWriter != null) {
-            StreamUtil.copyStreamToWriter(inputStream, mLogWriter);
+        flushAsyncWriter();
+        synchronized (mWriteLock) {
+            if (mLogWriter != null) {
+                StreamUtil.copyStreamToWriter(inputStream, mLogWriter);
+            }
         }
     }
+
+    /**
+     * Waits for all messages logged so far to be written to the log file.
+     */
+    private void flushAsyncWriter() {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        if (asyncWriter != null) {
+            asyncWriter.flush();
+        }
+    }
+
+    /**
+     * Gets the number of messages dropped because the log queue was full.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    long getNumDroppedMessages() {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        return asyncWriter != null ? asyncWriter.getNumDropped() : 0;
+    }
 }
@@ -51,6 +51,14 @@ public interface ILogRegistry extends ILogOutput {
      */
     public void registerLogger(ILeveledLogOutput log);
 
+    /**
+     * Check if a message of the given level would be logged by the current thread's logger.
+     *
+     * @param logLevel the {@link LogLevel} of the message
+     * @return <code>true</code> if the message would be logged
+     */
+    public boolean isLoggable(LogLevel logLevel);
+
     /**
      * Unregisters the current logger in effect for the current thread.
      */
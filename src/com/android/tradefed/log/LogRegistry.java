@@ -25,9 +25,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A {@link ILogRegistry} implementation that multiplexes and manages different loggers,
@@ -41,10 +41,18 @@ import java.util.Map;
 public class LogRegistry implements ILogRegistry {
     private static final String LOG_TAG = "LogRegistry";
     private static LogRegistry mLogRegistry = null;
+    // looked up on every log message, so use a map with lock-free reads
     private Map<ThreadGroup, ILeveledLogOutput> mLogTable =
-            new Hashtable<ThreadGroup, ILeveledLogOutput>();
+            new ConcurrentHashMap<ThreadGroup, ILeveledLogOutput>();
     private FileLogger mGlobalLogger;
 
+    /**
+     * The {@link ThreadGroup} whose logger should be used by the current thread, when it is
+     * performing work on behalf of a thread in another group (ie a pooled worker thread).
+     */
+    private static final ThreadLocal<ThreadGroup> sDelegatedThreadGroup =
+            new ThreadLocal<ThreadGroup>();
+
     /**
      * Package-private constructor; callers should use {@link #getLogRegistry} to get an instance of
      * the {@link LogRegistry}.
@@ -142,15 +150,49 @@ public class LogRegistry implements ILogRegistry {
         }
     }
 
+    /**
+     * Instruct the registry to log messages from the current thread using the logger of the given
+     * {@link ThreadGroup}, rather than the logger of the current thread's own group.
+     * <p/>
+     * Intended for pooled worker threads that execute tasks on behalf of other threads.
+     *
+     * @param threadGroup the {@link ThreadGroup} to use, or <code>null</code> to revert to the
+     *            current thread's own group
+     */
+    public static void setDelegatedThreadGroup(ThreadGroup threadGroup) {
+        if (threadGroup == null) {
+            sDelegatedThreadGroup.remove();
+        } else {
+            sDelegatedThreadGroup.set(threadGroup);
+        }
+    }
+
+    /**
+     * Get the {@link ThreadGroup} whose logger is used for messages from the current thread.
+     * <p/>
+     * Work handed off to another thread should capture this on the submitting thread, and pass it
+     * to {@link #setDelegatedThreadGroup(ThreadGroup)} on the thread that performs the work.
+     *
+     * @return the group the current thread is delegating to, or its own group
+     */
+    public static ThreadGroup getLoggingThreadGroup() {
+        ThreadGroup delegatedGroup = sDelegatedThreadGroup.get();
+        if (delegatedGroup != null) {
+            return delegatedGroup;
+        }
+        return Thread.currentThread().getThreadGroup();
+    }
+
     /**
      * Gets the current thread Group.
      * <p/>
      * Exposed so unit tests can mock
      *
-     * @return the ThreadGroup that the current thread belongs to
+     * @return the ThreadGroup that the current thread belongs to, or the group it is delegating
+     *         to
      */
     ThreadGroup getCurrentThreadGroup() {
-        return Thread.currentThread().getThreadGroup();
+        return getLoggingThreadGroup();
     }
 
     /**
@@ -165,6 +207,14 @@ public class LogRegistry implements ILogRegistry {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLoggable(LogLevel logLevel) {
+        return logLevel.getPriority() >= getLogger().getLogLevel().getPriority();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -16,22 +16,68 @@
 
 package com.android.tradefed.log;
 
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A logging utility class.  Useful for code that needs to override static methods from {@link Log}
  */
 public class LogUtil {
 
+    /** the {@link ILogRegistry} that ddmlib {@link Log} messages are sent to, if any */
+    private static volatile ILogRegistry sLogRegistry = null;
+
+    private static final ThreadLocal<TimestampCache> sTimestampCache =
+            new ThreadLocal<TimestampCache>() {
+                @Override
+                protected TimestampCache initialValue() {
+                    return new TimestampCache();
+                }
+            };
+
     /**
      * Make uninstantiable
      */
     private LogUtil() {}
 
+    /**
+     * Caches the formatted timestamp of the current second, since {@link SimpleDateFormat} is
+     * expensive to create and use. Not thread safe.
+     */
+    private static class TimestampCache {
+        private final SimpleDateFormat mFormatter = new SimpleDateFormat("MM-dd HH:mm:ss");
+        private long mSecond = -1;
+        private String mTimestamp = null;
+
+        String format(long time) {
+            long second = time / 1000;
+            if (second != mSecond) {
+                mTimestamp = mFormatter.format(new Date(time));
+                mSecond = second;
+            }
+            return mTimestamp;
+        }
+    }
+
+    /**
+     * Sends all ddmlib {@link Log} messages to the given {@link ILogRegistry}.
+     * <p/>
+     * The registry is also used by {@link CLog#isLoggable(LogLevel)} to skip messages that the
+     * current thread's logger would discard.
+     *
+     * @param logRegistry the {@link ILogRegistry} to use
+     */
+    public static void setLogOutput(ILogRegistry logRegistry) {
+        sLogRegistry = logRegistry;
+        Log.setLogOutput(logRegistry);
+    }
+
     /**
      * Sent when a log message needs to be printed.  This implementation prints the message to
      * stdout in all cases.
@@ -52,9 +98,23 @@ public class LogUtil {
      * {@see Log#getLogFormatString()}
      */
     public static String getLogFormatString(LogLevel logLevel, String tag, String message) {
-        SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss");
-        return String.format("%s %c/%s: %s\n", formatter.format(new Date()),
-                logLevel.getPriorityLetter(), tag, message);
+        return getLogFormatString(logLevel, tag, message, System.currentTimeMillis());
+    }
+
+    /**
+     * A version of {@link #getLogFormatString(LogLevel, String, String)} for a message logged at
+     * the given time.
+     *
+     * @param time the time the message was logged, in ms since epoch
+     */
+    public static String getLogFormatString(LogLevel logLevel, String tag, String message,
+            long time) {
+        String timestamp = sTimestampCache.get().format(time);
+        StringBuilder builder = new StringBuilder(
+                64 + (message != null ? message.length() : 0));
+        builder.append(timestamp).append(' ').append(logLevel.getPriorityLetter()).append('/')
+                .append(tag).append(": ").append(message).append('\n');
+        return builder.toString();
     }
 
     /**
@@ -62,14 +122,41 @@ public class LogUtil {
      * the log tag
      */
     public static class CLog {
+        /**
+         * cache of simple class names by full class name, since looking up a class and its simple
+         * name is not cheap
+         */
+        private static final ConcurrentMap<String, String> sSimpleNames =
+                new ConcurrentHashMap<String, String>();
+
+        /**
+         * Check if a message of the given level would be logged by the current thread.
+         * <p/>
+         * All the logging methods of this class check this before looking up the caller's class
+         * name or formatting the message, so disabled messages are cheap. Callers can also use it
+         * to skip building expensive messages.
+         *
+         * @param logLevel the {@link LogLevel} of the message
+         * @return <code>true</code> if the message would be logged
+         */
+        public static boolean isLoggable(LogLevel logLevel) {
+            if (logLevel.getPriority() < DdmPreferences.getLogLevel().getPriority()) {
+                return false;
+            }
+            ILogRegistry logRegistry = sLogRegistry;
+            return logRegistry == null || logRegistry.isLoggable(logLevel);
+        }
+
         /**
          * The shim version of {@link Log#v(String, String)}.
          *
          * @param message The {@code String} to log
          */
         public static void v(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.v(getClassName(2), message);
+            if (isLoggable(LogLevel.VERBOSE)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.v(getClassName(2), message);
+            }
         }
 
         /**
@@ -80,8 +167,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void v(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.v(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.VERBOSE)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.v(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -90,8 +179,10 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void d(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.d(getClassName(2), message);
+            if (isLoggable(LogLevel.DEBUG)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.d(getClassName(2), message);
+            }
         }
 
         /**
@@ -102,8 +193,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void d(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.d(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.DEBUG)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.d(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -112,8 +205,10 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void i(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.i(getClassName(2), message);
+            if (isLoggable(LogLevel.INFO)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.i(getClassName(2), message);
+            }
         }
 
         /**
@@ -124,8 +219,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void i(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.i(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.INFO)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.i(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -134,8 +231,10 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void w(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.w(getClassName(2), message);
+            if (isLoggable(LogLevel.WARN)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.w(getClassName(2), message);
+            }
         }
 
         /**
@@ -146,8 +245,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void w(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.w(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.WARN)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.w(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -156,8 +257,10 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void e(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.e(getClassName(2), message);
+            if (isLoggable(LogLevel.ERROR)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.e(getClassName(2), message);
+            }
         }
 
         /**
@@ -168,8 +271,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void e(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.e(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.ERROR)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.e(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -179,8 +284,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void e(Throwable t) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.e(getClassName(2), t);
+            if (isLoggable(LogLevel.ERROR)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.e(getClassName(2), t);
+            }
         }
 
         /**
@@ -206,6 +313,18 @@ public class LogUtil {
         public static String getClassName(int frame) {
             StackTraceElement[] frames = (new Throwable()).getStackTrace();
             String fullName = frames[frame].getClassName();
+            String simpleName = sSimpleNames.get(fullName);
+            if (simpleName == null) {
+                simpleName = getSimpleName(fullName);
+                sSimpleNames.put(fullName, simpleName);
+            }
+            return simpleName;
+        }
+
+        /**
+         * Get the simple name of the class with given full name.
+         */
+        private static String getSimpleName(String fullName) {
             @SuppressWarnings("rawtypes")
             Class klass = null;
             try {
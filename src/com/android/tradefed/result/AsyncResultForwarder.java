@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A {@link ITestInvocationListener} that forwards invocation results to a list of other listeners
+ * asynchronously, so slow listeners do not stall test execution.
+ * <p/>
+ * Each listener has its own bounded event queue and dispatcher thread, so events are delivered to
+ * each listener in order, and a slow listener does not delay the others. When a listener's queue
+ * is full, the caller blocks until there is space.
+ * <p/>
+ * {@link #testLog(String, LogDataType, InputStreamSource)} waits until the log has been delivered
+ * to all listeners, since the caller may cancel the {@link InputStreamSource} once it returns.
+ * {@link #invocationEnded(long)} waits for all pending events to be delivered first.
+ * <p/>
+ * Unlike {@link ResultForwarder}, exceptions thrown by listeners are logged rather than
+ * propagated to the caller. {@link #close()} must be called to stop the dispatcher threads.
+ */
+public class AsyncResultForwarder implements ITestInvocationListener, ITypedMetricsListener {
+
+    /** The default max number of events queued per listener */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * An event to deliver to a listener.
+     */
+    private static abstract class Event {
+        abstract void deliver(ITestInvocationListener listener);
+    }
+
+    /**
+     * An {@link Event} that signals a latch when it is processed, to wait for prior events.
+     */
+    private static class BarrierEvent extends Event {
+        private final CountDownLatch mLatch;
+
+        BarrierEvent(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        void deliver(ITestInvocationListener listener) {
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * Delivers queued events to a single listener.
+     */
+    private static class ListenerDispatcher extends Thread {
+        private final ITestInvocationListener mListener;
+        private final BlockingQueue<Event> mQueue;
+        private boolean mIsClosed = false;
+
+        ListenerDispatcher(ITestInvocationListener listener, int queueCapacity) {
+            super(String.format("ResultDispatcher-%s", listener.getClass().getSimpleName()));
+            setDaemon(true);
+            mListener = listener;
+            mQueue = new ArrayBlockingQueue<Event>(queueCapacity);
+        }
+
+        /**
+         * Adds an event to the queue, blocking while the queue is full.
+         */
+        void post(Event event) {
+            try {
+                mQueue.put(event);
+            } catch (InterruptedException e) {
+                CLog.w("Interrupted while queuing result event for %s",
+                        mListener.getClass().getName());
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!mIsClosed) {
+                Event event;
+                try {
+                    event = mQueue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                try {
+                    event.deliver(mListener);
+                } catch (Throwable t) {
+                    // keep dispatching, otherwise callers waiting on a flush would hang
+                    CLog.e("Caught exception from %s", mListener.getClass().getName());
+                    CLog.e(t);
+                }
+            }
+        }
+
+        /**
+         * Stops the dispatcher once all previously queued events have been delivered.
+         */
+        void close() {
+            post(new Event() {
+                @Override
+                void deliver(ITestInvocationListener listener) {
+                    mIsClosed = true;
+                }
+            });
+        }
+    }
+
+    private final List<ITestInvocationListener> mListeners;
+    private final List<ListenerDispatcher> mDispatchers;
+
+    /**
+     * Create a {@link AsyncResultForwarder}.
+     *
+     * @param listeners the real {@link ITestInvocationListener}s to forward results to
+     */
+    public AsyncResultForwarder(List<ITestInvocationListener> listeners) {
+        this(listeners, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Create a {@link AsyncResultForwarder}.
+     *
+     * @param listeners the real {@link ITestInvocationListener}s to forward results to
+     * @param queueCapacity the max number of events to queue per listener
+     */
+    public AsyncResultForwarder(List<ITestInvocationListener> listeners, int queueCapacity) {
+        mListeners = listeners;
+        mDispatchers = new ArrayList<ListenerDispatcher>(listeners.size());
+        for (ITestInvocationListener listener : listeners) {
+            ListenerDispatcher dispatcher = new ListenerDispatcher(listener, queueCapacity);
+            dispatcher.start();
+            mDispatchers.add(dispatcher);
+        }
+    }
+
+    private void post(Event event) {
+        for (ListenerDispatcher dispatcher : mDispatchers) {
+            dispatcher.post(event);
+        }
+    }
+
+    /**
+     * Blocks until all events posted so far have been delivered to all listeners.
+     */
+    public void flush() {
+        CountDownLatch latch = new CountDownLatch(mDispatchers.size());
+        post(new BarrierEvent(latch));
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while waiting for result events to be delivered");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delivers all pending events, and stops the dispatcher threads.
+     */
+    public void close() {
+        flush();
+        for (ListenerDispatcher dispatcher : mDispatchers) {
+            dispatcher.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(final IBuildInfo buildInfo) {
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.invocationStarted(buildInfo);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(final Throwable cause) {
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.invocationFailed(cause);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationEnded(long elapsedTime) {
+        // summaries are gathered across listeners, so deliver directly once dispatchers are idle
+        flush();
+        InvocationSummaryHelper.reportInvocationEnded(mListeners, elapsedTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestSummary getSummary() {
+        // should never be called
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testLog(final String dataName, final LogDataType dataType,
+            final InputStreamSource dataStream) {
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.testLog(dataName, dataType, dataStream);
+            }
+        });
+        flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(final String runName, final int testCount) {
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.testRunStarted(runName, testCount);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(final String errorMessage) {
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.testRunFailed(errorMessage);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(final long elapsedTime) {
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.testRunStopped(elapsedTime);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(final long elapsedTime, Map<String, String> runMetrics) {
+        final Map<String, String> metrics = copyMetrics(runMetrics);
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.testRunEnded(elapsedTime, metrics);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(final long elapsedTime, TestMetrics runMetrics) {
+        final TestMetrics metrics = new TestMetrics(runMetrics);
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                TestMetrics.reportTestRunEnded(listener, elapsedTime, metrics);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(final TestIdentifier test) {
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.testStarted(test);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(final TestFailure status, final TestIdentifier test,
+            final String trace) {
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.testFailed(status, test, trace);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(final TestIdentifier test, Map<String, String> testMetrics) {
+        final Map<String, String> metrics = copyMetrics(testMetrics);
+        post(new Event() {
+            @Override
+            void deliver(ITestInvocationListener listener) {
+                listener.testEnded(test, metrics);
+            }
+        });
+    }
+
+    /**
+     * Copies metrics, since the caller may reuse the map once the event is posted. Preserves the
+     * iteration order of the original map.
+     */
+    private static Map<String, String> copyMetrics(Map<String, String> metrics) {
+        return metrics == null ? null : new LinkedHashMap<String, String>(metrics);
+    }
+}
@@ -31,7 +31,7 @@ import java.util.Map;
  * Although the data structures used in this object are thread-safe, the
  * {@link ITestInvocationListener} callbacks must be called in the correct order.
  */
-public class CollectingTestListener implements ITestInvocationListener {
+public class CollectingTestListener implements ITestInvocationListener, ITypedMetricsListener {
 
     // Stores the test results
     // Uses a synchronized map to make thread safe.
@@ -125,6 +125,16 @@ public class CollectingTestListener implements ITestInvocationListener {
         mCurrentResults.addElapsedTime(elapsedTime);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, TestMetrics runMetrics) {
+        mCurrentResults.setRunComplete(true);
+        mCurrentResults.addMetrics(runMetrics, mIsAggregateMetrics);
+        mCurrentResults.addElapsedTime(elapsedTime);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -23,15 +23,29 @@ import java.io.InputStream;
 /**
  * A {@link InputStreamSource} that takes an input file.
  * <p/>
- * Caller is responsible for deleting the file
+ * Caller is responsible for deleting the file, unless the source is created with
+ * <var>deleteOnCancel</var> set.
  */
 public class FileInputStreamSource implements InputStreamSource {
 
     private final File mFile;
+    private final boolean mDeleteOnCancel;
     private boolean mIsCancelled = false;
 
     public FileInputStreamSource(File file) {
+        this(file, false);
+    }
+
+    /**
+     * Creates a {@link FileInputStreamSource}.
+     *
+     * @param file the {@link File} to read
+     * @param deleteOnCancel if <code>true</code>, this source takes ownership of the file and will
+     *            delete it when {@link #cancel()} is called
+     */
+    public FileInputStreamSource(File file, boolean deleteOnCancel) {
         mFile = file;
+        mDeleteOnCancel = deleteOnCancel;
     }
 
     /**
@@ -54,7 +68,12 @@ public class FileInputStreamSource implements InputStreamSource {
      */
     @Override
     public synchronized void cancel() {
-        mIsCancelled = true;
+        if (!mIsCancelled) {
+            mIsCancelled = true;
+            if (mDeleteOnCancel) {
+                mFile.delete();
+            }
+        }
     }
 
     /**
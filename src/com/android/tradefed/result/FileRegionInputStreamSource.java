@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link InputStreamSource} that reads regions of one or more files in place, without copying
+ * them.
+ * <p/>
+ * Files are opened when a region is added and stay open until {@link #cancel()} is called, so the
+ * data remains readable even if the file is deleted in the meantime. The regions must not be
+ * modified while this source is in use.
+ */
+public class FileRegionInputStreamSource implements InputStreamSource {
+
+    /**
+     * A region of an open file.
+     */
+    private static class Region {
+        final FileChannel mChannel;
+        final long mOffset;
+        final long mLength;
+
+        Region(FileChannel channel, long offset, long length) {
+            mChannel = channel;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    /**
+     * An {@link InputStream} that reads a {@link Region} using positional reads, so multiple
+     * streams can share the same {@link FileChannel}.
+     */
+    private static class RegionInputStream extends InputStream {
+        private final FileChannel mChannel;
+        private long mPosition;
+        private final long mEnd;
+
+        RegionInputStream(Region region) {
+            mChannel = region.mChannel;
+            mPosition = region.mOffset;
+            mEnd = region.mOffset + region.mLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] data = new byte[1];
+            return read(data, 0, 1) == -1 ? -1 : data[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            if (mPosition >= mEnd) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, (int)Math.min(length,
+                    mEnd - mPosition));
+            int count = mChannel.read(buffer, mPosition);
+            if (count > 0) {
+                mPosition += count;
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int)Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+        }
+    }
+
+    private final List<Region> mRegions = new ArrayList<Region>();
+    private boolean mIsCancelled = false;
+
+    /**
+     * Adds a region to the end of the data of this source.
+     *
+     * @param file the {@link File} to read
+     * @param offset the offset of the region in the file
+     * @param length the length of the region
+     * @throws IOException if the file could not be opened
+     */
+    public synchronized void addRegion(File file, long offset, long length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        mRegions.add(new Region(new FileInputStream(file).getChannel(), offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized InputStream createInputStream() {
+        if (mIsCancelled) {
+            return null;
+        }
+        List<InputStream> streams = new ArrayList<InputStream>(mRegions.size());
+        for (Region region : mRegions) {
+            streams.add(new RegionInputStream(region));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void cancel() {
+        if (!mIsCancelled) {
+            mIsCancelled = true;
+            for (Region region : mRegions) {
+                try {
+                    region.mChannel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            mRegions.clear();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long size() {
+        long size = 0;
+        for (Region region : mRegions) {
+            size += region.mLength;
+        }
+        return size;
+    }
+}
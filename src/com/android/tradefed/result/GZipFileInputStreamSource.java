@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A {@link InputStreamSource} that takes a gzip-compressed input file, and provides its
+ * decompressed contents.
+ * <p/>
+ * Allows large data to be kept compressed on disk, while being transparent to readers.
+ */
+public class GZipFileInputStreamSource implements InputStreamSource {
+
+    private static final int BUFF_SIZE = 32 * 1024;
+
+    private final File mFile;
+    private final long mSize;
+    private final boolean mDeleteOnCancel;
+    private boolean mIsCancelled = false;
+
+    /**
+     * Creates a {@link GZipFileInputStreamSource}.
+     *
+     * @param file the gzip-compressed {@link File} to read
+     * @param size the decompressed size of the file contents in bytes
+     * @param deleteOnCancel if <code>true</code>, this source takes ownership of the file and will
+     *            delete it when {@link #cancel()} is called
+     */
+    public GZipFileInputStreamSource(File file, long size, boolean deleteOnCancel) {
+        mFile = file;
+        mSize = size;
+        mDeleteOnCancel = deleteOnCancel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized InputStream createInputStream() {
+        if (mIsCancelled) {
+            return null;
+        }
+        InputStream fileStream = null;
+        try {
+            fileStream = new BufferedInputStream(new FileInputStream(mFile), BUFF_SIZE);
+            return new GZIPInputStream(fileStream, BUFF_SIZE);
+        } catch (IOException e) {
+            StreamUtil.closeStream(fileStream);
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void cancel() {
+        if (!mIsCancelled) {
+            mIsCancelled = true;
+            if (mDeleteOnCancel) {
+                mFile.delete();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the decompressed size.
+     */
+    @Override
+    public long size() {
+        return mSize;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.brillopad.item.GenericLogcatItem;
+
+/**
+ * A listener for crashes and ANRs detected in the device logcat while it is being captured.
+ * <p/>
+ * {@link ITestInvocationListener}s that also implement this interface are notified of events in
+ * near real time during the invocation, so they can react to them immediately - for example to
+ * capture a bugreport while the device is still in the failed state.
+ */
+public interface ILogcatEventListener {
+
+    /**
+     * Reports a crash or ANR detected in the device logcat.
+     * <p/>
+     * Called from the background logcat capture thread, so implementations should return quickly
+     * and be thread safe.
+     *
+     * @param serial the serial number of the device the event occurred on
+     * @param event the {@link GenericLogcatItem} describing the event. Will be a
+     *            {@link com.android.tradefed.util.brillopad.item.AnrItem},
+     *            {@link com.android.tradefed.util.brillopad.item.JavaCrashItem} or
+     *            {@link com.android.tradefed.util.brillopad.item.NativeCrashItem}.
+     */
+    public void logcatEvent(String serial, GenericLogcatItem event);
+}
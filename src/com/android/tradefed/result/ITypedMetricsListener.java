@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+
+import java.util.Map;
+
+/**
+ * An optional interface for {@link ITestRunListener}s that can receive run metrics as
+ * {@link TestMetrics}, so numeric values are not converted to and from strings.
+ * <p/>
+ * Tests should report typed metrics via
+ * {@link TestMetrics#reportTestRunEnded(ITestRunListener, long, TestMetrics)}, which falls back to
+ * {@link ITestRunListener#testRunEnded(long, Map)} for other listeners.
+ */
+public interface ITypedMetricsListener {
+
+    /**
+     * Reports end of test run, with typed run metrics.
+     * <p/>
+     * Called instead of {@link ITestRunListener#testRunEnded(long, Map)}.
+     *
+     * @param elapsedTime device reported elapsed time, in milliseconds
+     * @param runMetrics key-value pairs reported at the end of a test run
+     */
+    public void testRunEnded(long elapsedTime, TestMetrics runMetrics);
+}
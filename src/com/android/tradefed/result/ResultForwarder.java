@@ -25,7 +25,7 @@ import java.util.Map;
 /**
  * A {@link ITestInvocationListener} that forwards invocation results to a list of other listeners.
  */
-public class ResultForwarder implements ITestInvocationListener {
+public class ResultForwarder implements ITestInvocationListener, ITypedMetricsListener {
 
     private final List<ITestInvocationListener> mListeners;
 
@@ -134,6 +134,16 @@ public class ResultForwarder implements ITestInvocationListener {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, TestMetrics runMetrics) {
+        for (ITestInvocationListener listener : mListeners) {
+            TestMetrics.reportTestRunEnded(listener, elapsedTime, runMetrics);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
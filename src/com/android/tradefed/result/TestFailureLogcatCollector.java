@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.ITestDevice;
+
+import java.util.Map;
+
+/**
+ * A pass-through {@link ITestInvocationListener} that logs the part of the device logcat captured
+ * while each failed test was running.
+ * <p/>
+ * Uses {@link ITestDevice#getLogcatSlice(long, long)}, so each log is read from the background
+ * logcat capture in place rather than copying the entire capture.
+ */
+public class TestFailureLogcatCollector extends ResultForwarder {
+
+    private final ITestDevice mDevice;
+    private long mTestStartTime = 0;
+    private boolean mTestFailed = false;
+
+    /**
+     * Creates a {@link TestFailureLogcatCollector}.
+     *
+     * @param device the {@link ITestDevice} to get logcat from
+     * @param listener the {@link ITestInvocationListener} to forward results and logs to
+     */
+    public TestFailureLogcatCollector(ITestDevice device, ITestInvocationListener listener) {
+        super(listener);
+        mDevice = device;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        mTestStartTime = System.currentTimeMillis();
+        mTestFailed = false;
+        super.testStarted(test);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+        mTestFailed = true;
+        super.testFailed(status, test, trace);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        if (mTestFailed) {
+            InputStreamSource logcat = mDevice.getLogcatSlice(mTestStartTime,
+                    System.currentTimeMillis());
+            if (logcat != null) {
+                testLog(String.format("logcat_%s", test.toString()), LogDataType.TEXT, logcat);
+                logcat.cancel();
+            }
+        }
+        super.testEnded(test, testMetrics);
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of test metrics that stores numeric values as primitives.
+ * <p/>
+ * Values can be added as <code>long</code>s or <code>double</code>s, so aggregating metrics does
+ * not need to parse and reformat strings. String values are also supported for compatibility with
+ * {@link ITestRunListener#testRunEnded(long, Map)}. They are kept as is until they are
+ * aggregated, at which point numeric strings are parsed once.
+ * <p/>
+ * Not thread safe.
+ */
+public class TestMetrics {
+
+    private static final int TYPE_LONG = 0;
+    private static final int TYPE_DOUBLE = 1;
+    private static final int TYPE_STRING = 2;
+    /** the max number of digits of a long that can never overflow */
+    private static final int MAX_SAFE_LONG_DIGITS = 18;
+
+    /**
+     * A single metric value.
+     */
+    private static class Metric {
+        int mType;
+        long mLong;
+        double mDouble;
+        /** the string value, or the cached formatted value of a numeric metric */
+        String mString;
+
+        Metric(Metric other) {
+            mType = other.mType;
+            mLong = other.mLong;
+            mDouble = other.mDouble;
+            mString = other.mString;
+        }
+
+        Metric() {
+        }
+
+        void setLong(long value) {
+            mType = TYPE_LONG;
+            mLong = value;
+            mString = null;
+        }
+
+        void setDouble(double value) {
+            mType = TYPE_DOUBLE;
+            mDouble = value;
+            mString = null;
+        }
+
+        void setString(String value) {
+            mType = TYPE_STRING;
+            mString = value;
+        }
+
+        /**
+         * Converts a string value to a numeric value if possible.
+         */
+        void parse() {
+            if (mType != TYPE_STRING) {
+                return;
+            }
+            String value = mString;
+            if (isLong(value)) {
+                mType = TYPE_LONG;
+                mLong = Long.parseLong(value);
+            } else if (maybeDouble(value)) {
+                try {
+                    mDouble = Double.parseDouble(value);
+                    mType = TYPE_DOUBLE;
+                } catch (NumberFormatException e) {
+                    // not a number, leave as string
+                }
+            }
+        }
+
+        String format() {
+            if (mString == null) {
+                mString = mType == TYPE_LONG ? Long.toString(mLong) : Double.toString(mDouble);
+            }
+            return mString;
+        }
+    }
+
+    private final Map<String, Metric> mMetrics = new LinkedHashMap<String, Metric>();
+
+    /**
+     * Creates an empty {@link TestMetrics}.
+     */
+    public TestMetrics() {
+    }
+
+    /**
+     * Creates a {@link TestMetrics} with a copy of the given metrics.
+     */
+    public TestMetrics(TestMetrics other) {
+        for (Map.Entry<String, Metric> entry : other.mMetrics.entrySet()) {
+            mMetrics.put(entry.getKey(), new Metric(entry.getValue()));
+        }
+    }
+
+    /**
+     * Creates a {@link TestMetrics} with the given string metrics.
+     */
+    public TestMetrics(Map<String, String> metrics) {
+        putAll(metrics);
+    }
+
+    private Metric getOrCreate(String key) {
+        Metric metric = mMetrics.get(key);
+        if (metric == null) {
+            metric = new Metric();
+            mMetrics.put(key, metric);
+        }
+        return metric;
+    }
+
+    /**
+     * Sets a metric, replacing any existing value.
+     */
+    public void put(String key, long value) {
+        getOrCreate(key).setLong(value);
+    }
+
+    /**
+     * Sets a metric, replacing any existing value.
+     */
+    public void put(String key, double value) {
+        getOrCreate(key).setDouble(value);
+    }
+
+    /**
+     * Sets a metric, replacing any existing value.
+     */
+    public void put(String key, String value) {
+        getOrCreate(key).setString(value);
+    }
+
+    /**
+     * Adds to a metric. If the existing value is not numeric, it is replaced.
+     */
+    public void add(String key, long value) {
+        Metric metric = mMetrics.get(key);
+        if (metric == null) {
+            put(key, value);
+            return;
+        }
+        metric.parse();
+        if (metric.mType == TYPE_LONG) {
+            metric.setLong(metric.mLong + value);
+        } else if (metric.mType == TYPE_DOUBLE) {
+            metric.setDouble(metric.mDouble + value);
+        } else {
+            metric.setLong(value);
+        }
+    }
+
+    /**
+     * Adds to a metric. If the existing value is not numeric, it is replaced.
+     */
+    public void add(String key, double value) {
+        Metric metric = mMetrics.get(key);
+        if (metric == null) {
+            put(key, value);
+            return;
+        }
+        metric.parse();
+        if (metric.mType == TYPE_LONG) {
+            metric.setDouble(metric.mLong + value);
+        } else if (metric.mType == TYPE_DOUBLE) {
+            metric.setDouble(metric.mDouble + value);
+        } else {
+            metric.setDouble(value);
+        }
+    }
+
+    /**
+     * Adds a string value to a metric. If either value is not numeric, the existing value is
+     * replaced.
+     */
+    public void add(String key, String value) {
+        Metric metric = mMetrics.get(key);
+        if (metric == null) {
+            put(key, value);
+            return;
+        }
+        Metric newMetric = new Metric();
+        newMetric.setString(value);
+        add(key, newMetric);
+    }
+
+    private void add(String key, Metric value) {
+        value.parse();
+        if (value.mType == TYPE_LONG) {
+            add(key, value.mLong);
+        } else if (value.mType == TYPE_DOUBLE) {
+            add(key, value.mDouble);
+        } else {
+            put(key, value.mString);
+        }
+    }
+
+    /**
+     * Sets all given metrics, replacing any existing values.
+     */
+    public void putAll(Map<String, String> metrics) {
+        for (Map.Entry<String, String> entry : metrics.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Sets all given metrics, replacing any existing values.
+     */
+    public void putAll(TestMetrics metrics) {
+        for (Map.Entry<String, Metric> entry : metrics.mMetrics.entrySet()) {
+            mMetrics.put(entry.getKey(), new Metric(entry.getValue()));
+        }
+    }
+
+    /**
+     * Adds all given metrics to the existing values.
+     */
+    public void addAll(Map<String, String> metrics) {
+        for (Map.Entry<String, String> entry : metrics.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Adds all given metrics to the existing values.
+     */
+    public void addAll(TestMetrics metrics) {
+        for (Map.Entry<String, Metric> entry : metrics.mMetrics.entrySet()) {
+            Metric metric = entry.getValue();
+            if (!mMetrics.containsKey(entry.getKey())) {
+                mMetrics.put(entry.getKey(), new Metric(metric));
+            } else {
+                add(entry.getKey(), new Metric(metric));
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if a metric with the given key exists
+     */
+    public boolean containsKey(String key) {
+        return mMetrics.containsKey(key);
+    }
+
+    /**
+     * Gets a metric as a string.
+     *
+     * @return the value, or <code>null</code> if there is no metric with the given key
+     */
+    public String getString(String key) {
+        Metric metric = mMetrics.get(key);
+        return metric == null ? null : metric.format();
+    }
+
+    /**
+     * Gets a metric as a <code>long</code>. Floating point values are truncated.
+     *
+     * @return the value, or <var>defaultValue</var> if the metric does not exist or is not numeric
+     */
+    public long getLong(String key, long defaultValue) {
+        Metric metric = mMetrics.get(key);
+        if (metric == null) {
+            return defaultValue;
+        }
+        metric.parse();
+        if (metric.mType == TYPE_LONG) {
+            return metric.mLong;
+        } else if (metric.mType == TYPE_DOUBLE) {
+            return (long)metric.mDouble;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Gets a metric as a <code>double</code>.
+     *
+     * @return the value, or <var>defaultValue</var> if the metric does not exist or is not numeric
+     */
+    public double getDouble(String key, double defaultValue) {
+        Metric metric = mMetrics.get(key);
+        if (metric == null) {
+            return defaultValue;
+        }
+        metric.parse();
+        if (metric.mType == TYPE_LONG) {
+            return metric.mLong;
+        } else if (metric.mType == TYPE_DOUBLE) {
+            return metric.mDouble;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return the metric keys, in the order they were first added
+     */
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(mMetrics.keySet());
+    }
+
+    /**
+     * @return the number of metrics
+     */
+    public int size() {
+        return mMetrics.size();
+    }
+
+    /**
+     * @return <code>true</code> if there are no metrics
+     */
+    public boolean isEmpty() {
+        return mMetrics.isEmpty();
+    }
+
+    /**
+     * Converts the metrics to strings, for {@link ITestRunListener#testRunEnded(long, Map)}.
+     *
+     * @return a new {@link Map} of the metric values as strings
+     */
+    public Map<String, String> toStringMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>(mMetrics.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Metric> entry : mMetrics.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().format());
+        }
+        return map;
+    }
+
+    /**
+     * Reports the end of a test run with typed metrics if the listener supports them, otherwise
+     * with the metrics converted to strings.
+     *
+     * @param listener the {@link ITestRunListener} to report to
+     * @param elapsedTime the elapsed time of the test run in ms
+     * @param runMetrics the run metrics
+     */
+    public static void reportTestRunEnded(ITestRunListener listener, long elapsedTime,
+            TestMetrics runMetrics) {
+        if (listener instanceof ITypedMetricsListener) {
+            ((ITypedMetricsListener)listener).testRunEnded(elapsedTime, runMetrics);
+        } else {
+            listener.testRunEnded(elapsedTime, runMetrics.toStringMap());
+        }
+    }
+
+    /**
+     * Check if the value is a decimal integer that can be parsed by {@link Long#parseLong(String)}.
+     */
+    private static boolean isLong(String value) {
+        int length = value.length();
+        int start = length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+') ? 1 : 0;
+        if (start == length) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        if (length - start > MAX_SAFE_LONG_DIGITS) {
+            try {
+                Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cheaply rejects most values that {@link Double#parseDouble(String)} cannot parse, to avoid
+     * the cost of the exception.
+     */
+    private static boolean maybeDouble(String value) {
+        String trimmed = value.trim();
+        if (trimmed.length() == 0) {
+            return false;
+        }
+        char c = trimmed.charAt(0);
+        if (c == '-' || c == '+') {
+            if (trimmed.length() == 1) {
+                return false;
+            }
+            c = trimmed.charAt(1);
+        }
+        return (c >= '0' && c <= '9') || c == '.' || c == 'N' || c == 'I';
+    }
+}
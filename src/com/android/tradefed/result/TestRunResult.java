@@ -20,7 +20,6 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.TestResult.TestStatus;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -35,7 +34,7 @@ public class TestRunResult {
     // Uses a LinkedHashmap to have predictable iteration order
     private Map<TestIdentifier, TestResult> mTestResults =
         Collections.synchronizedMap(new LinkedHashMap<TestIdentifier, TestResult>());
-    private Map<String, String> mRunMetrics = new HashMap<String, String>();
+    private TestMetrics mRunMetrics = new TestMetrics();
     private boolean mIsRunComplete = false;
     private long mElapsedTime = 0;
     private int mNumFailedTests = 0;
@@ -85,48 +84,39 @@ public class TestRunResult {
      */
     public void addMetrics(Map<String, String> runMetrics, boolean aggregateMetrics) {
         if (aggregateMetrics) {
-            for (Map.Entry<String, String> entry : runMetrics.entrySet()) {
-                String existingValue = mRunMetrics.get(entry.getKey());
-                String combinedValue = combineValues(existingValue, entry.getValue());
-                mRunMetrics.put(entry.getKey(), combinedValue);
-            }
+            mRunMetrics.addAll(runMetrics);
         } else {
             mRunMetrics.putAll(runMetrics);
         }
     }
 
     /**
-     * Combine old and new metrics value
-     *
-     * @param existingValue
-     * @param value
-     * @return
+     * Adds typed test run metrics.
+     * <p/>
+     * @param runMetrics the run metrics
+     * @param aggregateMetrics if <code>true</code>, attempt to add given metrics values to any
+     * currently stored values. If <code>false</code>, replace any currently stored metrics with
+     * the same key.
      */
-    private String combineValues(String existingValue, String newValue) {
-        if (existingValue != null) {
-            try {
-                Long existingLong = Long.parseLong(existingValue);
-                Long newLong = Long.parseLong(newValue);
-                return Long.toString(existingLong + newLong);
-            } catch (NumberFormatException e) {
-                // not a long, skip to next
-            }
-            try {
-               Double existingDouble = Double.parseDouble(existingValue);
-               Double newDouble = Double.parseDouble(newValue);
-               return Double.toString(existingDouble + newDouble);
-            } catch (NumberFormatException e) {
-                // not a double either, fall through
-            }
+    public void addMetrics(TestMetrics runMetrics, boolean aggregateMetrics) {
+        if (aggregateMetrics) {
+            mRunMetrics.addAll(runMetrics);
+        } else {
+            mRunMetrics.putAll(runMetrics);
         }
-        // default to overriding existingValue
-        return newValue;
     }
 
     /**
-     * @return a {@link Map} of the test test run metrics.
+     * @return a new {@link Map} of the test run metrics, formatted as strings.
      */
     public Map<String, String> getRunMetrics() {
+        return mRunMetrics.toStringMap();
+    }
+
+    /**
+     * @return the typed {@link TestMetrics} of the test run.
+     */
+    public TestMetrics getTypedRunMetrics() {
         return mRunMetrics;
     }
 
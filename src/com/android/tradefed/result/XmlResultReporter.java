@@ -25,15 +25,20 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.TestResult.TestStatus;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 
 import org.kxml2.io.KXmlSerializer;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TimeZone;
 
@@ -44,14 +49,18 @@ import java.util.TimeZone;
  * Unlike Ant's formatter, this class does not report the execution time of
  * tests.
  * <p/>
- * Collects all test info in memory, then dumps to file when invocation is complete.
+ * Each test case is appended to a temporary file as soon as it completes, so memory use does not
+ * grow with the number of tests. Only the summary counts are kept, and the complete report is
+ * assembled when the invocation is complete. A test that is run more than once is reported once
+ * for each run. If a test case cannot be written, no report is generated, rather than a report
+ * whose counts do not match its test cases.
  * <p/>
  * Ported from dalvik runner XmlReportPrinter.
  * <p/>
  * Result files will be stored in path constructed via [--output-file-path]/[build_id]
  */
 @OptionClass(alias = "xml")
-public class XmlResultReporter extends CollectingTestListener {
+public class XmlResultReporter implements ITestInvocationListener {
 
     private static final String LOG_TAG = "XmlResultReporter";
 
@@ -87,36 +96,220 @@ public class XmlResultReporter extends CollectingTestListener {
 
     private String mReportPath = "";
 
+    /** the tests that have started but not yet ended */
+    private Map<TestIdentifier, TestResult> mRunningTests =
+            new LinkedHashMap<TestIdentifier, TestResult>();
+    private int mNumTests = 0;
+    private int mNumFailedTests = 0;
+    private int mNumErrorTests = 0;
+
+    /** the temporary file the completed test cases are streamed to */
+    private File mTestCasesFile = null;
+    private OutputStream mTestCasesStream = null;
+    private KXmlSerializer mTestCasesSerializer = null;
+    /** set if the test cases could not be written, in which case no report is generated */
+    private boolean mTestCasesWriteFailed = false;
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public void invocationEnded(long elapsedTime) {
-        super.invocationEnded(elapsedTime);
-        if (mReportDir != null) {
+    public synchronized void invocationEnded(long elapsedTime) {
+        reportIncompleteTests();
+        if (mTestCasesWriteFailed) {
+            Log.e(LOG_TAG, "Test cases could not be written, xml report will not be generated");
+        } else if (mReportDir != null) {
             generateSummary(mLogFileSaver.getFileDir(), elapsedTime);
         }
+        deleteTestCasesFile();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void invocationStarted(IBuildInfo buildInfo) {
-        super.invocationStarted(buildInfo);
+    public synchronized void invocationStarted(IBuildInfo buildInfo) {
         if (mReportDir == null) {
             throw new IllegalArgumentException(String.format("missing %s", REPORT_DIR_NAME));
         }
         mLogFileSaver = new LogFileSaver(buildInfo, mReportDir);
         mBuildInfo = buildInfo;
+        try {
+            mTestCasesFile = FileUtil.createTempFile("xml_test_cases_", TEST_RESULT_FILE_SUFFIX);
+            mTestCasesStream = new BufferedOutputStream(new FileOutputStream(mTestCasesFile));
+            mTestCasesSerializer = new KXmlSerializer();
+            mTestCasesSerializer.setOutput(mTestCasesStream, "UTF-8");
+            mTestCasesSerializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to create test case file, results will not be reported");
+            Log.e(LOG_TAG, e);
+            mTestCasesWriteFailed = true;
+            deleteTestCasesFile();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(Throwable cause) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestSummary getSummary() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        // ignore
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void testStarted(TestIdentifier test) {
+        mRunningTests.put(test, new TestResult());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
     @Override
-    public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-        super.testFailed(status, test, trace);
+    public synchronized void testFailed(TestFailure status, TestIdentifier test, String trace) {
+        TestResult result = mRunningTests.get(test);
+        if (result == null) {
+            result = new TestResult();
+            mRunningTests.put(test, result);
+        }
+        result.setStatus(status.equals(TestFailure.ERROR) ? TestStatus.ERROR :
+                TestStatus.FAILURE);
+        result.setStackTrace(trace);
         CLog.d("%s %s: %s", test, status, trace);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        TestResult result = mRunningTests.remove(test);
+        if (result == null) {
+            result = new TestResult();
+        }
+        if (result.getStatus().equals(TestStatus.INCOMPLETE)) {
+            result.setStatus(TestStatus.PASSED);
+        }
+        writeTestCase(test, result);
+    }
+
+    /**
+     * Writes the tests that started but never ended, such as a test that crashed, as errors, or
+     * as failures if they already failed.
+     */
+    private void reportIncompleteTests() {
+        for (Map.Entry<TestIdentifier, TestResult> testEntry : mRunningTests.entrySet()) {
+            TestResult result = testEntry.getValue();
+            if (result.getStatus().equals(TestStatus.INCOMPLETE)) {
+                result.setStatus(TestStatus.ERROR);
+            }
+            if (result.getStackTrace() == null) {
+                result.setStackTrace("Test did not complete");
+            }
+            writeTestCase(testEntry.getKey(), result);
+        }
+        mRunningTests.clear();
+    }
+
+    /**
+     * Counts a completed test, and streams it to the test cases file.
+     */
+    private void writeTestCase(TestIdentifier test, TestResult result) {
+        mNumTests++;
+        if (result.getStatus().equals(TestStatus.FAILURE)) {
+            mNumFailedTests++;
+        } else if (result.getStatus().equals(TestStatus.ERROR)) {
+            mNumErrorTests++;
+        }
+        if (mTestCasesSerializer != null) {
+            try {
+                print(mTestCasesSerializer, test, result);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write test case, results will not be reported");
+                Log.e(LOG_TAG, e);
+                mTestCasesWriteFailed = true;
+                deleteTestCasesFile();
+            }
+        }
+    }
+
+    /**
+     * Gets the total number of completed tests.
+     */
+    public synchronized int getNumTotalTests() {
+        return mNumTests;
+    }
+
+    /**
+     * Gets the total number of failed tests.
+     */
+    public synchronized int getNumFailedTests() {
+        return mNumFailedTests;
+    }
+
+    /**
+     * Gets the total number of error tests.
+     */
+    public synchronized int getNumErrorTests() {
+        return mNumErrorTests;
+    }
+
+    private void deleteTestCasesFile() {
+        mTestCasesSerializer = null;
+        if (mTestCasesStream != null) {
+            try {
+                mTestCasesStream.close();
+            } catch (IOException ignored) {
+            }
+            mTestCasesStream = null;
+        }
+        FileUtil.deleteFile(mTestCasesFile);
+        mTestCasesFile = null;
+    }
+
     /**
      * Creates a report file and populates it with the report data from the completed tests.
      */
@@ -132,7 +325,7 @@ public class XmlResultReporter extends CollectingTestListener {
             serializer.setFeature(
                     "http://xmlpull.org/v1/doc/features.html#indent-output", true);
             // TODO: insert build info
-            printTestResults(serializer, timestamp, elapsedTime);
+            printTestResults(serializer, stream, timestamp, elapsedTime);
             serializer.endDocument();
             String msg = String.format("XML test result file generated at %s. Total tests %d, " +
                     "Failed %d, Error %d", getAbsoluteReportPath(), getNumTotalTests(),
@@ -179,8 +372,8 @@ public class XmlResultReporter extends CollectingTestListener {
         return new FileOutputStream(reportFile);
     }
 
-    void printTestResults(KXmlSerializer serializer, String timestamp, long elapsedTime)
-            throws IOException {
+    void printTestResults(KXmlSerializer serializer, OutputStream stream, String timestamp,
+            long elapsedTime) throws IOException {
         serializer.startTag(ns, TESTSUITE);
         serializer.attribute(ns, ATTR_NAME, mBuildInfo.getTestTag());
         serializer.attribute(ns, ATTR_TESTS, Integer.toString(getNumTotalTests()));
@@ -192,17 +385,32 @@ public class XmlResultReporter extends CollectingTestListener {
         serializer.startTag(ns, PROPERTIES);
         serializer.endTag(ns, PROPERTIES);
 
-        for (TestRunResult runResult : getRunResults()) {
-            // TODO: add test run summaries as TESTSUITES ?
-            Map<TestIdentifier, TestResult> testResults = runResult.getTestResults();
-            for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
-                print(serializer, testEntry.getKey(), testEntry.getValue());
-            }
-        }
+        // TODO: add test run summaries as TESTSUITES ?
+        copyTestCases(serializer, stream);
 
         serializer.endTag(ns, TESTSUITE);
     }
 
+    /**
+     * Copies the test cases streamed to the temporary file into the report.
+     */
+    private void copyTestCases(KXmlSerializer serializer, OutputStream stream)
+            throws IOException {
+        if (mTestCasesSerializer == null) {
+            return;
+        }
+        mTestCasesSerializer.flush();
+        mTestCasesStream.flush();
+        // write the test cases as is, after anything pending in the report serializer
+        serializer.flush();
+        InputStream testCasesStream = new FileInputStream(mTestCasesFile);
+        try {
+            StreamUtil.copyStreams(testCasesStream, stream);
+        } finally {
+            StreamUtil.closeStream(testCasesStream);
+        }
+    }
+
     void print(KXmlSerializer serializer, TestIdentifier testId, TestResult testResult)
             throws IOException {
 
@@ -29,6 +29,7 @@ import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -88,7 +89,9 @@ public class DefaultTestsZipInstaller implements ITestsZipInstaller {
 
         File[] hostDataFiles = getTestsZipDataFiles(hostDir);
         for (File hostSubDir : hostDataFiles) {
-            device.syncFiles(hostSubDir, DEVICE_DATA_PATH);
+            // push in bulk, always overwriting files left in place by the data wipe skip list
+            device.pushDir(hostSubDir, buildRelPath(DEVICE_DATA_PATH, hostSubDir.getName()),
+                    false, new NoHiddenFilesFilter());
         }
 
         // FIXME: this may end up mixing host slashes and device slashes
@@ -97,6 +100,19 @@ public class DefaultTestsZipInstaller implements ITestsZipInstaller {
         }
     }
 
+    /**
+     * A {@link FilenameFilter} that rejects hidden (ie starts with ".") files.
+     */
+    private static class NoHiddenFilesFilter implements FilenameFilter {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept(File dir, String name) {
+            return !name.startsWith(".");
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
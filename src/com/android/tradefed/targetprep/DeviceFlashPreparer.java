@@ -28,8 +28,14 @@ import com.android.tradefed.targetprep.IDeviceFlasher.UserDataFlashOption;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 
+import java.util.concurrent.Semaphore;
+
 /**
  * A {@link ITargetPreparer} that flashes an image on physical Android hardware.
+ * <p/>
+ * The number of devices flashing at once on this host can be limited with the
+ * <var>concurrent-flash-limit</var> option. The time taken by each setup phase is recorded as a
+ * build attribute.
  */
 public abstract class DeviceFlashPreparer implements ITargetPreparer {
 
@@ -52,6 +58,43 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
         "specify if system should always be flashed even if already running desired build.")
     private boolean mForceSystemFlash = false;
 
+    @Option(name="concurrent-flash-limit", description=
+        "the max number of devices that can be flashed at once on this host. 0 for no limit.")
+    private int mConcurrentFlashLimit = 0;
+
+    /** the host-wide lock limiting the number of concurrent flashes */
+    private static Semaphore sConcurrentFlashLock = null;
+    private static int sConcurrentFlashLimit = 0;
+
+    /**
+     * Gets the host-wide lock used to limit the number of concurrent flashes.
+     * <p/>
+     * The lock is replaced if the limit changes. Holders of the previous lock release it normally.
+     *
+     * @param limit the max number of concurrent flashes
+     * @return the {@link Semaphore} to acquire before flashing or <code>null</code> if there is no
+     *         limit.
+     */
+    static synchronized Semaphore getConcurrentFlashLock(int limit) {
+        if (limit <= 0) {
+            return null;
+        }
+        if (sConcurrentFlashLock == null || sConcurrentFlashLimit != limit) {
+            sConcurrentFlashLock = new Semaphore(limit, true);
+            sConcurrentFlashLimit = limit;
+        }
+        return sConcurrentFlashLock;
+    }
+
+    /**
+     * Sets the max number of devices that can be flashed at once.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setConcurrentFlashLimit(int limit) {
+        mConcurrentFlashLimit = limit;
+    }
+
     /**
      * Sets the device boot time
      * <p/>
@@ -105,7 +148,8 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
         flasher.setUserDataFlashOption(mUserDataFlashOption);
         flasher.setForceSystemFlash(mForceSystemFlash);
         preEncryptDevice(device, flasher);
-        flasher.flash(device, deviceBuild);
+        flash(flasher, device, deviceBuild);
+        long startTime = System.currentTimeMillis();
         device.waitForDeviceOnline();
         postEncryptDevice(device, flasher);
         // only want logcat captured for current build, delete any accumulated log data
@@ -119,9 +163,45 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
                     "Device %s did not become available after flashing %s",
                     device.getSerialNumber(), deviceBuild.getDeviceBuildId()));
         }
+        recordPhaseTime(deviceBuild, "boot", startTime);
         device.postBootSetup();
     }
 
+    /**
+     * Flash the device, waiting first for the host-wide flash lock if concurrent flashes are
+     * limited.
+     */
+    private void flash(IDeviceFlasher flasher, ITestDevice device, IDeviceBuildInfo deviceBuild)
+            throws TargetSetupError, DeviceNotAvailableException {
+        Semaphore flashLock = getConcurrentFlashLock(mConcurrentFlashLimit);
+        long startTime = System.currentTimeMillis();
+        if (flashLock != null) {
+            Log.i(LOG_TAG, String.format("Waiting for flash lock for %s",
+                    device.getSerialNumber()));
+            flashLock.acquireUninterruptibly();
+            recordPhaseTime(deviceBuild, "lock-wait", startTime);
+            startTime = System.currentTimeMillis();
+        }
+        try {
+            flasher.flash(device, deviceBuild);
+        } finally {
+            if (flashLock != null) {
+                flashLock.release();
+            }
+        }
+        recordPhaseTime(deviceBuild, "total", startTime);
+    }
+
+    /**
+     * Records the time taken by a setup phase as a build attribute.
+     */
+    private void recordPhaseTime(IDeviceBuildInfo deviceBuild, String phase, long startTime) {
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        Log.d(LOG_TAG, String.format("Flash setup phase %s took %d ms", phase, elapsedTime));
+        deviceBuild.addBuildAttribute(String.format(FastbootDeviceFlasher.PHASE_TIME_ATTR_FORMAT,
+                phase), Long.toString(elapsedTime));
+    }
+
     /**
      * Create {@link IDeviceFlasher} to use. Subclasses can override
      * @throws DeviceNotAvailableException
@@ -22,17 +22,36 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.StreamUtil;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * A class that relies on fastboot to flash an image on physical Android hardware.
+ * <p/>
+ * Host-side preparation is pipelined with device-side operations: the build's flashing resources
+ * are parsed, and its images are read into the host's file cache, in background while the device
+ * reboots into the bootloader and the bootloader and baseband are flashed. Failures are still
+ * reported by the step that would have hit them without the background work. The time taken by
+ * each flashing phase is recorded as a build attribute, so it is reported to the invocation's
+ * listeners.
  */
 public class FastbootDeviceFlasher implements IDeviceFlasher  {
     public static final String BASEBAND_IMAGE_NAME = "radio";
 
+    /** the build attribute name format used to report the time taken by a flashing phase */
+    static final String PHASE_TIME_ATTR_FORMAT = "flash-%s-time-ms";
+
+    private static final int PREFETCH_BUF_SIZE = 64 * 1024;
+
     private UserDataFlashOption mUserDataFlashOption = UserDataFlashOption.FLASH;
 
     private IFlashingResourcesRetriever mResourceRetriever;
@@ -41,6 +60,9 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
 
     private boolean mForceSystemFlash;
 
+    /** the background task parsing the build's flashing resources, if started */
+    private BackgroundTask<IFlashingResourcesParser> mParserTask = null;
+
     /**
      * {@inheritDoc}
      */
@@ -90,15 +112,198 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
         // get system build id before booting into fastboot
         String systemBuildId = device.getBuildId();
 
-        device.rebootIntoBootloader();
+        // do the host-side preparation while the device is busy
+        startParsingFlashingResources(deviceBuild);
+        BackgroundTask<Void> imagePrefetch = startImagePrefetch(deviceBuild,
+                isSystemFlashRequired(systemBuildId, deviceBuild));
+        try {
+            long startTime = System.currentTimeMillis();
+            device.rebootIntoBootloader();
+            recordPhaseTime(deviceBuild, "reboot-bootloader", startTime);
+
+            startTime = System.currentTimeMillis();
+            downloadFlashingResources(device, deviceBuild);
+            recordPhaseTime(deviceBuild, "download", startTime);
+
+            startTime = System.currentTimeMillis();
+            checkAndFlashBootloader(device, deviceBuild);
+            recordPhaseTime(deviceBuild, "bootloader", startTime);
+
+            startTime = System.currentTimeMillis();
+            checkAndFlashBaseband(device, deviceBuild);
+            recordPhaseTime(deviceBuild, "baseband", startTime);
+
+            startTime = System.currentTimeMillis();
+            flashUserData(device, deviceBuild);
+            wipeCache(device);
+            recordPhaseTime(deviceBuild, "userdata", startTime);
+
+            startTime = System.currentTimeMillis();
+            checkAndFlashSystem(device, systemBuildId, deviceBuild);
+            recordPhaseTime(deviceBuild, "system", startTime);
+        } finally {
+            imagePrefetch.cancel();
+            cancelParsingFlashingResources();
+        }
+    }
+
+    /**
+     * Records the time taken by a flashing phase as a build attribute.
+     *
+     * @param deviceBuild the {@link IDeviceBuildInfo} being flashed
+     * @param phase the name of the phase
+     * @param startTime the time in ms that the phase started
+     */
+    private void recordPhaseTime(IDeviceBuildInfo deviceBuild, String phase, long startTime) {
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        CLog.d("Flashing phase %s took %d ms", phase, elapsedTime);
+        deviceBuild.addBuildAttribute(String.format(PHASE_TIME_ATTR_FORMAT, phase),
+                Long.toString(elapsedTime));
+    }
+
+    /**
+     * A {@link FutureTask} that runs host-side work on a dedicated background thread.
+     * <p/>
+     * The thread inherits the caller's thread group, so its logs are captured with the
+     * invocation's logs.
+     */
+    private static class BackgroundTask<T> extends FutureTask<T> {
+
+        BackgroundTask(Callable<T> callable) {
+            super(callable);
+        }
+
+        /**
+         * Starts the task on a new background thread.
+         */
+        BackgroundTask<T> start(String name) {
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+            return this;
+        }
+
+        /**
+         * Waits for the task to complete, and returns its result.
+         *
+         * @throws TargetSetupError if task failed or was interrupted
+         */
+        T getResult() throws TargetSetupError {
+            try {
+                return super.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof TargetSetupError) {
+                    throw (TargetSetupError)e.getCause();
+                }
+                throw new TargetSetupError(String.format("Background flash preparation failed: %s",
+                        e.getCause()));
+            } catch (InterruptedException e) {
+                throw new TargetSetupError("Interrupted while waiting for flash preparation");
+            }
+        }
+
+        /**
+         * Cancels the task if it is still running.
+         */
+        void cancel() {
+            cancel(true);
+        }
+    }
+
+    /**
+     * Starts parsing the flashing resources of given build in background.
+     * <p/>
+     * The result will be used by the next call to
+     * {@link #downloadFlashingResources(ITestDevice, IDeviceBuildInfo)}.
+     */
+    private void startParsingFlashingResources(final IDeviceBuildInfo localBuild) {
+        mParserTask = new BackgroundTask<IFlashingResourcesParser>(
+                new Callable<IFlashingResourcesParser>() {
+                    @Override
+                    public IFlashingResourcesParser call() throws TargetSetupError {
+                        return createFlashingResourcesParser(localBuild);
+                    }
+                }).start("FlashingResourcesParser");
+    }
 
-        downloadFlashingResources(device, deviceBuild);
+    private void cancelParsingFlashingResources() {
+        if (mParserTask != null) {
+            mParserTask.cancel();
+            mParserTask = null;
+        }
+    }
+
+    /**
+     * Gets the {@link IFlashingResourcesParser} for given build, using the result of the
+     * background parse if one was started.
+     */
+    private IFlashingResourcesParser getFlashingResourcesParser(IDeviceBuildInfo localBuild)
+            throws TargetSetupError {
+        if (mParserTask != null) {
+            BackgroundTask<IFlashingResourcesParser> parserTask = mParserTask;
+            mParserTask = null;
+            return parserTask.getResult();
+        }
+        return createFlashingResourcesParser(localBuild);
+    }
+
+    /**
+     * Starts reading the images that will be flashed in background, to bring them into the host's
+     * file cache before fastboot needs them.
+     * <p/>
+     * This only speeds up flashing, and never fails: a missing or unreadable image is reported by
+     * the flashing step that uses it, after the steps that precede it, as without the prefetch.
+     *
+     * @param deviceBuild the {@link IDeviceBuildInfo} to flash
+     * @param flashSystem <code>true</code> if the system image will be flashed
+     * @return the {@link BackgroundTask} reading the images
+     */
+    private BackgroundTask<Void> startImagePrefetch(final IDeviceBuildInfo deviceBuild,
+            final boolean flashSystem) {
+        final UserDataFlashOption userDataFlashOption = mUserDataFlashOption;
+        return new BackgroundTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (UserDataFlashOption.FLASH.equals(userDataFlashOption)) {
+                    prefetchImage(deviceBuild.getUserDataImageFile());
+                }
+                if (flashSystem) {
+                    prefetchImage(deviceBuild.getDeviceImageFile());
+                }
+                return null;
+            }
+        }).start("FlashImagePrefetch");
+    }
 
-        checkAndFlashBootloader(device, deviceBuild);
-        checkAndFlashBaseband(device, deviceBuild);
-        flashUserData(device, deviceBuild);
-        wipeCache(device);
-        checkAndFlashSystem(device, systemBuildId, deviceBuild);
+    /**
+     * Reads given image file fully, so it is in the host's file cache when it is flashed.
+     *
+     * @param imageFile the image {@link File}, or <code>null</code> if the build has none
+     */
+    private static void prefetchImage(File imageFile) {
+        if (imageFile == null) {
+            return;
+        }
+        long size = 0;
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(imageFile);
+            byte[] buf = new byte[PREFETCH_BUF_SIZE];
+            int bytesRead;
+            while ((bytesRead = stream.read(buf)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                size += bytesRead;
+            }
+        } catch (IOException e) {
+            CLog.d("Failed to prefetch image %s: %s", imageFile.getAbsolutePath(),
+                    e.getMessage());
+            return;
+        } finally {
+            StreamUtil.closeStream(stream);
+        }
+        CLog.d("Prefetched %d bytes of image %s", size, imageFile.getAbsolutePath());
     }
 
     /**
@@ -140,7 +345,7 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
      */
     protected void downloadFlashingResources(ITestDevice device, IDeviceBuildInfo localBuild)
             throws TargetSetupError, DeviceNotAvailableException {
-        IFlashingResourcesParser resourceParser = createFlashingResourcesParser(localBuild);
+        IFlashingResourcesParser resourceParser = getFlashingResourcesParser(localBuild);
 
         if (resourceParser.getRequiredBoards() == null) {
             throw new TargetSetupError(String.format("Build %s is missing required board info.",
@@ -162,6 +367,7 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
                    getBootloaderFilePrefix(device), bootloaderVersion), bootloaderVersion);
         }
         String basebandVersion = resourceParser.getRequiredBasebandVersion();
+        // retrievers are not required to be thread-safe, so images are retrieved in turn
         // only set baseband image if this build doesn't have one already
         if (basebandVersion != null && localBuild.getBasebandImageFile() == null) {
             localBuild.setBasebandImage(getFlashingResourcesRetriever().retrieveFile(
@@ -414,8 +620,7 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
      */
     protected boolean checkAndFlashSystem(ITestDevice device, String systemBuildId,
             IDeviceBuildInfo deviceBuild) throws DeviceNotAvailableException, TargetSetupError {
-        if (mForceSystemFlash ||
-                (systemBuildId != null && !systemBuildId.equals(deviceBuild.getDeviceBuildId()))) {
+        if (isSystemFlashRequired(systemBuildId, deviceBuild)) {
             CLog.i("Flashing system %s", deviceBuild.getDeviceBuildId());
             flashSystem(device, deviceBuild);
             return true;
@@ -427,6 +632,18 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
         }
     }
 
+    /**
+     * Determine if the system image needs to be flashed.
+     *
+     * @param systemBuildId the current build id running on device
+     * @param deviceBuild the {@link IDeviceBuildInfo} that contains the system image to flash
+     * @return <code>true</code> if system should be flashed
+     */
+    private boolean isSystemFlashRequired(String systemBuildId, IDeviceBuildInfo deviceBuild) {
+        return mForceSystemFlash ||
+                (systemBuildId != null && !systemBuildId.equals(deviceBuild.getDeviceBuildId()));
+    }
+
     /**
      * Flash the system image on device.
      *
@@ -27,6 +27,8 @@ import com.android.tradefed.device.ITestDevice;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * A {@link ITargetPreparer} that installs one or more apks located on the filesystem.
@@ -47,10 +49,15 @@ public class InstallApkSetup implements ITargetPreparer {
     @Override
     public void setUp(ITestDevice device, IBuildInfo buildInfo) throws TargetSetupError,
             BuildError, DeviceNotAvailableException {
-        for (File apk : mApkPaths) {
-            Log.i(LOG_TAG, String.format("Installing %s on %s", apk.getName(),
-                    device.getSerialNumber()));
-            String result = device.installPackage(apk, true);
+        if (mApkPaths.isEmpty()) {
+            return;
+        }
+        Log.i(LOG_TAG, String.format("Installing %d apks on %s", mApkPaths.size(),
+                device.getSerialNumber()));
+        List<String> results = device.installPackages(mApkPaths, true, false);
+        Iterator<File> apkIter = mApkPaths.iterator();
+        for (String result : results) {
+            File apk = apkIter.next();
             if (result != null) {
                 Log.e(LOG_TAG, String.format("Failed to install %s on device %s. Reason: %s",
                         apk.getAbsolutePath(), device.getSerialNumber(), result));
@@ -52,6 +52,11 @@ public class PushFilePreparer implements ITargetPreparer {
             "If false, continue if pushes fail.  If true, abort the Invocation on any failure.")
     private boolean mAbortOnFailure = true;
 
+    @Option(name="skip-unchanged-files", description=
+            "When pushing a directory, skip files already present on the device with the same " +
+            "size and modification time.")
+    private boolean mSkipUnchanged = false;
+
     /**
      * Set abort on failure.  Exposed for testing.
      */
@@ -107,7 +112,7 @@ public class PushFilePreparer implements ITargetPreparer {
                 continue;
             }
             if (src.isDirectory()) {
-                if (!device.pushDir(src, pair[1])) {
+                if (!device.pushDir(src, pair[1], mSkipUnchanged)) {
                     fail(String.format("Failed to push local '%s' to remote '%s'", pair[0],
                             pair[1]));
                     continue;
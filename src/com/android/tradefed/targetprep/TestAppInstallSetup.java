@@ -28,6 +28,7 @@ import com.android.tradefed.util.FileUtil;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * A {@link ITargetPreparer} that installs one or more apps from a
@@ -72,6 +73,7 @@ public class TestAppInstallSetup implements ITargetPreparer {
                     "Provided buildInfo does not contain a valid tests directory");
         }
 
+        List<File> testAppFiles = new ArrayList<File>(mTestFileNames.size());
         for (String testAppName : mTestFileNames) {
             File testAppFile = FileUtil.getFileForPath(testsDir, "DATA", "app", testAppName);
             if (!testAppFile.exists()) {
@@ -79,11 +81,16 @@ public class TestAppInstallSetup implements ITargetPreparer {
                     String.format("Could not find test app %s directory in extracted tests.zip",
                             testAppFile));
             }
-            String result = device.installPackage(testAppFile, true);
-            if (result != null) {
+            testAppFiles.add(testAppFile);
+        }
+        // stop at the first failure, as the setup fails anyway
+        List<String> results = device.installPackages(testAppFiles, true, true);
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) != null) {
                 throw new TargetSetupError(
-                        String.format("Failed to install %s on %s. Reason: '%s'", testAppName,
-                                device.getSerialNumber(), result));
+                        String.format("Failed to install %s on %s. Reason: '%s'",
+                                testAppFiles.get(i).getName(), device.getSerialNumber(),
+                                results.get(i)));
             }
         }
     }
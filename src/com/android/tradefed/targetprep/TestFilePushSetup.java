@@ -44,6 +44,11 @@ public class TestFilePushSetup implements ITargetPreparer {
             importance = Importance.IF_UNSET)
     private Collection<String> mTestPaths = new ArrayList<String>();
 
+    @Option(name = "skip-unchanged-files", description =
+            "skip pushing test files already present on device with the same size and " +
+            "modification time.")
+    private boolean mSkipUnchanged = false;
+
     /**
      * Adds a file to the list of items to push
      *
@@ -84,7 +89,7 @@ public class TestFilePushSetup implements ITargetPreparer {
             fileName = getDevicePathFromUserData(fileName);
             CLog.d("Pushing file: %s -> %s", localFile.getAbsoluteFile(), fileName);
             if (localFile.isDirectory()) {
-                device.pushDir(localFile, fileName);
+                device.pushDir(localFile, fileName, mSkipUnchanged);
             } else if (localFile.isFile()) {
                 device.pushFile(localFile, fileName);
             }
@@ -20,18 +20,38 @@ import com.android.ddmlib.FileListingService;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.IFileEntry;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestMetrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A Test that runs a native test package on given device.
  */
 @OptionClass(alias = "gtest")
-public class GTest implements IDeviceTest, IRemoteTest {
+public class GTest implements IDeviceTest, IShardableTest {
 
     private static final String LOG_TAG = "GTest";
     static final String DEFAULT_NATIVETEST_PATH = "/data/nativetest";
@@ -63,6 +83,27 @@ public class GTest implements IDeviceTest, IRemoteTest {
             description = "Send coverage target info to test listeners.")
     private boolean mSendCoverage = true;
 
+    @Option(name = "num-shards", description =
+            "Shard this test into given number of separately runnable chunks, to run on " +
+            "separate devices.")
+    private int mNumShards = 1;
+
+    @Option(name = "shard-binaries", description =
+            "When sharding, distribute whole test binaries among the shards, rather than " +
+            "splitting the tests within each binary.")
+    private boolean mShardBinaries = false;
+
+    @Option(name = "max-parallel-binaries", description =
+            "The max number of test binaries to run concurrently on the device. When greater " +
+            "than 1, the results of all binaries are reported as a single test run, with test " +
+            "classes qualified by binary name.")
+    private int mMaxParallelBinaries = 1;
+
+    /** the index of this shard, when this test is one of {@link #mTotalShards} shards */
+    private int mShardIndex = 0;
+    /** the total number of shards this test is part of, or 0 if this test is not a shard */
+    private int mTotalShards = 0;
+
     /** coverage target value. Just report all gtests as 'native' for now */
     private static final String COVERAGE_TARGET = "Native";
 
@@ -70,6 +111,9 @@ public class GTest implements IDeviceTest, IRemoteTest {
     private static final String GTEST_FLAG_PRINT_TIME = "--gtest_print_time";
     private static final String GTEST_FLAG_FILTER = "--gtest_filter";
     private static final String GTEST_FLAG_RUN_DISABLED_TESTS = "--gtest_also_run_disabled_tests";
+    // GTest environment variables...
+    private static final String GTEST_ENV_TOTAL_SHARDS = "GTEST_TOTAL_SHARDS";
+    private static final String GTEST_ENV_SHARD_INDEX = "GTEST_SHARD_INDEX";
 
     /**
      * {@inheritDoc}
@@ -130,6 +174,41 @@ public class GTest implements IDeviceTest, IRemoteTest {
         mMaxTestTimeMs = timeout;
     }
 
+    /**
+     * Make this test one of <var>totalShards</var> shards.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param shardIndex the index of this shard, from 0 to totalShards - 1
+     * @param totalShards the total number of shards
+     */
+    void setShard(int shardIndex, int totalShards) {
+        mShardIndex = shardIndex;
+        mTotalShards = totalShards;
+    }
+
+    /**
+     * Set the number of shards to split this test into.
+     */
+    public void setNumShards(int numShards) {
+        mNumShards = numShards;
+    }
+
+    /**
+     * Set whether to distribute whole test binaries among shards, rather than splitting the tests
+     * within each binary.
+     */
+    public void setShardBinaries(boolean shardBinaries) {
+        mShardBinaries = shardBinaries;
+    }
+
+    /**
+     * Set the max number of test binaries to run concurrently on the device.
+     */
+    public void setMaxParallelBinaries(int maxParallelBinaries) {
+        mMaxParallelBinaries = maxParallelBinaries;
+    }
+
     /**
      * Set the Android native test name to run (positive filter).
      *
@@ -220,6 +299,8 @@ public class GTest implements IDeviceTest, IRemoteTest {
     /**
      * Executes all native tests in a folder as well as in all subfolders recursively.
      * <p/>
+     * If this test is a shard, only the binaries or tests of this shard are executed.
+     * <p/>
      * Exposed for unit testing.
      *
      * @param rootEntry The root folder to begin searching for native tests
@@ -229,22 +310,168 @@ public class GTest implements IDeviceTest, IRemoteTest {
      */
     void doRunAllTestsInSubdirectory(IFileEntry rootEntry, ITestDevice testDevice,
             ITestRunListener listener) throws DeviceNotAvailableException {
+        List<IFileEntry> binaries = new ArrayList<IFileEntry>();
+        collectTestBinaries(rootEntry, binaries);
+        if (mTotalShards > 1 && mShardBinaries) {
+            binaries = getShardBinaries(binaries);
+        }
+        if (mMaxParallelBinaries > 1 && binaries.size() > 1) {
+            runTestBinariesInParallel(rootEntry.getName(), binaries, testDevice, listener);
+        } else {
+            for (IFileEntry binary : binaries) {
+                runTestBinary(binary, testDevice, createResultParser(binary.getName(), listener));
+            }
+        }
+    }
 
+    /**
+     * Collects all native test binaries in a folder as well as in all subfolders recursively.
+     */
+    private void collectTestBinaries(IFileEntry rootEntry, List<IFileEntry> binaries)
+            throws DeviceNotAvailableException {
         if (rootEntry.isDirectory()) {
-            // recursively run tests in all subdirectories
             for (IFileEntry childEntry : rootEntry.getChildren(true)) {
-                doRunAllTestsInSubdirectory(childEntry, testDevice, listener);
+                collectTestBinaries(childEntry, binaries);
             }
         } else {
             // assume every file is a valid gtest binary.
-            IShellOutputReceiver resultParser = createResultParser(rootEntry.getName(), listener);
-            String fullPath = rootEntry.getFullEscapedPath();
-            String flags = getAllGTestFlags();
-            Log.i(LOG_TAG, String.format("Running gtest %s %s on %s", fullPath, flags,
-                    mDevice.getSerialNumber()));
-            // force file to be executable
-            testDevice.executeShellCommand(String.format("chmod 755 %s", fullPath));
-            runTest(testDevice, resultParser, fullPath, flags);
+            binaries.add(rootEntry);
+        }
+    }
+
+    /**
+     * Gets the binaries this shard should run, out of all <var>binaries</var>.
+     * <p/>
+     * Binaries are ordered by path, so every shard computes the same distribution regardless of
+     * the order the device lists them in.
+     */
+    private List<IFileEntry> getShardBinaries(List<IFileEntry> binaries) {
+        List<IFileEntry> sortedBinaries = new ArrayList<IFileEntry>(binaries);
+        Collections.sort(sortedBinaries, new Comparator<IFileEntry>() {
+            @Override
+            public int compare(IFileEntry o1, IFileEntry o2) {
+                return o1.getFullEscapedPath().compareTo(o2.getFullEscapedPath());
+            }
+        });
+        List<IFileEntry> shardBinaries = new ArrayList<IFileEntry>();
+        for (int i = mShardIndex; i < sortedBinaries.size(); i += mTotalShards) {
+            shardBinaries.add(sortedBinaries.get(i));
+        }
+        return shardBinaries;
+    }
+
+    /**
+     * Executes a single native test binary, sending its output to given <var>resultParser</var>.
+     */
+    private void runTestBinary(IFileEntry binary, ITestDevice testDevice,
+            IShellOutputReceiver resultParser) throws DeviceNotAvailableException {
+        String fullPath = binary.getFullEscapedPath();
+        String flags = getAllGTestFlags();
+        Log.i(LOG_TAG, String.format("Running gtest %s %s on %s", fullPath, flags,
+                mDevice.getSerialNumber()));
+        // force file to be executable
+        testDevice.executeShellCommand(String.format("chmod 755 %s", fullPath));
+        runTest(testDevice, resultParser, fullPath, flags);
+    }
+
+    /**
+     * Executes the given native test binaries, up to {@link #mMaxParallelBinaries} at a time.
+     * <p/>
+     * The results of all binaries are reported to <var>listener</var> as a single test run with
+     * given <var>runName</var>, see {@link MergedRunListener}. If a binary fails, the binaries
+     * still running are cancelled, and the run ends once they have stopped.
+     */
+    private void runTestBinariesInParallel(String runName, List<IFileEntry> binaries,
+            final ITestDevice testDevice, ITestRunListener listener)
+            throws DeviceNotAvailableException {
+        int numThreads = Math.min(mMaxParallelBinaries, binaries.size());
+        Log.i(LOG_TAG, String.format("Running %d gtest binaries on %s, %d at a time",
+                binaries.size(), mDevice.getSerialNumber(), numThreads));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("GTest-%s-%d",
+                        mDevice.getSerialNumber(), mThreadCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+        final MergedRunListener mergedRun = new MergedRunListener(listener, runName);
+        mergedRun.startRun();
+        try {
+            for (final IFileEntry binary : binaries) {
+                completionService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws DeviceNotAvailableException {
+                        runTestBinary(binary, testDevice, mergedRun.getBinaryReceiver(
+                                createResultParser(binary.getName(),
+                                        mergedRun.getBinaryListener(binary.getName()))));
+                        return null;
+                    }
+                });
+            }
+            // wait in order of completion, so the first failure is rethrown as soon as it occurs
+            for (int i = 0; i < binaries.size(); i++) {
+                waitForBinary(completionService);
+            }
+        } finally {
+            // shell commands ignore interrupts, so stop the binaries through their receivers, and
+            // don't release the device until they no longer use it
+            mergedRun.cancel();
+            executor.shutdownNow();
+            awaitTermination(executor);
+            mergedRun.endRun();
+        }
+    }
+
+    /**
+     * Waits for the next test binary submitted by {@link #runTestBinariesInParallel} to complete,
+     * rethrowing any failure.
+     */
+    private void waitForBinary(CompletionService<Void> completionService)
+            throws DeviceNotAvailableException {
+        try {
+            completionService.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while running gtest binaries", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Waits for all the test binaries run by given <var>executor</var> to stop, even if
+     * interrupted.
+     */
+    private void awaitTermination(ExecutorService executor) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (!executor.isTerminated()) {
+                try {
+                    if (!executor.awaitTermination(mMaxTestTimeMs, TimeUnit.MILLISECONDS)) {
+                        Log.w(LOG_TAG, String.format("Waiting for gtest binaries to stop on %s",
+                                mDevice.getSerialNumber()));
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -261,7 +488,8 @@ public class GTest implements IDeviceTest, IRemoteTest {
             final String fullPath, final String flags) throws DeviceNotAvailableException {
         // TODO: add individual test timeout support, and rerun support
         try {
-            testDevice.executeShellCommand(String.format("%s %s", fullPath, flags), resultParser,
+            testDevice.executeShellCommand(String.format("%s%s %s", getShardEnv(), fullPath, flags),
+                    resultParser,
                     mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
                     0 /* retryAttempts */);
         } catch (DeviceNotAvailableException e) {
@@ -275,6 +503,21 @@ public class GTest implements IDeviceTest, IRemoteTest {
         }
     }
 
+    /**
+     * Gets the environment variable assignments that select the tests of this shard from each
+     * binary.
+     *
+     * @return the assignments, followed by a space, or an empty string if the whole binary should
+     *         be run
+     */
+    private String getShardEnv() {
+        if (mTotalShards > 1 && !mShardBinaries) {
+            return String.format("%s=%d %s=%d ", GTEST_ENV_TOTAL_SHARDS, mTotalShards,
+                    GTEST_ENV_SHARD_INDEX, mShardIndex);
+        }
+        return "";
+    }
+
     /**
      * Factory method for creating a {@link IShellOutputReceiver} that parses test output and
      * forwards results to the result listener.
@@ -294,6 +537,32 @@ public class GTest implements IDeviceTest, IRemoteTest {
         return resultParser;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<IRemoteTest> split() {
+        if (mNumShards <= 1) {
+            return null;
+        }
+        Collection<IRemoteTest> shards = new ArrayList<IRemoteTest>(mNumShards);
+        for (int i = 0; i < mNumShards; i++) {
+            GTest shard = new GTest();
+            try {
+                OptionCopier.copyOptions(this, shard);
+            } catch (ConfigurationException e) {
+                // should never happen, as both objects are of same class
+                throw new IllegalStateException(e);
+            }
+            // device will be set by test invoker
+            shard.setRunDisabled(mRunDisabledTests);
+            shard.setNumShards(1);
+            shard.setShard(i, mNumShards);
+            shards.add(shard);
+        }
+        return shards;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -313,4 +582,151 @@ public class GTest implements IDeviceTest, IRemoteTest {
         }
         doRunAllTestsInSubdirectory(nativeTestDirectory, mDevice, listener);
     }
+
+    /**
+     * Merges the results of test binaries run concurrently into a single test run, forwarding
+     * test results as they are received.
+     * <p/>
+     * Binaries only report their test count once they start, and they are started as others
+     * complete, so the total is not known when the merged run starts. The run is therefore
+     * started with a test count of 0. The run failures of each binary are combined and reported
+     * when the run ends, as is the sum of their metrics, with the elapsed wall clock time of the
+     * whole run. Events received after the run ended are ignored.
+     * <p/>
+     * Different binaries may contain test cases with the same suite and test names, so the class
+     * name of each test is qualified with the name of its binary, as &lt;binary&gt;.&lt;suite&gt;.
+     */
+    private static class MergedRunListener {
+
+        private final ITestRunListener mListener;
+        private final String mRunName;
+        private final TestMetrics mRunMetrics = new TestMetrics();
+        private final List<String> mRunFailures = new ArrayList<String>();
+        private long mStartTime = 0;
+        private boolean mRunEnded = false;
+        private volatile boolean mCancelled = false;
+
+        MergedRunListener(ITestRunListener listener, String runName) {
+            mListener = listener;
+            mRunName = runName;
+        }
+
+        synchronized void startRun() {
+            mStartTime = System.currentTimeMillis();
+            mListener.testRunStarted(mRunName, 0);
+        }
+
+        synchronized void endRun() {
+            if (mRunEnded) {
+                return;
+            }
+            mRunEnded = true;
+            if (!mRunFailures.isEmpty()) {
+                StringBuilder failures = new StringBuilder();
+                for (String failure : mRunFailures) {
+                    if (failures.length() > 0) {
+                        failures.append("; ");
+                    }
+                    failures.append(failure);
+                }
+                mListener.testRunFailed(failures.toString());
+            }
+            TestMetrics.reportTestRunEnded(mListener, System.currentTimeMillis() - mStartTime,
+                    mRunMetrics);
+        }
+
+        /**
+         * Cancels the binaries that are still running, through the receivers returned by
+         * {@link #getBinaryReceiver(IShellOutputReceiver)}.
+         */
+        void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * Gets a {@link IShellOutputReceiver} that forwards the output of a binary to given
+         * <var>resultParser</var>, and that is cancelled when this run is cancelled.
+         */
+        IShellOutputReceiver getBinaryReceiver(final IShellOutputReceiver resultParser) {
+            return new IShellOutputReceiver() {
+                @Override
+                public void addOutput(byte[] data, int offset, int length) {
+                    resultParser.addOutput(data, offset, length);
+                }
+
+                @Override
+                public void flush() {
+                    resultParser.flush();
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return mCancelled || resultParser.isCancelled();
+                }
+            };
+        }
+
+        /**
+         * Gets a {@link ITestRunListener} to receive the results of the binary with given name.
+         */
+        ITestRunListener getBinaryListener(final String binaryName) {
+            return new ITestRunListener() {
+                private TestIdentifier qualify(TestIdentifier test) {
+                    return new TestIdentifier(String.format("%s.%s", binaryName,
+                            test.getClassName()), test.getTestName());
+                }
+
+                @Override
+                public void testRunStarted(String runName, int testCount) {
+                    // already reported by the merged run
+                }
+
+                @Override
+                public void testStarted(TestIdentifier test) {
+                    synchronized (MergedRunListener.this) {
+                        if (!mRunEnded) {
+                            mListener.testStarted(qualify(test));
+                        }
+                    }
+                }
+
+                @Override
+                public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+                    synchronized (MergedRunListener.this) {
+                        if (!mRunEnded) {
+                            mListener.testFailed(status, qualify(test), trace);
+                        }
+                    }
+                }
+
+                @Override
+                public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+                    synchronized (MergedRunListener.this) {
+                        if (!mRunEnded) {
+                            mListener.testEnded(qualify(test), testMetrics);
+                        }
+                    }
+                }
+
+                @Override
+                public void testRunFailed(String errorMessage) {
+                    synchronized (MergedRunListener.this) {
+                        mRunFailures.add(String.format("%s: %s", binaryName, errorMessage));
+                    }
+                }
+
+                @Override
+                public void testRunStopped(long elapsedTime) {
+                    // binaries are never stopped on their own; the merged run ends as a whole
+                }
+
+                @Override
+                public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+                    synchronized (MergedRunListener.this) {
+                        mRunMetrics.addAll(runMetrics);
+                    }
+                }
+            };
+        }
+    }
 }
@@ -25,11 +25,10 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.IFileEntry;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestMetrics;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * A Test that runs a native benchmark test executable on given device.
@@ -185,8 +184,8 @@ public class NativeBenchmarkTest implements IDeviceTest, IRemoteTest {
             long startTime = System.currentTimeMillis();
 
             listener.testRunStarted(runName, 0);
-            Map<String, String> metricMap = new HashMap<String, String>();
-            metricMap.put(ITERATION_KEY, Integer.toString(mNumIterations));
+            TestMetrics metrics = new TestMetrics();
+            metrics.put(ITERATION_KEY, mNumIterations);
             try {
                 for (Integer delay : mDelays) {
                     NativeBenchmarkTestParser resultParser = createResultParser(runName);
@@ -199,12 +198,12 @@ public class NativeBenchmarkTest implements IDeviceTest, IRemoteTest {
                     Log.i(LOG_TAG, String.format("Running native benchmark test on %s: %s",
                             mDevice.getSerialNumber(), cmd));
                     testDevice.executeShellCommand(cmd, resultParser, mMaxRunTime, 0);
-                    addMetric(metricMap, resultParser, delay);
+                    addMetric(metrics, resultParser, delay);
                 }
                 // TODO: is catching exceptions, and reporting testRunFailed necessary?
             } finally {
                 final long elapsedTime = System.currentTimeMillis() - startTime;
-                listener.testRunEnded(elapsedTime, metricMap);
+                TestMetrics.reportTestRunEnded(listener, elapsedTime, metrics);
             }
         }
     }
@@ -212,15 +211,15 @@ public class NativeBenchmarkTest implements IDeviceTest, IRemoteTest {
     /**
      * Adds the operation time metric for a run with given delay
      *
-     * @param metricMap
+     * @param metrics
      * @param resultParser
      * @param delay
      */
-    private void addMetric(Map<String, String> metricMap, NativeBenchmarkTestParser resultParser,
+    private void addMetric(TestMetrics metrics, NativeBenchmarkTestParser resultParser,
             Integer delay) {
         String metricKey = String.format("%s-delay%d", AVG_OP_TIME_KEY_PREFIX, delay);
         // temporarily convert seconds to microseconds, as some reporters cannot handle small values
-        metricMap.put(metricKey, Double.toString(resultParser.getAvgOperationTime()*1000000));
+        metrics.put(metricKey, resultParser.getAvgOperationTime()*1000000);
     }
 
     /**
@@ -26,9 +26,7 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.IFileEntry;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
-
-import java.util.HashMap;
-import java.util.Map;
+import com.android.tradefed.result.TestMetrics;
 
 /**
  * A Test that runs a native stress test executable on given device.
@@ -191,13 +189,13 @@ public class NativeStressTest implements IDeviceTest, IRemoteTest {
         final long elapsedTime = System.currentTimeMillis() - startTime;
         int iterationsComplete = parser.getIterationsCompleted();
         float avgIterationTime = iterationsComplete > 0 ? elapsedTime / iterationsComplete : 0;
-        Map<String, String> metricMap = new HashMap<String, String>(2);
+        TestMetrics metrics = new TestMetrics();
         Log.i(LOG_TAG, String.format(
                 "Stress test %s is finished. Num iterations %d, avg time %f ms",
                 parser.getRunName(), iterationsComplete, avgIterationTime));
-        metricMap.put(ITERATION_KEY, Integer.toString(iterationsComplete));
-        metricMap.put(AVG_ITERATION_TIME_KEY, Float.toString(avgIterationTime));
-        listener.testRunEnded(elapsedTime, metricMap);
+        metrics.put(ITERATION_KEY, iterationsComplete);
+        metrics.put(AVG_ITERATION_TIME_KEY, avgIterationTime);
+        TestMetrics.reportTestRunEnded(listener, elapsedTime, metrics);
     }
 
     /**
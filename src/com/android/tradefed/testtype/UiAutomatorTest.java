@@ -172,10 +172,13 @@ public class UiAutomatorTest implements IRemoteTest, IDeviceTest {
             }
             // get bugreport
             data = getDevice().getBugreport();
-            mListener.testLog(test.getTestName() + "_failure_bugreport.txt",
-                    LogDataType.TEXT, data);
-            if (data != null) {
-                data.cancel();
+            try {
+                mListener.testLog(test.getTestName() + "_failure_bugreport.txt",
+                        LogDataType.TEXT, data);
+            } finally {
+                if (data != null) {
+                    data.cancel();
+                }
             }
         }
     }
@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.util;
 
+import com.android.tradefed.result.InputStreamSource;
 
 /**
  * Contains the result of a command.
@@ -24,6 +25,8 @@ public class CommandResult {
     private CommandStatus mCmdStatus = CommandStatus.TIMED_OUT;
     private String mStdout = null;
     private String mStderr = null;
+    private InputStreamSource mStdoutSource = null;
+    private InputStreamSource mStderrSource = null;
 
     /**
      * Create a {@link CommandResult} with the default {@link CommandStatus#TIMED_OUT} status.
@@ -78,4 +81,38 @@ public class CommandResult {
     public void setStderr(String stderr) {
         mStderr = stderr;
     }
+
+    /**
+     * Get the standard output produced by command as a {@link InputStreamSource}.
+     * <p/>
+     * Only populated for commands run with
+     * {@link IRunUtil#runTimedCmdWithOutputSource(long, String...)}. Caller is responsible for
+     * calling {@link InputStreamSource#cancel()} once done with the output.
+     *
+     * @return the standard output or <code>null</code> if output could not be retrieved
+     */
+    public InputStreamSource getStdoutSource() {
+        return mStdoutSource;
+    }
+
+    public void setStdoutSource(InputStreamSource stdoutSource) {
+        mStdoutSource = stdoutSource;
+    }
+
+    /**
+     * Get the standard error output produced by command as a {@link InputStreamSource}.
+     * <p/>
+     * Only populated for commands run with
+     * {@link IRunUtil#runTimedCmdWithOutputSource(long, String...)}. Caller is responsible for
+     * calling {@link InputStreamSource#cancel()} once done with the output.
+     *
+     * @return the standard error or <code>null</code> if output could not be retrieved
+     */
+    public InputStreamSource getStderrSource() {
+        return mStderrSource;
+    }
+
+    public void setStderrSource(InputStreamSource stderrSource) {
+        mStderrSource = stderrSource;
+    }
 }
\ No newline at end of file
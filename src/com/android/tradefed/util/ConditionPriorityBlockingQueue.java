@@ -15,11 +15,18 @@
  */
 package com.android.tradefed.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
@@ -28,6 +35,18 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * A class with {@link PriorityBlockingQueue}-like operations that can retrieve objects that
  * match a certain condition.
+ * <p/>
+ * Elements are stored in a binary heap, so retrieving the minimum element is O(log n). Retrieving
+ * the minimum element that matches a {@link IMatcher} visits elements in priority order, and so
+ * only examines the elements that are higher priority than the matched one. If the queue is
+ * created with a {@link IKeyExtractor}, polls with a {@link IKeyedMatcher} that specifies a key
+ * only examine elements with that key, and polls with a {@link IMultiKeyedMatcher} that specifies
+ * a set of candidate keys only examine elements with one of those keys.
+ * <p/>
+ * The priority of an element is evaluated when it is added to the queue and whenever the heap is
+ * rearranged around it. Elements whose relative order changes while queued will still be
+ * returned, but not necessarily in exact priority order. Elements must not change their
+ * {@link Object#equals(Object)}, {@link Object#hashCode()} or key while queued.
  *
  * @see {@link PriorityBlockingQueue}
  */
@@ -48,6 +67,53 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
         boolean matches(T element);
     }
 
+    /**
+     * A {@link IMatcher} that can only match elements with a specific index key.
+     *
+     * @param <T>
+     */
+    public static interface IKeyedMatcher<T> extends IMatcher<T> {
+        /**
+         * Get the index key that all matched elements must have.
+         *
+         * @return the key, as computed by the queue's {@link IKeyExtractor}, or <code>null</code>
+         *         if this matcher can match elements with any key
+         */
+        Object getMatchKey();
+    }
+
+    /**
+     * A {@link IMatcher} that can only match elements with one of a set of index keys.
+     * <p/>
+     * The keys are requested on every poll, so may change as elements are added to the queue.
+     *
+     * @param <T>
+     */
+    public static interface IMultiKeyedMatcher<T> extends IMatcher<T> {
+        /**
+         * Get the index keys that matched elements may have.
+         *
+         * @return the keys, as computed by the queue's {@link IKeyExtractor}, or <code>null</code>
+         *         if this matcher can match elements with any key
+         */
+        Collection<?> getMatchKeys();
+    }
+
+    /**
+     * An interface for computing the index key of an element.
+     *
+     * @param <T>
+     */
+    public static interface IKeyExtractor<T> {
+        /**
+         * Get the index key for given <var>element</var>.
+         *
+         * @param element the object to compute key for
+         * @return the key, or <code>null</code> if element should not be indexed
+         */
+        Object getKey(T element);
+    }
+
     /**
      * A {@link IMatcher} that matches any object.
      *
@@ -74,8 +140,57 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
         }
     }
 
-    /** the list of current objects */
-    private final LinkedList<T> mList;
+    /**
+     * A queued element, along with its insertion order and current position in the heap.
+     */
+    private static class Entry<T> {
+        private final T mElement;
+        private final long mSequence;
+        private final Object mKey;
+        private int mHeapIndex;
+
+        Entry(T element, long sequence, Object key) {
+            mElement = element;
+            mSequence = sequence;
+            mKey = key;
+        }
+    }
+
+    /**
+     * Orders {@link Entry}s by the provided {@link Comparator}, then by insertion order.
+     */
+    private class EntryComparator implements Comparator<Entry<T>> {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compare(Entry<T> e1, Entry<T> e2) {
+            if (mComparator != null) {
+                int result = mComparator.compare(e1.mElement, e2.mElement);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            if (e1.mSequence == e2.mSequence) {
+                return 0;
+            }
+            return e1.mSequence < e2.mSequence ? -1 : 1;
+        }
+    }
+
+    /** the binary heap of current objects */
+    private final ArrayList<Entry<T>> mHeap;
+
+    /** map of objects to their queue entries, used for O(1) lookup by equality */
+    private final Map<T, LinkedList<Entry<T>>> mEntryMap;
+
+    /** optional index of queue entries by key. <code>null</code> if no key extractor is used */
+    private final Map<Object, Set<Entry<T>>> mKeyIndex;
+
+    private final IKeyExtractor<T> mKeyExtractor;
+
+    /** the sequence number to assign to the next added object */
+    private long mNextSequence = 0;
 
     /** the global lock */
     private final ReentrantLock mLock = new ReentrantLock(true);
@@ -85,8 +200,15 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      */
     private final List<ConditionMatcherPair<T>> mWaitingMatcherList;
 
+    /**
+     * Map of index key to the {@link IKeyedMatcher}'s waiting for an object with that key
+     */
+    private final Map<Object, List<ConditionMatcherPair<T>>> mWaitingKeyedMatcherMap;
+
     private final Comparator<T> mComparator;
 
+    private final EntryComparator mEntryComparator = new EntryComparator();
+
     /**
      * Creates a {@link ConditionPriorityBlockingQueue}
      * <p/>
@@ -102,9 +224,25 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @param c the {@link Comparator} used to prioritize the queue.
      */
     public ConditionPriorityBlockingQueue(Comparator<T> c) {
+        this(c, null);
+    }
+
+    /**
+     * Creates a {@link ConditionPriorityBlockingQueue} that indexes elements by key.
+     *
+     * @param c the {@link Comparator} used to prioritize the queue. If <code>null</code>,
+     *            elements will be prioritized in FIFO order.
+     * @param keyExtractor the {@link IKeyExtractor} used to index elements. If <code>null</code>,
+     *            elements will not be indexed.
+     */
+    public ConditionPriorityBlockingQueue(Comparator<T> c, IKeyExtractor<T> keyExtractor) {
         mComparator = c;
-        mList = new LinkedList<T>();
+        mKeyExtractor = keyExtractor;
+        mHeap = new ArrayList<Entry<T>>();
+        mEntryMap = new HashMap<T, LinkedList<Entry<T>>>();
+        mKeyIndex = keyExtractor == null ? null : new HashMap<Object, Set<Entry<T>>>();
         mWaitingMatcherList = new LinkedList<ConditionMatcherPair<T>>();
+        mWaitingKeyedMatcherMap = new HashMap<Object, List<ConditionMatcherPair<T>>>();
     }
 
     /**
@@ -126,24 +264,120 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
     public T poll(IMatcher<T> matcher) {
         mLock.lock();
         try {
-            // reference to the current min object
-            T minObject = null;
-            ListIterator<T> iter = mList.listIterator();
-            while (iter.hasNext()) {
-                T obj = iter.next();
-                if (matcher.matches(obj) && compareObjects(obj, minObject) < 0) {
-                    minObject = obj;
-                }
-            }
-            if (minObject != null) {
-                mList.remove(minObject);
+            Entry<T> minEntry = findMinEntry(matcher);
+            if (minEntry != null) {
+                removeEntry(minEntry);
+                return minEntry.mElement;
             }
-            return minObject;
+            return null;
         } finally {
             mLock.unlock();
         }
     }
 
+    /**
+     * Find the minimum entry whose element matches given <var>matcher</var>.
+     * <p/>
+     * Must be called with lock held.
+     *
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @return the minimum matched {@link Entry} or <code>null</code>
+     */
+    private Entry<T> findMinEntry(IMatcher<T> matcher) {
+        Object key = getMatchKey(matcher);
+        if (key != null) {
+            // only need to examine the elements with the requested key
+            return findMinKeyedEntry(Collections.singleton(key), matcher);
+        }
+        Collection<?> keys = getMatchKeys(matcher);
+        if (keys != null) {
+            return findMinKeyedEntry(keys, matcher);
+        }
+        if (mHeap.isEmpty()) {
+            return null;
+        }
+        Entry<T> head = mHeap.get(0);
+        if (matcher.matches(head.mElement)) {
+            return head;
+        }
+        // visit the heap in priority order: a node can only be visited after its parent, so
+        // expand the children of each visited node into a frontier ordered by priority
+        PriorityQueue<Entry<T>> frontier = new PriorityQueue<Entry<T>>(11, mEntryComparator);
+        addChildren(head, frontier);
+        while (!frontier.isEmpty()) {
+            Entry<T> entry = frontier.poll();
+            if (matcher.matches(entry.mElement)) {
+                return entry;
+            }
+            addChildren(entry, frontier);
+        }
+        return null;
+    }
+
+    /**
+     * Find the minimum entry with one of given <var>keys</var> whose element matches given
+     * <var>matcher</var>.
+     * <p/>
+     * Must be called with lock held.
+     */
+    private Entry<T> findMinKeyedEntry(Collection<?> keys, IMatcher<T> matcher) {
+        Entry<T> minEntry = null;
+        for (Object key : keys) {
+            Set<Entry<T>> candidates = mKeyIndex.get(key);
+            if (candidates == null) {
+                continue;
+            }
+            for (Entry<T> entry : candidates) {
+                if (matcher.matches(entry.mElement) && (minEntry == null ||
+                        mEntryComparator.compare(entry, minEntry) < 0)) {
+                    minEntry = entry;
+                }
+            }
+        }
+        return minEntry;
+    }
+
+    /**
+     * Add the heap children of given <var>entry</var> to <var>frontier</var>.
+     */
+    private void addChildren(Entry<T> entry, PriorityQueue<Entry<T>> frontier) {
+        int child = 2 * entry.mHeapIndex + 1;
+        if (child < mHeap.size()) {
+            frontier.add(mHeap.get(child));
+        }
+        if (child + 1 < mHeap.size()) {
+            frontier.add(mHeap.get(child + 1));
+        }
+    }
+
+    /**
+     * Get the index key of given <var>matcher</var>.
+     *
+     * @return the key or <code>null</code> if this queue is not indexed or the matcher does not
+     *         specify a key
+     */
+    @SuppressWarnings("unchecked")
+    private Object getMatchKey(IMatcher<T> matcher) {
+        if (mKeyIndex != null && matcher instanceof IKeyedMatcher) {
+            return ((IKeyedMatcher<T>)matcher).getMatchKey();
+        }
+        return null;
+    }
+
+    /**
+     * Get the candidate index keys of given <var>matcher</var>.
+     *
+     * @return the keys or <code>null</code> if this queue is not indexed or the matcher does not
+     *         specify keys
+     */
+    @SuppressWarnings("unchecked")
+    private Collection<?> getMatchKeys(IMatcher<T> matcher) {
+        if (mKeyIndex != null && matcher instanceof IMultiKeyedMatcher) {
+            return ((IMultiKeyedMatcher<T>)matcher).getMatchKeys();
+        }
+        return null;
+    }
+
     /**
      * Retrieves and removes the minimum (as judged by the provided {@link Comparator} element T in
      * the queue.
@@ -190,11 +424,15 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
     private T blockingPoll(Long nanos, IMatcher<T> matcher) throws InterruptedException {
         mLock.lockInterruptibly();
         try {
-            T matchedObj = null;
+            T matchedObj = poll(matcher);
+            if (matchedObj != null || (nanos != null && nanos <= 0)) {
+                // no need to wait
+                return matchedObj;
+            }
             Condition myCondition = mLock.newCondition();
             ConditionMatcherPair<T> myMatcherPair = new ConditionMatcherPair<T>(matcher,
                     myCondition);
-            mWaitingMatcherList.add(myMatcherPair);
+            addWaitingMatcher(myMatcherPair);
             try {
                 while ((matchedObj = poll(matcher)) == null && (nanos == null || nanos > 0)) {
                     if (nanos != null) {
@@ -207,10 +445,9 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
                 // TODO: do we need to propagate to non-interrupted thread?
                 throw ie;
             } finally {
-                mWaitingMatcherList.remove(myMatcherPair);
+                removeWaitingMatcher(myMatcherPair);
             }
 
-            assert matchedObj != null;
             return matchedObj;
         } finally {
             mLock.unlock();
@@ -218,27 +455,58 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
     }
 
     /**
-     * Compare given <var>object</var> against given <var>minObject</var> using this class'
-     * {@link Comparator}.
-     *
-     * @param object the object to compare
-     * @param minObject the current minimum object to use as basis for comparison
-     * @return -1 if <var>object</var> is less than <var>minObject</var> or <var>minObject</var> is
-     *         null.<br/>
-     *         0 if the two objects are equal.<br/>
-     *         1 if <var>object</var> is greater than <var>minObject</var>. Note that 1 will always
-     *         be returned if FIFO prioritization is used (ie the comparator is null) and
-     *         <var>minObject</var> is not null, because <var>minObject</var> represents an
-     *         <var>object</var> that is earlier in the queue.
-     */
-    private int compareObjects(T object, T minObject) {
-        if (minObject == null) {
-            return -1;
-        } else if (mComparator == null) {
-            return 1;
+     * Register a waiting matcher. Must be called with lock held.
+     */
+    private void addWaitingMatcher(ConditionMatcherPair<T> matcherPair) {
+        Object key = getMatchKey(matcherPair.mMatcher);
+        if (key != null) {
+            List<ConditionMatcherPair<T>> keyedList = mWaitingKeyedMatcherMap.get(key);
+            if (keyedList == null) {
+                keyedList = new LinkedList<ConditionMatcherPair<T>>();
+                mWaitingKeyedMatcherMap.put(key, keyedList);
+            }
+            keyedList.add(matcherPair);
+        } else {
+            // includes IMultiKeyedMatchers, as their keys may change while waiting
+            mWaitingMatcherList.add(matcherPair);
+        }
+    }
+
+    /**
+     * Unregister a waiting matcher. Must be called with lock held.
+     */
+    private void removeWaitingMatcher(ConditionMatcherPair<T> matcherPair) {
+        Object key = getMatchKey(matcherPair.mMatcher);
+        if (key != null) {
+            List<ConditionMatcherPair<T>> keyedList = mWaitingKeyedMatcherMap.get(key);
+            if (keyedList != null) {
+                keyedList.remove(matcherPair);
+                if (keyedList.isEmpty()) {
+                    mWaitingKeyedMatcherMap.remove(key);
+                }
+            }
         } else {
-            return mComparator.compare(object, minObject);
+            mWaitingMatcherList.remove(matcherPair);
+        }
+    }
+
+    /**
+     * Signal the first waiting matcher in <var>matcherPairs</var> that matches
+     * <var>element</var>.
+     *
+     * @return <code>true</code> if a waiting matcher was signalled
+     */
+    private boolean signalWaitingMatcher(List<ConditionMatcherPair<T>> matcherPairs, T element) {
+        if (matcherPairs == null) {
+            return false;
+        }
+        for (ConditionMatcherPair<T> matcherPair : matcherPairs) {
+            if (matcherPair.mMatcher.matches(element)) {
+                matcherPair.mCondition.signal();
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -277,16 +545,35 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @throws NullPointerException if the specified element is null
      */
     public boolean add(T addedElement) {
+        if (addedElement == null) {
+            throw new NullPointerException();
+        }
         mLock.lock();
         try {
-            boolean ok = mList.add(addedElement);
-            assert ok;
+            Object key = mKeyExtractor == null ? null : mKeyExtractor.getKey(addedElement);
+            Entry<T> entry = new Entry<T>(addedElement, mNextSequence++, key);
+            entry.mHeapIndex = mHeap.size();
+            mHeap.add(entry);
+            siftUp(entry.mHeapIndex);
 
-            for (ConditionMatcherPair<T> matcherPair : mWaitingMatcherList) {
-                if (matcherPair.mMatcher.matches(addedElement)) {
-                    matcherPair.mCondition.signal();
-                    break;
+            LinkedList<Entry<T>> entries = mEntryMap.get(addedElement);
+            if (entries == null) {
+                entries = new LinkedList<Entry<T>>();
+                mEntryMap.put(addedElement, entries);
+            }
+            entries.add(entry);
+            if (key != null) {
+                Set<Entry<T>> keyedEntries = mKeyIndex.get(key);
+                if (keyedEntries == null) {
+                    keyedEntries = new HashSet<Entry<T>>();
+                    mKeyIndex.put(key, keyedEntries);
                 }
+                keyedEntries.add(entry);
+            }
+
+            if (key == null || !signalWaitingMatcher(mWaitingKeyedMatcherMap.get(key),
+                    addedElement)) {
+                signalWaitingMatcher(mWaitingMatcherList, addedElement);
             }
             return true;
         } finally {
@@ -294,24 +581,135 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
         }
     }
 
+    /**
+     * Removes given <var>entry</var> from the heap and all indexes. Must be called with lock held.
+     */
+    private void removeEntry(Entry<T> entry) {
+        int index = entry.mHeapIndex;
+        Entry<T> lastEntry = mHeap.remove(mHeap.size() - 1);
+        if (lastEntry != entry) {
+            mHeap.set(index, lastEntry);
+            lastEntry.mHeapIndex = index;
+            siftDown(index);
+            siftUp(lastEntry.mHeapIndex);
+        }
+        entry.mHeapIndex = -1;
+
+        LinkedList<Entry<T>> entries = mEntryMap.get(entry.mElement);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                mEntryMap.remove(entry.mElement);
+            }
+        }
+        if (entry.mKey != null) {
+            Set<Entry<T>> keyedEntries = mKeyIndex.get(entry.mKey);
+            if (keyedEntries != null) {
+                keyedEntries.remove(entry);
+                if (keyedEntries.isEmpty()) {
+                    mKeyIndex.remove(entry.mKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the entry at given heap index up until heap order is restored.
+     */
+    private void siftUp(int index) {
+        Entry<T> entry = mHeap.get(index);
+        while (index > 0) {
+            int parentIndex = (index - 1) / 2;
+            Entry<T> parent = mHeap.get(parentIndex);
+            if (mEntryComparator.compare(entry, parent) >= 0) {
+                break;
+            }
+            mHeap.set(index, parent);
+            parent.mHeapIndex = index;
+            index = parentIndex;
+        }
+        mHeap.set(index, entry);
+        entry.mHeapIndex = index;
+    }
+
+    /**
+     * Moves the entry at given heap index down until heap order is restored.
+     */
+    private void siftDown(int index) {
+        Entry<T> entry = mHeap.get(index);
+        int size = mHeap.size();
+        while (true) {
+            int childIndex = 2 * index + 1;
+            if (childIndex >= size) {
+                break;
+            }
+            Entry<T> child = mHeap.get(childIndex);
+            if (childIndex + 1 < size &&
+                    mEntryComparator.compare(mHeap.get(childIndex + 1), child) < 0) {
+                childIndex++;
+                child = mHeap.get(childIndex);
+            }
+            if (mEntryComparator.compare(entry, child) <= 0) {
+                break;
+            }
+            mHeap.set(index, child);
+            child.mHeapIndex = index;
+            index = childIndex;
+        }
+        mHeap.set(index, entry);
+        entry.mHeapIndex = index;
+    }
+
     /**
      * Removes all elements from this queue.
      */
     public void clear() {
         mLock.lock();
         try {
-            mList.clear();
+            for (Entry<T> entry : mHeap) {
+                entry.mHeapIndex = -1;
+            }
+            mHeap.clear();
+            mEntryMap.clear();
+            if (mKeyIndex != null) {
+                mKeyIndex.clear();
+            }
         } finally {
             mLock.unlock();
         }
     }
 
     /**
+     * Returns an iterator over a snapshot of the elements in this queue, in insertion order.
+     * <p/>
+     * The iterator does not reflect later modifications to the queue, and does not support
+     * removal.
+     * <p/>
      * {@inheritDoc}
      */
     @Override
     public Iterator<T> iterator() {
-        return mList.iterator();
+        List<Entry<T>> entries;
+        mLock.lock();
+        try {
+            entries = new ArrayList<Entry<T>>(mHeap);
+        } finally {
+            mLock.unlock();
+        }
+        Collections.sort(entries, new Comparator<Entry<T>>() {
+            @Override
+            public int compare(Entry<T> e1, Entry<T> e2) {
+                if (e1.mSequence == e2.mSequence) {
+                    return 0;
+                }
+                return e1.mSequence < e2.mSequence ? -1 : 1;
+            }
+        });
+        List<T> elements = new ArrayList<T>(entries.size());
+        for (Entry<T> entry : entries) {
+            elements.add(entry.mElement);
+        }
+        return Collections.unmodifiableList(elements).iterator();
     }
 
     /**
@@ -322,14 +720,24 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      *         otherwise.
      */
     public boolean contains(T object) {
-        return mList.contains(object);
+        mLock.lock();
+        try {
+            return mEntryMap.containsKey(object);
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /**
      * @return the number of elements in queue
      */
     public int size() {
-        return mList.size();
+        mLock.lock();
+        try {
+            return mHeap.size();
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /**
@@ -342,7 +750,13 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
     public boolean remove(T object) {
         mLock.lock();
         try {
-            return mList.remove(object);
+            LinkedList<Entry<T>> entries = mEntryMap.get(object);
+            if (entries == null) {
+                return false;
+            }
+            // remove the earliest added instance
+            removeEntry(entries.getFirst());
+            return true;
         } finally {
             mLock.unlock();
         }
@@ -27,6 +27,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -581,6 +583,39 @@ public class FileUtil {
         }
     }
 
+    /**
+     * Calculate the md5 checksum of given file's contents.
+     *
+     * @param file the {@link File} to read
+     * @return the md5 checksum, as a lower case hex string
+     * @throws IOException if file could not be read
+     */
+    public static String calculateMd5(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen, md5 is a required algorithm
+            throw new IOException("MD5 is not supported", e);
+        }
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            byte[] buf = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = stream.read(buf)) != -1) {
+                digest.update(buf, 0, bytesRead);
+            }
+        } finally {
+            StreamUtil.closeStream(stream);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
     /**
      * Helper method which constructs a unique file on temporary disk, whose name corresponds as
      * closely as possible to the file name given by the remote file path
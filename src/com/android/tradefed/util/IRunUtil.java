@@ -95,6 +95,21 @@ public interface IRunUtil {
      */
     CommandResult runTimedCmdWithInput(long timeout, String input, String... command);
 
+    /**
+     * Helper method to execute a system command that may produce large output, and aborting if it
+     * takes longer than a specified time.
+     * <p/>
+     * Similar to {@link #runTimedCmd(long, String...)}, but rather than returning output as
+     * {@link String}s, each output stream is held in memory up to a fixed size and then spilled to
+     * a temporary file. The output is available via {@link CommandResult#getStdoutSource()} and
+     * {@link CommandResult#getStderrSource()}, which the caller must cancel when done.
+     *
+     * @param timeout maximum time to wait in ms
+     * @param command the specified system command and optionally arguments to exec
+     * @return a {@link CommandResult} containing result from command run
+     */
+    public CommandResult runTimedCmdWithOutputSource(long timeout, String... command);
+
     /**
      * Helper method to execute a system command asynchronously.
      * <p/>
@@ -16,23 +16,68 @@
 
 package com.android.tradefed.util;
 
+import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
 
+import com.android.tradefed.result.InputStreamSource;
+
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A collection of helper methods for executing operations.
+ * <p/>
+ * Timed operations are executed on a shared pool of worker threads, rather than a new thread per
+ * operation. Idle workers are reused, and are reclaimed after {@link #POOL_KEEP_ALIVE_SECS}. At
+ * most {@link #MAX_POOLED_THREADS} operations run at once. If that many are running, the caller
+ * waits for one to complete, for no longer than the operation's timeout. A timed operation started
+ * from a worker thread itself does not wait, so nested operations can't deadlock the pool. Virtual
+ * threads are used for workers if the JVM supports them.
  */
 public class RunUtil implements IRunUtil {
 
     private static final int POLL_TIME_INCREASE_FACTOR = 4;
+    /**
+     * the max number of bytes of each output stream to hold in memory for
+     * {@link #runTimedCmdWithOutputSource(long, String...)}
+     */
+    private static final int OUTPUT_MEMORY_THRESHOLD = 64 * 1024;
+    /** the max number of timed operations to run at once, other than nested operations */
+    static final int MAX_POOLED_THREADS = 64;
+    /** time in seconds an idle worker thread is kept alive waiting for a new operation */
+    private static final long POOL_KEEP_ALIVE_SECS = 60;
     private static IRunUtil sDefaultInstance = null;
+    private static ThreadPoolExecutor sTimedExecutor = null;
+    private static ThreadPoolExecutor sDrainExecutor = null;
+    private static ThreadGroup sWorkerThreadGroup = null;
+    /** permits to run a timed operation, bounding the number of busy worker threads */
+    private static final Semaphore sWorkerPermits = new Semaphore(MAX_POOLED_THREADS, true);
+    /** <code>true</code> on RunUtil worker threads */
+    private static final ThreadLocal<Boolean> sIsWorkerThread = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
     private File mWorkingDir = null;
     private Map<String, String> mEnvVariables = new HashMap<String, String>();
 
@@ -135,6 +180,19 @@ public class RunUtil implements IRunUtil {
         return result;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CommandResult runTimedCmdWithOutputSource(final long timeout, final String... command) {
+        final CommandResult result = new CommandResult();
+        IRunUtil.IRunnableResult osRunnable = new RunnableResult(result, null,
+                createProcessBuilder(command), true);
+        CommandStatus status = runTimed(timeout, osRunnable, true);
+        result.setStatus(status);
+        return result;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -154,24 +212,175 @@ public class RunUtil implements IRunUtil {
         return createProcessBuilder(command).start();
     }
 
+    /**
+     * Get the shared executor used to run timed operations, creating it if necessary.
+     * <p/>
+     * The executor itself is not bounded, so a submitted operation always starts at once. The
+     * number of busy workers is bounded by {@link #sWorkerPermits} instead, which callers wait on
+     * with their timeout.
+     */
+    private static synchronized ThreadPoolExecutor getTimedExecutor() {
+        if (sTimedExecutor == null) {
+            sTimedExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, POOL_KEEP_ALIVE_SECS,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    createWorkerThreadFactory("RunUtil-worker-"));
+        }
+        return sTimedExecutor;
+    }
+
+    /**
+     * Get the executor used to drain process output streams, creating it if necessary.
+     * <p/>
+     * Kept separate from the timed operation pool, so draining never competes with the commands
+     * themselves for workers. Output must be drained as soon as it is produced, so the pool is not
+     * bounded; each running command only ever has two drainers.
+     */
+    private static synchronized ThreadPoolExecutor getDrainExecutor() {
+        if (sDrainExecutor == null) {
+            sDrainExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, POOL_KEEP_ALIVE_SECS,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    createWorkerThreadFactory("RunUtil-drainer-"));
+        }
+        return sDrainExecutor;
+    }
+
+    /**
+     * Creates a {@link ThreadFactory} for RunUtil worker threads.
+     * <p/>
+     * Uses virtual threads if the JVM supports them, otherwise daemon platform threads in a
+     * dedicated {@link ThreadGroup}. Workers must not inherit the group of whichever thread
+     * happened to start them, since that would tie their logging to an unrelated invocation. Tasks
+     * delegate their logging to the submitting thread's group instead.
+     *
+     * @param namePrefix the prefix for worker thread names
+     */
+    private static ThreadFactory createWorkerThreadFactory(final String namePrefix) {
+        try {
+            // looked up reflectively, as virtual threads are not available on all supported JVMs
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+                    namePrefix, 0L);
+            final ThreadFactory virtualFactory = (ThreadFactory)builderClass.getMethod("factory")
+                    .invoke(builder);
+            return new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return virtualFactory.newThread(new WorkerRunnable(r));
+                }
+            };
+        } catch (Exception e) {
+            // virtual threads not supported
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(getWorkerThreadGroup(), new WorkerRunnable(r),
+                        String.format("%s%d", namePrefix, mThreadCount.incrementAndGet()));
+                // worker threads shouldn't hold the JVM open
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Get the {@link ThreadGroup} for platform worker threads, creating it if necessary.
+     * <p/>
+     * The group is a child of the root group, so it is not associated with any invocation.
+     */
+    private static synchronized ThreadGroup getWorkerThreadGroup() {
+        if (sWorkerThreadGroup == null) {
+            ThreadGroup root = Thread.currentThread().getThreadGroup();
+            while (root.getParent() != null) {
+                root = root.getParent();
+            }
+            sWorkerThreadGroup = new ThreadGroup(root, "RunUtil-workers");
+        }
+        return sWorkerThreadGroup;
+    }
+
+    /**
+     * Wraps the main loop of a worker thread, so tasks can tell they are running on the pool.
+     */
+    private static class WorkerRunnable implements Runnable {
+        private final Runnable mWorkerLoop;
+
+        WorkerRunnable(Runnable workerLoop) {
+            mWorkerLoop = workerLoop;
+        }
+
+        @Override
+        public void run() {
+            sIsWorkerThread.set(Boolean.TRUE);
+            mWorkerLoop.run();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public CommandStatus runTimed(long timeout, IRunUtil.IRunnableResult runnable,
             boolean logErrors) {
-        RunnableNotifier runThread = new RunnableNotifier(runnable, logErrors);
-        runThread.start();
+        long startTime = System.currentTimeMillis();
+        // a worker waiting for a permit held by its own pool could deadlock, so nested operations
+        // run without one
+        Semaphore permits = sIsWorkerThread.get() ? null : sWorkerPermits;
+        if (permits != null) {
+            try {
+                if (timeout > 0) {
+                    if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                        CLog.i("timed out waiting for a worker thread");
+                        runnable.cancel();
+                        return CommandStatus.TIMED_OUT;
+                    }
+                } else {
+                    permits.acquire();
+                }
+            } catch (InterruptedException e) {
+                CLog.i("runnable interrupted while waiting for a worker thread");
+                return CommandStatus.EXCEPTION;
+            }
+        }
+        RunnableNotifier notifier = new RunnableNotifier(runnable, logErrors,
+                LogRegistry.getLoggingThreadGroup(), permits);
+        Future<?> future;
+        try {
+            future = getTimedExecutor().submit(notifier);
+        } catch (RejectedExecutionException e) {
+            notifier.abandon();
+            CLog.e("Failed to start runnable");
+            CLog.e(e);
+            return CommandStatus.EXCEPTION;
+        }
         try {
-            runThread.join(timeout);
+            if (timeout > 0) {
+                long remainingTime = Math.max(1,
+                        timeout - (System.currentTimeMillis() - startTime));
+                future.get(remainingTime, TimeUnit.MILLISECONDS);
+            } else {
+                // match Thread.join semantics, where 0 means wait forever
+                future.get();
+            }
+        } catch (TimeoutException e) {
+            // status will be TIMED_OUT
         } catch (InterruptedException e) {
             CLog.i("runnable interrupted");
+        } catch (ExecutionException e) {
+            CLog.e("Error occurred when executing runnable");
+            CLog.e(e.getCause());
+            notifier.setStatus(CommandStatus.EXCEPTION);
         }
-        if (runThread.getStatus() == CommandStatus.TIMED_OUT
-                || runThread.getStatus() == CommandStatus.EXCEPTION) {
-            runThread.interrupt();
+        CommandStatus status = notifier.finish();
+        if (status == CommandStatus.TIMED_OUT || status == CommandStatus.EXCEPTION) {
+            runnable.cancel();
+            future.cancel(true);
+            notifier.abandon();
         }
-        return runThread.getStatus();
+        return status;
     }
 
     /**
@@ -250,47 +459,116 @@ public class RunUtil implements IRunUtil {
     }
 
     /**
-     * Helper thread that wraps a runnable, and notifies when done.
+     * Helper task that wraps a runnable, and records its status when done.
      */
-    private static class RunnableNotifier extends Thread {
+    private static class RunnableNotifier implements Runnable {
 
         private final IRunUtil.IRunnableResult mRunnable;
+        private final ThreadGroup mCallerThreadGroup;
+        /** the worker permit held for this task, or <code>null</code> if none */
+        private final Semaphore mPermits;
+        /** set once the task has either started, or been abandoned before starting */
+        private final AtomicBoolean mStarted = new AtomicBoolean(false);
         private CommandStatus mStatus = CommandStatus.TIMED_OUT;
+        private boolean mFinished = false;
         private boolean mLogErrors = true;
 
-        RunnableNotifier(IRunUtil.IRunnableResult runnable, boolean logErrors) {
+        RunnableNotifier(IRunUtil.IRunnableResult runnable, boolean logErrors,
+                ThreadGroup callerThreadGroup, Semaphore permits) {
             mRunnable = runnable;
             mLogErrors = logErrors;
+            mCallerThreadGroup = callerThreadGroup;
+            mPermits = permits;
+        }
+
+        /**
+         * Release the worker permit if the task has not started, as it then never will. A started
+         * task releases its permit once the runnable returns, so the number of busy workers stays
+         * bounded even if the runnable ignores cancellation.
+         */
+        void abandon() {
+            if (mStarted.compareAndSet(false, true) && mPermits != null) {
+                mPermits.release();
+            }
         }
 
         @Override
         public void run() {
-            CommandStatus status;
+            if (!mStarted.compareAndSet(false, true)) {
+                // abandoned by the caller
+                return;
+            }
+            // log to the caller's log, rather than the log of the worker thread's group
+            LogRegistry.setDelegatedThreadGroup(mCallerThreadGroup);
             try {
-                status = mRunnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
-            } catch (InterruptedException e) {
-                CLog.i("runutil interrupted");
-                status = CommandStatus.EXCEPTION;
-            } catch (Exception e) {
-                if (mLogErrors) {
-                    CLog.e("Exception occurred when executing runnable");
-                    CLog.e(e);
+                CommandStatus status;
+                try {
+                    status = mRunnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
+                } catch (InterruptedException e) {
+                    CLog.i("runutil interrupted");
+                    status = CommandStatus.EXCEPTION;
+                } catch (Exception e) {
+                    if (mLogErrors) {
+                        CLog.e("Exception occurred when executing runnable");
+                        CLog.e(e);
+                    }
+                    status = CommandStatus.EXCEPTION;
+                }
+                setStatus(status);
+            } finally {
+                LogRegistry.setDelegatedThreadGroup(null);
+                if (mPermits != null) {
+                    mPermits.release();
                 }
-                status = CommandStatus.EXCEPTION;
             }
-            synchronized (this) {
+        }
+
+        /**
+         * Record the status of the runnable. Has no effect if caller has already stopped waiting
+         * for the result.
+         */
+        synchronized void setStatus(CommandStatus status) {
+            if (!mFinished) {
                 mStatus = status;
             }
         }
 
-        @Override
-        public void interrupt() {
-            mRunnable.cancel();
-            super.interrupt();
+        /**
+         * Mark that the caller has stopped waiting for the result, and get the final status.
+         */
+        synchronized CommandStatus finish() {
+            mFinished = true;
+            return mStatus;
         }
+    }
 
-        synchronized CommandStatus getStatus() {
-            return mStatus;
+    /**
+     * Helper task that copies all data from a process output stream into a sink, so the process
+     * never blocks on a full pipe.
+     */
+    private static class StreamDrainer implements Runnable {
+        private final InputStream mStream;
+        private final OutputStream mSink;
+        private final ThreadGroup mCallerThreadGroup;
+
+        StreamDrainer(InputStream stream, OutputStream sink, ThreadGroup callerThreadGroup) {
+            mStream = stream;
+            mSink = sink;
+            mCallerThreadGroup = callerThreadGroup;
+        }
+
+        @Override
+        public void run() {
+            LogRegistry.setDelegatedThreadGroup(mCallerThreadGroup);
+            try {
+                StreamUtil.copyStreams(mStream, mSink);
+            } catch (IOException e) {
+                // expected if process is destroyed
+                CLog.d("Stopped reading process output: %s", e.getMessage());
+            } finally {
+                StreamUtil.closeStream(mStream);
+                LogRegistry.setDelegatedThreadGroup(null);
+            }
         }
     }
 
@@ -298,48 +576,107 @@ public class RunUtil implements IRunUtil {
         private final ProcessBuilder mProcessBuilder;
         private final CommandResult mCommandResult;
         private final String mInput;
+        private final boolean mCaptureToSource;
         private Process mProcess = null;
 
         RunnableResult(final CommandResult result, final String input,
                 final ProcessBuilder processBuilder) {
+            this(result, input, processBuilder, false);
+        }
+
+        /**
+         * @param captureToSource if <code>true</code>, capture output into
+         *            {@link InputStreamSource}s that spill to disk. Otherwise capture output to
+         *            {@link String}s.
+         */
+        RunnableResult(final CommandResult result, final String input,
+                final ProcessBuilder processBuilder, boolean captureToSource) {
             mProcessBuilder = processBuilder;
             mInput = input;
             mCommandResult = result;
+            mCaptureToSource = captureToSource;
         }
 
         @Override
         public boolean run() throws Exception {
             CLog.d("Running %s", mProcessBuilder.command());
-            mProcess = mProcessBuilder.start();
-            if (mInput != null) {
-                BufferedOutputStream processStdin = new BufferedOutputStream(
-                        mProcess.getOutputStream());
-                processStdin.write(mInput.getBytes("UTF-8"));
-                processStdin.flush();
-                processStdin.close();
-            }
-            int rc = mProcess.waitFor();
+            Process process;
             synchronized (this) {
-                if (mProcess != null) {
-                    mCommandResult.setStdout(StreamUtil.getStringFromStream(
-                            mProcess.getInputStream()));
-                    mCommandResult.setStderr(StreamUtil.getStringFromStream(
-                            mProcess.getErrorStream()));
+                mProcess = mProcessBuilder.start();
+                process = mProcess;
+            }
+            // drain stdout and stderr while the process runs, so a process producing a lot of
+            // output doesn't block on a full pipe
+            OutputStream stdoutSink = createSink("stdout_");
+            OutputStream stderrSink = createSink("stderr_");
+            ThreadGroup callerGroup = LogRegistry.getLoggingThreadGroup();
+            Future<?> stdoutDrain = getDrainExecutor().submit(new StreamDrainer(
+                    process.getInputStream(), stdoutSink, callerGroup));
+            Future<?> stderrDrain = getDrainExecutor().submit(new StreamDrainer(
+                    process.getErrorStream(), stderrSink, callerGroup));
+            boolean outputCaptured = false;
+            try {
+                if (mInput != null) {
+                    BufferedOutputStream processStdin = new BufferedOutputStream(
+                            process.getOutputStream());
+                    processStdin.write(mInput.getBytes("UTF-8"));
+                    processStdin.flush();
+                    processStdin.close();
+                }
+                int rc = process.waitFor();
+                stdoutDrain.get();
+                stderrDrain.get();
+                synchronized (this) {
+                    if (mProcess != null) {
+                        setOutput(stdoutSink, stderrSink);
+                        outputCaptured = true;
+                    }
+                }
+
+                if (rc == 0) {
+                    return true;
+                } else {
+                    CLog.i("%s command failed. return code %d", mProcessBuilder.command(), rc);
+                }
+                return false;
+            } finally {
+                if (!outputCaptured) {
+                    stdoutDrain.cancel(true);
+                    stderrDrain.cancel(true);
+                    discardSink(stdoutSink);
+                    discardSink(stderrSink);
                 }
             }
+        }
 
-            if (rc == 0) {
-                return true;
+        private OutputStream createSink(String name) {
+            if (mCaptureToSource) {
+                return new SpillingOutputStream(OUTPUT_MEMORY_THRESHOLD, name);
+            }
+            return new ByteArrayOutputStream();
+        }
+
+        private void setOutput(OutputStream stdoutSink, OutputStream stderrSink)
+                throws IOException {
+            if (mCaptureToSource) {
+                mCommandResult.setStdoutSource(((SpillingOutputStream)stdoutSink).getData());
+                mCommandResult.setStderrSource(((SpillingOutputStream)stderrSink).getData());
             } else {
-                CLog.i("%s command failed. return code %d", mProcessBuilder.command(), rc);
+                mCommandResult.setStdout(stdoutSink.toString());
+                mCommandResult.setStderr(stderrSink.toString());
+            }
+        }
+
+        private void discardSink(OutputStream sink) {
+            if (sink instanceof SpillingOutputStream) {
+                ((SpillingOutputStream)sink).cancel();
             }
-            return false;
         }
 
         @Override
         public void cancel() {
-            if (mProcess != null) {
-                synchronized (this) {
+            synchronized (this) {
+                if (mProcess != null) {
                     mProcess.destroy();
                     mProcess = null;
                 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} that holds data in memory up to a fixed threshold, and then spills all
+ * data to a temporary file.
+ * <p/>
+ * Heap usage is bounded by the threshold regardless of how much data is written. The captured
+ * data can be retrieved as an {@link InputStreamSource} once the stream is closed.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    private final int mMemoryThreshold;
+    private final String mFilePrefix;
+    private ByteArrayOutputStream mMemoryStream;
+    private File mSpillFile = null;
+    private OutputStream mFileStream = null;
+    private long mSize = 0;
+    private boolean mIsClosed = false;
+
+    /**
+     * Creates a {@link SpillingOutputStream}.
+     *
+     * @param memoryThreshold the max number of bytes to hold in memory
+     * @param filePrefix the prefix of the temporary file to create if data exceeds threshold
+     */
+    public SpillingOutputStream(int memoryThreshold, String filePrefix) {
+        mMemoryThreshold = memoryThreshold;
+        mFilePrefix = filePrefix;
+        mMemoryStream = new ByteArrayOutputStream(Math.min(memoryThreshold, 8 * 1024));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void write(int b) throws IOException {
+        checkSpill(1);
+        getActiveStream().write(b);
+        mSize++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkSpill(len);
+        getActiveStream().write(b, off, len);
+        mSize += len;
+    }
+
+    /**
+     * Switch to file storage if writing <var>len</var> more bytes would exceed the memory
+     * threshold.
+     */
+    private void checkSpill(int len) throws IOException {
+        if (mIsClosed) {
+            throw new IOException("stream is closed");
+        }
+        if (mFileStream == null && mSize + len > mMemoryThreshold) {
+            mSpillFile = FileUtil.createTempFile(mFilePrefix, ".txt");
+            mFileStream = new BufferedOutputStream(new FileOutputStream(mSpillFile));
+            mMemoryStream.writeTo(mFileStream);
+            mMemoryStream = null;
+        }
+    }
+
+    private OutputStream getActiveStream() {
+        return mFileStream != null ? mFileStream : mMemoryStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (mFileStream != null) {
+            mFileStream.flush();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mIsClosed) {
+            mIsClosed = true;
+            if (mFileStream != null) {
+                mFileStream.close();
+            }
+        }
+    }
+
+    /**
+     * @return the total number of bytes written
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * @return <code>true</code> if data exceeded the threshold and was spilled to a file
+     */
+    public synchronized boolean isSpilled() {
+        return mSpillFile != null;
+    }
+
+    /**
+     * Closes the stream, and gets the captured data.
+     * <p/>
+     * Ownership of any spill file is transferred to the returned {@link InputStreamSource}, which
+     * will delete it when {@link InputStreamSource#cancel()} is called. Should only be called once.
+     *
+     * @return the {@link InputStreamSource} of all captured data
+     * @throws IOException if failed to close the spill file
+     */
+    public synchronized InputStreamSource getData() throws IOException {
+        close();
+        if (mSpillFile != null) {
+            return new FileInputStreamSource(mSpillFile, true);
+        }
+        return new ByteArrayInputStreamSource(mMemoryStream.toByteArray());
+    }
+
+    /**
+     * Closes the stream and deletes any spill file, discarding all captured data.
+     */
+    public synchronized void cancel() {
+        try {
+            close();
+        } catch (IOException e) {
+            // ignore
+        }
+        FileUtil.deleteFile(mSpillFile);
+        mSpillFile = null;
+    }
+}
@@ -35,6 +35,9 @@ import java.util.zip.ZipOutputStream;
  */
 public class StreamUtil {
 
+    /** the size of the buffer used when copying streams */
+    private static final int BUF_SIZE = 16 * 1024;
+
     private StreamUtil() {
     }
 
@@ -121,10 +124,10 @@ public class StreamUtil {
      */
     public static void copyStreams(InputStream inStream, OutputStream outStream)
             throws IOException {
-
-        int data = -1;
-        while ((data = inStream.read()) != -1) {
-            outStream.write(data);
+        byte[] buffer = new byte[BUF_SIZE];
+        int size = -1;
+        while ((size = inStream.read(buffer)) != -1) {
+            outStream.write(buffer, 0, size);
         }
     }
 
@@ -25,14 +25,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,6 +43,11 @@ import java.util.regex.Pattern;
  * Since the timestamps in the logcat do not have a year, the year can be set manually when the
  * parser is created or through {@link #setYear(String)}.  If a year is not set, the current year
  * will be used.
+ * </p><p>
+ * Logcat can also be parsed incrementally, by passing each line to {@link #parseLine(String)}, and
+ * calling {@link #commit()} once input has finished. Lines in threadtime format are tokenized by
+ * position, without regular expressions or per line allocations, so very large logcats can be
+ * parsed quickly.
  * </p>
  */
 public class LogcatParser implements IParser {
@@ -51,6 +55,8 @@ public class LogcatParser implements IParser {
     /**
      * Match a single line of `logcat -v threadtime`, such as:
      * 05-26 11:02:36.886  5689  5689 D AndroidRuntime: CheckJNI is OFF
+     * <p/>
+     * Only used for lines that the threadtime tokenizer could not handle.
      */
     private static final Pattern THREADTIME_LINE = Pattern.compile(
             "^(\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}.\\d{3})\\s+" +  /* timestamp [1] */
@@ -65,26 +71,98 @@ public class LogcatParser implements IParser {
             "^(\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}.\\d{3})\\s+" +  /* timestamp [1] */
                 "(\\w)/(.+?)\\(\\s*(\\d+)\\): (.*)$");  /* level, tag, pid, msg [2-5] */
 
+    /** The length of a logcat timestamp, such as "05-26 11:02:36.886" */
+    private static final int TIMESTAMP_LENGTH = 18;
+    /** Max number of digits in a pid or tid, so it can be parsed into an int without overflow */
+    private static final int MAX_ID_DIGITS = 9;
+    /** Value of {@link LogcatLine#mTid} when the logcat format has no tid */
+    private static final int NO_TID = -1;
+
+    /** The types of logcat events that are collected */
+    private static final int TYPE_NONE = -1;
+    private static final int TYPE_ANR = 0;
+    private static final int TYPE_JAVA_CRASH = 1;
+    private static final int TYPE_NATIVE_CRASH = 2;
+
+    private static final String ANR_TAG = "ActivityManager";
+    private static final String JAVA_CRASH_TAG = "AndroidRuntime";
+    private static final String NATIVE_CRASH_TAG = "DEBUG";
+
+    /**
+     * The fields of a single parsed logcat line. Reused across lines to avoid allocations.
+     * <p/>
+     * The tag and message are stored as offsets into the line, and only extracted when needed.
+     */
+    private static class LogcatLine {
+        String mLine;
+        long mTime;
+        int mPid;
+        int mTid;
+        char mLevel;
+        int mTagStart;
+        int mTagEnd;
+        int mMsgStart;
+
+        boolean isTag(String tag) {
+            return mTagEnd - mTagStart == tag.length() &&
+                    mLine.regionMatches(mTagStart, tag, 0, tag.length());
+        }
+
+        String getMessage() {
+            return mLine.substring(mMsgStart);
+        }
+    }
+
+    /**
+     * Key identifying the lines of a single logcat event.
+     */
+    private static class DataKey {
+        private final int mPid;
+        private final int mTid;
+        private final int mType;
+
+        DataKey(int pid, int tid, int type) {
+            mPid = pid;
+            mTid = tid;
+            mType = type;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DataKey)) {
+                return false;
+            }
+            DataKey other = (DataKey) obj;
+            return mPid == other.mPid && mTid == other.mTid && mType == other.mType;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mPid * 31 + mTid) * 31 + mType;
+        }
+    }
+
     /**
      * Class for storing logcat meta data for a particular grouped list of lines.
      */
     private class LogcatData {
-        public Integer mPid = null;
-        public Integer mTid = null;
-        public Date mTime = null;
-        public String mLevel = null;
-        public String mTag = null;
+        public final int mType;
+        public final int mPid;
+        public final int mTid;
+        public final long mTime;
+        /** the time of the most recent line of the event */
+        public long mLastTime;
         public String mLastPreamble = null;
         public String mProcPreamble = null;
         public List<String> mLines = new LinkedList<String>();
 
-        public LogcatData(Integer pid, Integer tid, Date time, String level, String tag,
-                String lastPreamble, String procPreamble) {
+        public LogcatData(int type, int pid, int tid, long time, String lastPreamble,
+                String procPreamble) {
+            mType = type;
             mPid = pid;
             mTid = tid;
             mTime = time;
-            mLevel = level;
-            mTag = tag;
+            mLastTime = time;
             mLastPreamble = lastPreamble;
             mProcPreamble = procPreamble;
         }
@@ -94,16 +172,28 @@ public class LogcatParser implements IParser {
     private static final int MAX_LAST_PREAMBLE_SIZE = 15;
     private static final int MAX_PROC_PREAMBLE_SIZE = 15;
 
-    private LinkedList<String> mRingBuffer = new LinkedList<String>();
+    /** Fixed size ring of the most recent parsed lines, and their pids, for the preambles */
+    private final String[] mRingLines = new String[MAX_BUFF_SIZE];
+    private final int[] mRingPids = new int[MAX_BUFF_SIZE];
+    /** The total number of lines added to the ring */
+    private long mRingCount = 0;
+
     private String mYear = null;
 
     LogcatItem mLogcat = new LogcatItem();
 
-    Map<String, LogcatData> mDataMap = new HashMap<String, LogcatData>();
+    Map<DataKey, LogcatData> mDataMap = new HashMap<DataKey, LogcatData>();
     List<LogcatData> mDataList = new LinkedList<LogcatData>();
 
-    private Date mStartTime = null;
-    private Date mStopTime = null;
+    private final LogcatLine mParsedLine = new LogcatLine();
+    private boolean mHasTime = false;
+    private long mStartTime = 0;
+    private long mStopTime = 0;
+
+    /** Cached start of the hour of the last parsed timestamp, to avoid calendar math per line */
+    private int mCachedHourKey = -1;
+    private long mCachedHourStart = 0;
+    private Calendar mCalendar = null;
 
     /**
      * Constructor for {@link LogcatParser}.
@@ -127,6 +217,8 @@ public class LogcatParser implements IParser {
      */
     public void setYear(String year) {
         mYear = year;
+        mCalendar = null;
+        mCachedHourKey = -1;
     }
 
     /**
@@ -141,9 +233,7 @@ public class LogcatParser implements IParser {
         while ((line = input.readLine()) != null) {
             parseLine(line);
         }
-        commit();
-
-        return mLogcat;
+        return commit();
     }
 
     /**
@@ -168,162 +258,356 @@ public class LogcatParser implements IParser {
         for (String line : lines) {
             parseLine(line);
         }
-        commit();
-
-        return mLogcat;
+        return commit();
     }
 
     /**
      * Parse a line of input.
+     * <p/>
+     * Call {@link #commit()} once all lines have been parsed.
      *
      * @param line The line to parse
      */
-    private void parseLine(String line) {
-        Integer pid = null;
-        Integer tid = null;
-        Date time = null;
-        String level = null;
-        String tag = null;
-        String msg = null;
-
-        Matcher m = THREADTIME_LINE.matcher(line);
-        Matcher tm = TIME_LINE.matcher(line);
-        if (m.matches()) {
-            time = parseTime(m.group(1));
-            pid = Integer.parseInt(m.group(2));
-            tid = Integer.parseInt(m.group(3));
-            level = m.group(4);
-            tag = m.group(5);
-            msg = m.group(6);
-        } else if (tm.matches()) {
-            time = parseTime(tm.group(1));
-            level = tm.group(2);
-            tag = tm.group(3);
-            pid = Integer.parseInt(tm.group(4));
-            msg = tm.group(5);
-        } else {
+    public void parseLine(String line) {
+        LogcatLine parsed = mParsedLine;
+        if (!tokenizeThreadtime(line, parsed) && !matchRegex(line, parsed)) {
             CLog.w("Failed to parse line '%s'", line);
             return;
         }
 
-        if (mStartTime == null) {
-            mStartTime = time;
-        }
-        mStopTime = time;
-
-        // ANRs are split when START matches a line.  The newest entry is kept in the dataMap
-        // for quick lookup while all entries are added to the list.
-        if ("E".equals(level) && "ActivityManager".equals(tag)) {
-            String key = encodeLine(pid, tid, level, tag);
-            LogcatData data;
-            if (!mDataMap.containsKey(key) || AnrParser.START.matcher(msg).matches()) {
-                data = new LogcatData(pid, tid, time, level, tag, getLastPreamble(),
-                        getProcPreamble(pid));
-                mDataMap.put(key, data);
-                mDataList.add(data);
-            } else {
-                data = mDataMap.get(key);
-            }
-            data.mLines.add(msg);
+        if (!mHasTime) {
+            mHasTime = true;
+            mStartTime = parsed.mTime;
         }
-
-        // PID and TID are enough to separate Java and native crashes.
-        if (("E".equals(level) && "AndroidRuntime".equals(tag)) ||
-                ("I".equals(level) && "DEBUG".equals(tag))) {
-            String key = encodeLine(pid, tid, level, tag);
-            LogcatData data;
-            if (!mDataMap.containsKey(key)) {
-                data = new LogcatData(pid, tid, time, level, tag, getLastPreamble(),
-                        getProcPreamble(pid));
+        mStopTime = parsed.mTime;
+
+        int type = getEventType(parsed);
+        if (type != TYPE_NONE) {
+            String msg = parsed.getMessage();
+            DataKey key = new DataKey(parsed.mPid, parsed.mTid, type);
+            LogcatData data = mDataMap.get(key);
+            // ANRs are split when START matches a line.  The newest entry is kept in the dataMap
+            // for quick lookup while all entries are added to the list.
+            // PID and TID are enough to separate Java and native crashes.
+            if (data == null || (type == TYPE_ANR && AnrParser.START.matcher(msg).matches())) {
+                data = new LogcatData(type, parsed.mPid, parsed.mTid, parsed.mTime,
+                        getLastPreamble(), getProcPreamble(parsed.mPid));
                 mDataMap.put(key, data);
                 mDataList.add(data);
-            } else {
-                data = mDataMap.get(key);
             }
             data.mLines.add(msg);
+            data.mLastTime = parsed.mTime;
         }
 
         // After parsing the line, add it the the buffer for the preambles.
-        mRingBuffer.add(line);
-        if (mRingBuffer.size() > MAX_BUFF_SIZE) {
-            mRingBuffer.removeFirst();
+        int ringIndex = (int) (mRingCount % MAX_BUFF_SIZE);
+        mRingLines[ringIndex] = line;
+        mRingPids[ringIndex] = parsed.mPid;
+        mRingCount++;
+    }
+
+    /**
+     * Get the type of event the given line belongs to, or {@link #TYPE_NONE}.
+     */
+    private static int getEventType(LogcatLine parsed) {
+        if (parsed.mLevel == 'E') {
+            if (parsed.isTag(ANR_TAG)) {
+                return TYPE_ANR;
+            } else if (parsed.isTag(JAVA_CRASH_TAG)) {
+                return TYPE_JAVA_CRASH;
+            }
+        } else if (parsed.mLevel == 'I' && parsed.isTag(NATIVE_CRASH_TAG)) {
+            return TYPE_NATIVE_CRASH;
         }
+        return TYPE_NONE;
     }
 
     /**
-     * Signal that the input has finished.
+     * Signal that the input has finished, and build the {@link LogcatItem}.
+     * <p/>
+     * Should only be called once.
+     *
+     * @return The {@link LogcatItem}.
      */
-    private void commit() {
+    public LogcatItem commit() {
         for (LogcatData data : mDataList) {
-            GenericLogcatItem item = null;
-            if ("E".equals(data.mLevel) && "ActivityManager".equals(data.mTag)) {
-                CLog.v("Parsing ANR: %s", data.mLines);
-                item = new AnrParser().parse(data.mLines);
-            } else if ("E".equals(data.mLevel) && "AndroidRuntime".equals(data.mTag)) {
-                CLog.v("Parsing Java crash: %s", data.mLines);
-                item = new JavaCrashParser().parse(data.mLines);
-            } else if ("I".equals(data.mLevel) && "DEBUG".equals(data.mTag)) {
-                CLog.v("Parsing native crash: %s", data.mLines);
-                item = new NativeCrashParser().parse(data.mLines);
-            }
+            GenericLogcatItem item = buildItem(data);
             if (item != null) {
-                item.setEventTime(data.mTime);
-                item.setPid(data.mPid);
-                item.setTid(data.mTid);
-                item.setLastPreamble(data.mLastPreamble);
-                item.setProcessPreamble(data.mProcPreamble);
                 mLogcat.addEvent(item);
             }
         }
 
-        mLogcat.setStartTime(mStartTime);
-        mLogcat.setStopTime(mStopTime);
+        if (mHasTime) {
+            mLogcat.setStartTime(new Date(mStartTime));
+            mLogcat.setStopTime(new Date(mStopTime));
+        }
+        return mLogcat;
     }
 
     /**
-     * Create an identifier that "should" be unique for a given logcat. In practice, we do use it as
-     * a unique identifier.
+     * Remove and return the events that are complete, for incremental parsing.
+     * <p/>
+     * An event is considered complete once the most recently parsed line is more than
+     * <var>quietTime</var> ms newer than the last line of the event. Removed events will not be
+     * included in the {@link LogcatItem} returned by {@link #commit()}.
+     *
+     * @param quietTime the time in ms after which an event with no new lines is complete. Use a
+     *            negative value to remove all events.
+     * @return the {@link List} of completed {@link GenericLogcatItem}s, in order of occurrence
      */
-    private static String encodeLine(Integer pid, Integer tid, String level, String tag) {
-        if (tid == null) {
-            return String.format("%d|%s|%s", pid, level, tag);
+    public List<GenericLogcatItem> removeCompletedEvents(long quietTime) {
+        List<GenericLogcatItem> items = new LinkedList<GenericLogcatItem>();
+        Iterator<LogcatData> dataIter = mDataList.iterator();
+        while (dataIter.hasNext()) {
+            LogcatData data = dataIter.next();
+            if (quietTime < 0 || mStopTime - data.mLastTime > quietTime) {
+                dataIter.remove();
+                DataKey key = new DataKey(data.mPid, data.mTid, data.mType);
+                if (mDataMap.get(key) == data) {
+                    mDataMap.remove(key);
+                }
+                GenericLogcatItem item = buildItem(data);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
         }
-        return String.format("%d|%d|%s|%s", pid, tid, level, tag);
+        return items;
     }
 
     /**
-     * Parse the timestamp and return a {@link Date}.  If year is not set, the current year will be
-     * used.
+     * Parse the lines of an event into a {@link GenericLogcatItem}.
      *
-     * @param timeStr The timestamp in the format {@code MM-dd HH:mm:ss.SSS}.
-     * @return The {@link Date}.
+     * @return the {@link GenericLogcatItem} or <code>null</code> if event could not be parsed
      */
-    private Date parseTime(String timeStr) {
+    private GenericLogcatItem buildItem(LogcatData data) {
+        GenericLogcatItem item = null;
+        if (data.mType == TYPE_ANR) {
+            CLog.v("Parsing ANR: %s", data.mLines);
+            item = new AnrParser().parse(data.mLines);
+        } else if (data.mType == TYPE_JAVA_CRASH) {
+            CLog.v("Parsing Java crash: %s", data.mLines);
+            item = new JavaCrashParser().parse(data.mLines);
+        } else if (data.mType == TYPE_NATIVE_CRASH) {
+            CLog.v("Parsing native crash: %s", data.mLines);
+            item = new NativeCrashParser().parse(data.mLines);
+        }
+        if (item != null) {
+            item.setEventTime(new Date(data.mTime));
+            item.setPid(data.mPid);
+            item.setTid(data.mTid == NO_TID ? null : data.mTid);
+            item.setLastPreamble(data.mLastPreamble);
+            item.setProcessPreamble(data.mProcPreamble);
+        }
+        return item;
+    }
+
+    /**
+     * Tokenize a line of `logcat -v threadtime` by position.
+     *
+     * @return <code>false</code> if the line is not in the expected format
+     */
+    private boolean tokenizeThreadtime(String line, LogcatLine parsed) {
+        final int length = line.length();
+        if (length <= TIMESTAMP_LENGTH || !isTimestamp(line)) {
+            return false;
+        }
+        int pos = skipWhitespace(line, TIMESTAMP_LENGTH);
+        if (pos == TIMESTAMP_LENGTH) {
+            return false;
+        }
+        // pid
+        int idEnd = skipDigits(line, pos);
+        if (idEnd == pos || idEnd - pos > MAX_ID_DIGITS) {
+            return false;
+        }
+        int pid = parseDigits(line, pos, idEnd);
+        pos = skipWhitespace(line, idEnd);
+        if (pos == idEnd) {
+            return false;
+        }
+        // tid
+        idEnd = skipDigits(line, pos);
+        if (idEnd == pos || idEnd - pos > MAX_ID_DIGITS) {
+            return false;
+        }
+        int tid = parseDigits(line, pos, idEnd);
+        pos = skipWhitespace(line, idEnd);
+        if (pos == idEnd || pos >= length) {
+            return false;
+        }
+        // level
+        char level = line.charAt(pos);
+        if (level < 'A' || level > 'Z') {
+            return false;
+        }
+        pos++;
+        int tagStart = skipWhitespace(line, pos);
+        if (tagStart == pos || tagStart >= length) {
+            return false;
+        }
+        // tag is non empty, and ends at the first ": "
+        int colon = line.indexOf(": ", tagStart + 1);
+        if (colon < 0) {
+            return false;
+        }
+        int tagEnd = colon;
+        while (tagEnd > tagStart + 1 && Character.isWhitespace(line.charAt(tagEnd - 1))) {
+            tagEnd--;
+        }
+
+        parsed.mLine = line;
+        parsed.mTime = parseTime(line);
+        parsed.mPid = pid;
+        parsed.mTid = tid;
+        parsed.mLevel = level;
+        parsed.mTagStart = tagStart;
+        parsed.mTagEnd = tagEnd;
+        parsed.mMsgStart = colon + 2;
+        return true;
+    }
+
+    /**
+     * Parse a line using the threadtime and time regular expressions.
+     *
+     * @return <code>false</code> if the line matches neither format
+     */
+    private boolean matchRegex(String line, LogcatLine parsed) {
+        Matcher m = THREADTIME_LINE.matcher(line);
+        if (m.matches()) {
+            parsed.mPid = Integer.parseInt(m.group(2));
+            parsed.mTid = Integer.parseInt(m.group(3));
+            parsed.mLevel = m.group(4).charAt(0);
+            parsed.mTagStart = m.start(5);
+            parsed.mTagEnd = m.end(5);
+            parsed.mMsgStart = m.start(6);
+        } else {
+            m = TIME_LINE.matcher(line);
+            if (!m.matches()) {
+                return false;
+            }
+            parsed.mLevel = m.group(2).charAt(0);
+            parsed.mTagStart = m.start(3);
+            parsed.mTagEnd = m.end(3);
+            parsed.mPid = Integer.parseInt(m.group(4));
+            parsed.mTid = NO_TID;
+            parsed.mMsgStart = m.start(5);
+        }
+        parsed.mLine = line;
+        parsed.mTime = parseTime(line);
+        return true;
+    }
+
+    /**
+     * Check that the line starts with a timestamp in the format {@code MM-dd HH:mm:ss.SSS}.
+     */
+    private static boolean isTimestamp(String line) {
+        return isDigits(line, 0, 2) && line.charAt(2) == '-' && isDigits(line, 3, 5) &&
+                line.charAt(5) == ' ' && isDigits(line, 6, 8) && line.charAt(8) == ':' &&
+                isDigits(line, 9, 11) && line.charAt(11) == ':' && isDigits(line, 12, 14) &&
+                isDigits(line, 15, 18);
+    }
+
+    private static boolean isDigits(String line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isDigit(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int skipDigits(String line, int pos) {
+        while (pos < line.length() && isDigit(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipWhitespace(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int parseDigits(String line, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (line.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parse the timestamp at the start of the line, in the format {@code MM-dd HH:mm:ss.SSS}, and
+     * return it in ms since epoch.  If year is not set, the current year will be used.
+     */
+    private long parseTime(String line) {
+        int month = parseDigits(line, 0, 2);
+        int day = parseDigits(line, 3, 5);
+        int hour = parseDigits(line, 6, 8);
+        int minute = parseDigits(line, 9, 11);
+        int second = parseDigits(line, 12, 14);
+        int millis = parseDigits(line, 15, 18);
+        int hourKey = (month * 100 + day) * 100 + hour;
+        if (hourKey != mCachedHourKey) {
+            Calendar calendar = getCalendar();
+            calendar.clear();
+            calendar.set(getYear(), month - 1, day, hour, 0, 0);
+            mCachedHourStart = calendar.getTimeInMillis();
+            mCachedHourKey = hourKey;
+        }
+        return mCachedHourStart + (minute * 60 + second) * 1000L + millis;
+    }
+
+    private Calendar getCalendar() {
+        if (mCalendar == null) {
+            mCalendar = Calendar.getInstance();
+        }
+        return mCalendar;
+    }
+
+    private int getYear() {
         // If year is null, just use the current year.
         if (mYear == null) {
-            DateFormat yearFormatter = new SimpleDateFormat("yyyy");
-            mYear = yearFormatter.format(new Date());
+            mYear = Integer.toString(Calendar.getInstance().get(Calendar.YEAR));
         }
-
-        DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
         try {
-            return formatter.parse(String.format("%s-%s", mYear, timeStr));
-        } catch (ParseException e) {
-            CLog.e("Could not parse time string %s", timeStr);
-            return null;
+            return Integer.parseInt(mYear.trim());
+        } catch (NumberFormatException e) {
+            CLog.e("Could not parse year %s", mYear);
+            mYear = null;
+            return getYear();
         }
     }
 
+    /**
+     * Get the number of lines currently in the preamble ring.
+     */
+    private int getRingSize() {
+        return (int) Math.min(mRingCount, MAX_BUFF_SIZE);
+    }
+
+    /**
+     * Get the line at given age in the preamble ring, where 0 is the most recent line.
+     */
+    private int getRingIndex(int age) {
+        return (int) ((mRingCount - 1 - age) % MAX_BUFF_SIZE);
+    }
+
     /**
      * Get the last {@value #MAX_LAST_PREAMBLE_SIZE} lines of logcat.
      */
     private String getLastPreamble() {
-        final int size = mRingBuffer.size();
-        List<String> preamble;
-        if (size > getLastPreambleSize()) {
-            preamble = mRingBuffer.subList(size - getLastPreambleSize(), size);
-        } else {
-            preamble = mRingBuffer;
+        int numLines = Math.min(getRingSize(), getLastPreambleSize());
+        List<String> preamble = new ArrayList<String>(numLines);
+        for (int age = numLines - 1; age >= 0; age--) {
+            preamble.add(mRingLines[getRingIndex(age)]);
         }
         return ArrayUtil.join("\n", preamble).trim();
     }
@@ -333,20 +617,11 @@ public class LogcatParser implements IParser {
      */
     private String getProcPreamble(int pid) {
         LinkedList<String> preamble = new LinkedList<String>();
-
-        ListIterator<String> li = mRingBuffer.listIterator(mRingBuffer.size());
-        while (li.hasPrevious()) {
-            String line = li.previous();
-
-            Matcher m = THREADTIME_LINE.matcher(line);
-            Matcher tm = TIME_LINE.matcher(line);
-            if ((m.matches() && pid == Integer.parseInt(m.group(2))) ||
-                    (tm.matches() && pid == Integer.parseInt(tm.group(4)))) {
-                preamble.addFirst(line);
-            }
-
-            if (preamble.size() == getProcPreambleSize()) {
-                return ArrayUtil.join("\n", preamble).trim();
+        final int ringSize = getRingSize();
+        for (int age = 0; age < ringSize && preamble.size() < getProcPreambleSize(); age++) {
+            int index = getRingIndex(age);
+            if (mRingPids[index] == pid) {
+                preamble.addFirst(mRingLines[index]);
             }
         }
         return ArrayUtil.join("\n", preamble).trim();
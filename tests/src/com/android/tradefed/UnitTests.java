@@ -34,27 +34,39 @@ import com.android.tradefed.config.ConfigurationXmlParserTest;
 import com.android.tradefed.config.OptionCopierTest;
 import com.android.tradefed.config.OptionSetterTest;
 import com.android.tradefed.config.OptionUpdateRuleTest;
+import com.android.tradefed.device.CompressedChunkStoreTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
+import com.android.tradefed.device.DeviceAttributeCacheTest;
 import com.android.tradefed.device.DeviceManagerTest;
+import com.android.tradefed.device.DevicePropertySnapshotTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
+import com.android.tradefed.device.FileOutputReceiverTest;
 import com.android.tradefed.device.LargeOutputReceiverTest;
+import com.android.tradefed.device.LogcatEventReceiverTest;
 import com.android.tradefed.device.ReconnectingRecoveryTest;
 import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
+import com.android.tradefed.invoker.ShardListenerTest;
 import com.android.tradefed.invoker.TestInvocationTest;
+import com.android.tradefed.log.AsyncLogWriterTest;
 import com.android.tradefed.log.FileLoggerTest;
 import com.android.tradefed.log.LogRegistryTest;
+import com.android.tradefed.log.LogUtilTest;
+import com.android.tradefed.result.AsyncResultForwarderTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
 import com.android.tradefed.result.EmailResultReporterTest;
 import com.android.tradefed.result.FailureEmailResultReporterTest;
+import com.android.tradefed.result.FileRegionInputStreamSourceTest;
 import com.android.tradefed.result.InvocationFailureEmailResultReporterTest;
 import com.android.tradefed.result.InvocationToJUnitResultForwarderTest;
 import com.android.tradefed.result.JUnitToInvocationResultForwarderTest;
 import com.android.tradefed.result.LogFileSaverTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
 import com.android.tradefed.result.TestFailureEmailResultReporterTest;
+import com.android.tradefed.result.TestFailureLogcatCollectorTest;
+import com.android.tradefed.result.TestMetricsTest;
 import com.android.tradefed.result.TestSummaryTest;
 import com.android.tradefed.result.XmlResultReporterTest;
 import com.android.tradefed.targetprep.DefaultTestsZipInstallerTest;
@@ -87,6 +99,7 @@ import com.android.tradefed.util.MultiMapTest;
 import com.android.tradefed.util.QuotationAwareTokenizerTest;
 import com.android.tradefed.util.RegexTrieTest;
 import com.android.tradefed.util.RunUtilTest;
+import com.android.tradefed.util.SpillingOutputStreamTest;
 import com.android.tradefed.util.brillopad.BrillopadTests;
 import com.android.tradefed.util.xml.AndroidManifestWriterTest;
 
@@ -127,27 +140,37 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(OptionUpdateRuleTest.class);
 
         // device
+        addTestSuite(CompressedChunkStoreTest.class);
         addTestSuite(CpuStatsCollectorTest.class);
+        addTestSuite(DeviceAttributeCacheTest.class);
         addTestSuite(DeviceManagerTest.class);
+        addTestSuite(DevicePropertySnapshotTest.class);
         addTestSuite(DeviceSelectionOptionsTest.class);
         addTestSuite(DeviceStateMonitorTest.class);
+        addTestSuite(FileOutputReceiverTest.class);
         addTestSuite(LargeOutputReceiverTest.class);
+        addTestSuite(LogcatEventReceiverTest.class);
         addTestSuite(ReconnectingRecoveryTest.class);
         addTestSuite(TestDeviceTest.class);
         addTestSuite(WaitDeviceRecoveryTest.class);
         addTestSuite(WifiHelperTest.class);
 
         // invoker
+        addTestSuite(ShardListenerTest.class);
         addTestSuite(TestInvocationTest.class);
 
         // log
+        addTestSuite(AsyncLogWriterTest.class);
         addTestSuite(FileLoggerTest.class);
         addTestSuite(LogRegistryTest.class);
+        addTestSuite(LogUtilTest.class);
 
         // result
+        addTestSuite(AsyncResultForwarderTest.class);
         addTestSuite(CollectingTestListenerTest.class);
         addTestSuite(EmailResultReporterTest.class);
         addTestSuite(FailureEmailResultReporterTest.class);
+        addTestSuite(FileRegionInputStreamSourceTest.class);
         addTestSuite(InvocationFailureEmailResultReporterTest.class);
         addTestSuite(InvocationToJUnitResultForwarderTest.class);
         addTestSuite(JUnitToInvocationResultForwarderTest.class);
@@ -155,6 +178,8 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(SnapshotInputStreamSourceTest.class);
         addTestSuite(TestSummaryTest.class);
         addTestSuite(TestFailureEmailResultReporterTest.class);
+        addTestSuite(TestFailureLogcatCollectorTest.class);
+        addTestSuite(TestMetricsTest.class);
         addTestSuite(XmlResultReporterTest.class);
 
         // targetprep
@@ -193,6 +218,7 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(QuotationAwareTokenizerTest.class);
         addTestSuite(RegexTrieTest.class);
         addTestSuite(RunUtilTest.class);
+        addTestSuite(SpillingOutputStreamTest.class);
 
         // util subdirs
         addTestSuite(AndroidManifestWriterTest.class);
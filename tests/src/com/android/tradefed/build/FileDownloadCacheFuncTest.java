@@ -26,8 +26,11 @@ import org.easymock.IAnswer;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Longer running, concurrency based tests for {@link FileDownloadCache}.
@@ -112,6 +115,74 @@ public class FileDownloadCacheFuncTest extends TestCase {
         assertEquals(DOWNLOADED_CONTENTS, StreamUtil.getStringFromStream(new FileInputStream(
                 mReturnedFiles.get(1))));
         EasyMock.verify(mMockDownloader);
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    /**
+     * Test {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)} being called
+     * concurrently for different files. Verifies the downloads run in parallel, by having each
+     * download wait until both downloads have started.
+     */
+    public void testFetchRemoteFile_concurrentDifferentFiles() throws Exception {
+        final String remotePath2 = "anotherpath";
+        final CountDownLatch downloadsStarted = new CountDownLatch(2);
+        IFileDownloader downloader = new IFileDownloader() {
+            @Override
+            public File downloadFile(String remoteFilePath) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void downloadFile(String remotePath, File destFile)
+                    throws BuildRetrievalError {
+                downloadsStarted.countDown();
+                try {
+                    if (!downloadsStarted.await(5, TimeUnit.SECONDS)) {
+                        throw new BuildRetrievalError("downloads did not run in parallel");
+                    }
+                    FileUtil.writeToFile(DOWNLOADED_CONTENTS, destFile);
+                } catch (Exception e) {
+                    throw new BuildRetrievalError("download failed", e);
+                }
+            }
+        };
+        FetchThread thread1 = new FetchThread(downloader, REMOTE_PATH);
+        FetchThread thread2 = new FetchThread(downloader, remotePath2);
+        thread1.start();
+        thread2.start();
+        thread1.join();
+        thread2.join();
+        assertNull(thread1.mError);
+        assertNull(thread2.mError);
+        assertNotNull(mCache.getCachedFile(REMOTE_PATH));
+        assertNotNull(mCache.getCachedFile(remotePath2));
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    /**
+     * Thread that fetches a single file from the cache
+     */
+    private class FetchThread extends Thread {
+        private final IFileDownloader mDownloader;
+        private final String mRemotePath;
+        BuildRetrievalError mError = null;
+
+        FetchThread(IFileDownloader downloader, String remotePath) {
+            mDownloader = downloader;
+            mRemotePath = remotePath;
+        }
+
+        @Override
+        public void run() {
+            try {
+                File file = mCache.fetchRemoteFile(mDownloader, mRemotePath);
+                synchronized (mReturnedFiles) {
+                    mReturnedFiles.add(file);
+                }
+            } catch (BuildRetrievalError e) {
+                mError = e;
+            }
+        }
     }
 
     /**
@@ -136,11 +207,88 @@ public class FileDownloadCacheFuncTest extends TestCase {
             assertNotNull(cache.getCachedFile(REMOTE_PATH));
             assertNotNull(cache.getCachedFile("aa/anotherpath"));
             assertEquals(REMOTE_PATH, cache.getOldestEntry());
+            // wait for index to be written before deleting cache
+            cache.waitForBackgroundTasks();
         } finally {
             FileUtil.recursiveDelete(cacheRoot);
         }
     }
 
+    /**
+     * Verify the cache is loaded from the index file on creation, and that the LRU order and
+     * checksums are restored from the index rather than from file timestamps.
+     */
+    public void testConstructor_loadIndex() throws Exception {
+        File cacheRoot = FileUtil.createTempDir("loadIndexTest");
+        try {
+            FileDownloadCache cache = new FileDownloadCache(cacheRoot);
+            IFileDownloader downloader = new WritingDownloader();
+            FileUtil.deleteFile(cache.fetchRemoteFile(downloader, REMOTE_PATH));
+            FileUtil.deleteFile(cache.fetchRemoteFile(downloader, "aa/anotherpath"));
+            // touch the first file, so it becomes the most recently used
+            FileUtil.deleteFile(cache.fetchRemoteFile(downloader, REMOTE_PATH));
+            String checksum = cache.getCachedFileChecksum(REMOTE_PATH);
+            assertNotNull(checksum);
+            cache.waitForBackgroundTasks();
+            assertTrue(new File(cacheRoot, FileDownloadCache.INDEX_FILE_NAME).exists());
+
+            FileDownloadCache loadedCache = new FileDownloadCache(cacheRoot);
+            loadedCache.waitForBackgroundTasks();
+            assertEquals("aa/anotherpath", loadedCache.getOldestEntry());
+            assertEquals(checksum, loadedCache.getCachedFileChecksum(REMOTE_PATH));
+            assertEquals(cache.getCurrentCacheSize(), loadedCache.getCurrentCacheSize());
+        } finally {
+            FileUtil.recursiveDelete(cacheRoot);
+        }
+    }
+
+    /**
+     * Verify a cache loaded from an out of date index is reconciled with the filesystem.
+     */
+    public void testConstructor_reconcileIndex() throws Exception {
+        File cacheRoot = FileUtil.createTempDir("reconcileIndexTest");
+        try {
+            FileDownloadCache cache = new FileDownloadCache(cacheRoot);
+            IFileDownloader downloader = new WritingDownloader();
+            FileUtil.deleteFile(cache.fetchRemoteFile(downloader, REMOTE_PATH));
+            FileUtil.deleteFile(cache.fetchRemoteFile(downloader, "aa/anotherpath"));
+            cache.waitForBackgroundTasks();
+            // modify cache contents behind the index's back
+            new File(cacheRoot, REMOTE_PATH).delete();
+            FileUtil.writeToFile(DOWNLOADED_CONTENTS, new File(cacheRoot, "untracked"));
+
+            FileDownloadCache loadedCache = new FileDownloadCache(cacheRoot);
+            loadedCache.waitForBackgroundTasks();
+            assertNull(loadedCache.getCachedFile(REMOTE_PATH));
+            assertNotNull(loadedCache.getCachedFile("aa/anotherpath"));
+            assertNotNull(loadedCache.getCachedFile("untracked"));
+            // untracked files are treated as least recently used
+            assertEquals("untracked", loadedCache.getOldestEntry());
+            assertEquals(2 * DOWNLOADED_CONTENTS.length(), loadedCache.getCurrentCacheSize());
+        } finally {
+            FileUtil.recursiveDelete(cacheRoot);
+        }
+    }
+
+    /**
+     * A {@link IFileDownloader} that writes fixed contents to the destination file.
+     */
+    private static class WritingDownloader implements IFileDownloader {
+        @Override
+        public File downloadFile(String remoteFilePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void downloadFile(String remotePath, File destFile) throws BuildRetrievalError {
+            try {
+                FileUtil.writeToFile(DOWNLOADED_CONTENTS, destFile);
+            } catch (IOException e) {
+                throw new BuildRetrievalError("download failed", e);
+            }
+        }
+    }
+
     /**
      * Test scenario where an already too large cache is built from disk contents.
      */
@@ -157,12 +305,13 @@ public class FileDownloadCacheFuncTest extends TestCase {
             final File file2 = new File(cacheRoot, "anotherpath");
             FileUtil.writeToFile(filecontents, file2);
 
-            new FileDownloadCache(cacheRoot) {
+            FileDownloadCache cache = new FileDownloadCache(cacheRoot) {
                 @Override
                 long getMaxFileCacheSize() {
                     return file2.length() + 1;
                 }
             };
+            cache.waitForBackgroundTasks();
             // expect cache to be cleaned on startup, with oldest file1 deleted, but newest file
             // retained
             assertFalse(file1.exists());
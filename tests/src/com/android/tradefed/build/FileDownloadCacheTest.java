@@ -34,6 +34,7 @@ public class FileDownloadCacheTest extends TestCase {
 
     private static final String REMOTE_PATH = "foo/path";
     private static final String DOWNLOADED_CONTENTS = "downloaded contents";
+    private static final String DOWNLOADED_CHECKSUM = "cc7109627aa971ce170ac77719611815";
 
     private IFileDownloader mMockDownloader;
 
@@ -77,6 +78,29 @@ public class FileDownloadCacheTest extends TestCase {
         assertFetchRemoteFile();
         // verify only one download call occurred
         EasyMock.verify(mMockDownloader);
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getDownloadedBytes());
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+    }
+
+    /**
+     * Test that a cache hit does not rewrite the index file, and that the new LRU order is
+     * persisted by {@link FileDownloadCache#writeIndexIfStale()}.
+     */
+    public void testFetchRemoteFile_cacheHitIndex() throws Exception {
+        setDownloadExpections();
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        mCache.waitForBackgroundTasks();
+        File indexFile = new File(mCacheDir, FileDownloadCache.INDEX_FILE_NAME);
+        assertTrue(indexFile.delete());
+        assertFetchRemoteFile();
+        mCache.waitForBackgroundTasks();
+        assertFalse(indexFile.exists());
+        mCache.writeIndexIfStale();
+        assertTrue(indexFile.exists());
+        EasyMock.verify(mMockDownloader);
     }
 
     /**
@@ -85,16 +109,22 @@ public class FileDownloadCacheTest extends TestCase {
      */
     public void testFetchRemoteFile_cacheSizeExceeded() throws Exception {
         final String remotePath2 = "anotherpath";
+        // use different contents, as identical contents are only stored once
+        final String contents2 = "other downloaded contents";
         // set cache size to be small
         mCache.setMaxCacheSize(DOWNLOADED_CONTENTS.length() + 1);
-        setDownloadExpections(remotePath2);
+        setDownloadExpections(remotePath2, contents2);
         setDownloadExpections();
         EasyMock.replay(mMockDownloader);
-        assertFetchRemoteFile(remotePath2);
+        assertFetchRemoteFile(remotePath2, contents2);
         // now retrieve another file, which will exceed size of cache
         assertFetchRemoteFile();
+        // eviction happens in background
+        mCache.waitForBackgroundTasks();
         assertNotNull(mCache.getCachedFile(REMOTE_PATH));
         assertNull(mCache.getCachedFile(remotePath2));
+        assertEquals(1, mCache.getEvictionCount());
+        assertEquals(contents2.length(), mCache.getEvictedBytes());
         EasyMock.verify(mMockDownloader);
     }
 
@@ -141,6 +171,71 @@ public class FileDownloadCacheTest extends TestCase {
         EasyMock.verify(mMockDownloader);
     }
 
+    /**
+     * Test {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)} when two remote
+     * paths have identical contents. Verifies the contents are stored and counted once.
+     */
+    public void testFetchRemoteFile_duplicateContents() throws Exception {
+        final String remotePath2 = "anotherpath";
+        setDownloadExpections(REMOTE_PATH);
+        setDownloadExpections(remotePath2);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile(REMOTE_PATH);
+        assertFetchRemoteFile(remotePath2);
+        EasyMock.verify(mMockDownloader);
+        assertEquals(DOWNLOADED_CHECKSUM, mCache.getCachedFileChecksum(remotePath2));
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getDeduplicatedBytes());
+        File contentFile = FileUtil.getFileForPath(mCacheDir, FileDownloadCache.CONTENT_DIR_NAME,
+                DOWNLOADED_CHECKSUM.substring(0, 2), DOWNLOADED_CHECKSUM);
+        assertTrue(contentFile.exists());
+        // content must be deleted once the last referencing file is removed
+        mCache.empty();
+        assertFalse(contentFile.exists());
+    }
+
+    /**
+     * Test {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)} with a
+     * {@link IChecksumFileDownloader}. Verifies a file whose contents are already cached is not
+     * downloaded again.
+     */
+    public void testFetchRemoteFile_checksumDownloader() throws Exception {
+        final String remotePath2 = "anotherpath";
+        mMockDownloader = EasyMock.createMock(IChecksumFileDownloader.class);
+        IChecksumFileDownloader checksumDownloader = (IChecksumFileDownloader)mMockDownloader;
+        EasyMock.expect(checksumDownloader.getRemoteFileChecksum(REMOTE_PATH)).andReturn(
+                DOWNLOADED_CHECKSUM);
+        EasyMock.expect(checksumDownloader.getRemoteFileChecksum(remotePath2)).andReturn(
+                DOWNLOADED_CHECKSUM);
+        setDownloadExpections(REMOTE_PATH);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile(REMOTE_PATH);
+        assertFetchRemoteFile(remotePath2);
+        EasyMock.verify(mMockDownloader);
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(1, mCache.getDeduplicatedCount());
+    }
+
+    /**
+     * Test {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)} when the downloaded
+     * contents do not match the checksum reported by a {@link IChecksumFileDownloader}.
+     */
+    public void testFetchRemoteFile_checksumMismatch() throws Exception {
+        mMockDownloader = EasyMock.createMock(IChecksumFileDownloader.class);
+        EasyMock.expect(((IChecksumFileDownloader)mMockDownloader).getRemoteFileChecksum(
+                REMOTE_PATH)).andReturn("badchecksum");
+        setDownloadExpections(REMOTE_PATH);
+        EasyMock.replay(mMockDownloader);
+        try {
+            mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+            fail("BuildRetrievalError not thrown");
+        } catch (BuildRetrievalError e) {
+            // expected
+        }
+        assertNull(mCache.getCachedFile(REMOTE_PATH));
+        EasyMock.verify(mMockDownloader);
+    }
+
     /**
      * Perform one fetchRemoteFile call and verify contents for default remote path
      */
@@ -152,12 +247,20 @@ public class FileDownloadCacheTest extends TestCase {
      * Perform one fetchRemoteFile call and verify contents
      */
     private void assertFetchRemoteFile(String remotePath) throws BuildRetrievalError, IOException {
+        assertFetchRemoteFile(remotePath, DOWNLOADED_CONTENTS);
+    }
+
+    /**
+     * Perform one fetchRemoteFile call and verify contents match <var>expectedContents</var>
+     */
+    private void assertFetchRemoteFile(String remotePath, String expectedContents)
+            throws BuildRetrievalError, IOException {
         // test downloading file not in cache
         File fileCopy = mCache.fetchRemoteFile(mMockDownloader, remotePath);
         try {
             assertNotNull(mCache.getCachedFile(remotePath));
             String contents = StreamUtil.getStringFromStream(new FileInputStream(fileCopy));
-            assertEquals(DOWNLOADED_CONTENTS, contents);
+            assertEquals(expectedContents, contents);
         } finally {
             fileCopy.delete();
         }
@@ -173,14 +276,22 @@ public class FileDownloadCacheTest extends TestCase {
     /**
      * Set EasyMock expectations for a downloadFile call
      */
-    @SuppressWarnings("unchecked")
     private void setDownloadExpections(String remotePath)
             throws BuildRetrievalError {
+        setDownloadExpections(remotePath, DOWNLOADED_CONTENTS);
+    }
+
+    /**
+     * Set EasyMock expectations for a downloadFile call that downloads given contents
+     */
+    @SuppressWarnings("unchecked")
+    private void setDownloadExpections(String remotePath, final String contents)
+            throws BuildRetrievalError {
         IAnswer downloadAnswer = new IAnswer() {
             @Override
             public Object answer() throws Throwable {
                 File fileArg =  (File) EasyMock.getCurrentArguments()[1];
-                FileUtil.writeToFile("downloaded contents", fileArg);
+                FileUtil.writeToFile(contents, fileArg);
                 return null;
             }
         };
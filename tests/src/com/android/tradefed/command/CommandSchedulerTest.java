@@ -22,6 +22,7 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceSelectionOptions;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.IDeviceManager.FreeDeviceState;
+import com.android.tradefed.device.IDeviceSelection;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.MockDeviceManager;
 import com.android.tradefed.invoker.IRescheduler;
@@ -33,6 +34,7 @@ import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit tests for {@link CommandScheduler}.
@@ -367,6 +369,67 @@ public class CommandSchedulerTest extends TestCase {
                 mCmdListener.getNumExpectedCalls(), mCmdListener.getNumCalls());
     }
 
+    /**
+     * Test {@link CommandScheduler#run()} when a command is waiting for a device, and a device
+     * later becomes available.
+     */
+    public void testRun_waitForDevice() throws Exception {
+        String[] args = new String[] {};
+        mMockManager.setNumDevices(1);
+        ITestDevice dev = mMockManager.allocateDevice();
+        setCreateConfigExpectations(args, 1);
+        mCmdListener.setExpectedCalls(1);
+        setExpectedInvokeCalls(1);
+        replayMocks();
+        mScheduler.addCommand(args, mCmdListener);
+        mScheduler.start();
+        // command should be parked, waiting for a device
+        Thread.sleep(50);
+        assertEquals(0, mCmdListener.getNumCalls());
+        mMockManager.freeDevice(dev, FreeDeviceState.AVAILABLE);
+        waitForCommandStartedCalls();
+        mScheduler.shutdown();
+        mScheduler.join();
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link CommandScheduler#run()} when a device that does not match a waiting command
+     * becomes available. Verifies the command is not re-evaluated.
+     */
+    public void testRun_waitForDevice_otherDevice() throws Exception {
+        final AtomicInteger allocationCount = new AtomicInteger(0);
+        mMockManager = new MockDeviceManager(2) {
+            @Override
+            public ITestDevice allocateDevice(long timeout, IDeviceSelection options) {
+                allocationCount.incrementAndGet();
+                return super.allocateDevice(timeout, options);
+            }
+        };
+        String[] args = new String[] {};
+        ITestDevice dev = mMockManager.allocateDevice();
+        ITestDevice otherDev = mMockManager.allocateDevice();
+        mDeviceOptions.addSerial(dev.getSerialNumber());
+        setCreateConfigExpectations(args, 1);
+        mCmdListener.setExpectedCalls(1);
+        setExpectedInvokeCalls(1);
+        replayMocks();
+        mScheduler.addCommand(args, mCmdListener);
+        mScheduler.start();
+        // command should be parked, waiting for a device
+        Thread.sleep(50);
+        assertEquals(1, allocationCount.get());
+        mMockManager.freeDevice(otherDev, FreeDeviceState.AVAILABLE);
+        Thread.sleep(50);
+        assertEquals(1, allocationCount.get());
+        mMockManager.freeDevice(dev, FreeDeviceState.AVAILABLE);
+        waitForCommandStartedCalls();
+        assertEquals(2, allocationCount.get());
+        mScheduler.shutdown();
+        mScheduler.join();
+        verifyMocks();
+    }
+
     /**
      * Test {@link CommandScheduler#shutdown()} when no devices are available.
      */
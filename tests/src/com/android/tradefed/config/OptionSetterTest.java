@@ -47,6 +47,20 @@ public class OptionSetterTest extends TestCase {
         private Collection mMyOption;
     }
 
+    /** Option source that records the options set on it. */
+    private static class ChangeListenerOptionSource implements IOptionChangeListener {
+        @SuppressWarnings("unused")
+        @Option(name = "my_option")
+        private String mMyOption;
+
+        private Collection<String> mChangedOptions = new ArrayList<String>();
+
+        @Override
+        public void optionChanged(String optionName) {
+            mChangedOptions.add(optionName);
+        }
+    }
+
     private static class MyGeneric<T> {
     }
 
@@ -504,6 +518,17 @@ public class OptionSetterTest extends TestCase {
         assertEquals(expectedValue, optionSource.mStringMap.get(expectedKey));
     }
 
+    /**
+     * Test {@link OptionSetter#setOptionValue(String, String)} notifies a
+     * {@link IOptionChangeListener} option source.
+     */
+    public void testSetOptionValue_changeListener() throws ConfigurationException {
+        ChangeListenerOptionSource optionSource = new ChangeListenerOptionSource();
+        new OptionSetter(optionSource).setOptionValue("my_option", "value");
+        assertEquals(1, optionSource.mChangedOptions.size());
+        assertTrue(optionSource.mChangedOptions.contains("my_option"));
+    }
+
     /**
      * Test {@link OptionSetter#setOptionValue(String, String)} for a boolean.
      */
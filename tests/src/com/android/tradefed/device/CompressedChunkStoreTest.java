@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+/**
+ * Unit tests for {@link CompressedChunkStore}
+ */
+public class CompressedChunkStoreTest extends TestCase {
+
+    private CompressedChunkStore mStore;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mStore != null) {
+            mStore.delete();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Test that all written output is read back, across chunk boundaries.
+     */
+    public void testCreateInputStream_all() throws IOException {
+        mStore = new CompressedChunkStore("test", 1024 * 1024, 100);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            String line = String.format("04-25 09:55:%02d.000  1  2 I tag: message %d\n", i, i);
+            write(line);
+            expected.append(line);
+        }
+        assertTrue(mStore.getStoredSize() > 0);
+        assertEquals(expected.toString(), read(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    /**
+     * Test that only the chunks overlapping a time range are returned.
+     */
+    public void testCreateInputStream_range() throws IOException {
+        // each line is 50 bytes, and fills one chunk
+        mStore = new CompressedChunkStore("test", 1024 * 1024, 50);
+        for (int i = 0; i < 10; i++) {
+            write(String.format("04-25 09:55:%02d.000  1  2 I tag: message %010d\n", i, i));
+        }
+        String output = read(getTime(2), getTime(4));
+        assertFalse(output.contains("message 0000000001"));
+        assertTrue(output.contains("message 0000000002"));
+        assertTrue(output.contains("message 0000000003"));
+        assertTrue(output.contains("message 0000000004"));
+        assertFalse(output.contains("message 0000000005"));
+    }
+
+    /**
+     * Test that a chunk starting in the middle of a line is selected by the time of that line.
+     */
+    public void testCreateInputStream_splitLine() throws IOException {
+        mStore = new CompressedChunkStore("test", 1024 * 1024, 30);
+        write("04-25 09:55:01.000  1  2 I tag: first part of a long line\n");
+        write("04-25 09:55:05.000  1  2 I tag: next line\n");
+        String output = read(getTime(1), getTime(1));
+        assertTrue(output.startsWith("04-25 09:55:01.000  1  2 I tag: first part of a long line"));
+        assertFalse(output.contains("next line"));
+    }
+
+    /**
+     * Test that the oldest output is discarded once the max size is reached.
+     */
+    public void testWrite_truncate() throws IOException {
+        mStore = new CompressedChunkStore("test", 4 * 40, 40);
+        for (int i = 0; i < 100; i++) {
+            write(String.format("04-25 09:55:%02d.000  1  2 I tag: message %010d\n", i % 60,
+                    i));
+        }
+        assertTrue(mStore.isTruncated());
+        String output = read(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertFalse(output.contains("message 0000000000"));
+        assertTrue(output.contains("message 0000000099"));
+    }
+
+    private void write(String data) throws IOException {
+        byte[] bytes = data.getBytes();
+        mStore.write(bytes, 0, bytes.length);
+    }
+
+    private String read(long startTime, long endTime) throws IOException {
+        return StreamUtil.getStringFromStream(mStore.createInputStream(startTime, endTime));
+    }
+
+    private long getTime(int second) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.MONTH, Calendar.APRIL);
+        calendar.set(Calendar.DAY_OF_MONTH, 25);
+        calendar.set(Calendar.HOUR_OF_DAY, 9);
+        calendar.set(Calendar.MINUTE, 55);
+        calendar.set(Calendar.SECOND, second);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link DeviceAttributeCache}.
+ */
+public class DeviceAttributeCacheTest extends TestCase {
+
+    private static final String SERIAL = "serial";
+
+    private IDeviceAttributes mMockSource;
+    private IDevice mMockDevice;
+    private DeviceAttributeCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockSource = EasyMock.createMock(IDeviceAttributes.class);
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.replay(mMockDevice);
+        mCache = new DeviceAttributeCache(mMockSource);
+    }
+
+    /**
+     * Test that product type, variant and properties are only queried once.
+     */
+    public void testGetAttributes_cached() {
+        EasyMock.expect(mMockSource.getProductType(mMockDevice)).andReturn("mako");
+        EasyMock.expect(mMockSource.getProductVariant(mMockDevice)).andReturn("occam");
+        EasyMock.expect(mMockSource.getProperty(mMockDevice, "ro.build.id")).andReturn("JOP40C");
+        EasyMock.replay(mMockSource);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("mako", mCache.getProductType(mMockDevice));
+            assertEquals("occam", mCache.getProductVariant(mMockDevice));
+            assertEquals("JOP40C", mCache.getProperty(mMockDevice, "ro.build.id"));
+        }
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test that failed queries are not cached.
+     */
+    public void testGetProductType_notCachedWhenNull() {
+        EasyMock.expect(mMockSource.getProductType(mMockDevice)).andReturn(null);
+        EasyMock.expect(mMockSource.getProductType(mMockDevice)).andReturn("mako");
+        EasyMock.replay(mMockSource);
+        assertNull(mCache.getProductType(mMockDevice));
+        assertEquals("mako", mCache.getProductType(mMockDevice));
+        assertEquals("mako", mCache.getProductType(mMockDevice));
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test that attributes are queried again after a device is removed, or replaced by a new
+     * {@link IDevice} with the same serial.
+     */
+    public void testRemove() {
+        IDevice newDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(newDevice.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.replay(newDevice);
+        EasyMock.expect(mMockSource.getProductType(mMockDevice)).andReturn("mako").times(2);
+        EasyMock.expect(mMockSource.getProductType(newDevice)).andReturn("manta");
+        EasyMock.replay(mMockSource);
+        assertEquals("mako", mCache.getProductType(mMockDevice));
+        mCache.remove(SERIAL);
+        assertEquals("mako", mCache.getProductType(mMockDevice));
+        assertEquals("manta", mCache.getProductType(newDevice));
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test {@link DeviceAttributeCache#getCandidateSerials(Map, Map)} when no product types or
+     * properties are requested.
+     */
+    public void testGetCandidateSerials_noCriteria() {
+        EasyMock.replay(mMockSource);
+        mCache.add(mMockDevice);
+        assertNull(mCache.getCandidateSerials(new HashMap<String, Set<String>>(),
+                new HashMap<String, String>()));
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test that {@link DeviceAttributeCache#getCandidateSerials(Map, Map)} returns the devices
+     * with a requested product type, querying each device once, and the devices whose product
+     * type could not be determined yet.
+     */
+    public void testGetCandidateSerials_productType() {
+        IDevice mantaDevice = createMockDevice("manta-serial");
+        IDevice unknownDevice = createMockDevice("unknown-serial");
+        EasyMock.expect(mMockSource.getProductType(mMockDevice)).andReturn("mako");
+        EasyMock.expect(mMockSource.getProductType(mantaDevice)).andReturn("manta");
+        EasyMock.expect(mMockSource.getProductType(unknownDevice)).andReturn(null);
+        EasyMock.expect(mMockSource.getProductType(unknownDevice)).andReturn("manta");
+        EasyMock.replay(mMockSource);
+        mCache.add(mMockDevice);
+        mCache.add(mantaDevice);
+        mCache.add(unknownDevice);
+        Map<String, Set<String>> productVariants = new HashMap<String, Set<String>>();
+        productVariants.put("mako", null);
+        assertEquals(new HashSet<String>(Arrays.asList(SERIAL, "unknown-serial")),
+                mCache.getCandidateSerials(productVariants, new HashMap<String, String>()));
+        assertEquals(new HashSet<String>(Arrays.asList(SERIAL)),
+                mCache.getCandidateSerials(productVariants, new HashMap<String, String>()));
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test that {@link DeviceAttributeCache#getCandidateSerials(Map, Map)} only returns devices
+     * that match all the requested variants and properties.
+     */
+    public void testGetCandidateSerials_variantProperty() {
+        IDevice otherDevice = createMockDevice("other-serial");
+        EasyMock.expect(mMockSource.getProductType(mMockDevice)).andReturn("mako");
+        EasyMock.expect(mMockSource.getProductVariant(mMockDevice)).andReturn("occam");
+        EasyMock.expect(mMockSource.getProperty(mMockDevice, "ro.build.id")).andReturn("JOP40C");
+        EasyMock.expect(mMockSource.getProductType(otherDevice)).andReturn("mako");
+        EasyMock.expect(mMockSource.getProductVariant(otherDevice)).andReturn("occam");
+        EasyMock.expect(mMockSource.getProperty(otherDevice, "ro.build.id")).andReturn("JDQ39");
+        EasyMock.replay(mMockSource);
+        mCache.add(mMockDevice);
+        mCache.add(otherDevice);
+        Map<String, Set<String>> productVariants = new HashMap<String, Set<String>>();
+        productVariants.put("mako", new HashSet<String>(Arrays.asList("occam")));
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("ro.build.id", "JOP40C");
+        assertEquals(new HashSet<String>(Arrays.asList(SERIAL)),
+                mCache.getCandidateSerials(productVariants, properties));
+        productVariants.put("mako", new HashSet<String>(Arrays.asList("mantaray")));
+        assertTrue(mCache.getCandidateSerials(productVariants, properties).isEmpty());
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test that removed devices are no longer candidates, and are queried again once added back.
+     */
+    public void testGetCandidateSerials_remove() {
+        EasyMock.expect(mMockSource.getProductType(mMockDevice)).andReturn("mako").times(2);
+        EasyMock.replay(mMockSource);
+        Map<String, Set<String>> productVariants = new HashMap<String, Set<String>>();
+        productVariants.put("mako", null);
+        Map<String, String> properties = new HashMap<String, String>();
+        mCache.add(mMockDevice);
+        assertEquals(1, mCache.getCandidateSerials(productVariants, properties).size());
+        mCache.remove(SERIAL);
+        assertTrue(mCache.getCandidateSerials(productVariants, properties).isEmpty());
+        mCache.add(mMockDevice);
+        assertEquals(1, mCache.getCandidateSerials(productVariants, properties).size());
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test that battery level is only queried on first request, and then by
+     * {@link DeviceAttributeCache#refreshBatteryLevels()}.
+     */
+    public void testGetBatteryLevel() {
+        EasyMock.expect(mMockSource.getBatteryLevel(mMockDevice)).andReturn(50);
+        EasyMock.expect(mMockSource.getBatteryLevel(mMockDevice)).andReturn(60);
+        EasyMock.replay(mMockSource);
+        assertEquals(Integer.valueOf(50), mCache.getBatteryLevel(mMockDevice));
+        assertEquals(Integer.valueOf(50), mCache.getBatteryLevel(mMockDevice));
+        assertEquals(Arrays.asList(mMockDevice), mCache.refreshBatteryLevels());
+        assertEquals(Integer.valueOf(60), mCache.getBatteryLevel(mMockDevice));
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test that {@link DeviceAttributeCache#refreshBatteryLevels()} does not query devices whose
+     * battery level was never requested.
+     */
+    public void testRefreshBatteryLevels_notRequested() {
+        EasyMock.expect(mMockSource.getProductType(mMockDevice)).andReturn("mako");
+        EasyMock.replay(mMockSource);
+        mCache.getProductType(mMockDevice);
+        assertTrue(mCache.refreshBatteryLevels().isEmpty());
+        EasyMock.verify(mMockSource);
+    }
+
+    /**
+     * Test that {@link DeviceAttributeCache#refreshBatteryLevels()} does not report devices whose
+     * battery level is unchanged.
+     */
+    public void testRefreshBatteryLevels_unchanged() {
+        EasyMock.expect(mMockSource.getBatteryLevel(mMockDevice)).andReturn(50).times(2);
+        EasyMock.replay(mMockSource);
+        mCache.getBatteryLevel(mMockDevice);
+        assertTrue(mCache.refreshBatteryLevels().isEmpty());
+        EasyMock.verify(mMockSource);
+    }
+
+    private IDevice createMockDevice(String serial) {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(serial);
+        EasyMock.replay(device);
+        return device;
+    }
+}
@@ -190,6 +190,10 @@ public class DeviceManagerTest extends TestCase {
             void startFastbootMonitor() {
             }
 
+            @Override
+            void startBatteryMonitor() {
+            }
+
             @Override
             IDeviceStateMonitor createStateMonitor(IDevice device) {
                 return mMockMonitor;
@@ -291,6 +295,66 @@ public class DeviceManagerTest extends TestCase {
         assertNotNull(manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME));
     }
 
+    /**
+     * Test that repeated {@link DeviceManager#allocateDevice(long, DeviceSelectionOptions))}
+     * requests for a product type only query the available device's product type once.
+     */
+    public void testAllocateDevice_productTypeCached() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType("otherproduct");
+        EasyMock.expect(mMockIDevice.getPropertyCacheOrSync("ro.hardware")).andReturn("product");
+        setCheckAvailableDeviceExpectations();
+        replayMocks();
+        DeviceManager manager = createDeviceManager(mMockIDevice);
+        assertNull(manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME, options));
+        assertNull(manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME, options));
+        EasyMock.verify(mMockIDevice);
+    }
+
+    /**
+     * Test that {@link DeviceManager#allocateDevice(long, DeviceSelectionOptions))} requests for
+     * a product type are served from the available devices with that product type, and that
+     * allocated devices are removed from the index.
+     */
+    public void testAllocateDevice_productTypeIndex() throws Exception {
+        IDevice mockOtherDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mockOtherDevice.getSerialNumber()).andStubReturn("otherserial");
+        EasyMock.expect(mockOtherDevice.isEmulator()).andStubReturn(Boolean.FALSE);
+        EasyMock.expect(mockOtherDevice.getPropertyCacheOrSync("ro.hardware")).andReturn(
+                "otherproduct");
+        EasyMock.expect(mMockIDevice.getPropertyCacheOrSync("ro.hardware")).andReturn("product");
+        setCheckAvailableDeviceExpectations();
+        setCheckAvailableDeviceExpectations(mockOtherDevice);
+        replayMocks(mockOtherDevice);
+        DeviceManager manager = createDeviceManager(mMockIDevice, mockOtherDevice);
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType("otherproduct");
+        assertNotNull(manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME, options));
+        assertNull(manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME, options));
+        options = new DeviceSelectionOptions();
+        options.addProductType("product");
+        assertNotNull(manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME, options));
+        EasyMock.verify(mMockIDevice, mockOtherDevice);
+    }
+
+    /**
+     * Test that {@link DeviceManager#allocateDevice(long, DeviceSelectionOptions))} evaluates
+     * devices through the overrides of a {@link DeviceSelectionOptions} subclass.
+     */
+    public void testAllocateDevice_optionsSubclass() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions() {
+            @Override
+            public String getDeviceProductType(IDevice device) {
+                return "overriddenproduct";
+            }
+        };
+        options.addProductType("overriddenproduct");
+        setCheckAvailableDeviceExpectations();
+        replayMocks();
+        DeviceManager manager = createDeviceManager(mMockIDevice);
+        assertEquals(mMockTestDevice, manager.allocateDevice(100, options));
+    }
+
     /**
      * Test {@link DeviceManager#allocateDevice(long, DeviceSelectionOptions))} when stub emulator is
      * requested
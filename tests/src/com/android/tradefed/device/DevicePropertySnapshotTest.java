@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+/**
+ * Unit tests for {@link DevicePropertySnapshot}.
+ */
+public class DevicePropertySnapshotTest extends TestCase {
+
+    private static final String GETPROP_OUTPUT = "[dalvik.vm.heapsize]: [256m]\r\n"
+            + "[ro.build.id]: [JOP40C]\r\n"
+            + "[ro.product.name]: []\r\n"
+            + "[sys.usb.state]: [mtp,adb]\r\n"
+            + "garbage\r\n";
+
+    private DevicePropertySnapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSnapshot = new DevicePropertySnapshot();
+    }
+
+    /**
+     * Test {@link DevicePropertySnapshot#parse(String)} with typical 'getprop' output.
+     */
+    public void testParse() {
+        Map<String, String> props = DevicePropertySnapshot.parse(GETPROP_OUTPUT);
+        assertEquals(4, props.size());
+        assertEquals("256m", props.get("dalvik.vm.heapsize"));
+        assertEquals("JOP40C", props.get("ro.build.id"));
+        assertEquals("", props.get("ro.product.name"));
+        assertEquals("mtp,adb", props.get("sys.usb.state"));
+    }
+
+    /**
+     * Test that read-only properties remain valid regardless of age, and other properties expire.
+     */
+    public void testIsValid() {
+        assertFalse(mSnapshot.isValid("ro.build.id", 1000, 0));
+        mSnapshot.load(GETPROP_OUTPUT, 5000);
+        assertTrue(mSnapshot.isValid("ro.build.id", 1000, 5500));
+        assertTrue(mSnapshot.isValid("sys.usb.state", 1000, 5500));
+        assertTrue(mSnapshot.isValid("ro.build.id", 1000, 100000));
+        assertFalse(mSnapshot.isValid("sys.usb.state", 1000, 6000));
+    }
+
+    /**
+     * Test {@link DevicePropertySnapshot#invalidate()}.
+     */
+    public void testInvalidate() {
+        mSnapshot.load(GETPROP_OUTPUT, 0);
+        assertTrue(mSnapshot.isLoaded());
+        assertEquals("JOP40C", mSnapshot.get("ro.build.id"));
+        mSnapshot.invalidate();
+        assertFalse(mSnapshot.isLoaded());
+        assertFalse(mSnapshot.isValid("ro.build.id", 1000, 0));
+        assertNull(mSnapshot.get("ro.build.id"));
+    }
+}
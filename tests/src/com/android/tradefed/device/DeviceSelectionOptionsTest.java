@@ -16,6 +16,7 @@
 package com.android.tradefed.device;
 
 import com.android.ddmlib.IDevice;
+import com.android.tradefed.config.OptionSetter;
 
 import junit.framework.TestCase;
 
@@ -348,4 +349,84 @@ public class DeviceSelectionOptionsTest extends TestCase {
         options.setMinBatteryLevel(25);
         assertTrue(options.matches(mMockDevice));
     }
+
+    /**
+     * Test that an invalid product type is rejected.
+     */
+    public void testMatches_invalidProductType() {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType("a:b:c");
+        EasyMock.replay(mMockDevice);
+        try {
+            options.matches(mMockDevice);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that product variant is only queried when a variant is requested, and is checked.
+     */
+    public void testMatches_productVariant() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType(DEVICE_TYPE + ":variant1");
+        EasyMock.expect(mMockDevice.getPropertyCacheOrSync("ro.hardware")).andStubReturn(
+                DEVICE_TYPE);
+        EasyMock.expect(mMockDevice.getPropertyCacheOrSync("ro.product.device")).andStubReturn(
+                "variant2");
+        EasyMock.replay(mMockDevice);
+        assertFalse(options.matches(mMockDevice));
+        options.addProductType(DEVICE_TYPE + ":variant2");
+        assertTrue(options.matches(mMockDevice));
+    }
+
+    /**
+     * Test that device attributes are not queried when a cheaper criteria does not match.
+     */
+    public void testMatches_cheapCriteriaFirst() {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType(DEVICE_TYPE);
+        options.addProperty("prop1=propvalue");
+        options.setMinBatteryLevel(25);
+        options.setEmulatorRequested(true);
+        // mock will fail on any unexpected property or battery query
+        EasyMock.replay(mMockDevice);
+        assertFalse(options.matches(mMockDevice));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the compiled form of the options evaluates devices with the given attributes.
+     */
+    public void testGetMatcher_withAttributes() {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType(DEVICE_TYPE);
+        options.addSerial(DEVICE_SERIAL);
+        IDeviceAttributes mockAttributes = EasyMock.createMock(IDeviceAttributes.class);
+        EasyMock.expect(mockAttributes.getProductType(mMockDevice)).andReturn(DEVICE_TYPE);
+        EasyMock.replay(mMockDevice, mockAttributes);
+        DeviceSelectionMatcher matcher = options.getMatcher().withAttributes(mockAttributes);
+        assertEquals(DEVICE_SERIAL, matcher.getMatchKey());
+        assertTrue(matcher.matches(mMockDevice));
+        EasyMock.verify(mockAttributes);
+    }
+
+    /**
+     * Test that options set by reflection after matching has started are taken into account.
+     */
+    public void testMatches_optionSetAfterMatch() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        EasyMock.replay(mMockDevice);
+        assertTrue(options.matches(mMockDevice));
+        OptionSetter setter = new OptionSetter(options);
+        setter.setOptionValue("exclude-serial", DEVICE_SERIAL);
+        assertFalse(options.matches(mMockDevice));
+
+        options = new DeviceSelectionOptions();
+        assertTrue(options.matches(mMockDevice));
+        setter = new OptionSetter(options);
+        setter.setOptionValue("emulator", "true");
+        assertFalse(options.matches(mMockDevice));
+    }
 }
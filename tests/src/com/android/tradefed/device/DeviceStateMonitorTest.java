@@ -17,11 +17,17 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.tradefed.util.RunUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Unit tests for {@link DeviceStateMonitorTest}.
@@ -82,11 +88,136 @@ public class DeviceStateMonitorTest extends TestCase {
     }
 
     /**
-     * Normal case test for {@link DeviceStateMonitor#waitForDeviceOnline()}
+     * Simulates the shell commands used to check device availability, with a device that is
+     * fully booted.
+     */
+    private static class BootedShellAnswer implements IAnswer<Object> {
+        private final String[] mBootWaitOutput;
+        private final boolean mBootWaitFails;
+        private String mFileContents = "";
+
+        /**
+         * @param bootWaitOutput the lines to output for the on device boot wait command
+         * @param bootWaitFails if the on device boot wait command should fail after its output
+         */
+        BootedShellAnswer(String[] bootWaitOutput, boolean bootWaitFails) {
+            mBootWaitOutput = bootWaitOutput;
+            mBootWaitFails = bootWaitFails;
+        }
+
+        @Override
+        public Object answer() throws Throwable {
+            String cmd = (String)EasyMock.getCurrentArguments()[0];
+            IShellOutputReceiver receiver = (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+            String output = "";
+            if (cmd.contains("TF_BOOT_PHASE")) {
+                StringBuilder builder = new StringBuilder();
+                for (String line : mBootWaitOutput) {
+                    builder.append(line).append("\n");
+                }
+                output = builder.toString();
+            } else if (cmd.equals("pm path android")) {
+                output = "package:/system/framework/framework-res.apk\n";
+            } else if (cmd.startsWith("echo ")) {
+                mFileContents = cmd.substring(cmd.indexOf('\'') + 1, cmd.indexOf("' >"));
+            } else if (cmd.startsWith("cat ")) {
+                output = mFileContents + "\n";
+            }
+            byte[] data = output.getBytes();
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+            if (mBootWaitFails && cmd.contains("TF_BOOT_PHASE")) {
+                throw new ShellCommandUnresponsiveException();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates a mock {@link IDevice} that responds to availability checks with given answer.
+     */
+    private IDevice createBootedDevice(BootedShellAnswer answer) throws Exception {
+        IDevice mockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mockDevice.getState()).andReturn(DeviceState.ONLINE);
+        EasyMock.expect(mockDevice.getSerialNumber()).andStubReturn(SERIAL_NUMBER);
+        EasyMock.expect(mockDevice.getMountPoint(IDevice.MNT_EXTERNAL_STORAGE)).andStubReturn(
+                "/sdcard");
+        EasyMock.expect(mockDevice.getPropertySync("dev.bootcomplete")).andStubReturn("1");
+        mockDevice.executeShellCommand((String)EasyMock.anyObject(),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andStubAnswer(answer);
+        EasyMock.replay(mockDevice);
+        return mockDevice;
+    }
+
+    /**
+     * Gets the names of the completed phases of the last wait for availability of given monitor.
+     */
+    private List<String> getPhases(DeviceStateMonitor monitor) {
+        return new ArrayList<String>(monitor.getAvailablePhaseTimes().keySet());
+    }
+
+    /**
+     * Normal case test for {@link DeviceStateMonitor#waitForDeviceAvailable()}, polling each
+     * phase from the host.
+     */
+    public void testWaitForDeviceAvailable() throws Exception {
+        IDevice mockDevice = createBootedDevice(new BootedShellAnswer(new String[0], false));
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mMockMgr, mockDevice, true);
+        assertEquals(mockDevice, monitor.waitForDeviceAvailable(1000));
+        assertEquals(4, monitor.getAvailablePhaseTimes().size());
+        assertEquals(DeviceStateMonitor.PHASE_ONLINE, getPhases(monitor).get(0));
+        assertEquals(DeviceStateMonitor.PHASE_STORE_MOUNTED, getPhases(monitor).get(3));
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable()} with the on device boot wait, when
+     * the device reports all phases complete.
+     */
+    public void testWaitForDeviceAvailable_onDevice() throws Exception {
+        BootedShellAnswer answer = new BootedShellAnswer(new String[] {".", ".",
+                "TF_BOOT_PHASE boot_complete", ".", "TF_BOOT_PHASE pm_responsive",
+                "TF_BOOT_PHASE store_mounted"}, false);
+        IDevice mockDevice = createBootedDevice(answer);
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mMockMgr, mockDevice, true);
+        monitor.setOnDeviceBootWait(true);
+        assertEquals(mockDevice, monitor.waitForDeviceAvailable(1000));
+        List<String> phases = getPhases(monitor);
+        assertEquals(4, phases.size());
+        assertEquals(DeviceStateMonitor.PHASE_ONLINE, phases.get(0));
+        assertEquals(DeviceStateMonitor.PHASE_BOOT_COMPLETE, phases.get(1));
+        assertEquals(DeviceStateMonitor.PHASE_PM_RESPONSIVE, phases.get(2));
+        assertEquals(DeviceStateMonitor.PHASE_STORE_MOUNTED, phases.get(3));
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable()} with the on device boot wait, when
+     * the command fails part way. Verifies the remaining phases are polled from the host.
+     */
+    public void testWaitForDeviceAvailable_onDeviceFallback() throws Exception {
+        BootedShellAnswer answer = new BootedShellAnswer(new String[] {
+                "TF_BOOT_PHASE boot_complete"}, true);
+        IDevice mockDevice = createBootedDevice(answer);
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mMockMgr, mockDevice, true);
+        monitor.setOnDeviceBootWait(true);
+        assertEquals(mockDevice, monitor.waitForDeviceAvailable(1000));
+        List<String> phases = getPhases(monitor);
+        assertEquals(4, phases.size());
+        assertEquals(DeviceStateMonitor.PHASE_BOOT_COMPLETE, phases.get(1));
+        assertEquals(DeviceStateMonitor.PHASE_PM_RESPONSIVE, phases.get(2));
+        assertEquals(DeviceStateMonitor.PHASE_STORE_MOUNTED, phases.get(3));
+    }
+
+    /**
+     * Test that {@link DeviceStateMonitor#getBootWaitCommand(String, long)} outputs a line for
+     * each phase.
      */
-    public void testWaitForDeviceAvailable() {
-        // TODO: implement this when IDevice.executeShellCommand can be mocked more easily
-        //assertEquals(mMockDevice, mMonitor.waitForDeviceAvailable());
+    public void testGetBootWaitCommand() {
+        String cmd = DeviceStateMonitor.getBootWaitCommand("/sdcard", 1234);
+        assertTrue(cmd.contains("echo TF_BOOT_PHASE boot_complete;"));
+        assertTrue(cmd.contains("echo TF_BOOT_PHASE pm_responsive;"));
+        assertTrue(cmd.endsWith("echo TF_BOOT_PHASE store_mounted"));
+        assertTrue(cmd.contains("'/sdcard/1234'"));
     }
 
     /**
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link FileOutputReceiver}
+ */
+public class FileOutputReceiverTest extends TestCase {
+
+    private static final String OUTPUT_LINE = "this is a line of shell output\r\n";
+
+    /**
+     * Test that output is collected uncompressed.
+     */
+    public void testGetData() throws IOException {
+        doTestGetData(false);
+    }
+
+    /**
+     * Test that output is collected with on the fly compression, and read back decompressed.
+     */
+    public void testGetData_compressed() throws IOException {
+        doTestGetData(true);
+    }
+
+    private void doTestGetData(boolean compress) throws IOException {
+        FileOutputReceiver receiver = new FileOutputReceiver("output", compress);
+        StringBuilder expectedOutput = new StringBuilder();
+        byte[] data = OUTPUT_LINE.getBytes();
+        for (int i = 0; i < 1000; i++) {
+            receiver.addOutput(data, 0, data.length);
+            expectedOutput.append(OUTPUT_LINE);
+        }
+        InputStreamSource source = receiver.getData();
+        try {
+            assertTrue(receiver.isCancelled());
+            assertEquals(expectedOutput.length(), source.size());
+            // read twice, to verify each stream starts from the beginning
+            assertEquals(expectedOutput.toString(),
+                    StreamUtil.getStringFromStream(source.createInputStream()));
+            assertEquals(expectedOutput.toString(),
+                    StreamUtil.getStringFromStream(source.createInputStream()));
+        } finally {
+            source.cancel();
+        }
+        assertNull(source.createInputStream());
+    }
+
+    /**
+     * Test that an empty source is returned when no output was received.
+     */
+    public void testGetData_empty() throws IOException {
+        FileOutputReceiver receiver = new FileOutputReceiver("output", true);
+        InputStreamSource source = receiver.getData();
+        try {
+            assertEquals(0, source.size());
+            assertEquals("", StreamUtil.getStringFromStream(source.createInputStream()));
+        } finally {
+            source.cancel();
+        }
+    }
+
+    /**
+     * Test that output is discarded once cancelled.
+     */
+    public void testCancel() throws IOException {
+        FileOutputReceiver receiver = new FileOutputReceiver("output", false);
+        byte[] data = OUTPUT_LINE.getBytes();
+        receiver.addOutput(data, 0, data.length);
+        receiver.cancel();
+        assertTrue(receiver.isCancelled());
+        receiver.addOutput(data, 0, data.length);
+        InputStreamSource source = receiver.getData();
+        assertEquals(0, source.size());
+        source.cancel();
+    }
+}
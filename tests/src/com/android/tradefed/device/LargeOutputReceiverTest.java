@@ -17,6 +17,7 @@
 
 package com.android.tradefed.device;
 
+import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.TestCase;
@@ -78,4 +79,81 @@ public class LargeOutputReceiverTest extends TestCase {
             helper.delete();
         }
     }
+
+    /**
+     * Test that output is also fed to the tee receiver.
+     */
+    public void testTeeReceiver() throws IOException {
+        final String input = "some output";
+        FileOutputReceiver teeReceiver = new FileOutputReceiver("tee", false);
+        LargeOutputReceiver helper = new LargeOutputReceiver("command", "serial", 1024);
+        try {
+            helper.setTeeReceiver(teeReceiver);
+            byte[] inputData = input.getBytes();
+            helper.addOutput(inputData, 0, inputData.length);
+            helper.setTeeReceiver(null);
+            helper.addOutput(inputData, 0, inputData.length);
+            InputStreamSource teeData = teeReceiver.getData();
+            assertEquals(input, StreamUtil.getStringFromStream(teeData.createInputStream()));
+            teeData.cancel();
+        } finally {
+            helper.cancel();
+            helper.delete();
+        }
+    }
+
+    /**
+     * Test that compressed output is read back, prefixed by the header message.
+     */
+    public void testGetData_compressed() throws IOException {
+        final String input = "04-25 09:55:47.799  3064  3082 I tag: message\n";
+        LargeOutputReceiver helper = new LargeOutputReceiver("command", "serial", 1024 * 1024,
+                true);
+        try {
+            byte[] inputData = input.getBytes();
+            // write enough output to fill several compressed chunks
+            for (int i = 0; i < 5000; i++) {
+                helper.addOutput(inputData, 0, inputData.length);
+            }
+            String actualString = StreamUtil.getStringFromStream(
+                    helper.getData().createInputStream());
+            assertTrue(actualString.startsWith("\n*******************\ncommand for device serial"));
+            assertTrue(actualString.endsWith(input));
+            assertFalse(actualString.contains("truncated"));
+            assertEquals(5000, actualString.split("I tag: message").length - 1);
+        } finally {
+            helper.cancel();
+            helper.delete();
+        }
+    }
+
+    /**
+     * Test that a time range of uncompressed output is returned using the time index.
+     */
+    public void testGetData_range() throws IOException {
+        LargeOutputReceiver helper = new LargeOutputReceiver("command", "serial",
+                10 * 1024 * 1024);
+        try {
+            // write ~5K of log per second, for 100 seconds
+            for (int sec = 0; sec < 100; sec++) {
+                for (int i = 0; i < 100; i++) {
+                    byte[] line = String.format("04-25 09:%02d:%02d.%03d  1  2 I tag: %03d\n",
+                            sec / 60, sec % 60, i, sec).getBytes();
+                    helper.addOutput(line, 0, line.length);
+                }
+            }
+            long startTime = helper.getLogTime(System.currentTimeMillis()) - 50 * 1000;
+            InputStreamSource data = helper.getData(startTime, startTime + 1000);
+            String actualString = StreamUtil.getStringFromStream(data.createInputStream());
+            data.cancel();
+            assertTrue(actualString.contains("I tag: 049"));
+            assertTrue(actualString.contains("I tag: 050"));
+            assertFalse(actualString.contains("I tag: 010"));
+            assertFalse(actualString.contains("I tag: 090"));
+            assertTrue(actualString.length() < 3 * LargeOutputReceiver.INDEX_INTERVAL);
+        } finally {
+            helper.cancel();
+            helper.delete();
+        }
+    }
 }
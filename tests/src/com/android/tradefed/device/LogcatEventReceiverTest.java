@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.result.ILogcatEventListener;
+import com.android.tradefed.util.brillopad.item.AnrItem;
+import com.android.tradefed.util.brillopad.item.GenericLogcatItem;
+import com.android.tradefed.util.brillopad.item.JavaCrashItem;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+/**
+ * Unit tests for {@link LogcatEventReceiver}
+ */
+public class LogcatEventReceiverTest extends TestCase {
+
+    private ILogcatEventListener mMockListener;
+    private LogcatEventReceiver mReceiver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockListener = EasyMock.createMock(ILogcatEventListener.class);
+        mReceiver = new LogcatEventReceiver("serial", mMockListener);
+    }
+
+    /**
+     * Test that a crash is reported once the logcat moves past it, even when split across
+     * output chunks.
+     */
+    public void testProcessOutput_crash() {
+        mMockListener.logcatEvent(EasyMock.eq("serial"), EasyMock.isA(JavaCrashItem.class));
+        EasyMock.replay(mMockListener);
+
+        addOutput("04-25 09:55:47.799  3064  3082 E AndroidRuntime: java.lang.Exception\r\n" +
+                "04-25 09:55:47.799  3064  3082 E AndroidRuntime: \tat class.method1(Cl");
+        addOutput("ass.java:1)\r\n04-25 09:55:47.900  3064  3082 I tag: message 1\r\n");
+        // crash is not reported until logcat has moved on past the quiet time
+        addOutput("04-25 09:55:49.000  3064  3082 I tag: message 2\r\n");
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that pending events are reported when flushed, and not after cancel.
+     */
+    public void testFlushEvents() {
+        mMockListener.logcatEvent(EasyMock.eq("serial"), EasyMock.isA(AnrItem.class));
+        EasyMock.replay(mMockListener);
+
+        addOutput("04-25 17:17:08.445   312   366 E ActivityManager: ANR in com.android.package\r\n" +
+                "04-25 17:17:08.445   312   366 E ActivityManager: Reason: keyDispatchingTimedOut\r\n");
+        mReceiver.flushEvents();
+        mReceiver.cancel();
+        addOutput("04-25 17:17:10.445  3064  3082 E AndroidRuntime: java.lang.Exception\r\n");
+        mReceiver.flushEvents();
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that an exception thrown by the listener does not stop event detection.
+     */
+    public void testProcessOutput_listenerException() {
+        mMockListener.logcatEvent(EasyMock.eq("serial"),
+                (GenericLogcatItem) EasyMock.anyObject());
+        EasyMock.expectLastCall().andThrow(new RuntimeException()).times(2);
+        EasyMock.replay(mMockListener);
+
+        addOutput("04-25 09:55:47.799  3064  3082 E AndroidRuntime: java.lang.Exception\r\n" +
+                "04-25 09:55:49.799  3065  3090 E AndroidRuntime: java.lang.Exception\r\n");
+        mReceiver.flushEvents();
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that events replayed by logcat after the stream restarts are not reported again.
+     */
+    public void testReset_replayedEvents() {
+        mMockListener.logcatEvent(EasyMock.eq("serial"), EasyMock.isA(JavaCrashItem.class));
+        mMockListener.logcatEvent(EasyMock.eq("serial"), EasyMock.isA(AnrItem.class));
+        EasyMock.replay(mMockListener);
+
+        String crash = "04-25 09:55:47.799  3064  3082 E AndroidRuntime: java.lang.Exception\r\n";
+        addOutput(crash);
+        mReceiver.flushEvents();
+        mReceiver.reset();
+        addOutput(crash);
+        addOutput("04-25 17:17:08.445   312   366 E ActivityManager: ANR in com.android.pkg\r\n");
+        mReceiver.flushEvents();
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that a crash still pending when the logcat stream restarts is reported, even if it is
+     * not replayed after the restart.
+     */
+    public void testReset_pendingCrash() {
+        mMockListener.logcatEvent(EasyMock.eq("serial"), EasyMock.isA(JavaCrashItem.class));
+        EasyMock.replay(mMockListener);
+
+        addOutput("04-25 09:55:47.799  3064  3082 E AndroidRuntime: java.lang.Exception\r\n");
+        // device reboots, so the logcat buffer is not replayed
+        mReceiver.reset();
+        addOutput("01-01 00:00:01.000     1     1 I init: starting\r\n");
+        EasyMock.verify(mMockListener);
+    }
+
+    private void addOutput(String output) {
+        byte[] data = output.getBytes();
+        mReceiver.addOutput(data, 0, data.length);
+    }
+}
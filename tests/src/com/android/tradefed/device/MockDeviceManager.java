@@ -27,7 +27,10 @@ import org.easymock.EasyMock;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -41,6 +44,9 @@ public class MockDeviceManager implements IDeviceManager {
 
     private int mTotalDevices;
 
+    private Set<IDeviceAvailabilityListener> mAvailabilityListeners =
+            Collections.synchronizedSet(new HashSet<IDeviceAvailabilityListener>());
+
     public MockDeviceManager(int numDevices) {
         setNumDevices(numDevices);
     }
@@ -114,6 +120,11 @@ public class MockDeviceManager implements IDeviceManager {
     public void freeDevice(ITestDevice device, FreeDeviceState state) {
         if (!state.equals(FreeDeviceState.UNAVAILABLE)) {
             mDeviceQueue.add(device);
+            synchronized (mAvailabilityListeners) {
+                for (IDeviceAvailabilityListener listener : mAvailabilityListeners) {
+                    listener.deviceAvailable(device.getIDevice());
+                }
+            }
         }
     }
 
@@ -134,6 +145,22 @@ public class MockDeviceManager implements IDeviceManager {
         // ignore
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addDeviceAvailabilityListener(IDeviceAvailabilityListener listener) {
+        mAvailabilityListeners.add(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeDeviceAvailabilityListener(IDeviceAvailabilityListener listener) {
+        mAvailabilityListeners.remove(listener);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -22,10 +22,12 @@ import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.TestDeviceOptions;
+import com.android.tradefed.result.ILogcatEventListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.util.CommandResult;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -119,6 +121,22 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStreamSource getLogcatSlice(long startTime, long endTime) {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLogcatEventListener(ILogcatEventListener listener) {
+        // ignore
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -441,6 +459,16 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> installPackages(Collection<File> packageFiles, boolean reinstall,
+            boolean stopOnFailure, String... extraArgs) throws DeviceNotAvailableException {
+        // ignore
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -674,6 +702,24 @@ public class StubTestDevice implements IManagedTestDevice {
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean pushDir(File localDir, String deviceFilePath, boolean skipUnchanged)
+            throws DeviceNotAvailableException {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean pushDir(File localDir, String deviceFilePath, boolean skipUnchanged,
+            FilenameFilter filter) throws DeviceNotAvailableException {
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
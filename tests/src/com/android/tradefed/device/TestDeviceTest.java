@@ -19,6 +19,7 @@ import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.SyncService;
 import com.android.ddmlib.TimeoutException;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
@@ -29,6 +30,7 @@ import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.StreamUtil;
 
@@ -38,12 +40,15 @@ import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -287,7 +292,7 @@ public class TestDeviceTest extends TestCase {
     public void testGetProductType_adb() throws Exception {
         EasyMock.expect(mMockIDevice.arePropertiesSet()).andReturn(false);
         final String expectedOutput = "nexusone";
-        EasyMock.expect(mMockIDevice.getPropertyCacheOrSync("ro.hardware")).andReturn(expectedOutput);
+        injectShellResponse("getprop", "[ro.hardware]: [nexusone]\r\n");
         EasyMock.replay(mMockIDevice);
         assertEquals(expectedOutput, mTestDevice.getProductType());
     }
@@ -298,10 +303,9 @@ public class TestDeviceTest extends TestCase {
      */
     public void testGetProductType_adbFail() throws Exception {
         EasyMock.expect(mMockIDevice.arePropertiesSet()).andStubReturn(false);
-        final String expectedOutput = "";
-        EasyMock.expect(mMockIDevice.getPropertyCacheOrSync("ro.hardware"))
-                .andReturn(expectedOutput)
-                .times(3);
+        injectShellResponse("getprop", "[ro.hardware]: []\r\n");
+        injectShellResponse("getprop", "[ro.hardware]: []\r\n");
+        injectShellResponse("getprop", "[ro.hardware]: []\r\n");
         EasyMock.replay(mMockIDevice);
         try {
             mTestDevice.getProductType();
@@ -311,6 +315,51 @@ public class TestDeviceTest extends TestCase {
         }
     }
 
+    /**
+     * Test that {@link TestDevice#getProperty(String)} loads all properties with a single
+     * 'getprop', and serves later queries for read-only properties from the snapshot.
+     */
+    public void testGetProperty_cached() throws Exception {
+        injectShellResponse("getprop", "[ro.hardware]: [mako]\r\n"
+                + "[ro.product.device]: [occam]\r\n[sys.boot_completed]: [1]\r\n");
+        EasyMock.replay(mMockIDevice);
+        assertEquals("mako", mTestDevice.getProperty("ro.hardware"));
+        assertEquals("occam", mTestDevice.getProperty("ro.product.device"));
+        assertEquals("mako", mTestDevice.getProperty("ro.hardware"));
+        assertNull(mTestDevice.getProperty("ro.missing"));
+        assertEquals("1", mTestDevice.getProperty("sys.boot_completed"));
+        EasyMock.verify(mMockIDevice);
+    }
+
+    /**
+     * Test that {@link TestDevice#getProperty(String)} reloads the properties once a volatile
+     * property is older than the ttl.
+     */
+    public void testGetProperty_volatileExpired() throws Exception {
+        mTestDevice.getOptions().setPropertyCacheTtl(0);
+        injectShellResponse("getprop", "[ro.hardware]: [mako]\r\n[sys.foo]: [1]\r\n");
+        injectShellResponse("getprop", "[ro.hardware]: [mako]\r\n[sys.foo]: [2]\r\n");
+        EasyMock.replay(mMockIDevice);
+        assertEquals("1", mTestDevice.getProperty("sys.foo"));
+        assertEquals("mako", mTestDevice.getProperty("ro.hardware"));
+        assertEquals("2", mTestDevice.getProperty("sys.foo"));
+        EasyMock.verify(mMockIDevice);
+    }
+
+    /**
+     * Test that the properties are reloaded after the device state changes.
+     */
+    public void testGetProperty_invalidatedOnStateChange() throws Exception {
+        injectShellResponse("getprop", "[ro.build.id]: [A]\r\n");
+        injectShellResponse("getprop", "[ro.build.id]: [B]\r\n");
+        EasyMock.replay(mMockIDevice);
+        assertEquals("A", mTestDevice.getProperty("ro.build.id"));
+        mTestDevice.setDeviceState(TestDeviceState.NOT_AVAILABLE);
+        mTestDevice.setDeviceState(TestDeviceState.ONLINE);
+        assertEquals("B", mTestDevice.getProperty("ro.build.id"));
+        EasyMock.verify(mMockIDevice);
+    }
+
     /**
      * Test {@link TestDevice#clearErrorDialogs()} when both a error and anr dialog are present.
      */
@@ -918,6 +967,265 @@ public class TestDeviceTest extends TestCase {
         assertNull(mTestDevice.installPackage(new File(apkFile), new File(certFile), true, "-l"));
     }
 
+    /**
+     * Test {@link TestDevice#installPackages(Collection, boolean, boolean, String...)} installs
+     * each pushed package, and removes it from device afterwards.
+     */
+    public void testInstallPackages_batch() throws Exception {
+        final List<String> pushedPaths = new ArrayList<String>();
+        TestDevice testDevice = new TestableTestDevice() {
+            @Override
+            void pushFile(SyncService syncService, File packageFile, String remotePath) {
+                pushedPaths.add(remotePath);
+            }
+        };
+        File apk1 = new File("foo.apk");
+        File apk2 = new File("bar.apk");
+        EasyMock.expect(mMockIDevice.getSyncService()).andReturn(null);
+        EasyMock.expect(mMockIDevice.installRemotePackage(
+                EasyMock.eq(TestDevice.PACKAGE_PUSH_DIR + "tf_0_foo.apk"), EasyMock.eq(true),
+                EasyMock.eq("-l"))).andReturn(null);
+        mMockIDevice.removeRemotePackage(TestDevice.PACKAGE_PUSH_DIR + "tf_0_foo.apk");
+        EasyMock.expect(mMockIDevice.installRemotePackage(
+                EasyMock.eq(TestDevice.PACKAGE_PUSH_DIR + "tf_1_bar.apk"), EasyMock.eq(true),
+                EasyMock.eq("-l"))).andReturn("INSTALL_FAILED");
+        mMockIDevice.removeRemotePackage(TestDevice.PACKAGE_PUSH_DIR + "tf_1_bar.apk");
+        replayMocks();
+
+        List<String> results = testDevice.installPackages(Arrays.asList(apk1, apk2), true, false,
+                "-l");
+        assertEquals(2, results.size());
+        assertNull(results.get(0));
+        assertEquals("INSTALL_FAILED", results.get(1));
+        assertEquals(2, pushedPaths.size());
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link TestDevice#installPackages(Collection, boolean, boolean, String...)} reports a
+     * result for each package when the same package is installed twice, and stops at the first
+     * failure when requested.
+     */
+    public void testInstallPackages_stopOnFailure() throws Exception {
+        TestDevice testDevice = new TestableTestDevice() {
+            @Override
+            void pushFile(SyncService syncService, File packageFile, String remotePath) {
+                // ignore
+            }
+        };
+        File apk1 = new File("foo.apk");
+        File apk2 = new File("bar.apk");
+        EasyMock.expect(mMockIDevice.getSyncService()).andReturn(null);
+        EasyMock.expect(mMockIDevice.installRemotePackage(
+                EasyMock.eq(TestDevice.PACKAGE_PUSH_DIR + "tf_0_foo.apk"), EasyMock.eq(true)))
+                .andReturn(null);
+        mMockIDevice.removeRemotePackage(TestDevice.PACKAGE_PUSH_DIR + "tf_0_foo.apk");
+        EasyMock.expect(mMockIDevice.installRemotePackage(
+                EasyMock.eq(TestDevice.PACKAGE_PUSH_DIR + "tf_1_foo.apk"), EasyMock.eq(true)))
+                .andReturn("INSTALL_FAILED");
+        mMockIDevice.removeRemotePackage(TestDevice.PACKAGE_PUSH_DIR + "tf_1_foo.apk");
+        // the remaining package may have been pushed, but must not be installed
+        mMockIDevice.removeRemotePackage(TestDevice.PACKAGE_PUSH_DIR + "tf_2_bar.apk");
+        EasyMock.expectLastCall().anyTimes();
+        replayMocks();
+
+        List<String> results = testDevice.installPackages(Arrays.asList(apk1, apk1, apk2), true,
+                true);
+        assertEquals(2, results.size());
+        assertNull(results.get(0));
+        assertEquals("INSTALL_FAILED", results.get(1));
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link TestDevice#installPackages(Collection, boolean, boolean, String...)} falls back
+     * to an individual install for each package after a push fails.
+     */
+    public void testInstallPackages_pushFailed() throws Exception {
+        TestDevice testDevice = new TestableTestDevice() {
+            @Override
+            void pushFile(SyncService syncService, File packageFile, String remotePath)
+                    throws IOException {
+                if (packageFile.getName().equals("bar.apk")) {
+                    throw new IOException();
+                }
+            }
+        };
+        File apk1 = new File("foo.apk");
+        File apk2 = new File("bar.apk");
+        File apk3 = new File("baz.apk");
+        EasyMock.expect(mMockIDevice.getSyncService()).andReturn(null);
+        EasyMock.expect(mMockIDevice.installRemotePackage(
+                EasyMock.eq(TestDevice.PACKAGE_PUSH_DIR + "tf_0_foo.apk"), EasyMock.eq(true)))
+                .andReturn(null);
+        mMockIDevice.removeRemotePackage(TestDevice.PACKAGE_PUSH_DIR + "tf_0_foo.apk");
+        EasyMock.expect(mMockIDevice.installPackage(EasyMock.eq(apk2.getAbsolutePath()),
+                EasyMock.eq(true))).andReturn(null);
+        EasyMock.expect(mMockIDevice.installPackage(EasyMock.eq(apk3.getAbsolutePath()),
+                EasyMock.eq(true))).andReturn(null);
+        replayMocks();
+
+        List<String> results = testDevice.installPackages(Arrays.asList(apk1, apk2, apk3),
+                true, false);
+        assertEquals(3, results.size());
+        for (String result : results) {
+            assertNull(result);
+        }
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link TestDevice#pushDir(File, String, boolean)} creates all sub directories with a
+     * single command, and pushes all files over a single sync session.
+     */
+    public void testPushDir_bulk() throws Exception {
+        File localDir = FileUtil.createTempDir("pushdir");
+        try {
+            File subDir = new File(localDir, "sub");
+            assertTrue(subDir.mkdir());
+            FileUtil.writeToFile("foo", new File(localDir, "foo.txt"));
+            FileUtil.writeToFile("bar", new File(subDir, "bar.txt"));
+            final Set<String> pushedPaths = new HashSet<String>();
+            TestDevice testDevice = new TestableTestDevice() {
+                @Override
+                void pushFile(SyncService syncService, File localFile, String remotePath) {
+                    pushedPaths.add(remotePath);
+                }
+            };
+            injectShellResponse("mkdir \"/data/dir/sub\"", "");
+            EasyMock.expect(mMockIDevice.getSyncService()).andReturn(null);
+            replayMocks();
+
+            assertTrue(testDevice.pushDir(localDir, "/data/dir", false));
+            assertEquals(2, pushedPaths.size());
+            assertTrue(pushedPaths.contains("/data/dir/foo.txt"));
+            assertTrue(pushedPaths.contains("/data/dir/sub/bar.txt"));
+            verifyMocks();
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+    }
+
+    /**
+     * Test {@link TestDevice#pushDir(File, String, boolean)} into an existing directory creates
+     * each missing nested sub directory with its own chained 'mkdir'.
+     */
+    public void testPushDir_newSubDirs() throws Exception {
+        File localDir = FileUtil.createTempDir("pushdir");
+        try {
+            File subDir = new File(localDir, "sub");
+            File nestedDir = new File(subDir, "nested");
+            assertTrue(nestedDir.mkdirs());
+            FileUtil.writeToFile("bar", new File(nestedDir, "bar.txt"));
+            final Set<String> pushedPaths = new HashSet<String>();
+            TestDevice testDevice = new TestableTestDevice() {
+                @Override
+                void pushFile(SyncService syncService, File localFile, String remotePath) {
+                    pushedPaths.add(remotePath);
+                }
+            };
+            injectShellResponse("mkdir \"/data/dir/sub\"; mkdir \"/data/dir/sub/nested\"", "");
+            EasyMock.expect(mMockIDevice.getSyncService()).andReturn(null);
+            replayMocks();
+
+            assertTrue(testDevice.pushDir(localDir, "/data/dir", false));
+            assertEquals(1, pushedPaths.size());
+            assertTrue(pushedPaths.contains("/data/dir/sub/nested/bar.txt"));
+            verifyMocks();
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+    }
+
+    /**
+     * Test {@link TestDevice#pushDir(File, String, boolean, FilenameFilter)} only pushes the files
+     * and directories accepted by the filter.
+     */
+    public void testPushDir_filter() throws Exception {
+        File localDir = FileUtil.createTempDir("pushdir");
+        try {
+            File hiddenDir = new File(localDir, ".hidden");
+            assertTrue(hiddenDir.mkdir());
+            FileUtil.writeToFile("foo", new File(localDir, "foo.txt"));
+            FileUtil.writeToFile("bar", new File(localDir, ".bar"));
+            FileUtil.writeToFile("baz", new File(hiddenDir, "baz.txt"));
+            final Set<String> pushedPaths = new HashSet<String>();
+            TestDevice testDevice = new TestableTestDevice() {
+                @Override
+                void pushFile(SyncService syncService, File localFile, String remotePath) {
+                    pushedPaths.add(remotePath);
+                }
+            };
+            EasyMock.expect(mMockIDevice.getSyncService()).andReturn(null);
+            replayMocks();
+
+            assertTrue(testDevice.pushDir(localDir, "/data/dir", false, new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return !name.startsWith(".");
+                }
+            }));
+            assertEquals(1, pushedPaths.size());
+            assertTrue(pushedPaths.contains("/data/dir/foo.txt"));
+            verifyMocks();
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+    }
+
+    /**
+     * Test {@link TestDevice#pushDir(File, String, boolean)} skips files already on device with
+     * the same size and modification time.
+     */
+    public void testPushDir_skipUnchanged() throws Exception {
+        File localDir = FileUtil.createTempDir("pushdir");
+        try {
+            File unchangedFile = new File(localDir, "unchanged.txt");
+            FileUtil.writeToFile("foo", unchangedFile);
+            // 2012-05-01 12:34 GMT
+            assertTrue(unchangedFile.setLastModified(1335875640000L));
+            FileUtil.writeToFile("bar", new File(localDir, "changed.txt"));
+            final Set<String> pushedPaths = new HashSet<String>();
+            TestDevice testDevice = new TestableTestDevice() {
+                @Override
+                void pushFile(SyncService syncService, File localFile, String remotePath) {
+                    pushedPaths.add(remotePath);
+                }
+            };
+            injectShellResponse("ls -lR \"/data/dir\"",
+                    "-rw-rw-rw- root     root            3 2012-05-01 12:34 unchanged.txt\r\n" +
+                    "-rw-rw-rw- root     root           10 2012-05-01 12:34 changed.txt\r\n");
+            EasyMock.expect(mMockIDevice.getSyncService()).andReturn(null);
+            replayMocks();
+
+            assertTrue(testDevice.pushDir(localDir, "/data/dir", true));
+            assertEquals(1, pushedPaths.size());
+            assertTrue(pushedPaths.contains("/data/dir/changed.txt"));
+            verifyMocks();
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+    }
+
+    /**
+     * Test {@link TestDevice#parseRemoteFileListing(String, String)} for a recursive listing.
+     */
+    public void testParseRemoteFileListing() {
+        final String output =
+                "-rw-rw-rw- root     root         1234 2012-05-01 12:34 foo bar.txt\r\n" +
+                "drwxrwxrwx root     root              2012-05-01 12:34 sub\r\n" +
+                "\r\n" +
+                "/data/dir/sub:\r\n" +
+                "-rwxr-x--- system   system          5 2012-05-02 01:02 baz\r\n" +
+                "lrwxrwxrwx root     root              2012-05-01 12:34 link -> /data\r\n";
+        Map<String, TestDevice.RemoteFileInfo> files = TestDevice.parseRemoteFileListing(output,
+                "/data/dir");
+        assertEquals(2, files.size());
+        assertEquals(1234, files.get("/data/dir/foo bar.txt").mSize);
+        assertEquals(1335875640000L, files.get("/data/dir/foo bar.txt").mModifiedTime);
+        assertEquals(5, files.get("/data/dir/sub/baz").mSize);
+    }
+
     /**
      * Helper method to build a response to a executeShellCommand call
      *
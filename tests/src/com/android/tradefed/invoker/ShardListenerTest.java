@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestRunResult;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ShardListener} and {@link ShardMasterResultForwarder}.
+ */
+public class ShardListenerTest extends TestCase {
+
+    private static final String RUN_NAME = "run";
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    private CollectingTestListener mCollector;
+    private ShardMasterResultForwarder mMaster;
+    private int mNumRunsStarted = 0;
+    /** the test count each run was last started with */
+    private Map<String, Integer> mRunTestCounts = new HashMap<String, Integer>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCollector = new CollectingTestListener() {
+            @Override
+            public void testRunStarted(String name, int numTests) {
+                mNumRunsStarted++;
+                mRunTestCounts.put(name, numTests);
+                super.testRunStarted(name, numTests);
+            }
+        };
+        List<ITestInvocationListener> listeners = new ArrayList<ITestInvocationListener>(1);
+        listeners.add(mCollector);
+        mMaster = new ShardMasterResultForwarder(listeners, 2);
+    }
+
+    /**
+     * Test that tests from shards of the same run are merged into one run, and forwarded as they
+     * complete.
+     */
+    public void testSameRun() {
+        ShardListener shard1 = new ShardListener(mMaster);
+        ShardListener shard2 = new ShardListener(mMaster);
+        shard1.invocationStarted(new BuildInfo());
+        shard2.invocationStarted(new BuildInfo());
+        shard1.testRunStarted(RUN_NAME, 1);
+        shard2.testRunStarted(RUN_NAME, 1);
+        TestIdentifier test1 = new TestIdentifier("Foo", "test1");
+        TestIdentifier test2 = new TestIdentifier("Foo", "test2");
+        shard1.testStarted(test1);
+        shard1.testEnded(test1, EMPTY_MAP);
+        // test is forwarded before either shard completes
+        assertEquals(1, mCollector.getNumTotalTests());
+        shard2.testStarted(test2);
+        shard2.testFailed(TestFailure.FAILURE, test2, "trace");
+        shard2.testEnded(test2, EMPTY_MAP);
+        Map<String, String> metrics1 = new HashMap<String, String>();
+        metrics1.put("key", "1");
+        metrics1.put("key1", "foo");
+        shard1.testRunEnded(10, metrics1);
+        // run is not ended until all shards end it
+        assertFalse(mCollector.getCurrentRunResults().isRunComplete());
+        shard1.invocationEnded(10);
+        Map<String, String> metrics2 = new HashMap<String, String>();
+        metrics2.put("key", "2");
+        metrics2.put("key2", "bar");
+        shard2.testRunEnded(20, metrics2);
+        shard2.invocationEnded(20);
+
+        assertEquals(1, mNumRunsStarted);
+        assertEquals(1, mCollector.getRunResults().size());
+        TestRunResult runResult = mCollector.getCurrentRunResults();
+        assertTrue(runResult.isRunComplete());
+        assertEquals(2, runResult.getNumTests());
+        assertEquals(1, runResult.getNumFailedTests());
+        assertEquals(30, runResult.getElapsedTime());
+        // metrics of all shards are kept, and summed per key
+        assertEquals("3", runResult.getRunMetrics().get("key"));
+        assertEquals("foo", runResult.getRunMetrics().get("key1"));
+        assertEquals("bar", runResult.getRunMetrics().get("key2"));
+    }
+
+    /**
+     * Test that interleaved tests from shards running different runs are all forwarded as they
+     * complete, and merged by run name.
+     */
+    public void testDifferentRuns() {
+        ShardListener shard1 = new ShardListener(mMaster);
+        ShardListener shard2 = new ShardListener(mMaster);
+        shard1.invocationStarted(new BuildInfo());
+        shard2.invocationStarted(new BuildInfo());
+        shard1.testRunStarted("run1", 2);
+        shard2.testRunStarted("run2", 2);
+        for (int i = 0; i < 2; i++) {
+            TestIdentifier test1 = new TestIdentifier("Foo", "test" + i);
+            TestIdentifier test2 = new TestIdentifier("Bar", "test" + i);
+            shard1.testStarted(test1);
+            shard1.testEnded(test1, EMPTY_MAP);
+            shard2.testStarted(test2);
+            shard2.testEnded(test2, EMPTY_MAP);
+        }
+        // tests of all runs are forwarded immediately
+        assertEquals(4, mCollector.getNumTotalTests());
+        shard1.testRunEnded(1, EMPTY_MAP);
+        shard1.invocationEnded(1);
+        shard2.testRunEnded(2, EMPTY_MAP);
+        shard2.invocationEnded(2);
+
+        assertEquals(2, mCollector.getRunResults().size());
+        for (TestRunResult runResult : mCollector.getRunResults()) {
+            assertTrue(runResult.isRunComplete());
+            assertEquals(2, runResult.getNumTests());
+        }
+        assertEquals(4, mCollector.getNumTotalTests());
+    }
+
+    /**
+     * Test that a shard that ends its invocation mid run has its run ended, and its test in
+     * progress reported as incomplete.
+     */
+    public void testIncompleteRun() {
+        ShardListener shard1 = new ShardListener(mMaster);
+        ShardListener shard2 = new ShardListener(mMaster);
+        shard1.invocationStarted(new BuildInfo());
+        shard1.testRunStarted(RUN_NAME, 1);
+        TestIdentifier test = new TestIdentifier("Foo", "test");
+        shard1.testStarted(test);
+        shard1.testRunFailed("device gone");
+        shard1.invocationEnded(1);
+        shard2.invocationStarted(new BuildInfo());
+        shard2.invocationEnded(1);
+
+        TestRunResult runResult = mCollector.getCurrentRunResults();
+        assertEquals(RUN_NAME, runResult.getName());
+        assertTrue(runResult.isRunComplete());
+        assertEquals(1, runResult.getNumIncompleteTests());
+    }
+
+    /**
+     * Test that a run is reported with the test count of all its shards, even if a shard starts
+     * it after its first test was forwarded, and that a shard stopping the run does not end it.
+     */
+    public void testLateShard() {
+        ShardListener shard1 = new ShardListener(mMaster);
+        ShardListener shard2 = new ShardListener(mMaster);
+        shard1.invocationStarted(new BuildInfo());
+        shard1.testRunStarted(RUN_NAME, 1);
+        TestIdentifier test1 = new TestIdentifier("Foo", "test1");
+        shard1.testStarted(test1);
+        shard1.testEnded(test1, EMPTY_MAP);
+        shard1.testRunStopped(1);
+        assertEquals(Integer.valueOf(1), mRunTestCounts.get(RUN_NAME));
+        shard2.invocationStarted(new BuildInfo());
+        shard2.testRunStarted(RUN_NAME, 2);
+        shard2.testRunFailed("failed");
+        shard2.testRunEnded(1, EMPTY_MAP);
+        // run is still in progress on shard1
+        assertFalse(mCollector.getCurrentRunResults().isRunComplete());
+        shard1.testRunEnded(1, EMPTY_MAP);
+        shard1.invocationEnded(1);
+        shard2.invocationEnded(1);
+
+        assertEquals(Integer.valueOf(3), mRunTestCounts.get(RUN_NAME));
+        TestRunResult runResult = mCollector.getCurrentRunResults();
+        assertTrue(runResult.isRunComplete());
+        assertEquals("failed", runResult.getRunFailureMessage());
+        assertEquals(2, runResult.getElapsedTime());
+    }
+
+    /**
+     * Test that results from shards running concurrently are all received.
+     */
+    public void testConcurrentShards() throws InterruptedException {
+        final int numTests = 500;
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final ShardListener shard = new ShardListener(mMaster);
+            final String runName = "run" + (i % 2);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    shard.invocationStarted(new BuildInfo());
+                    shard.testRunStarted(runName, numTests);
+                    for (int j = 0; j < numTests; j++) {
+                        TestIdentifier test = new TestIdentifier(runName, "test" + j);
+                        shard.testStarted(test);
+                        shard.testEnded(test, EMPTY_MAP);
+                    }
+                    shard.testRunEnded(1, EMPTY_MAP);
+                    shard.invocationEnded(1);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2, mCollector.getRunResults().size());
+        assertEquals(2 * numTests, mCollector.getNumTotalTests());
+        for (TestRunResult runResult : mCollector.getRunResults()) {
+            assertTrue(runResult.isRunComplete());
+            assertEquals(numTests, runResult.getNumTests());
+            assertEquals(1, runResult.getElapsedTime());
+        }
+    }
+}
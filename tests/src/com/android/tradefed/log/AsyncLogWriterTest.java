@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.AsyncLogWriter.LogRecord;
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link AsyncLogWriter}.
+ */
+public class AsyncLogWriterTest extends TestCase {
+
+    private static final String LOG_TAG = "AsyncLogWriterTest";
+
+    private List<String> mWritten;
+    private AsyncLogWriter mWriter;
+
+    /**
+     * A {@link AsyncLogWriter.IRecordWriter} that records messages, and optionally blocks until
+     * released.
+     */
+    private class BlockingRecordWriter implements AsyncLogWriter.IRecordWriter {
+        final CountDownLatch mStartedLatch = new CountDownLatch(1);
+        final CountDownLatch mReleaseLatch;
+
+        BlockingRecordWriter(boolean block) {
+            mReleaseLatch = new CountDownLatch(block ? 1 : 0);
+        }
+
+        @Override
+        public void writeRecords(List<LogRecord> records) {
+            mStartedLatch.countDown();
+            try {
+                mReleaseLatch.await();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            for (LogRecord record : records) {
+                mWritten.add(record.mMessage);
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWritten = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mWriter != null) {
+            mWriter.stop();
+        }
+        super.tearDown();
+    }
+
+    private static LogRecord createRecord(LogLevel logLevel, String message) {
+        return new LogRecord(logLevel, LOG_TAG, message, System.currentTimeMillis(), false);
+    }
+
+    /**
+     * Test that records are written in order, and that {@link AsyncLogWriter#flush()} waits for
+     * them.
+     */
+    public void testFlush() {
+        mWriter = new AsyncLogWriter(LOG_TAG, 100, OverflowPolicy.BLOCK,
+                new BlockingRecordWriter(false));
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(mWriter.enqueue(createRecord(LogLevel.DEBUG, Integer.toString(i))));
+        }
+        mWriter.flush();
+        assertEquals(1000, mWritten.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.toString(i), mWritten.get(i));
+        }
+        assertEquals(1000, mWriter.getNumWritten());
+        assertTrue(mWriter.getNumBatches() > 0);
+    }
+
+    /**
+     * Test that {@link AsyncLogWriter#stop()} writes queued records, and that later records are
+     * rejected.
+     */
+    public void testStop() {
+        mWriter = new AsyncLogWriter(LOG_TAG, 100, OverflowPolicy.BLOCK,
+                new BlockingRecordWriter(false));
+        mWriter.enqueue(createRecord(LogLevel.DEBUG, "1"));
+        mWriter.stop();
+        assertTrue(mWriter.isStopped());
+        assertEquals(1, mWritten.size());
+        assertFalse(mWriter.enqueue(createRecord(LogLevel.DEBUG, "2")));
+        assertEquals(1, mWritten.size());
+    }
+
+    /**
+     * Test that every record accepted while {@link AsyncLogWriter#stop()} runs concurrently is
+     * written.
+     */
+    public void testStop_concurrentEnqueue() throws InterruptedException {
+        mWriter = new AsyncLogWriter(LOG_TAG, 10, OverflowPolicy.BLOCK,
+                new BlockingRecordWriter(false));
+        final AtomicInteger numAccepted = new AtomicInteger(0);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (mWriter.enqueue(createRecord(LogLevel.DEBUG, "msg"))) {
+                        numAccepted.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        while (numAccepted.get() < 100) {
+            Thread.sleep(1);
+        }
+        mWriter.stop();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(numAccepted.get(), mWritten.size());
+        assertEquals(numAccepted.get(), mWriter.getNumWritten());
+    }
+
+    /**
+     * Test that with {@link OverflowPolicy#DROP}, low priority records are dropped when the queue
+     * is full, and high priority records wait for space.
+     */
+    public void testOverflow_drop() throws InterruptedException {
+        final BlockingRecordWriter recordWriter = new BlockingRecordWriter(true);
+        mWriter = new AsyncLogWriter(LOG_TAG, 2, OverflowPolicy.DROP, recordWriter);
+        // first record is taken by the blocked writer thread
+        mWriter.enqueue(createRecord(LogLevel.DEBUG, "1"));
+        recordWriter.mStartedLatch.await();
+        assertTrue(mWriter.enqueue(createRecord(LogLevel.DEBUG, "2")));
+        assertTrue(mWriter.enqueue(createRecord(LogLevel.DEBUG, "3")));
+        assertFalse(mWriter.enqueue(createRecord(LogLevel.DEBUG, "dropped")));
+        assertEquals(1, mWriter.getNumDropped());
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                mWriter.enqueue(createRecord(LogLevel.ERROR, "4"));
+            }
+        };
+        thread.start();
+        while (mWriter.getNumBlocked() == 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(thread.isAlive());
+        recordWriter.mReleaseLatch.countDown();
+        thread.join();
+        mWriter.flush();
+        assertEquals(4, mWritten.size());
+        assertEquals("4", mWritten.get(3));
+        assertEquals(1, mWriter.getNumDropped());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.DdmPreferences;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+
+/**
+ * Micro benchmark java app that compares {@link CLog} against the previous implementation, which
+ * looked up the caller's class name from a stack trace and formatted the message before the log
+ * level was checked.
+ * <p/>
+ * Measures the average time of:
+ * <ul>
+ * <li>a disabled verbose message with format arguments</li>
+ * <li>resolving the caller's class name, as done for every enabled message</li>
+ * </ul>
+ * Lacks automated verification - intended to be run manually.
+ */
+public class CLogBenchmarkApp {
+
+    /** number of measured calls per scenario */
+    private static final int NUM_OPS = 200000;
+    /** number of warm up calls per scenario */
+    private static final int NUM_WARMUP_OPS = 50000;
+
+    /**
+     * The previous {@link CLog#v(String, Object...)}.
+     */
+    private static void oldV(String format, Object... args) {
+        Log.v(oldGetClassName(2), String.format(format, args));
+    }
+
+    /**
+     * The previous {@link CLog#getClassName(int)}.
+     */
+    private static String oldGetClassName(int frame) {
+        StackTraceElement[] frames = (new Throwable()).getStackTrace();
+        String fullName = frames[frame].getClassName();
+        try {
+            return Class.forName(fullName).getSimpleName();
+        } catch (ClassNotFoundException e) {
+            return fullName;
+        }
+    }
+
+    private static long runOldDisabled(int numOps) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numOps; i++) {
+            oldV("Failed to parse line '%s' %d", "some line", i);
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static long runNewDisabled(int numOps) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numOps; i++) {
+            CLog.v("Failed to parse line '%s' %d", "some line", i);
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static long runOldClassName(int numOps) {
+        long startTime = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < numOps; i++) {
+            length += oldGetClassName(1).length();
+        }
+        if (length == 0) {
+            System.out.println("unexpected class name");
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static long runNewClassName(int numOps) {
+        long startTime = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < numOps; i++) {
+            length += CLog.getClassName(1).length();
+        }
+        if (length == 0) {
+            System.out.println("unexpected class name");
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    public static void main(String[] args) {
+        // make verbose messages disabled
+        DdmPreferences.setLogLevel(LogLevel.INFO.getStringValue());
+
+        runOldDisabled(NUM_WARMUP_OPS);
+        runNewDisabled(NUM_WARMUP_OPS);
+        long oldNs = runOldDisabled(NUM_OPS);
+        long newNs = runNewDisabled(NUM_OPS);
+        System.out.printf("%-20s old: %8d ns/op   new: %8d ns/op\n", "disabled message",
+                oldNs / NUM_OPS, newNs / NUM_OPS);
+
+        runOldClassName(NUM_WARMUP_OPS);
+        runNewClassName(NUM_WARMUP_OPS);
+        oldNs = runOldClassName(NUM_OPS);
+        newNs = runNewClassName(NUM_OPS);
+        System.out.printf("%-20s old: %8d ns/op   new: %8d ns/op\n", "caller class name",
+                oldNs / NUM_OPS, newNs / NUM_OPS);
+    }
+}
@@ -17,6 +17,7 @@ package com.android.tradefed.log;
 
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.result.InputStreamSource;
 
 import junit.framework.TestCase;
@@ -103,6 +104,87 @@ public class FileLoggerTest extends TestCase {
         }
     }
 
+    /**
+     * Test that messages logged concurrently from several threads are all written.
+     */
+    public void testLogToLogger_concurrent() throws Exception {
+        final FileLogger logger = new FileLogger();
+        final int numThreads = 4;
+        final int numMessages = 1000;
+        InputStreamSource logSource = null;
+        BufferedReader logFileReader = null;
+        try {
+            logger.init();
+            Thread[] threads = new Thread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                final String tag = LOG_TAG + i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < numMessages; j++) {
+                            logger.printLog(LogLevel.DEBUG, tag, Integer.toString(j));
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            logSource = logger.getLog();
+            logFileReader = new BufferedReader(new InputStreamReader(
+                    logSource.createInputStream()));
+            int[] nextMessage = new int[numThreads];
+            String line;
+            while ((line = logFileReader.readLine()) != null) {
+                int tagIndex = line.indexOf(LOG_TAG) + LOG_TAG.length();
+                int thread = line.charAt(tagIndex) - '0';
+                // messages from each thread are in order
+                assertTrue(line.endsWith(": " + nextMessage[thread]));
+                nextMessage[thread]++;
+            }
+            for (int i = 0; i < numThreads; i++) {
+                assertEquals(numMessages, nextMessage[i]);
+            }
+            assertEquals(0, logger.getNumDroppedMessages());
+        } finally {
+            if (logFileReader != null) {
+                logFileReader.close();
+            }
+            if (logSource != null) {
+                logSource.cancel();
+            }
+            logger.closeLog();
+        }
+    }
+
+    /**
+     * Test logging on the calling thread, when the log queue is disabled.
+     */
+    public void testLogToLogger_sync() throws Exception {
+        FileLogger logger = new FileLogger();
+        OptionSetter setter = new OptionSetter(logger);
+        setter.setOptionValue("log-queue-size", "0");
+        InputStreamSource logSource = null;
+        BufferedReader logFileReader = null;
+        try {
+            logger.init();
+            logger.printLog(LogLevel.INFO, LOG_TAG, "message");
+            logSource = logger.getLog();
+            logFileReader = new BufferedReader(new InputStreamReader(
+                    logSource.createInputStream()));
+            assertTrue(logFileReader.readLine().endsWith(LOG_TAG + ": message"));
+        } finally {
+            if (logFileReader != null) {
+                logFileReader.close();
+            }
+            if (logSource != null) {
+                logSource.cancel();
+            }
+            logger.closeLog();
+        }
+    }
+
     /**
      * Test behavior when  {@link FileLogger#getLog()} is called after
      * {@link FileLogger#closeLog()}.
@@ -98,6 +98,21 @@ public class LogRegistryTest extends TestCase {
         mLogRegistry.unregisterLogger();
     }
 
+    /**
+     * Tests that {@link LogRegistry#isLoggable} uses the underlying logger's log level.
+     */
+    public void testIsLoggable() {
+        ILeveledLogOutput mockLogger = EasyMock.createMock(ILeveledLogOutput.class);
+        mLogRegistry.registerLogger(mockLogger);
+        EasyMock.expect(mockLogger.getLogLevel()).andStubReturn(LogLevel.INFO);
+
+        EasyMock.replay(mockLogger);
+        assertFalse(mLogRegistry.isLoggable(LogLevel.DEBUG));
+        assertTrue(mLogRegistry.isLoggable(LogLevel.INFO));
+        assertTrue(mLogRegistry.isLoggable(LogLevel.ERROR));
+        mLogRegistry.unregisterLogger();
+    }
+
     /**
      * Tests for ensuring new threads spawned without an explicit ThreadGroup will inherit the
      * same logger as the parent's logger.
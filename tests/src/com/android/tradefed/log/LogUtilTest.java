@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.DdmPreferences;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LogUtil}.
+ */
+public class LogUtilTest extends TestCase {
+
+    private LogLevel mOrigLogLevel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOrigLogLevel = DdmPreferences.getLogLevel();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DdmPreferences.setLogLevel(mOrigLogLevel.getStringValue());
+        super.tearDown();
+    }
+
+    private static class InnerClass {
+        String getClassName() {
+            return CLog.getClassName(1);
+        }
+    }
+
+    /**
+     * Test that {@link CLog#getClassName(int)} returns the simple name of the caller.
+     */
+    public void testGetClassName() {
+        assertEquals("LogUtilTest", CLog.getClassName(1));
+        // cached value
+        assertEquals("LogUtilTest", CLog.getClassName(1));
+        assertEquals("InnerClass", new InnerClass().getClassName());
+    }
+
+    /**
+     * Test that {@link CLog#isLoggable(LogLevel)} respects the ddmlib log level.
+     */
+    public void testIsLoggable() {
+        DdmPreferences.setLogLevel(LogLevel.WARN.getStringValue());
+        assertFalse(CLog.isLoggable(LogLevel.VERBOSE));
+        assertFalse(CLog.isLoggable(LogLevel.INFO));
+        assertTrue(CLog.isLoggable(LogLevel.WARN));
+        assertTrue(CLog.isLoggable(LogLevel.ERROR));
+    }
+
+    /**
+     * Test that disabled messages are not formatted.
+     */
+    public void testDisabled_noFormat() {
+        DdmPreferences.setLogLevel(LogLevel.ERROR.getStringValue());
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                fail("disabled message was formatted");
+                return null;
+            }
+        };
+        CLog.v("%s", arg);
+        CLog.d("%s", arg);
+        CLog.i("%s", arg);
+        CLog.w("%s", arg);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.build.IBuildInfo;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for {@link AsyncResultForwarder}
+ */
+public class AsyncResultForwarderTest extends TestCase {
+
+    private static final TestIdentifier TEST = new TestIdentifier("FooTest", "testFoo");
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    private AsyncResultForwarder mForwarder;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mForwarder != null) {
+            mForwarder.close();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Test that all events are delivered in order to each listener.
+     */
+    public void testForward() {
+        IBuildInfo buildInfo = new BuildInfo();
+        ITestInvocationListener listener1 = EasyMock.createStrictMock(
+                ITestInvocationListener.class);
+        ITestInvocationListener listener2 = EasyMock.createStrictMock(
+                ITestInvocationListener.class);
+        for (ITestInvocationListener listener : new ITestInvocationListener[] {listener1,
+                listener2}) {
+            listener.invocationStarted(buildInfo);
+            listener.testRunStarted("run", 1);
+            listener.testStarted(TEST);
+            listener.testFailed(TestFailure.FAILURE, TEST, "trace");
+            listener.testEnded(TEST, EMPTY_MAP);
+            listener.testRunEnded(10, EMPTY_MAP);
+            listener.invocationEnded(20);
+            EasyMock.expect(listener.getSummary()).andReturn(null);
+        }
+        EasyMock.replay(listener1, listener2);
+
+        List<ITestInvocationListener> listeners = new ArrayList<ITestInvocationListener>();
+        listeners.add(listener1);
+        listeners.add(listener2);
+        mForwarder = new AsyncResultForwarder(listeners);
+        mForwarder.invocationStarted(buildInfo);
+        mForwarder.testRunStarted("run", 1);
+        mForwarder.testStarted(TEST);
+        mForwarder.testFailed(TestFailure.FAILURE, TEST, "trace");
+        mForwarder.testEnded(TEST, new HashMap<String, String>());
+        mForwarder.testRunEnded(10, EMPTY_MAP);
+        mForwarder.invocationEnded(20);
+        EasyMock.verify(listener1, listener2);
+    }
+
+    /**
+     * Test that a blocked listener does not block the caller or other listeners, and that
+     * {@link AsyncResultForwarder#flush()} waits for it.
+     */
+    public void testSlowListener() throws InterruptedException {
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final List<TestIdentifier> slowStarted = Collections.synchronizedList(
+                new ArrayList<TestIdentifier>());
+        ITestInvocationListener slowListener = new CollectingTestListener() {
+            @Override
+            public void testStarted(TestIdentifier test) {
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                slowStarted.add(test);
+            }
+        };
+        final CountDownLatch fastLatch = new CountDownLatch(1);
+        ITestInvocationListener fastListener = new CollectingTestListener() {
+            @Override
+            public void testStarted(TestIdentifier test) {
+                fastLatch.countDown();
+            }
+        };
+        List<ITestInvocationListener> listeners = new ArrayList<ITestInvocationListener>();
+        listeners.add(slowListener);
+        listeners.add(fastListener);
+        mForwarder = new AsyncResultForwarder(listeners);
+
+        mForwarder.testStarted(TEST);
+        fastLatch.await();
+        assertTrue(slowStarted.isEmpty());
+        releaseLatch.countDown();
+        mForwarder.flush();
+        assertEquals(1, slowStarted.size());
+    }
+
+    /**
+     * Test that a log has been delivered when testLog returns, and that an exception from one
+     * listener does not stop delivery.
+     */
+    public void testTestLog() {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        ITestInvocationListener listener1 = new StubTestInvocationListener() {
+            @Override
+            public void testLog(String dataName, LogDataType dataType,
+                    InputStreamSource dataStream) {
+                events.add("log1");
+                throw new RuntimeException();
+            }
+
+            @Override
+            public void testRunStarted(String runName, int testCount) {
+                events.add("run1");
+            }
+        };
+        ITestInvocationListener listener2 = new StubTestInvocationListener() {
+            @Override
+            public void testLog(String dataName, LogDataType dataType,
+                    InputStreamSource dataStream) {
+                events.add("log2");
+            }
+        };
+        List<ITestInvocationListener> listeners = new ArrayList<ITestInvocationListener>();
+        listeners.add(listener1);
+        listeners.add(listener2);
+        mForwarder = new AsyncResultForwarder(listeners);
+        mForwarder.testLog("log", LogDataType.TEXT, new ByteArrayInputStreamSource(new byte[0]));
+        assertTrue(events.contains("log1"));
+        assertTrue(events.contains("log2"));
+        mForwarder.testRunStarted("run", 0);
+        mForwarder.flush();
+        assertTrue(events.contains("run1"));
+    }
+}
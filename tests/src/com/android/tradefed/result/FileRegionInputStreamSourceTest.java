@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link FileRegionInputStreamSource}
+ */
+public class FileRegionInputStreamSourceTest extends TestCase {
+
+    private File mFile1;
+    private File mFile2;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile1 = FileUtil.createTempFile("region1", ".txt");
+        FileUtil.writeToFile("0123456789", mFile1);
+        mFile2 = FileUtil.createTempFile("region2", ".txt");
+        FileUtil.writeToFile("abcdefghij", mFile2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.deleteFile(mFile1);
+        FileUtil.deleteFile(mFile2);
+        super.tearDown();
+    }
+
+    /**
+     * Test reading regions of multiple files, repeatedly and after the files are deleted.
+     */
+    public void testCreateInputStream() throws IOException {
+        FileRegionInputStreamSource source = new FileRegionInputStreamSource();
+        source.addRegion(mFile1, 2, 3);
+        source.addRegion(mFile2, 0, 0);
+        source.addRegion(mFile2, 5, 5);
+        assertEquals(8, source.size());
+        assertEquals("234fghij", StreamUtil.getStringFromStream(source.createInputStream()));
+        mFile1.delete();
+        mFile2.delete();
+        assertEquals("234fghij", StreamUtil.getStringFromStream(source.createInputStream()));
+        source.cancel();
+        assertNull(source.createInputStream());
+    }
+}
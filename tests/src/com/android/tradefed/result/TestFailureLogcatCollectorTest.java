@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.ITestDevice;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestFailureLogcatCollector}
+ */
+public class TestFailureLogcatCollectorTest extends TestCase {
+
+    private static final TestIdentifier TEST = new TestIdentifier("FooTest", "testFoo");
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    private ITestDevice mMockDevice;
+    private ITestInvocationListener mMockListener;
+    private TestFailureLogcatCollector mCollector;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mCollector = new TestFailureLogcatCollector(mMockDevice, mMockListener);
+    }
+
+    /**
+     * Test that the logcat slice of a failed test is logged before the test ends.
+     */
+    public void testTestEnded_failed() {
+        InputStreamSource logcat = EasyMock.createMock(InputStreamSource.class);
+        long startTime = System.currentTimeMillis();
+        EasyMock.expect(mMockDevice.getLogcatSlice(EasyMock.geq(startTime),
+                EasyMock.geq(startTime))).andReturn(logcat);
+        logcat.cancel();
+        mMockListener.testStarted(TEST);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST, "trace");
+        mMockListener.testLog("logcat_FooTest#testFoo", LogDataType.TEXT, logcat);
+        mMockListener.testEnded(TEST, EMPTY_MAP);
+        EasyMock.replay(mMockDevice, mMockListener, logcat);
+
+        mCollector.testStarted(TEST);
+        mCollector.testFailed(TestFailure.FAILURE, TEST, "trace");
+        mCollector.testEnded(TEST, EMPTY_MAP);
+        EasyMock.verify(mMockDevice, mMockListener, logcat);
+    }
+
+    /**
+     * Test that no logcat is collected for a passed test.
+     */
+    public void testTestEnded_passed() {
+        mMockListener.testStarted(TEST);
+        mMockListener.testEnded(TEST, EMPTY_MAP);
+        EasyMock.replay(mMockDevice, mMockListener);
+
+        mCollector.testStarted(TEST);
+        mCollector.testEnded(TEST, EMPTY_MAP);
+        EasyMock.verify(mMockDevice, mMockListener);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestMetrics}.
+ */
+public class TestMetricsTest extends TestCase {
+
+    private TestMetrics mMetrics;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMetrics = new TestMetrics();
+    }
+
+    /**
+     * Test that typed values are formatted the same way as the string values they replace.
+     */
+    public void testPut_format() {
+        mMetrics.put("long", 3L);
+        mMetrics.put("double", 1.5);
+        mMetrics.put("string", "foo");
+        Map<String, String> map = mMetrics.toStringMap();
+        assertEquals(3, map.size());
+        assertEquals("3", map.get("long"));
+        assertEquals("1.5", map.get("double"));
+        assertEquals("foo", map.get("string"));
+    }
+
+    /**
+     * Test that string values are kept as is unless aggregated.
+     */
+    public void testPut_stringUnchanged() {
+        mMetrics.put("key", "007");
+        mMetrics.put("key2", "1.50");
+        assertEquals("007", mMetrics.getString("key"));
+        assertEquals(7, mMetrics.getLong("key", -1));
+        assertEquals("007", mMetrics.getString("key"));
+        assertEquals(1.5, mMetrics.getDouble("key2", -1), 0);
+        assertEquals("1.50", mMetrics.getString("key2"));
+    }
+
+    /**
+     * Test aggregating typed values.
+     */
+    public void testAdd_typed() {
+        mMetrics.add("long", 1L);
+        mMetrics.add("long", 2L);
+        mMetrics.add("double", 1L);
+        mMetrics.add("double", 0.5);
+        assertEquals(3, mMetrics.getLong("long", -1));
+        assertEquals("3", mMetrics.getString("long"));
+        assertEquals(1.5, mMetrics.getDouble("double", -1), 0);
+        assertEquals("1.5", mMetrics.getString("double"));
+    }
+
+    /**
+     * Test aggregating string values, matching the previous string parsing behavior.
+     */
+    public void testAdd_strings() {
+        mMetrics.add("long", "1");
+        mMetrics.add("long", "1");
+        mMetrics.add("double", "1.1");
+        mMetrics.add("double", "1.1");
+        mMetrics.add("mixed", "1");
+        mMetrics.add("mixed", "1.1");
+        mMetrics.add("string", "foo");
+        mMetrics.add("string", "bar");
+        mMetrics.add("replaced", "1");
+        mMetrics.add("replaced", "bar");
+        mMetrics.add("nan", "NaN");
+        mMetrics.add("nan", "1");
+        assertEquals("2", mMetrics.getString("long"));
+        assertEquals("2.2", mMetrics.getString("double"));
+        assertEquals("2.1", mMetrics.getString("mixed"));
+        assertEquals("bar", mMetrics.getString("string"));
+        assertEquals("bar", mMetrics.getString("replaced"));
+        assertEquals("NaN", mMetrics.getString("nan"));
+    }
+
+    /**
+     * Test that a typed value replaces an existing non-numeric value when aggregated.
+     */
+    public void testAdd_replacesString() {
+        mMetrics.put("key", "foo");
+        mMetrics.add("key", 2L);
+        assertEquals(2, mMetrics.getLong("key", -1));
+        assertEquals(-1, mMetrics.getLong("missing", -1));
+        mMetrics.put("key", "foo");
+        assertEquals(-1, mMetrics.getLong("key", -1));
+    }
+
+    /**
+     * Test that large integers that do not fit a long are aggregated as doubles.
+     */
+    public void testAdd_overflow() {
+        mMetrics.add("key", "9223372036854775807");
+        mMetrics.add("key", "99999999999999999999");
+        assertEquals(Double.toString(9223372036854775807.0 + 99999999999999999999.0),
+                mMetrics.getString("key"));
+    }
+
+    /**
+     * Test {@link TestMetrics#addAll(TestMetrics)} does not share state with the source.
+     */
+    public void testAddAll_copy() {
+        TestMetrics other = new TestMetrics();
+        other.put("key", 1L);
+        mMetrics.addAll(other);
+        mMetrics.addAll(other);
+        assertEquals(2, mMetrics.getLong("key", -1));
+        assertEquals(1, other.getLong("key", -1));
+        TestMetrics copy = new TestMetrics(mMetrics);
+        copy.add("key", 1L);
+        assertEquals(2, mMetrics.getLong("key", -1));
+        assertEquals(3, copy.getLong("key", -1));
+    }
+
+    /**
+     * Test {@link TestMetrics#addAll(Map)}.
+     */
+    public void testAddAll_map() {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("key", "2");
+        mMetrics.put("key", 1L);
+        mMetrics.addAll(map);
+        assertEquals(3, mMetrics.getLong("key", -1));
+    }
+
+    /**
+     * Test {@link TestMetrics#reportTestRunEnded(ITestRunListener, long, TestMetrics)} delivers
+     * typed metrics to a {@link ITypedMetricsListener}.
+     */
+    public void testReportTestRunEnded_typed() {
+        CollectingTestListener listener = new CollectingTestListener();
+        listener.testRunStarted("run", 0);
+        mMetrics.put("key", 1L);
+        TestMetrics.reportTestRunEnded(listener, 5, mMetrics);
+        assertEquals(1, listener.getCurrentRunResults().getTypedRunMetrics().getLong("key", -1));
+        assertEquals("1", listener.getCurrentRunResults().getRunMetrics().get("key"));
+        assertEquals(5, listener.getCurrentRunResults().getElapsedTime());
+    }
+
+    /**
+     * Test {@link TestMetrics#reportTestRunEnded(ITestRunListener, long, TestMetrics)} falls back
+     * to string metrics for other listeners.
+     */
+    public void testReportTestRunEnded_strings() {
+        ITestRunListener listener = EasyMock.createMock(ITestRunListener.class);
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("key", "1.5");
+        listener.testRunEnded(5, expected);
+        EasyMock.replay(listener);
+        mMetrics.put("key", 1.5);
+        TestMetrics.reportTestRunEnded(listener, 5, mMetrics);
+        EasyMock.verify(listener);
+    }
+}
@@ -22,6 +22,12 @@ import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
+import org.kxml2.io.KXmlSerializer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -29,6 +35,8 @@ import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Map;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+
 /**
  * Unit tests for {@link XmlResultReporter}.
  */
@@ -128,6 +136,97 @@ public class XmlResultReporterTest extends TestCase {
         assertTrue(output.contains(failureTag));
     }
 
+    /**
+     * Test that the streamed test cases form a valid document along with the summary counts.
+     */
+    public void testMultipleTests() throws Exception {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        mResultReporter.invocationStarted(new BuildInfo());
+        mResultReporter.testRunStarted("run", 3);
+        for (int i = 0; i < 3; i++) {
+            TestIdentifier testId = new TestIdentifier("FooTest", "testFoo" + i);
+            mResultReporter.testStarted(testId);
+            if (i == 1) {
+                mResultReporter.testFailed(TestFailure.FAILURE, testId, "<trace> & more");
+            } else if (i == 2) {
+                mResultReporter.testFailed(TestFailure.ERROR, testId, "error trace");
+            }
+            mResultReporter.testEnded(testId, emptyMap);
+        }
+        mResultReporter.testRunEnded(3, emptyMap);
+        mResultReporter.invocationEnded(1);
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                new ByteArrayInputStream(mOutputStream.toByteArray()));
+        Element suite = doc.getDocumentElement();
+        assertEquals("testsuite", suite.getTagName());
+        assertEquals("3", suite.getAttribute("tests"));
+        assertEquals("1", suite.getAttribute("failures"));
+        assertEquals("1", suite.getAttribute("errors"));
+        NodeList testCases = suite.getElementsByTagName("testcase");
+        assertEquals(3, testCases.getLength());
+        assertEquals("testFoo0", ((Element)testCases.item(0)).getAttribute("name"));
+        assertEquals("<trace> & more", ((Element)testCases.item(1)).getElementsByTagName(
+                "failure").item(0).getTextContent());
+        assertEquals(1, ((Element)testCases.item(2)).getElementsByTagName("error").getLength());
+    }
+
+    /**
+     * Test that tests which never ended, such as a crashed test, are still written to the report.
+     */
+    public void testIncompleteTests() throws Exception {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        TestIdentifier failedTest = new TestIdentifier("FooTest", "testFailed");
+        TestIdentifier crashedTest = new TestIdentifier("FooTest", "testCrashed");
+        mResultReporter.invocationStarted(new BuildInfo());
+        mResultReporter.testRunStarted("run", 2);
+        mResultReporter.testStarted(failedTest);
+        mResultReporter.testFailed(TestFailure.FAILURE, failedTest, "failure trace");
+        mResultReporter.testStarted(crashedTest);
+        mResultReporter.testRunFailed("crashed");
+        mResultReporter.invocationEnded(1);
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                new ByteArrayInputStream(mOutputStream.toByteArray()));
+        Element suite = doc.getDocumentElement();
+        assertEquals("2", suite.getAttribute("tests"));
+        assertEquals("1", suite.getAttribute("failures"));
+        assertEquals("1", suite.getAttribute("errors"));
+        NodeList testCases = suite.getElementsByTagName("testcase");
+        assertEquals(2, testCases.getLength());
+        assertEquals("failure trace", ((Element)testCases.item(0)).getElementsByTagName(
+                "failure").item(0).getTextContent());
+        assertEquals("testCrashed", ((Element)testCases.item(1)).getAttribute("name"));
+        assertEquals(1, ((Element)testCases.item(1)).getElementsByTagName("error").getLength());
+    }
+
+    /**
+     * Test that no report is generated when a test case could not be written, rather than a
+     * report whose counts do not match its test cases.
+     */
+    public void testWriteFailed() {
+        mResultReporter = new XmlResultReporter() {
+            @Override
+            OutputStream createOutputResultStream(File reportDir) throws IOException {
+                return mOutputStream;
+            }
+
+            @Override
+            void print(KXmlSerializer serializer, TestIdentifier testId, TestResult testResult)
+                    throws IOException {
+                throw new IOException();
+            }
+        };
+        mResultReporter.setReportDir(mReportDir);
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier testId = new TestIdentifier("FooTest", "testFoo");
+        mResultReporter.invocationStarted(new BuildInfo());
+        mResultReporter.testStarted(testId);
+        mResultReporter.testEnded(testId, emptyMap);
+        mResultReporter.invocationEnded(1);
+        assertEquals(0, mOutputStream.size());
+    }
+
     /**
      * Gets the output produced, stripping it of extraneous whitespace characters.
      */
@@ -29,6 +29,7 @@ import junit.framework.TestCase;
 import org.easymock.EasyMock;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -122,9 +123,9 @@ public class DefaultTestsZipInstallerTest extends TestCase {
 
         mMockDevice.setRecoveryMode(RecoveryMode.AVAILABLE);
 
-        EasyMock.expect(mMockDevice.syncFiles((File) EasyMock.anyObject(),
-                EasyMock.contains(FileListingService.DIRECTORY_DATA)))
-                .andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.pushDir((File) EasyMock.anyObject(),
+                EasyMock.eq("/data/foo"), EasyMock.eq(false),
+                (FilenameFilter) EasyMock.anyObject())).andReturn(Boolean.TRUE);
 
         EasyMock.expect(
                 mMockDevice.executeShellCommand(EasyMock.startsWith("chown system.system "
@@ -29,8 +29,10 @@ import com.android.tradefed.util.FileUtil;
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.io.File;
+import java.util.concurrent.Semaphore;
 
 /**
  * Unit tests for {@link DeviceFlashPreparer}.
@@ -89,6 +91,30 @@ public class DeviceFlashPreparerTest extends TestCase {
         EasyMock.verify(mMockFlasher, mMockDevice);
     }
 
+    /**
+     * Test {@link DeviceSetup#setUp(ITestDevice, IBuildInfo)} when concurrent flashes are limited.
+     * Verifies the flash lock is held while flashing, and released afterwards.
+     */
+    public void testSetup_concurrentFlashLimit() throws Exception {
+        final Semaphore flashLock = DeviceFlashPreparer.getConcurrentFlashLock(1);
+        doSetupExpectations();
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                assertEquals(0, flashLock.availablePermits());
+                return null;
+            }
+        });
+        EasyMock.replay(mMockFlasher, mMockDevice);
+        mDeviceFlashPreparer.setConcurrentFlashLimit(1);
+        mDeviceFlashPreparer.setUp(mMockDevice, mMockBuildInfo);
+        EasyMock.verify(mMockFlasher, mMockDevice);
+        assertEquals(1, flashLock.availablePermits());
+        assertNotNull(mMockBuildInfo.getBuildAttributes().get("flash-lock-wait-time-ms"));
+        assertNotNull(mMockBuildInfo.getBuildAttributes().get("flash-total-time-ms"));
+        assertNotNull(mMockBuildInfo.getBuildAttributes().get("flash-boot-time-ms"));
+    }
+
     /**
      * Set EasyMock expectations for a normal setup call
      */
@@ -96,14 +122,14 @@ public class DeviceFlashPreparerTest extends TestCase {
         mMockDevice.setRecoveryMode(RecoveryMode.ONLINE);
         mMockFlasher.overrideDeviceOptions(mMockDevice);
         mMockFlasher.setForceSystemFlash(false);
-        mMockFlasher.flash(mMockDevice, mMockBuildInfo);
-        mMockDevice.waitForDeviceOnline();
         EasyMock.expect(mMockDevice.isEncryptionSupported()).andStubReturn(Boolean.TRUE);
         EasyMock.expect(mMockDevice.isDeviceEncrypted()).andStubReturn(Boolean.FALSE);
         mMockDevice.clearLogcat();
         mMockDevice.waitForDeviceAvailable(EasyMock.anyLong());
         mMockDevice.setRecoveryMode(RecoveryMode.AVAILABLE);
         mMockDevice.postBootSetup();
+        mMockDevice.waitForDeviceOnline();
+        mMockFlasher.flash(mMockDevice, mMockBuildInfo);
     }
 
     /**
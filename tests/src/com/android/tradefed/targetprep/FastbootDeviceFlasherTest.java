@@ -32,6 +32,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Collections;
 
 /**
  * Unit tests for {@link FastbootDeviceFlasher}.
@@ -108,6 +109,66 @@ public class FastbootDeviceFlasherTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link FastbootDeviceFlasher#flash(ITestDevice, IDeviceBuildInfo)} when the userdata
+     * image to flash is missing. Verifies the failure of an earlier step is still reported first.
+     */
+    public void testFlash_missingUserDataImage() throws DeviceNotAvailableException  {
+        mFlasher.setUserDataFlashOption(UserDataFlashOption.FLASH);
+        mMockBuildInfo.setUserDataImageFile(new File("doesnotexist"), "0");
+        mMockDevice.rebootIntoBootloader();
+        EasyMock.expect(mMockParser.getRequiredBoards()).andReturn(null);
+        EasyMock.replay(mMockDevice);
+        try {
+            mFlasher.flash(mMockDevice, mMockBuildInfo);
+            fail("TargetSetupError not thrown");
+        } catch (TargetSetupError e) {
+            assertTrue(e.getMessage().contains("board"));
+        }
+    }
+
+    /**
+     * Test {@link FastbootDeviceFlasher#downloadFlashingResources(ITestDevice, IDeviceBuildInfo)}
+     * retrieves both the bootloader and baseband images.
+     */
+    public void testDownloadFlashingResources() throws Exception {
+        File bootloaderFile = new File("bootloader");
+        File basebandFile = new File("baseband");
+        EasyMock.expect(mMockParser.getRequiredBoards()).andStubReturn(
+                Collections.singleton(TEST_STRING));
+        EasyMock.expect(mMockParser.getRequiredBootloaderVersion()).andStubReturn("1.0");
+        EasyMock.expect(mMockParser.getRequiredBasebandVersion()).andStubReturn("2.0");
+        EasyMock.expect(mMockRetriever.retrieveFile("hboot", "1.0")).andReturn(bootloaderFile);
+        EasyMock.expect(mMockRetriever.retrieveFile(FastbootDeviceFlasher.BASEBAND_IMAGE_NAME,
+                "2.0")).andReturn(basebandFile);
+        EasyMock.replay(mMockDevice, mMockParser, mMockRetriever);
+        mFlasher.downloadFlashingResources(mMockDevice, mMockBuildInfo);
+        assertEquals(bootloaderFile, mMockBuildInfo.getBootloaderImageFile());
+        assertEquals("1.0", mMockBuildInfo.getBootloaderVersion());
+        assertEquals(basebandFile, mMockBuildInfo.getBasebandImageFile());
+        assertEquals("2.0", mMockBuildInfo.getBasebandVersion());
+        EasyMock.verify(mMockRetriever);
+    }
+
+    /**
+     * Test {@link FastbootDeviceFlasher#downloadFlashingResources(ITestDevice, IDeviceBuildInfo)}
+     * when baseband image cannot be retrieved.
+     */
+    public void testDownloadFlashingResources_basebandFailed() throws Exception {
+        EasyMock.expect(mMockParser.getRequiredBoards()).andStubReturn(
+                Collections.singleton(TEST_STRING));
+        EasyMock.expect(mMockParser.getRequiredBasebandVersion()).andStubReturn("2.0");
+        EasyMock.expect(mMockRetriever.retrieveFile(FastbootDeviceFlasher.BASEBAND_IMAGE_NAME,
+                "2.0")).andThrow(new TargetSetupError("missing"));
+        EasyMock.replay(mMockDevice, mMockParser, mMockRetriever);
+        try {
+            mFlasher.downloadFlashingResources(mMockDevice, mMockBuildInfo);
+            fail("TargetSetupError not thrown");
+        } catch (TargetSetupError e) {
+            // expected
+        }
+    }
+
     /**
      * Test {@link FastbootDeviceFlasher#getImageVersion(ITestDevice, String)}
      */
@@ -63,7 +63,7 @@ public class TestFilePushSetupFuncTest extends TestCase {
         assertFalse(mDeviceLocationList.isEmpty());
         ITestDevice device = new StubTestDevice() {
             @Override
-            public boolean pushDir(File localDir, String deviceFilePath)
+            public boolean pushDir(File localDir, String deviceFilePath, boolean skipUnchanged)
                     throws DeviceNotAvailableException {
                 return mDeviceLocationList.remove(deviceFilePath);
             }
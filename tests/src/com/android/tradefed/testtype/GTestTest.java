@@ -18,14 +18,24 @@ package com.android.tradefed.testtype;
 import com.android.ddmlib.FileListingService;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.MockFileUtil;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.StubTestInvocationListener;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -192,4 +202,206 @@ public class GTestTest extends TestCase {
         String filter = String.format("%s-*.%s", posFilter, negFilter);
         doTestFilter(filter);
     }
+
+    /**
+     * Test {@link GTest#split()} when sharding is not requested.
+     */
+    public void testSplit_noShards() {
+        assertNull(mGTest.split());
+    }
+
+    /**
+     * Test that {@link GTest#split()} creates the requested number of shards.
+     */
+    public void testSplit() {
+        mGTest.setNumShards(3);
+        mGTest.setTestNamePositiveFilter("foo");
+        Collection<IRemoteTest> shards = mGTest.split();
+        assertEquals(3, shards.size());
+        for (IRemoteTest shard : shards) {
+            assertTrue(shard instanceof GTest);
+            assertEquals("foo", ((GTest)shard).getTestNamePositiveFilter());
+            // shards should not be split again
+            assertNull(((GTest)shard).split());
+        }
+    }
+
+    /**
+     * Test the run method for a shard, where tests within each binary are split among shards.
+     */
+    public void testRun_shard() throws DeviceNotAvailableException {
+        MockFileUtil.setMockDirContents(mMockITestDevice, GTest.DEFAULT_NATIVETEST_PATH, "test1");
+        mGTest.setShard(1, 3);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        mMockITestDevice.executeShellCommand(
+                EasyMock.startsWith("GTEST_TOTAL_SHARDS=3 GTEST_SHARD_INDEX=1 "),
+                EasyMock.same(mMockReceiver), EasyMock.anyInt(), EasyMock.anyInt());
+        replayMocks();
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test the run method for a shard, where whole binaries are distributed among shards.
+     */
+    public void testRun_shardBinaries() throws DeviceNotAvailableException {
+        // list binaries out of order, to verify distribution does not depend on listing order
+        MockFileUtil.setMockDirContents(mMockITestDevice, GTest.DEFAULT_NATIVETEST_PATH, "test3",
+                "test1", "test2");
+        mGTest.setShard(1, 2);
+        mGTest.setShardBinaries(true);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        mMockITestDevice.executeShellCommand(EasyMock.startsWith(GTest.DEFAULT_NATIVETEST_PATH +
+                FileListingService.FILE_SEPARATOR + "test2"), EasyMock.same(mMockReceiver),
+                EasyMock.anyInt(), EasyMock.anyInt());
+        replayMocks();
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test the run method when binaries are run in parallel. Verifies all binaries are run, and
+     * their results are merged into a single test run, where tests with the same suite and test
+     * names in different binaries are distinguished by binary name.
+     */
+    public void testRun_parallel() throws DeviceNotAvailableException {
+        final String[] binaries = new String[] {"test1", "test2", "test3", "test4"};
+        MockFileUtil.setMockDirContents(mMockITestDevice, GTest.DEFAULT_NATIVETEST_PATH,
+                binaries);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("").times(binaries.length);
+        mMockITestDevice.executeShellCommand((String)EasyMock.anyObject(),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.anyInt());
+        // simulate the output of each binary, by flushing the receiver
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((IShellOutputReceiver)EasyMock.getCurrentArguments()[1]).flush();
+                return null;
+            }
+        }).times(binaries.length);
+        EasyMock.replay(mMockITestDevice);
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        GTest gtest = new GTest() {
+            @Override
+            IShellOutputReceiver createResultParser(final String runName,
+                    final ITestRunListener listener) {
+                return new IShellOutputReceiver() {
+                    @Override
+                    public void addOutput(byte[] data, int offset, int length) {
+                    }
+
+                    @Override
+                    public void flush() {
+                        TestIdentifier test = new TestIdentifier("Suite", "test");
+                        listener.testRunStarted(runName, 1);
+                        // give other binaries a chance to report
+                        Thread.yield();
+                        listener.testStarted(test);
+                        listener.testEnded(test, Collections.<String, String>emptyMap());
+                        if ("test2".equals(runName)) {
+                            listener.testRunFailed("crashed");
+                        }
+                        listener.testRunEnded(0, Collections.singletonMap("count", "1"));
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return false;
+                    }
+                };
+            }
+        };
+        gtest.setDevice(mMockITestDevice);
+        gtest.setMaxParallelBinaries(2);
+        gtest.run(new StubTestInvocationListener() {
+            @Override
+            public void testRunStarted(String runName, int testCount) {
+                events.add("start " + runName);
+            }
+
+            @Override
+            public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+                events.add("test " + test.getClassName());
+            }
+
+            @Override
+            public void testRunFailed(String errorMessage) {
+                events.add("failed " + errorMessage);
+            }
+
+            @Override
+            public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+                events.add("end " + runMetrics.get("count"));
+            }
+        });
+        EasyMock.verify(mMockITestDevice);
+        assertEquals(binaries.length + 3, events.size());
+        assertEquals("start " + GTest.DEFAULT_NATIVETEST_PATH, events.get(0));
+        for (String binary : binaries) {
+            assertTrue(events.contains(String.format("test %s.Suite", binary)));
+        }
+        assertEquals("failed test2: crashed", events.get(events.size() - 2));
+        assertEquals("end 4", events.get(events.size() - 1));
+    }
+
+    /**
+     * Test that when a binary run in parallel fails, the run fails without waiting for the
+     * binaries submitted before it, and that they are cancelled and stopped before the run ends.
+     */
+    public void testRun_parallelFailure() throws DeviceNotAvailableException {
+        final String[] binaries = new String[] {"test1", "test2"};
+        MockFileUtil.setMockDirContents(mMockITestDevice, GTest.DEFAULT_NATIVETEST_PATH,
+                binaries);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("").times(binaries.length);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        // simulate a binary that runs until cancelled, ignoring interrupts as the shell command
+        // would
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test1"),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                long endTime = System.currentTimeMillis() + 10 * 1000;
+                while (!receiver.isCancelled() && System.currentTimeMillis() < endTime) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                events.add(receiver.isCancelled() ? "cancelled test1" : "timeout test1");
+                return null;
+            }
+        });
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test2"),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andThrow(new DeviceNotAvailableException());
+        mMockReceiver.flush();
+        EasyMock.expect(mMockReceiver.isCancelled()).andStubReturn(Boolean.FALSE);
+        // let test2 fail while test1 is still running
+        EasyMock.makeThreadSafe(mMockITestDevice, false);
+        EasyMock.replay(mMockITestDevice, mMockReceiver);
+
+        mGTest.setMaxParallelBinaries(2);
+        try {
+            mGTest.run(new StubTestInvocationListener() {
+                @Override
+                public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+                    events.add("end");
+                }
+            });
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        EasyMock.verify(mMockITestDevice);
+        assertEquals(Arrays.asList("cancelled test1", "end"), events);
+    }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IKeyExtractor;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IKeyedMatcher;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
+
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Random;
+
+/**
+ * Micro benchmark java app that compares {@link ConditionPriorityBlockingQueue} against the
+ * previous linear scan implementation.
+ * <p/>
+ * For each queue size, measures the average time of a poll + add cycle for:
+ * <ul>
+ * <li>an unconditional poll</li>
+ * <li>a poll with a matcher that matches 1 in 10 elements</li>
+ * <li>a poll with a keyed matcher that matches a single element</li>
+ * </ul>
+ * Lacks automated verification - intended to be run manually.
+ */
+public class ConditionPriorityBlockingQueueBenchmarkApp {
+
+    private static final int[] QUEUE_SIZES = new int[] {10, 1000, 100000};
+    /** number of measured poll + add cycles per scenario */
+    private static final int NUM_OPS = 2000;
+    /** number of warm up poll + add cycles per scenario */
+    private static final int NUM_WARMUP_OPS = 500;
+
+    /**
+     * The minimal operations needed from a queue for this benchmark.
+     */
+    private static interface IQueue {
+        void add(Integer element);
+        Integer poll(IMatcher<Integer> matcher);
+    }
+
+    /**
+     * The previous {@link ConditionPriorityBlockingQueue} poll algorithm: scan the whole list for
+     * the minimum matching element, then remove it.
+     */
+    private static class LinearScanQueue implements IQueue {
+        private final LinkedList<Integer> mList = new LinkedList<Integer>();
+        private final Comparator<Integer> mComparator;
+
+        LinearScanQueue(Comparator<Integer> comparator) {
+            mComparator = comparator;
+        }
+
+        @Override
+        public synchronized void add(Integer element) {
+            mList.add(element);
+        }
+
+        @Override
+        public synchronized Integer poll(IMatcher<Integer> matcher) {
+            Integer minObject = null;
+            ListIterator<Integer> iter = mList.listIterator();
+            while (iter.hasNext()) {
+                Integer obj = iter.next();
+                if (matcher.matches(obj) &&
+                        (minObject == null || mComparator.compare(obj, minObject) < 0)) {
+                    minObject = obj;
+                }
+            }
+            if (minObject != null) {
+                mList.remove(minObject);
+            }
+            return minObject;
+        }
+    }
+
+    /**
+     * Adapts {@link ConditionPriorityBlockingQueue} to {@link IQueue}.
+     */
+    private static class IndexedQueue implements IQueue {
+        private final ConditionPriorityBlockingQueue<Integer> mQueue;
+
+        IndexedQueue(Comparator<Integer> comparator) {
+            mQueue = new ConditionPriorityBlockingQueue<Integer>(comparator,
+                    new IKeyExtractor<Integer>() {
+                        @Override
+                        public Object getKey(Integer element) {
+                            return element;
+                        }
+                    });
+        }
+
+        @Override
+        public void add(Integer element) {
+            mQueue.add(element);
+        }
+
+        @Override
+        public Integer poll(IMatcher<Integer> matcher) {
+            return mQueue.poll(matcher);
+        }
+    }
+
+    private static class IntCompare implements Comparator<Integer> {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            return o1.compareTo(o2);
+        }
+    }
+
+    private static class AnyMatcher implements IMatcher<Integer> {
+        @Override
+        public boolean matches(Integer element) {
+            return true;
+        }
+    }
+
+    private static class TenthMatcher implements IMatcher<Integer> {
+        @Override
+        public boolean matches(Integer element) {
+            return element % 10 == 0;
+        }
+    }
+
+    /**
+     * Matches a single value. Keyed by that value, so an indexed queue can look it up directly.
+     */
+    private static class ValueMatcher implements IKeyedMatcher<Integer> {
+        private Integer mValue;
+
+        void setValue(Integer value) {
+            mValue = value;
+        }
+
+        @Override
+        public boolean matches(Integer element) {
+            return element.equals(mValue);
+        }
+
+        @Override
+        public Object getMatchKey() {
+            return mValue;
+        }
+    }
+
+    /**
+     * Fills given queue with <var>size</var> elements with values 0..size-1 in random order.
+     */
+    private static void fill(IQueue queue, int size, Random random) {
+        Integer[] values = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Integer tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+        for (Integer value : values) {
+            queue.add(value);
+        }
+    }
+
+    /**
+     * Runs <var>numOps</var> poll + add cycles, re-adding each polled element so the queue size
+     * stays constant.
+     *
+     * @return the total elapsed time in ns
+     */
+    private static long runCycles(IQueue queue, IMatcher<Integer> matcher, int size, int numOps,
+            Random random) {
+        ValueMatcher valueMatcher = matcher instanceof ValueMatcher ? (ValueMatcher)matcher : null;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numOps; i++) {
+            if (valueMatcher != null) {
+                valueMatcher.setValue(random.nextInt(size));
+            }
+            Integer polled = queue.poll(matcher);
+            if (polled != null) {
+                queue.add(polled);
+            }
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static void runScenario(String name, IMatcher<Integer> matcher, int size) {
+        Random random = new Random(size);
+        IQueue linearQueue = new LinearScanQueue(new IntCompare());
+        IQueue indexedQueue = new IndexedQueue(new IntCompare());
+        fill(linearQueue, size, random);
+        fill(indexedQueue, size, random);
+        runCycles(linearQueue, matcher, size, NUM_WARMUP_OPS, random);
+        runCycles(indexedQueue, matcher, size, NUM_WARMUP_OPS, random);
+        long linearNs = runCycles(linearQueue, matcher, size, NUM_OPS, random);
+        long indexedNs = runCycles(indexedQueue, matcher, size, NUM_OPS, random);
+        System.out.printf("%-8s %-10d linear: %10d ns/op   indexed: %10d ns/op\n", name, size,
+                linearNs / NUM_OPS, indexedNs / NUM_OPS);
+    }
+
+    public static void main(String[] args) {
+        for (int size : QUEUE_SIZES) {
+            runScenario("any", new AnyMatcher(), size);
+            runScenario("tenth", new TenthMatcher(), size);
+            runScenario("keyed", new ValueMatcher(), size);
+        }
+    }
+}
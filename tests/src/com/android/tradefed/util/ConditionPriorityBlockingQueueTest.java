@@ -15,10 +15,15 @@
  */
 package com.android.tradefed.util;
 
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IKeyExtractor;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IKeyedMatcher;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMultiKeyedMatcher;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.concurrent.TimeUnit;
 
@@ -270,6 +275,178 @@ public class ConditionPriorityBlockingQueueTest extends TestCase {
         assertNull(mQueue.poll(new OneMatcher()));
     }
 
+    /**
+     * Test {@link ConditionPriorityBlockingQueue#poll(IMatcher)} returns matching objects in
+     * priority order when there are many non-matching higher priority objects.
+     */
+    public void testPoll_condition_many() {
+        for (int i = 100; i > 0; i--) {
+            mQueue.add(i);
+        }
+        IMatcher<Integer> evenMatcher = new IMatcher<Integer>() {
+            @Override
+            public boolean matches(Integer element) {
+                return element % 2 == 0;
+            }
+        };
+        for (int i = 2; i <= 100; i += 2) {
+            assertEquals(Integer.valueOf(i), mQueue.poll(evenMatcher));
+        }
+        assertNull(mQueue.poll(evenMatcher));
+        assertEquals(50, mQueue.size());
+        for (int i = 1; i < 100; i += 2) {
+            assertEquals(Integer.valueOf(i), mQueue.poll());
+        }
+        assertNull(mQueue.poll());
+    }
+
+    /**
+     * Test {@link ConditionPriorityBlockingQueue#remove(Object)} and
+     * {@link ConditionPriorityBlockingQueue#contains(Object)} preserve priority order.
+     */
+    public void testRemove() {
+        for (int i = 1; i <= 10; i++) {
+            mQueue.add(i);
+        }
+        assertTrue(mQueue.contains(5));
+        assertTrue(mQueue.remove(5));
+        assertFalse(mQueue.contains(5));
+        assertFalse(mQueue.remove(5));
+        assertTrue(mQueue.remove(1));
+        for (int i = 2; i <= 10; i++) {
+            if (i != 5) {
+                assertEquals(Integer.valueOf(i), mQueue.poll());
+            }
+        }
+        assertEquals(0, mQueue.size());
+    }
+
+    /**
+     * Test {@link ConditionPriorityBlockingQueue#iterator()} returns objects in insertion order.
+     */
+    public void testIterator() {
+        mQueue.add(3);
+        mQueue.add(1);
+        mQueue.add(2);
+        StringBuilder builder = new StringBuilder();
+        for (Integer i : mQueue) {
+            builder.append(i);
+        }
+        assertEquals("312", builder.toString());
+    }
+
+    /**
+     * Test polling an indexed {@link ConditionPriorityBlockingQueue} with a
+     * {@link IKeyedMatcher}.
+     */
+    public void testPoll_keyed() throws InterruptedException {
+        ConditionPriorityBlockingQueue<Integer> keyedQueue =
+                new ConditionPriorityBlockingQueue<Integer>(new IntCompare(),
+                        new ParityExtractor());
+        for (int i = 1; i <= 10; i++) {
+            keyedQueue.add(i);
+        }
+        assertEquals(Integer.valueOf(2), keyedQueue.poll(new ParityMatcher(0)));
+        assertEquals(Integer.valueOf(1), keyedQueue.poll(new ParityMatcher(1)));
+        assertEquals(Integer.valueOf(3), keyedQueue.poll());
+        assertEquals(Integer.valueOf(4), keyedQueue.poll(100, TimeUnit.MILLISECONDS,
+                new ParityMatcher(0)));
+        assertNull(keyedQueue.poll(new ParityMatcher(2)));
+    }
+
+    /**
+     * Test {@link ConditionPriorityBlockingQueue#take(IMatcher)} on an indexed queue, when a
+     * matching object is added after take is called.
+     */
+    public void testTake_keyed_delayedAdd() throws InterruptedException {
+        final ConditionPriorityBlockingQueue<Integer> keyedQueue =
+                new ConditionPriorityBlockingQueue<Integer>(new IntCompare(),
+                        new ParityExtractor());
+        keyedQueue.add(1);
+        Thread delayedAdd = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(200);
+                } catch (InterruptedException e) {
+                }
+                keyedQueue.add(4);
+            }
+        };
+        delayedAdd.start();
+        assertEquals(Integer.valueOf(4), keyedQueue.take(new ParityMatcher(0)));
+        assertEquals(Integer.valueOf(1), keyedQueue.poll());
+    }
+
+    /**
+     * Test polling an indexed {@link ConditionPriorityBlockingQueue} with a
+     * {@link IMultiKeyedMatcher}, that only elements with a candidate key are examined.
+     */
+    public void testPoll_multiKeyed() {
+        ConditionPriorityBlockingQueue<Integer> keyedQueue =
+                new ConditionPriorityBlockingQueue<Integer>(new IntCompare(),
+                        new IKeyExtractor<Integer>() {
+                            @Override
+                            public Object getKey(Integer element) {
+                                return element % 3;
+                            }
+                        });
+        for (int i = 1; i <= 6; i++) {
+            keyedQueue.add(i);
+        }
+        final Collection<Integer> keys = new ArrayList<Integer>();
+        IMultiKeyedMatcher<Integer> anyWithKeys = new IMultiKeyedMatcher<Integer>() {
+            @Override
+            public boolean matches(Integer element) {
+                return true;
+            }
+
+            @Override
+            public Collection<?> getMatchKeys() {
+                return keys;
+            }
+        };
+        assertNull(keyedQueue.poll(anyWithKeys));
+        keys.add(0);
+        keys.add(2);
+        assertEquals(Integer.valueOf(2), keyedQueue.poll(anyWithKeys));
+        assertEquals(Integer.valueOf(3), keyedQueue.poll(anyWithKeys));
+        assertEquals(Integer.valueOf(5), keyedQueue.poll(anyWithKeys));
+        assertEquals(Integer.valueOf(1), keyedQueue.poll());
+    }
+
+    /**
+     * A {@link IKeyExtractor} that indexes {@link Integer}s by parity
+     */
+    private static class ParityExtractor implements IKeyExtractor<Integer> {
+
+        @Override
+        public Object getKey(Integer element) {
+            return element % 2;
+        }
+    }
+
+    /**
+     * A {@link IKeyedMatcher} that matches {@link Integer}s with given parity
+     */
+    private static class ParityMatcher implements IKeyedMatcher<Integer> {
+        private final int mParity;
+
+        ParityMatcher(int parity) {
+            mParity = parity;
+        }
+
+        @Override
+        public boolean matches(Integer element) {
+            return element % 2 == mParity;
+        }
+
+        @Override
+        public Object getMatchKey() {
+            return mParity;
+        }
+    }
+
     /**
      * A {@link Comparator} for {@link Integer}
      */
@@ -17,6 +17,8 @@ package com.android.tradefed.util;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+
 /**
  * Unit tests for {@link FileUtil}
  */
@@ -26,4 +28,17 @@ public class FileUtilTest extends TestCase {
         assertEquals(".txt", FileUtil.getExtension("file.txt"));
         assertEquals(".txt", FileUtil.getExtension("foo.file.txt"));
     }
+
+    /**
+     * Test {@link FileUtil#calculateMd5(File)} against a known checksum.
+     */
+    public void testCalculateMd5() throws Exception {
+        File file = FileUtil.createTempFile("md5", ".txt");
+        try {
+            FileUtil.writeToFile("hello world", file);
+            assertEquals("5eb63bbbe01eeed093cb22bb8f5acdc3", FileUtil.calculateMd5(file));
+        } finally {
+            file.delete();
+        }
+    }
 }
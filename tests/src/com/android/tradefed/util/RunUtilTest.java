@@ -15,12 +15,21 @@
  */
 package com.android.tradefed.util;
 
+import com.android.tradefed.log.LogRegistry;
+import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.util.IRunUtil.IRunnableResult;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Unit tests for {@link RunUtilTest}
  */
@@ -68,6 +77,142 @@ public class RunUtilTest extends TestCase {
         assertEquals(CommandStatus.EXCEPTION, mRunUtil.runTimed(100, mockRunnable, true));
     }
 
+    /**
+     * Test that sequential {@link RunUtil#runTimed(long, IRunnableResult, boolean)} calls reuse
+     * worker threads rather than creating a thread per call.
+     */
+    public void testRunTimed_reuseThreads() {
+        final Set<Thread> workerThreads = new HashSet<Thread>();
+        IRunUtil.IRunnableResult runnable = new IRunUtil.IRunnableResult() {
+            @Override
+            public boolean run() {
+                workerThreads.add(Thread.currentThread());
+                return true;
+            }
+
+            @Override
+            public void cancel() {
+                // ignore
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            assertEquals(CommandStatus.SUCCESS, mRunUtil.runTimed(1000, runnable, true));
+        }
+        assertTrue(workerThreads.size() < 10);
+        assertFalse(workerThreads.contains(Thread.currentThread()));
+    }
+
+    /**
+     * Test that {@link RunUtil#runTimed(long, IRunnableResult, boolean)} runs operations on worker
+     * threads outside of the caller's {@link ThreadGroup}, which log on behalf of the caller.
+     */
+    public void testRunTimed_workerThreadGroup() throws Exception {
+        final ThreadGroup callerGroup = new ThreadGroup("caller");
+        final ThreadGroup[] workerGroups = new ThreadGroup[2];
+        final IRunUtil.IRunnableResult runnable = new IRunUtil.IRunnableResult() {
+            @Override
+            public boolean run() {
+                workerGroups[0] = Thread.currentThread().getThreadGroup();
+                workerGroups[1] = LogRegistry.getLoggingThreadGroup();
+                return true;
+            }
+
+            @Override
+            public void cancel() {
+                // ignore
+            }
+        };
+        Thread caller = new Thread(callerGroup, new Runnable() {
+            @Override
+            public void run() {
+                mRunUtil.runTimed(1000, runnable, true);
+            }
+        });
+        caller.start();
+        caller.join();
+        assertNotSame(callerGroup, workerGroups[0]);
+        assertSame(callerGroup, workerGroups[1]);
+    }
+
+    /**
+     * Test that {@link RunUtil#runTimed(long, IRunnableResult, boolean)} times out rather than
+     * blocking when all workers are busy.
+     */
+    public void testRunTimed_poolBusy() throws Exception {
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final CountDownLatch startedLatch = new CountDownLatch(RunUtil.MAX_POOLED_THREADS);
+        final IRunUtil.IRunnableResult blockingRunnable = new IRunUtil.IRunnableResult() {
+            @Override
+            public boolean run() throws Exception {
+                startedLatch.countDown();
+                releaseLatch.await();
+                return true;
+            }
+
+            @Override
+            public void cancel() {
+                // ignore
+            }
+        };
+        List<Thread> callers = new ArrayList<Thread>(RunUtil.MAX_POOLED_THREADS);
+        for (int i = 0; i < RunUtil.MAX_POOLED_THREADS; i++) {
+            Thread caller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mRunUtil.runTimed(10 * 1000, blockingRunnable, true);
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        try {
+            assertTrue(startedLatch.await(10, TimeUnit.SECONDS));
+            IRunUtil.IRunnableResult mockRunnable = EasyMock.createStrictMock(
+                    IRunUtil.IRunnableResult.class);
+            mockRunnable.cancel();
+            EasyMock.replay(mockRunnable);
+            assertEquals(CommandStatus.TIMED_OUT, mRunUtil.runTimed(100, mockRunnable, true));
+            EasyMock.verify(mockRunnable);
+        } finally {
+            releaseLatch.countDown();
+            for (Thread caller : callers) {
+                caller.join();
+            }
+        }
+    }
+
+    /**
+     * Test that a {@link RunUtil#runTimed(long, IRunnableResult, boolean)} call made from a timed
+     * operation is still subject to its timeout.
+     */
+    public void testRunTimed_nestedTimeout() throws Exception {
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final IRunUtil.IRunnableResult blockingRunnable = new IRunUtil.IRunnableResult() {
+            @Override
+            public boolean run() throws Exception {
+                releaseLatch.await();
+                return true;
+            }
+
+            @Override
+            public void cancel() {
+                releaseLatch.countDown();
+            }
+        };
+        IRunUtil.IRunnableResult outerRunnable = new IRunUtil.IRunnableResult() {
+            @Override
+            public boolean run() {
+                return mRunUtil.runTimed(100, blockingRunnable, true) == CommandStatus.TIMED_OUT;
+            }
+
+            @Override
+            public void cancel() {
+                // ignore
+            }
+        };
+        assertEquals(CommandStatus.SUCCESS, mRunUtil.runTimed(10 * 1000, outerRunnable, true));
+    }
+
     /**
      * Test that {@link RunUtil#runTimedCmd(long, String)} fails when given a garbage command.
      */
@@ -88,4 +233,35 @@ public class RunUtilTest extends TestCase {
         assertNull(result.getStdout());
         assertNull(result.getStderr());
     }
+
+    /**
+     * Test that {@link RunUtil#runTimedCmd(long, String)} does not block when a command produces
+     * more output than fits in the process pipe.
+     */
+    public void testRunTimedCmd_largeOutput() {
+        CommandResult result = mRunUtil.runTimedCmd(10 * 1000, "seq", "1", "100000");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertTrue(result.getStdout().endsWith("100000\n"));
+    }
+
+    /**
+     * Test that {@link RunUtil#runTimedCmdWithOutputSource(long, String...)} captures large output
+     * into a {@link InputStreamSource}.
+     */
+    public void testRunTimedCmdWithOutputSource() throws Exception {
+        CommandResult result = mRunUtil.runTimedCmdWithOutputSource(10 * 1000, "seq", "1",
+                "100000");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertNull(result.getStdout());
+        InputStreamSource stdout = result.getStdoutSource();
+        try {
+            // 9 1 digit numbers, 90 2 digit numbers, ... + newlines
+            assertEquals(588895, stdout.size());
+            assertTrue(StreamUtil.getStringFromSource(stdout).endsWith("100000\n"));
+            assertEquals(0, result.getStderrSource().size());
+        } finally {
+            stdout.cancel();
+            result.getStderrSource().cancel();
+        }
+    }
 }
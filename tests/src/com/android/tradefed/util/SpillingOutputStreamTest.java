@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.result.InputStreamSource;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SpillingOutputStream}.
+ */
+public class SpillingOutputStreamTest extends TestCase {
+
+    /**
+     * Test that data smaller than the threshold is held in memory.
+     */
+    public void testWrite_inMemory() throws Exception {
+        SpillingOutputStream stream = new SpillingOutputStream(10, "spilltest");
+        stream.write("hello".getBytes());
+        stream.write('!');
+        assertFalse(stream.isSpilled());
+        InputStreamSource data = stream.getData();
+        try {
+            assertEquals(6, data.size());
+            assertEquals("hello!", StreamUtil.getStringFromSource(data));
+        } finally {
+            data.cancel();
+        }
+    }
+
+    /**
+     * Test that data larger than the threshold is spilled to a file, and that the file is deleted
+     * when the data is cancelled.
+     */
+    public void testWrite_spill() throws Exception {
+        SpillingOutputStream stream = new SpillingOutputStream(4, "spilltest");
+        stream.write("hel".getBytes());
+        assertFalse(stream.isSpilled());
+        stream.write("lo world".getBytes());
+        assertTrue(stream.isSpilled());
+        InputStreamSource data = stream.getData();
+        assertEquals(11, data.size());
+        assertEquals("hello world", StreamUtil.getStringFromSource(data));
+        data.cancel();
+        assertNull(data.createInputStream());
+    }
+}
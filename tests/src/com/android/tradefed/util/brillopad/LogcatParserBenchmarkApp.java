@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.brillopad;
+
+import com.android.tradefed.util.brillopad.item.LogcatItem;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Micro benchmark java app that compares {@link LogcatParser} against the per line work of the
+ * previous regex based implementation.
+ * <p/>
+ * The previous implementation ran both the threadtime and time regexes on every line, parsed every
+ * timestamp with a {@link SimpleDateFormat}, built a {@link String} key for every event line, and
+ * kept the preamble window in a {@link LinkedList}.
+ * <p/>
+ * Lacks automated verification - intended to be run manually.
+ */
+public class LogcatParserBenchmarkApp {
+
+    private static final int[] NUM_LINES = new int[] {10000, 100000, 1000000};
+    /** a java crash is injected every CRASH_INTERVAL lines */
+    private static final int CRASH_INTERVAL = 5000;
+    private static final int NUM_WARMUP_RUNS = 3;
+
+    private static final Pattern THREADTIME_LINE = Pattern.compile(
+            "^(\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}.\\d{3})\\s+" +
+                "(\\d+)\\s+(\\d+)\\s+([A-Z])\\s+" +
+                "(.+?)\\s*: (.*)$");
+    private static final Pattern TIME_LINE = Pattern.compile(
+            "^(\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}.\\d{3})\\s+" +
+                "(\\w)/(.+?)\\(\\s*(\\d+)\\): (.*)$");
+
+    /**
+     * The per line work of the previous {@link LogcatParser} implementation.
+     */
+    private static class LegacyLineParser {
+        private final LinkedList<String> mRingBuffer = new LinkedList<String>();
+        private final List<String> mKeys = new ArrayList<String>();
+        private Date mStopTime = null;
+
+        void parseLine(String line) {
+            Matcher m = THREADTIME_LINE.matcher(line);
+            Matcher tm = TIME_LINE.matcher(line);
+            String level;
+            String tag;
+            Integer pid;
+            Integer tid = null;
+            if (m.matches()) {
+                mStopTime = parseTime(m.group(1));
+                pid = Integer.parseInt(m.group(2));
+                tid = Integer.parseInt(m.group(3));
+                level = m.group(4);
+                tag = m.group(5);
+                m.group(6);
+            } else if (tm.matches()) {
+                mStopTime = parseTime(tm.group(1));
+                level = tm.group(2);
+                tag = tm.group(3);
+                pid = Integer.parseInt(tm.group(4));
+                tm.group(5);
+            } else {
+                return;
+            }
+            if ("E".equals(level) && "AndroidRuntime".equals(tag)) {
+                mKeys.add(String.format("%d|%d|%s|%s", pid, tid, level, tag));
+            }
+            mRingBuffer.add(line);
+            if (mRingBuffer.size() > 500) {
+                mRingBuffer.removeFirst();
+            }
+        }
+
+        private Date parseTime(String timeStr) {
+            DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            try {
+                return formatter.parse(String.format("%s-%s", "2012", timeStr));
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+    }
+
+    private static List<String> generateLines(int numLines) {
+        List<String> lines = new ArrayList<String>(numLines);
+        for (int i = 0; i < numLines; i++) {
+            int seconds = i / 100;
+            String timestamp = String.format("04-25 %02d:%02d:%02d.%03d", (seconds / 3600) % 24,
+                    (seconds / 60) % 60, seconds % 60, i % 1000);
+            if (i % CRASH_INTERVAL == 0) {
+                lines.add(String.format("%s  3064  3082 E AndroidRuntime: java.lang.Exception",
+                        timestamp));
+            } else {
+                lines.add(String.format("%s  %4d  %4d I ActivityManager: message number %d",
+                        timestamp, 100 + i % 50, 200 + i % 50, i));
+            }
+        }
+        return lines;
+    }
+
+    private static long runLegacy(List<String> lines) {
+        long startTime = System.nanoTime();
+        LegacyLineParser parser = new LegacyLineParser();
+        for (String line : lines) {
+            parser.parseLine(line);
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static long runParser(List<String> lines) {
+        long startTime = System.nanoTime();
+        LogcatItem item = new LogcatParser("2012").parse(lines);
+        if (item.getStopTime() == null) {
+            throw new IllegalStateException("failed to parse logcat");
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    public static void main(String[] args) {
+        for (int numLines : NUM_LINES) {
+            List<String> lines = generateLines(numLines);
+            for (int i = 0; i < NUM_WARMUP_RUNS; i++) {
+                runLegacy(lines);
+                runParser(lines);
+            }
+            long legacyNs = runLegacy(lines);
+            long parserNs = runParser(lines);
+            System.out.printf("%-10d legacy: %8d ns/line   tokenizer: %8d ns/line\n", numLines,
+                    legacyNs / numLines, parserNs / numLines);
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package com.android.tradefed.util.brillopad;
 
 import com.android.tradefed.util.ArrayUtil;
+import com.android.tradefed.util.brillopad.item.GenericLogcatItem;
+import com.android.tradefed.util.brillopad.item.JavaCrashItem;
 import com.android.tradefed.util.brillopad.item.LogcatItem;
 
 import junit.framework.TestCase;
@@ -352,6 +354,53 @@ public class LogcatParserTest extends TestCase {
                 logcat.getJavaCrashes().get(0).getEventTime());
     }
 
+    /**
+     * Test that logcat can be parsed incrementally, that unparseable lines are ignored, and that
+     * timestamps are correct across hour and day boundaries.
+     */
+    public void testParseLine_incremental() throws ParseException {
+        LogcatParser parser = new LogcatParser("2012");
+        parser.parseLine("04-25 23:59:59.999  3064  3082 I tag: message 1");
+        parser.parseLine("--------- beginning of /dev/log/main");
+        parser.parseLine("04-26 00:00:00.001  3064  3082 E AndroidRuntime: java.lang.Exception");
+        parser.parseLine("04-26 00:00:00.001  3064  3082 E AndroidRuntime: \tat class.method1(Class.java:1)");
+        parser.parseLine("04-26 01:02:03.004  3065  3090 I tag:with:colons  : message 2");
+
+        LogcatItem logcat = parser.commit();
+        assertEquals(parseTime("2012-04-25 23:59:59.999"), logcat.getStartTime());
+        assertEquals(parseTime("2012-04-26 01:02:03.004"), logcat.getStopTime());
+        assertEquals(1, logcat.getJavaCrashes().size());
+        assertEquals(parseTime("2012-04-26 00:00:00.001"),
+                logcat.getJavaCrashes().get(0).getEventTime());
+        assertEquals("04-25 23:59:59.999  3064  3082 I tag: message 1",
+                logcat.getJavaCrashes().get(0).getLastPreamble());
+        assertEquals("04-25 23:59:59.999  3064  3082 I tag: message 1",
+                logcat.getJavaCrashes().get(0).getProcessPreamble());
+    }
+
+    /**
+     * Test that events are removed once the logcat has moved on past the quiet time.
+     */
+    public void testRemoveCompletedEvents() throws ParseException {
+        LogcatParser parser = new LogcatParser("2012");
+        parser.parseLine("04-25 09:55:47.799  3064  3082 E AndroidRuntime: java.lang.Exception");
+        parser.parseLine("04-25 09:55:47.799  3064  3082 E AndroidRuntime: \tat class.method1(Class.java:1)");
+        parser.parseLine("04-25 09:55:48.000  3064  3082 I tag: message 1");
+        assertTrue(parser.removeCompletedEvents(1000).isEmpty());
+
+        parser.parseLine("04-25 09:55:49.000  3064  3082 I tag: message 2");
+        List<GenericLogcatItem> events = parser.removeCompletedEvents(1000);
+        assertEquals(1, events.size());
+        assertTrue(events.get(0) instanceof JavaCrashItem);
+        assertEquals(3064, events.get(0).getPid().intValue());
+        assertTrue(parser.removeCompletedEvents(1000).isEmpty());
+
+        // a new crash from the same thread is reported as a new event
+        parser.parseLine("04-25 09:55:50.000  3064  3082 E AndroidRuntime: java.lang.Exception");
+        assertEquals(1, parser.removeCompletedEvents(-1).size());
+        assertEquals(0, parser.commit().getEvents().size());
+    }
+
     private Date parseTime(String timeStr) throws ParseException {
         DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
         return formatter.parse(timeStr);